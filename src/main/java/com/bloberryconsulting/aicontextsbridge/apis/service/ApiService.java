@@ -2,11 +2,38 @@ package com.bloberryconsulting.aicontextsbridge.apis.service;
 
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
+import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.ChatResponse.ChatUsage;
 import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
 import com.bloberryconsulting.aicontextsbridge.model.Context;
 
 public interface ApiService {
     String getResponse(ApiKey apiKey, String message, List<Context>  contextHistory);
     String getApiId();
+
+    /**
+     * Streams the response, passing the pieces of the answer to onDelta as they arrive.
+     * Services that can't stream pass the whole answer as a single piece.
+     *
+     * @return The token usage reported by the API, or null if it doesn't report it.
+     */
+    default ChatUsage streamResponse(ApiKey apiKey, String message, List<Context> contextHistory,
+            Consumer<String> onDelta) {
+        onDelta.accept(getResponse(apiKey, message, contextHistory));
+        return null;
+    }
+
+    /**
+     * Gets the response without holding the calling thread while the API answers. The request is
+     * prepared on the calling thread, errors doing so are thrown; the errors of the API call complete
+     * the future exceptionally. Cancelling the future aborts the API call.
+     * Services that can't call their API asynchronously answer on the calling thread.
+     *
+     * @return The future response.
+     */
+    default CompletableFuture<String> getResponseAsync(ApiKey apiKey, String message, List<Context> contextHistory) {
+        return CompletableFuture.completedFuture(getResponse(apiKey, message, contextHistory));
+    }
 }
\ No newline at end of file
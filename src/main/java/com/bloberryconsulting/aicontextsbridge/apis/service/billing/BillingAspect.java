@@ -1,36 +1,58 @@
 package com.bloberryconsulting.aicontextsbridge.apis.service.billing;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Aspect;
 
 import org.aspectj.lang.annotation.Around;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.ChatResponse.ChatUsage;
 import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
 import com.bloberryconsulting.aicontextsbridge.model.Context;
-import com.bloberryconsulting.aicontextsbridge.model.User;
 import com.bloberryconsulting.aicontextsbridge.repository.UserRepository;
 import com.bloberryconsulting.aicontextsbridge.service.CryptoService;
+import com.bloberryconsulting.aicontextsbridge.service.ResponseCache;
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.TokenCounter;
 
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
 @Aspect
 @Component
+@Order(1) // Around the cache aspects, to bill their hits
 public class BillingAspect {
    // private static final double TAX = 0.05;
     private static final double TOKEN_RATE = 0.00002; // $0.020 per 1000 tokens
+    private final Logger logger = LoggerFactory.getLogger(BillingAspect.class);
     private final CryptoService cryptoService;
     private final UserRepository userRepository;
+    private final TokenCounter tokenCounter;
+    private final ResponseCache responseCache;
+    private final double cacheHitRate; // Fraction of the token rate billed for an answer from the response cache
+    private final ExecutorService completionExecutor;
     private final Map<String, String> apiKeys = new ConcurrentHashMap<>();   
-    public BillingAspect(CryptoService cryptoService, UserRepository userRepository) {
+    public BillingAspect(CryptoService cryptoService, UserRepository userRepository, TokenCounter tokenCounter,
+            ResponseCache responseCache, @Value("${billing.cache-hit-rate:0.1}") double cacheHitRate,
+            @Qualifier("completionExecutor") ExecutorService completionExecutor) {
         this.cryptoService = cryptoService;
         this.userRepository = userRepository;
+        this.tokenCounter = tokenCounter;
+        this.responseCache = responseCache;
+        this.cacheHitRate = cacheHitRate;
+        this.completionExecutor = completionExecutor;
     }
 
+    @SuppressWarnings("unchecked")
     @Around("execution(* com.bloberryconsulting.aicontextsbridge.apis.service.ApiService.getResponse(..))")
     public String billAfterServiceCall(ProceedingJoinPoint joinPoint) throws Throwable {
         // Extract necessary information for billing
@@ -39,44 +61,119 @@ public class BillingAspect {
         final String message = joinPoint.getArgs()[1].toString();
         final List<Context> contexts = (List<Context>) joinPoint.getArgs()[2];
 
-        String apiURI = apiKeyObject.getUri();
+        final String encodedApiKey = apiKeyObject.getKeyValue();
+        apiKeyObject.setKeyValue(decodedApiKey(apiKeyObject));
+
+        responseCache.takeHit(); // A flag left by a failed call on this thread
+        String response = (String) joinPoint.proceed(new Object[] { apiKeyObject, message, contexts }); // Call the API
+                                                                                                        // service
+
+        int tokenCount = calculateTokenCount(response, apiKeyObject) + calculateTokenCount(message, apiKeyObject);
+        bill(apiKeyObject, encodedApiKey, contexts, tokenCount, responseCache.takeHit());
+
+        return response;
+
+    }
+
+    @SuppressWarnings("unchecked")
+    @Around("execution(* com.bloberryconsulting.aicontextsbridge.apis.service.ApiService.getResponseAsync(..))")
+    public CompletableFuture<String> billOnCompletion(ProceedingJoinPoint joinPoint) throws Throwable {
+        final ApiKey apiKeyObject = (ApiKey) joinPoint.getArgs()[0];
+        final String message = joinPoint.getArgs()[1].toString();
+        final List<Context> contexts = (List<Context>) joinPoint.getArgs()[2];
+
+        final String encodedApiKey = apiKeyObject.getKeyValue();
+        apiKeyObject.setKeyValue(decodedApiKey(apiKeyObject));
+
+        responseCache.takeHit();
+        CompletableFuture<String> response;
+        try {
+            response = (CompletableFuture<String>) joinPoint.proceed(new Object[] { apiKeyObject, message, contexts });
+        } finally {
+            // The requests are built with the decoded key before the future is returned, the one a
+            // follower of a single flight may send later included
+            apiKeyObject.setKeyValue(encodedApiKey);
+        }
+        // The caches answer on the calling thread, the flag is set by now
+        final boolean cacheHit = responseCache.takeHit();
+
+        // Billed when the answer arrives, on the completion executor: the credit and the key are updated
+        // in the cluster. The same future is returned, so cancelling it still aborts the API call; a
+        // failed or cancelled call is not billed
+        response.whenCompleteAsync((answer, error) -> {
+            if (error != null) {
+                return;
+            }
+            try {
+                int tokenCount = calculateTokenCount(answer, apiKeyObject) + calculateTokenCount(message, apiKeyObject);
+                bill(apiKeyObject, encodedApiKey, contexts, tokenCount, cacheHit);
+            } catch (RuntimeException e) {
+                logger.error("Failed to bill the response for user {}: {}", contexts.get(0).getUserId(),
+                        e.getMessage());
+            }
+        }, completionExecutor);
+        return response;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Around("execution(* com.bloberryconsulting.aicontextsbridge.apis.service.ApiService.streamResponse(..))")
+    public ChatUsage billAfterStreamedServiceCall(ProceedingJoinPoint joinPoint) throws Throwable {
+        final ApiKey apiKeyObject = (ApiKey) joinPoint.getArgs()[0];
+        final String message = joinPoint.getArgs()[1].toString();
+        final List<Context> contexts = (List<Context>) joinPoint.getArgs()[2];
+        final Consumer<String> onDelta = (Consumer<String>) joinPoint.getArgs()[3];
+
+        final String encodedApiKey = apiKeyObject.getKeyValue();
+        apiKeyObject.setKeyValue(decodedApiKey(apiKeyObject));
+
+        // Keep what was streamed, so an interrupted stream is billed for the part the user received
+        StringBuilder streamed = new StringBuilder();
+        Consumer<String> billedOnDelta = delta -> {
+            streamed.append(delta);
+            onDelta.accept(delta);
+        };
+        ChatUsage usage = null;
+        responseCache.takeHit();
+        try {
+            usage = (ChatUsage) joinPoint.proceed(new Object[] { apiKeyObject, message, contexts, billedOnDelta });
+            return usage;
+        } finally {
+            boolean cacheHit = responseCache.takeHit();
+            if (usage != null) {
+                // The real token count reported by the API
+                bill(apiKeyObject, encodedApiKey, contexts, usage.totalTokens(), cacheHit);
+            } else if (streamed.length() > 0) {
+                bill(apiKeyObject, encodedApiKey, contexts,
+                        calculateTokenCount(streamed.toString(), apiKeyObject)
+                                + calculateTokenCount(message, apiKeyObject), cacheHit);
+            } else {
+                apiKeyObject.setKeyValue(encodedApiKey);
+            }
+        }
+    }
+
+    private String decodedApiKey(ApiKey apiKeyObject) throws Exception {
         final String encodedApiKey = apiKeyObject.getKeyValue();
         String decodedApiKey =  apiKeys.get(encodedApiKey);
         if( decodedApiKey == null) {
             decodedApiKey = decodeApiKey(apiKeyObject);
             apiKeys.put(encodedApiKey, decodedApiKey);
-        }   
-        apiKeyObject.setKeyValue(decodedApiKey);
-        if (apiURI == null) {
-            apiURI = apiKeyObject.getUri();
         }
+        return decodedApiKey;
+    }
 
-        String response = (String) joinPoint.proceed(new Object[] { apiKeyObject, message, contexts }); // Call the API
-                                                                                                        // service
-
-        int tokenCount = calculateTokenCount(response) + calculateTokenCount(message);
-
+    private void bill(ApiKey apiKeyObject, String encodedApiKey, List<Context> contexts, int tokenCount,
+            boolean cacheHit) {
         // Perform billing calculation
-        double totalCost = calculateTotalCost(tokenCount);
+        double totalCost = calculateTotalCost(tokenCount) * (cacheHit ? cacheHitRate : 1);
 
         String userId = contexts.get(0).getUserId();
         // You can store the bill information or send it to another service for handling
-        // find user and update it credit
-        User user = userRepository.findUserById(userId);
-        user.setCredit(totalCost + user.getCredit());
-        // Ensure that the user's contexts map is initialized
-        if (user.getContexts() == null) {
-            user.setContexts(new HashMap<>());
-        }
-        // Use Java 8 forEach to populate the map
-        contexts.forEach(context -> user.getContexts().put(context.getName(), context));
-        userRepository.saveUser(user);
+        // update the user's credit in place, without loading and saving the whole user
+        userRepository.addCredit(userId, totalCost);
         apiKeyObject.setKeyValue(encodedApiKey);
         apiKeyObject.setTotalCost(totalCost + apiKeyObject.getTotalCost());
         userRepository.updateApiKey(apiKeyObject);
-
-        return response;
-
     }
 
     // Logic to decode API by secret and strong decode algorithm
@@ -85,14 +182,9 @@ public class BillingAspect {
         return decrypted;
     }
 
-    private int calculateTokenCount(Object response) {
-        if (response instanceof String) {
-            String responseString = (String) response;
-            // Simple approximation: split by spaces (not accurate for all languages and
-            // cases)
-            return responseString.split("\\s+").length;
-        }
-        return 0; // If the response is not a string or cannot be tokenized
+    private int calculateTokenCount(String text, ApiKey apiKeyObject) {
+        // Counted with the tokenizer of the model, as the API bills it
+        return tokenCounter.countTokens(text, apiKeyObject.getModel());
     }
 
     private double calculateTotalCost(int tokenCount) {
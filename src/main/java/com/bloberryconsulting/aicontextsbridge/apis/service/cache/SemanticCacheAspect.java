@@ -0,0 +1,179 @@
+package com.bloberryconsulting.aicontextsbridge.apis.service.cache;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
+import com.bloberryconsulting.aicontextsbridge.model.ChatMessage;
+import com.bloberryconsulting.aicontextsbridge.model.Context;
+import com.bloberryconsulting.aicontextsbridge.model.ConversationHistory;
+import com.bloberryconsulting.aicontextsbridge.model.User;
+import com.bloberryconsulting.aicontextsbridge.repository.UserRepository;
+import com.bloberryconsulting.aicontextsbridge.service.ResponseCache;
+import com.bloberryconsulting.aicontextsbridge.service.SemanticCache;
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.TokenCounter;
+
+/**
+ * Answers the prompts of the API keys with {@link ApiKey#isSemanticCacheEnabled()} from the
+ * {@link SemanticCache} when a similar prompt was answered recently, without calling the API.
+ * The tenant of a prompt is the client of the requesting user, so the users of a client share the
+ * answers to the same questions about the same documents, and the users of other clients never
+ * see them, even through a shared API key. Only the first prompt of a conversation is answered
+ * from the cache: a follow-up is only meaningful with its own history.
+ *
+ * Runs inside BillingAspect, which bills an answer flagged as a cache hit at the cache rate.
+ */
+@Aspect
+@Component
+@Order(2)
+public class SemanticCacheAspect {
+    private final Logger logger = LoggerFactory.getLogger(SemanticCacheAspect.class);
+    private final SemanticCache semanticCache;
+    private final ResponseCache responseCache;
+    private final UserRepository userRepository;
+    private final TokenCounter tokenCounter;
+    private final ExecutorService completionExecutor;
+
+    public SemanticCacheAspect(SemanticCache semanticCache, ResponseCache responseCache,
+            UserRepository userRepository, TokenCounter tokenCounter,
+            @Qualifier("completionExecutor") ExecutorService completionExecutor) {
+        this.semanticCache = semanticCache;
+        this.responseCache = responseCache;
+        this.userRepository = userRepository;
+        this.tokenCounter = tokenCounter;
+        this.completionExecutor = completionExecutor;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Around("execution(* com.bloberryconsulting.aicontextsbridge.apis.service.ApiService.getResponse(..))")
+    public String answerFromSemanticCache(ProceedingJoinPoint joinPoint) throws Throwable {
+        final ApiKey apiKey = (ApiKey) joinPoint.getArgs()[0];
+        final String prompt = joinPoint.getArgs()[1].toString();
+        final List<Context> contexts = (List<Context>) joinPoint.getArgs()[2];
+        Lookup lookup = lookup(apiKey, prompt, contexts);
+        if (lookup == null) {
+            return (String) joinPoint.proceed();
+        }
+        String answer = find(apiKey, prompt, lookup);
+        if (answer != null) {
+            logger.info("Answered getResponse from the semantic cache");
+            return answer;
+        }
+        answer = (String) joinPoint.proceed();
+        semanticCache.put(lookup.scope(), lookup.prompt(), answer, apiKey.getModel());
+        return answer;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Around("execution(* com.bloberryconsulting.aicontextsbridge.apis.service.ApiService.getResponseAsync(..))")
+    public CompletableFuture<String> answerFromSemanticCacheAsync(ProceedingJoinPoint joinPoint) throws Throwable {
+        final ApiKey apiKey = (ApiKey) joinPoint.getArgs()[0];
+        final String prompt = joinPoint.getArgs()[1].toString();
+        final List<Context> contexts = (List<Context>) joinPoint.getArgs()[2];
+        Lookup lookup = lookup(apiKey, prompt, contexts);
+        if (lookup == null) {
+            return (CompletableFuture<String>) joinPoint.proceed();
+        }
+        String answer = find(apiKey, prompt, lookup);
+        if (answer != null) {
+            logger.info("Answered getResponseAsync from the semantic cache");
+            return CompletableFuture.completedFuture(answer);
+        }
+        CompletableFuture<String> response = (CompletableFuture<String>) joinPoint.proceed();
+        // The same future is returned, so cancelling it still aborts the API call. The answer is counted and
+        // cached on the completion executor, not on the thread of the HTTP client
+        response.thenAcceptAsync(result -> semanticCache.put(lookup.scope(), lookup.prompt(), result, apiKey.getModel()),
+                completionExecutor);
+        return response;
+    }
+
+    // The scope and embedding of a prompt, null if the prompt is not answered from the cache
+    private Lookup lookup(ApiKey apiKey, String prompt, List<Context> contexts) {
+        if (!apiKey.isSemanticCacheEnabled() || contexts == null || contexts.isEmpty()) {
+            return null;
+        }
+        Context latestContext = contexts.stream()
+                .max(Comparator.comparing(Context::getLastUsed, Comparator.nullsFirst(Comparator.naturalOrder())))
+                .orElse(contexts.get(0));
+        if (apiKey.getUri().contains("/chat/completions") && !history(latestContext).isEmpty()) {
+            return null;
+        }
+        SemanticCache.Prompt embedded = semanticCache.prompt(prompt, apiKey.getModel());
+        if (embedded == null) {
+            return null;
+        }
+
+        String tenant = tenant(latestContext.getUserId());
+        String scope = SemanticCache.scope(tenant, apiKey.getModel(), latestContext.getAssistantRoleMessage(),
+                documentsKey(contexts));
+        return new Lookup(scope, embedded, latestContext);
+    }
+
+    // Loaded like the chat service does and kept in the context, so the service doesn't load it again
+    private ConversationHistory history(Context latestContext) {
+        if (latestContext.getConversationHistory() == null) {
+            latestContext.setConversationHistory(userRepository.findHistory(latestContext.getUserId(),
+                    latestContext.getSessionId(), latestContext.getName()));
+        }
+        return latestContext.getConversationHistory();
+    }
+
+    // The client of the requesting user, the user itself if it belongs to no client
+    private String tenant(String userId) {
+        User user = userRepository.findUserById(userId);
+        return user != null && user.getClientId() != null ? "client:" + user.getClientId() : "user:" + userId;
+    }
+
+    // The cached answer, flagged as a hit and saved to the history; null on a miss
+    private String find(ApiKey apiKey, String prompt, Lookup lookup) {
+        String answer = semanticCache.find(lookup.scope(), lookup.prompt());
+        if (answer != null) {
+            responseCache.markHit();
+            if (apiKey.getUri().contains("/chat/completions")) {
+                saveTurn(apiKey, lookup.latestContext(), prompt, answer);
+            }
+        }
+        return answer;
+    }
+
+    private record Lookup(String scope, SemanticCache.Prompt prompt, Context latestContext) {
+    }
+
+    // The turn goes to the history as if the API had answered; the prompt is saved without the
+    // documents, so the next turn still injects them
+    private void saveTurn(ApiKey apiKey, Context latestContext, String prompt, String answer) {
+        ChatMessage userMessage = ChatMessage.of(ChatMessage.USER, prompt, tokenCounter, apiKey.getModel());
+        ChatMessage assistantMessage = ChatMessage.of(ChatMessage.ASSISTANT, answer, tokenCounter, apiKey.getModel());
+        userRepository.appendHistory(latestContext.getUserId(), latestContext.getSessionId(), latestContext.getName(),
+                userMessage, assistantMessage);
+        if (latestContext.getConversationHistory() != null) {
+            latestContext.getConversationHistory().append(userMessage);
+            latestContext.getConversationHistory().append(assistantMessage);
+        }
+    }
+
+    // The contexts are deserialized for every request, the hash codes of their documents are computed again
+    // each time: one pass over the characters, small next to the request itself
+    private static long documentsKey(List<Context> contexts) {
+        long key = 0;
+        for (Context context : contexts) {
+            if (context != null && context.getDocuments() != null) {
+                for (String document : context.getDocuments()) {
+                    key = key * 31 + ((long) document.hashCode() << 32 | document.length());
+                }
+            }
+        }
+        return key;
+    }
+}
@@ -8,6 +8,7 @@ import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.ChatRequ
 import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.ChatResponse;
 import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.Message;
 import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.ModelList;
+import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.PooledHttpClient;
 import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
 import com.bloberryconsulting.aicontextsbridge.model.Context;
 import com.bloberryconsulting.aicontextsbridge.repository.UserRepository;
@@ -17,12 +18,11 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class ChatGPT implements ApiService  {
@@ -39,12 +39,14 @@ public class ChatGPT implements ApiService  {
 
     private final ChatGPTService chatGPTService;
     private final UserRepository userRepository;
+    private final PooledHttpClient client;
 
 
     // Constructor for dependency injection
-    public ChatGPT(ChatGPTService chatGPTService, UserRepository userRepository) {
+    public ChatGPT(ChatGPTService chatGPTService, UserRepository userRepository, PooledHttpClient client) {
         this.chatGPTService = chatGPTService;
         this.userRepository = userRepository;
+        this.client = client;
     }
 
 
@@ -54,11 +56,8 @@ public class ChatGPT implements ApiService  {
             .registerTypeAdapter(Role.class, new LowercaseEnumSerializer())
             .create();
 
-    private final HttpClient client = HttpClient.newHttpClient();
-
     public List<ModelList.Model> listModels() {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(MODELS_URL))
+        HttpRequest request = client.newRequest(MODELS_URL)
                 .header("Authorization",
                         "Bearer %s".formatted(System.getenv("OPENAI_API_KEY")))
                 .build();
@@ -118,8 +117,7 @@ public class ChatGPT implements ApiService  {
 
     // Transmit the request to the OpenAI API and return the response
     public ChatResponse createChatResponse(ChatRequest chatRequest) {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(CHAT_URL))
+        HttpRequest request = client.newRequest(CHAT_URL)
                 .header("Authorization",
                         "Bearer %s".formatted(System.getenv("OPENAI_API_KEY")))
                 .header("Content-Type", "application/json")
@@ -143,6 +141,12 @@ public class ChatGPT implements ApiService  {
         return chatGPTService.getResponse(apiKey, prompt, contexts);
     }
 
+    @Override
+    public CompletableFuture<String> getResponseAsync(ApiKey apiKey, String prompt, List<Context> contexts) {
+        // Use ChatGPTService for getting the response without holding the calling thread
+        return chatGPTService.getResponseAsync(apiKey, prompt, contexts);
+    }
+
     @Override
     public String getApiId() {
         return "ChatGPTBot";
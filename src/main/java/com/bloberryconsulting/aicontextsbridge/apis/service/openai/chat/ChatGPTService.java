@@ -2,25 +2,45 @@ package com.bloberryconsulting.aicontextsbridge.apis.service.openai.chat;
 
 import org.springframework.stereotype.Service;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpEntity;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.HttpClientErrorException;
-import org.springframework.web.client.RestTemplate;
 
 import com.bloberryconsulting.aicontextsbridge.apis.service.ApiService;
+import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.ChatResponse.ChatUsage;
+import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.PooledHttpClient;
 import com.bloberryconsulting.aicontextsbridge.exceptions.APIError;
+import com.bloberryconsulting.aicontextsbridge.exceptions.UpstreamError;
 import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
+import com.bloberryconsulting.aicontextsbridge.model.ChatMessage;
 import com.bloberryconsulting.aicontextsbridge.model.Context;
-import com.bloberryconsulting.aicontextsbridge.service.JsonUtils;
+import com.bloberryconsulting.aicontextsbridge.model.ConversationHistory;
+import com.bloberryconsulting.aicontextsbridge.repository.UserRepository;
+import com.bloberryconsulting.aicontextsbridge.service.ResponseCache;
+import com.bloberryconsulting.aicontextsbridge.service.SingleFlight;
+import com.bloberryconsulting.aicontextsbridge.service.retrieval.RetrievalService;
+import com.bloberryconsulting.aicontextsbridge.service.routing.ApiKeyRouter;
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.TokenCounter;
 
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.json.JSONArray;
 
@@ -31,8 +51,25 @@ import org.slf4j.LoggerFactory;
 public class ChatGPTService implements ApiService {
     private final Logger logger = LoggerFactory.getLogger(ChatGPTService.class);
     private final static double RESPONSE_LENGTH_RATIO = 0.30; // 30% of the model's maximum token limit
+    private final static String SSE_DATA = "data:";
+    private final static String SSE_DONE = "[DONE]";
     @Autowired
-    private JsonUtils jsonUtils;
+    private UserRepository userRepository;
+    @Autowired
+    private PooledHttpClient httpClient;
+    @Autowired
+    private TokenCounter tokenCounter;
+    @Autowired
+    private RetrievalService retrievalService;
+    @Autowired
+    private ResponseCache responseCache;
+    @Autowired
+    private ApiKeyRouter apiKeyRouter;
+    @Autowired
+    private SingleFlight singleFlight;
+    @Autowired
+    @Qualifier("completionExecutor")
+    private ExecutorService completionExecutor;
 
     private int calculateDesiredResponseLength(int maxModelTokens) {
         return (int) Math.round(maxModelTokens * RESPONSE_LENGTH_RATIO);
@@ -57,52 +94,37 @@ public class ChatGPTService implements ApiService {
         return Math.min(maxResponseTokens, desiredResponseLength);
     }
 
-    private String formPromptBasedOnContext(String prompt, List<Context> contexts) {
-        StringBuilder collect = new StringBuilder();    
-    
-        for (Context context : contexts) {
-            if (context.getConversationHistory() == null && context.getDocuments() == null) {
-                continue;
-            }
-            String previousData = null;
-            if (context != null) {
-                String[] documents = context.getDocuments();
-                if (documents != null && documents.length > 0) {
-                    logger.info("Appending context to user input");
-                    JSONArray jsonArray;
-                    if (context.getConversationHistory() != null){
-                        try {
-                            jsonArray = jsonUtils.read(context.getConversationHistory());
-                        } catch (IOException e) {
-                            logger.error("Exception in maintainHistory: {}", e.getMessage());
-                            throw new APIError(HttpStatus.INTERNAL_SERVER_ERROR,
-                                    "Chat history serialization Error: " + e.getMessage());
-                        }
-                        // loop over all messages of JSONArray and find message that has role 'user' and
-                        // which content has the documents values as string inside
-                        // those documents which are not part of content will be added to the userInput
-                        // in all other cases userInput will be returned as itself plus joined
-                        // delimetered documents
-                        for (int i = 0; i < jsonArray.length(); i++) {
-                            JSONObject message = jsonArray.getJSONObject(i);
-                            if (message.getString("role").equals("user")) {
-                                String content = message.getString("content");
-                                if(content != null && !content.isEmpty()){
-                                    for (String document : documents) {
-                                        if (!content.contains(document)) {
-                                            previousData = String.join("\n", documents) + "\n" + previousData;
-                                        }
-                                    }
-                                }    
-                            }
-                        }
-                    }
-                    collect.append(((previousData == null) ? String.join("\n", documents) : previousData) + "\n");
-                }
+    /**
+     * Selects the documents of the contexts to send with the prompt, whole if they fit in their share of
+     * the request, otherwise the chunks most relevant to the prompt, keyed by the fingerprint of their content.
+     */
+    private Map<Long, String> documentsFor(ApiKey apiKey, String prompt, List<Context> contexts) {
+        return retrievalService.retrieve(contexts, prompt, calculateMaxRequestLength(apiKey.getMaxContextLength()),
+                apiKey.getModel());
+    }
 
+    /**
+     * Forms the user message: the documents the model has not seen in the history yet, followed by
+     * the prompt. The message records the fingerprints of the injected documents, so the following
+     * turns don't inject them again.
+     *
+     * @param history The history sent with the message, null if there is none.
+     */
+    private ChatMessage formPromptBasedOnContext(String prompt, Map<Long, String> documents,
+            ConversationHistory history) {
+        StringBuilder collect = new StringBuilder();
+        long[] injected = new long[documents.size()];
+        int count = 0;
+        for (Map.Entry<Long, String> document : documents.entrySet()) {
+            if (history == null || !history.containsDocument(document.getKey())) {
+                collect.append(document.getValue()).append('\n');
+                injected[count++] = document.getKey();
             }
         }
-        return (!collect.isEmpty() ? collect.toString(): "") + prompt;
+        if (count > 0) {
+            logger.info("Appending {} of {} context documents to user input", count, documents.size());
+        }
+        return new ChatMessage(ChatMessage.USER, collect.append(prompt).toString(), Arrays.copyOf(injected, count));
     }
 
     @Override
@@ -111,14 +133,17 @@ public class ChatGPTService implements ApiService {
         if( contexts == null || contexts.size() == 0){
             throw new APIError(HttpStatus.INTERNAL_SERVER_ERROR, "Context not provided  ");
         }
-        String userInput = formPromptBasedOnContext(prompt, contexts);
 
         try {
             if (apiKey.getUri().contains("/chat/completions")) {
                 logger.info("Processing chat completion request");
-                return getChatResponse(apiKey, userInput, contexts);
+                Context latestContext = latestContext(contexts);
+                ConversationHistory history = maintainHistory(latestContext);
+                return getChatResponse(apiKey, prompt, documentsFor(apiKey, prompt, contexts), latestContext,
+                        history);
             } else {
                 logger.info("Processing completion request");
+                String userInput = formPromptBasedOnContext(prompt, documentsFor(apiKey, prompt, contexts), null).getContent();
                 return getCompletionResponse(apiKey, userInput);
             }
         } catch (HttpClientErrorException e) {
@@ -132,12 +157,152 @@ public class ChatGPTService implements ApiService {
         }
     }
 
-    private String getChatResponse(ApiKey apiKey, String userInput, List<Context> contexts ) {
-        logger.info("Entering getChatResponse method");
-        // Get the history from the first available context
-        Context latestContext = contexts.stream().max(Comparator.comparing(Context::getLastUsed))
-                                        .orElse(null);
+    /**
+     * Gets the response like {@link #getResponse(ApiKey, String, List)}, without holding the calling
+     * thread while the API answers: the history, the documents and the response cache are handled on
+     * the calling thread, the request is then sent asynchronously and the turn is saved when the answer
+     * arrives, on the completion executor. Cancelling the future aborts the request.
+     */
+    @Override
+    public CompletableFuture<String> getResponseAsync(ApiKey apiKey, String prompt, List<Context> contexts) {
+        if (contexts == null || contexts.isEmpty()) {
+            throw new APIError(HttpStatus.INTERNAL_SERVER_ERROR, "Context not provided  ");
+        }
+        if (!apiKey.getUri().contains("/chat/completions")) {
+            String userInput = formPromptBasedOnContext(prompt, documentsFor(apiKey, prompt, contexts), null)
+                    .getContent();
+            logger.info("Sending asynchronous POST request to the OpenAI completion API");
+            return postAsync(apiKey, request(apiKey, completionBody(apiKey, userInput)), this::extractTextFromChoices);
+        }
+
+        Context latestContext = latestContext(contexts);
+        ConversationHistory history = maintainHistory(latestContext);
+        ChatRequest request = chatRequest(apiKey, latestContext, history, prompt,
+                documentsFor(apiKey, prompt, contexts));
+        String requestKey = requestKey(apiKey, latestContext, history, request, prompt);
+        String cacheKey = apiKey.isResponseCacheEnabled() ? requestKey : null;
+        String cached = cacheKey != null ? responseCache.get(cacheKey) : null;
+        if (cached != null) {
+            logger.info("Answered getResponseAsync from the response cache");
+            saveTurn(apiKey, latestContext, history, request.userMessage(), cached);
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        // The identical requests in flight share one call, every caller saves the turn in its own history.
+        // The HTTP request is built now: a follower falling back sends it later, once the key is encoded again
+        HttpRequest httpRequest = request(apiKey, request.body());
+        CompletableFuture<String> shared = singleFlight.execute(flightKey(apiKey, requestKey), () -> {
+            logger.info("Sending asynchronous POST request to OpenAI Chat API");
+            return postAsync(apiKey, httpRequest, responseBody -> chatAnswer(apiKey, responseBody, cacheKey));
+        });
+        CompletableFuture<String> answer = shared.thenApplyAsync(assistantResponse -> {
+            saveTurn(apiKey, latestContext, history, request.userMessage(), assistantResponse);
+            return assistantResponse;
+        }, completionExecutor);
+        answer.whenComplete((result, error) -> {
+            if (answer.isCancelled()) {
+                shared.cancel(true);
+            }
+        });
+        return answer;
+    }
+
+    /**
+     * Streams a chat completion: the request is sent with {@code stream: true} and the content deltas
+     * of the server-sent events are passed to onDelta as they arrive. Once the stream ends the assembled
+     * answer is appended to the context history, like {@link #getResponse(ApiKey, String, List)} does.
+     * Completion (non chat) API keys are not streamed, their answer is passed as a single delta.
+     */
+    @Override
+    public ChatUsage streamResponse(ApiKey apiKey, String prompt, List<Context> contexts, Consumer<String> onDelta) {
+        if (!apiKey.getUri().contains("/chat/completions")) {
+            return ApiService.super.streamResponse(apiKey, prompt, contexts, onDelta);
+        }
+        logger.info("Entering streamResponse method");
+        if (contexts == null || contexts.isEmpty()) {
+            throw new APIError(HttpStatus.INTERNAL_SERVER_ERROR, "Context not provided  ");
+        }
+
+        Context latestContext = latestContext(contexts);
+        ConversationHistory history = maintainHistory(latestContext);
+        ChatRequest request = chatRequest(apiKey, latestContext, history, prompt,
+                documentsFor(apiKey, prompt, contexts));
+        String cacheKey = cacheKey(apiKey, latestContext, history, request, prompt);
+        String cached = cacheKey != null ? responseCache.get(cacheKey) : null;
+        if (cached != null) {
+            // Billed from the text, as the API reports no usage for it
+            logger.info("Answered streamResponse from the response cache");
+            onDelta.accept(cached);
+            saveTurn(apiKey, latestContext, history, request.userMessage(), cached);
+            return null;
+        }
+        JSONObject body = request.body();
+        body.put("stream", true);
+        // The last chunk then carries the token usage of the whole completion
+        body.put("stream_options", new JSONObject().put("include_usage", true));
+
+        logger.info("Sending streaming POST request to OpenAI Chat API");
+        StringBuilder assistantResponse = new StringBuilder();
+        ChatUsage usage = null;
+        HttpResponse<Stream<String>> response = send(apiKey, request(apiKey, body), HttpResponse.BodyHandlers.ofLines());
+        // Closing the lines closes the connection, so the upstream completion stops if onDelta fails
+        try (Stream<String> lines = response.body()) {
+            apiKeyRouter.record(apiKey, response.headers());
+            if (response.statusCode() / 100 != 2) {
+                logger.error("API returned non-success status code: {}", response.statusCode());
+                throw new UpstreamError(resolveStatus(response.statusCode()), lines.collect(Collectors.joining("\n")),
+                        ApiKeyRouter.retryAfterMillis(response.headers()));
+            }
+            Iterator<String> events = lines.iterator();
+            while (events.hasNext()) {
+                String line = events.next();
+                // Events are separated by blank lines, lines starting with ':' are comments
+                if (!line.startsWith(SSE_DATA)) {
+                    continue;
+                }
+                String data = line.substring(SSE_DATA.length()).trim();
+                if (SSE_DONE.equals(data)) {
+                    break;
+                }
+                JSONObject chunk = new JSONObject(data);
+                JSONArray choices = chunk.optJSONArray("choices");
+                if (choices != null && !choices.isEmpty()) {
+                    JSONObject delta = choices.getJSONObject(0).optJSONObject("delta");
+                    String content = delta != null ? delta.optString("content", null) : null;
+                    if (content != null && !content.isEmpty()) {
+                        assistantResponse.append(content);
+                        onDelta.accept(content);
+                    }
+                }
+                JSONObject chunkUsage = chunk.optJSONObject("usage");
+                if (chunkUsage != null) {
+                    usage = new ChatUsage(chunkUsage.getInt("prompt_tokens"), chunkUsage.getInt("completion_tokens"),
+                            chunkUsage.getInt("total_tokens"));
+                }
+            }
+        }
+
+        saveTurn(apiKey, latestContext, history, request.userMessage(), assistantResponse.toString());
+        if (cacheKey != null) {
+            responseCache.put(cacheKey, assistantResponse.toString(), apiKey);
+        }
+        logger.info("Exiting streamResponse method, usage: {}", usage);
+        return usage;
+    }
+
+    // The history is loaded for the latest used context only
+    private Context latestContext(List<Context> contexts) {
+        return contexts.stream()
+                .max(Comparator.comparing(Context::getLastUsed, Comparator.nullsFirst(Comparator.naturalOrder())))
+                .orElse(null);
+    }
 
+    // The body of a chat completion request and the user message it sends
+    private record ChatRequest(JSONObject body, ChatMessage userMessage) {
+    }
+
+    private ChatRequest chatRequest(ApiKey apiKey, Context latestContext, ConversationHistory history, String prompt,
+            Map<Long, String> documents) {
         String modelName = apiKey.getModel();
         if (modelName == null || modelName.isEmpty()) {
             logger.error("Model name is null or empty");
@@ -147,45 +312,116 @@ public class ChatGPTService implements ApiService {
         JSONObject body = new JSONObject();
         body.put("model", modelName);
 
-        JSONArray messages = maintainHistory(latestContext);
-        if (latestContext.getAssistantRoleMessage() != null) {
-            messages.put(new JSONObject().put("role", "system").put("content", latestContext.getAssistantRoleMessage()));
-        }
-        messages.put(new JSONObject().put("role", "user").put("content", userInput));
+        // The stored history keeps only the user and assistant turns, the system message is added per request
+        ChatMessage systemMessage = latestContext.getAssistantRoleMessage() != null
+                ? ChatMessage.of(ChatMessage.SYSTEM, latestContext.getAssistantRoleMessage(), tokenCounter, modelName)
+                : null;
+        // The oldest turns are dropped from the request until the history fits next to the new messages.
+        // A document injected by a dropped turn is not seen by the model anymore, the message is then
+        // formed again with it; every round injects at least one more document, so this ends
+        ChatMessage userMessage;
+        do {
+            userMessage = formPromptBasedOnContext(prompt, documents, history);
+            int historyBudget = calculateMaxRequestLength(apiKey.getMaxContextLength())
+                    - TokenCounter.TOKENS_PER_REPLY - userMessage.countTokens(tokenCounter, modelName)
+                    - (systemMessage != null ? systemMessage.countTokens(tokenCounter, modelName) : 0);
+            int dropped = history.trimToTokens(historyBudget, tokenCounter, modelName);
+            if (dropped > 0) {
+                logger.info("Dropped {} messages of the history to fit the context length", dropped);
+            }
+        } while (lostDocuments(userMessage, documents, history));
 
-        messages = jsonUtils.manageTokenCountAndTrimHistory(messages,
-                calculateMaxRequestLength(apiKey.getMaxContextLength()));
+        JSONArray messages = history.toJsonArray();
+        if (systemMessage != null) {
+            messages.put(systemMessage.toJson());
+        }
+        messages.put(userMessage.toJson());
 
         body.put("messages", messages);
+        return new ChatRequest(body, userMessage);
+    }
+
+    // The key of the request in the response cache, null if the API key doesn't use the cache
+    private String cacheKey(ApiKey apiKey, Context latestContext, ConversationHistory history, ChatRequest request,
+            String prompt) {
+        if (!apiKey.isResponseCacheEnabled()) {
+            return null;
+        }
+        return requestKey(apiKey, latestContext, history, request, prompt);
+    }
+
+    // Identifies the request as the model sees it, see ResponseCache.key. Computed before the turn is saved,
+    // the history is the one sent with the request
+    private String requestKey(ApiKey apiKey, Context latestContext, ConversationHistory history, ChatRequest request,
+            String prompt) {
+        return responseCache.key(apiKey.getModel(), latestContext.getAssistantRoleMessage(), history,
+                request.userMessage().getDocuments(), prompt);
+    }
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.setBearerAuth(apiKey.getKeyValue());
+    // The identical requests of the keys of an owner share their calls, see SingleFlight
+    private static String flightKey(ApiKey apiKey, String requestKey) {
+        return apiKey.getUserId() + ":" + requestKey;
+    }
 
-        HttpEntity<String> request = new HttpEntity<>(body.toString(), headers);
+    // The answer of a chat completion, cached once by the caller that made the call
+    private String chatAnswer(ApiKey apiKey, String responseBody, String cacheKey) {
+        String assistantResponse = extractTextFromChatResponse(responseBody);
+        if (cacheKey != null) {
+            responseCache.put(cacheKey, assistantResponse, apiKey);
+        }
+        return assistantResponse;
+    }
 
-        RestTemplate restTemplate = new RestTemplate();
-        String responseBody;
+    // Whether trimming the history dropped a document the message doesn't inject
+    private boolean lostDocuments(ChatMessage userMessage, Map<Long, String> documents,
+            ConversationHistory history) {
+        int missing = 0;
+        for (Long document : documents.keySet()) {
+            if (!history.containsDocument(document)) {
+                missing++;
+            }
+        }
+        return missing > userMessage.getDocuments().length;
+    }
+
+    private void saveTurn(ApiKey apiKey, Context latestContext, ConversationHistory history, ChatMessage userMessage,
+            String assistantResponse) {
+        ChatMessage assistantMessage = ChatMessage.of(ChatMessage.ASSISTANT, assistantResponse, tokenCounter,
+                apiKey.getModel());
+        // Append only the new turn, the stored history is not rewritten
+        userRepository.appendHistory(latestContext.getUserId(), latestContext.getSessionId(),
+                latestContext.getName(), userMessage, assistantMessage);
+        history.append(userMessage);
+        history.append(assistantMessage);
+    }
+
+    private String getChatResponse(ApiKey apiKey, String prompt, Map<Long, String> documents, Context latestContext,
+            ConversationHistory history) {
+        logger.info("Entering getChatResponse method");
+
+        ChatRequest request = chatRequest(apiKey, latestContext, history, prompt, documents);
+        JSONObject body = request.body();
+        ChatMessage userMessage = request.userMessage();
+        String requestKey = requestKey(apiKey, latestContext, history, request, prompt);
+        String cacheKey = apiKey.isResponseCacheEnabled() ? requestKey : null;
+        String cached = cacheKey != null ? responseCache.get(cacheKey) : null;
+        if (cached != null) {
+            logger.info("Answered getChatResponse from the response cache");
+            saveTurn(apiKey, latestContext, history, userMessage, cached);
+            return cached;
+        }
 
         try {
-            logger.info("Sending POST request to OpenAI Chat API");
-            logger.info("Request body: {}", body.toString());
-            logger.debug("Request headers: {}", headers.toString());
-            ResponseEntity<String> response = restTemplate.postForEntity(apiKey.getUri(), request, String.class);
-            responseBody = response.getBody();
-
-            if (response.getStatusCode().is2xxSuccessful()) {
-                String assistantResponse = extractTextFromChatResponse(responseBody);
-                messages.put(new JSONObject().put("role", "assistant").put("content", assistantResponse));
-                latestContext.setConversationHistory(jsonUtils.write(messages));
-                return assistantResponse;
-            } else {
-                logger.error("Received non-2xx status code from OpenAI Chat API");
-                throw new HttpClientErrorException(response.getStatusCode(), "API Error: " + responseBody);
-            }
-        } catch (IOException ex) {
-            logger.error("IOException in messages: {}", ex.getMessage());
-            throw new APIError(HttpStatus.INTERNAL_SERVER_ERROR, "Serialization failed: " + ex.getMessage());
+            // The leader of the identical requests in flight posts on its own thread, the others wait for it.
+            // Built with the decoded key now, like the asynchronous request
+            HttpRequest httpRequest = request(apiKey, body);
+            String assistantResponse = join(singleFlight.execute(flightKey(apiKey, requestKey), () -> {
+                logger.info("Sending POST request to OpenAI Chat API");
+                logger.info("Request body: {}", body.toString());
+                return CompletableFuture.completedFuture(chatAnswer(apiKey, post(apiKey, httpRequest), cacheKey));
+            }));
+            saveTurn(apiKey, latestContext, history, userMessage, assistantResponse);
+            return assistantResponse;
         } catch (HttpClientErrorException e) {
             logger.error("HttpClientErrorException in getChatResponse: {}", e.getMessage());
             throw new APIError(e.getStatusCode(), e.getResponseBodyAsString());
@@ -194,20 +430,17 @@ public class ChatGPTService implements ApiService {
         }
     }
 
-    private JSONArray maintainHistory(Context context) {
+    private ConversationHistory maintainHistory(Context context) {
         try {
 
             if (context.getConversationHistory() == null) {
-                // If conversationHistory is null, attempt to retrieve it from assistanceService
-
-                JSONArray conversationHistory = new JSONArray();
-                // store the history in the context
-                context.setConversationHistory(jsonUtils.write(conversationHistory));
-                return conversationHistory;
-            } else {
-                // Return the existing conversation history
-                return jsonUtils.read(context.getConversationHistory());
+                // If conversationHistory is null, load it from the history map
+                // and store it in the context
+                context.setConversationHistory(userRepository.findHistory(context.getUserId(),
+                        context.getSessionId(), context.getName()));
             }
+            // The history is appended to in place, it is never parsed again
+            return context.getConversationHistory();
         } catch (Exception e) {
             logger.error("Exception in maintainHistory: {}", e.getMessage());
             throw new APIError(HttpStatus.INTERNAL_SERVER_ERROR, "Chat history serialization Error: " + e.getMessage());
@@ -241,14 +474,32 @@ public class ChatGPTService implements ApiService {
 
         // Log the input received
         logger.debug("Received userInput: {}", userInput);
+        JSONObject body = completionBody(apiKey, userInput);
+
+        try {
+            logger.info("Sending POST request to the OpenAI completion API");
+            logger.info("Request body: {}", body.toString());
+
+            // Send a POST request to the OpenAI completion API
+            String responseBody = post(apiKey, request(apiKey, body));
+            logger.info("Successful response received from API");
+            // Extract and return the response text
+            return extractTextFromChoices(responseBody);
+        } catch (HttpClientErrorException e) {
+            logger.error("HttpClientErrorException caught: {}", e.getMessage());
+            throw new APIError(e.getStatusCode(), e.getResponseBodyAsString());
+        }
+    }
 
+    private JSONObject completionBody(ApiKey apiKey, String userInput) {
         // Prepare the request body with necessary parameters
         JSONObject body = new JSONObject();
         body.put("prompt", userInput);
         logger.debug("Request body prepared with prompt");
 
         // Calculate the maximum number of tokens for the response
-        int maxTokens = calculateMaxTokens(apiKey.getMaxContextLength(), userInput.length());
+        int maxTokens = calculateMaxTokens(apiKey.getMaxContextLength(),
+                tokenCounter.countTokens(userInput, apiKey.getModel()));
         logger.debug("Calculated maxTokens: {}", maxTokens);
 
         if (maxTokens <= 0) {
@@ -264,46 +515,85 @@ public class ChatGPTService implements ApiService {
         body.put("n", 1);
         body.put("stream", false);
         logger.debug("Optional parameters set");
+        return body;
+    }
 
-        // Set up HTTP headers
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.setBearerAuth(apiKey.getKeyValue());
-        logger.debug("HTTP headers set");
-
-        // Create a request entity
-        HttpEntity<String> request = new HttpEntity<>(body.toString(), headers);
-        logger.debug("Request entity created");
+    // Posts the request to the endpoint of the API key through the shared HTTP client and returns the
+    // response body. Non-2xx responses are thrown as HttpClientErrorException, carrying the error body
+    private String post(ApiKey apiKey, HttpRequest request) {
+        HttpResponse<String> response = send(apiKey, request, HttpResponse.BodyHandlers.ofString());
+        apiKeyRouter.record(apiKey, response.headers());
+        if (response.statusCode() / 100 != 2) {
+            logger.error("API returned non-success status code: {}", response.statusCode());
+            HttpStatus status = resolveStatus(response.statusCode());
+            throw HttpClientErrorException.create(status, status.getReasonPhrase(), HttpHeaders.EMPTY,
+                    response.body().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+        }
+        return response.body();
+    }
 
-        // Initialize RestTemplate for the HTTP request
-        RestTemplate restTemplate = new RestTemplate();
-        String responseBody;
+    // Posts the request without waiting for the answer, the response body is passed to onResponse on the
+    // completion executor, which may block on the cluster. Non-2xx responses complete the future exceptionally
+    // with an UpstreamError
+    private <T> CompletableFuture<T> postAsync(ApiKey apiKey, HttpRequest request, Function<String, T> onResponse) {
+        CompletableFuture<HttpResponse<String>> exchange = httpClient.sendAsync(request,
+                HttpResponse.BodyHandlers.ofString());
+        CompletableFuture<T> answer = exchange.thenApplyAsync(response -> {
+            apiKeyRouter.record(apiKey, response.headers());
+            if (response.statusCode() / 100 != 2) {
+                logger.error("API returned non-success status code: {}", response.statusCode());
+                throw new UpstreamError(resolveStatus(response.statusCode()), response.body(),
+                        ApiKeyRouter.retryAfterMillis(response.headers()));
+            }
+            return onResponse.apply(response.body());
+        }, completionExecutor);
+        // Cancelling a dependent future doesn't cancel its source, the exchange is aborted here
+        answer.whenComplete((result, error) -> {
+            if (answer.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+        return answer;
+    }
 
+    // Waits for an answer, throwing the error of a failed one as is
+    private static String join(CompletableFuture<String> answer) {
         try {
-            logger.info("Sending POST request to the OpenAI completion API");
-            logger.info("Request body: {}", body.toString());
-            logger.debug("Request headers: {}", headers.toString());
-
-            // Send a POST request to the OpenAI completion API
-            ResponseEntity<String> response = restTemplate.postForEntity(apiKey.getUri(), request, String.class);
-            responseBody = response.getBody();
-            logger.debug("Received response from API");
-
-            // Handle HTTP status codes
-            if (response.getStatusCode().is2xxSuccessful()) {
-                logger.info("Successful response received from API");
-                // Extract and return the response text
-                return extractTextFromChoices(responseBody);
-            } else {
-                logger.error("API returned non-success status code: {}", response.getStatusCode());
-                throw new HttpClientErrorException(response.getStatusCode(), "API Error: " + responseBody);
+            return answer.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
             }
-        } catch (HttpClientErrorException e) {
-            logger.error("HttpClientErrorException caught: {}", e.getMessage());
-            throw new APIError(e.getStatusCode(), e.getResponseBodyAsString());
+            throw e;
         }
     }
 
+    private <T> HttpResponse<T> send(ApiKey apiKey, HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+        try {
+            return httpClient.send(request, bodyHandler);
+        } catch (IOException e) {
+            logger.error("IOException sending request to {}: {}", apiKey.getUri(), e.getMessage());
+            throw new UpstreamError(HttpStatus.INTERNAL_SERVER_ERROR, "Request to the API failed: " + e.getMessage(), 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APIError(HttpStatus.INTERNAL_SERVER_ERROR, "Request to the API was interrupted");
+        }
+    }
+
+    // Authorized with the key value of the moment, the decoded one while the billing aspect runs
+    private HttpRequest request(ApiKey apiKey, JSONObject body) {
+        return httpClient.newRequest(apiKey.getUri())
+                .header(HttpHeaders.CONTENT_TYPE, "application/json")
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + apiKey.getKeyValue())
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+    }
+
+    private HttpStatus resolveStatus(int statusCode) {
+        HttpStatus status = HttpStatus.resolve(statusCode);
+        return status != null ? status : HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
     private String extractTextFromChoices(String responseBody) {
         // Parse the JSON response
         JSONObject jsonResponse = new JSONObject(responseBody);
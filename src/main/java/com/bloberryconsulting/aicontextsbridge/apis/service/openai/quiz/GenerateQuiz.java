@@ -5,16 +5,19 @@ import com.bloberryconsulting.aicontextsbridge.apis.service.openai.chat.Role;
 import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.ChatRequest;
 import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.ChatResponse;
 import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.Message;
+import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.PooledHttpClient;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.List;
 
 public class GenerateQuiz {
-    private final ChatGPT chat = new ChatGPT(null, null);
+    private final ChatGPT chat = new ChatGPT(null, null,
+            new PooledHttpClient(HttpClient.newHttpClient(), 4, 120));
 
     private final Message systemMessage = new Message(Role.SYSTEM, """
             Create a multiple-choice quiz about the Java programming langauge topic in the
@@ -5,6 +5,7 @@ import com.google.gson.GsonBuilder;
 import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.TTSRequest;
 import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.Voice;
 import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.FileUtils;
+import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.PooledHttpClient;
 import com.bloberryconsulting.aicontextsbridge.exceptions.APIError;
 
 import javazoom.jl.decoder.JavaLayerException;
@@ -17,8 +18,6 @@ import org.springframework.stereotype.Service;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.file.Path;
@@ -36,9 +35,11 @@ public class TextToSpeech {
     public final static String TTS_1_HD = "tts-1-hd";
 
     private final FileUtils fileUtils;
+    private final PooledHttpClient httpClient;
 
-    public TextToSpeech(FileUtils fileUtils) {
+    public TextToSpeech(FileUtils fileUtils, PooledHttpClient httpClient) {
         this.fileUtils = fileUtils;
+        this.httpClient = httpClient;
     }
 
     private String apIKey = null;
@@ -55,16 +56,14 @@ public class TextToSpeech {
         String postBody = gson.toJson(ttsRequest);
         logger.info("postBody = {}", postBody);
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(TTS_URL))
+        HttpRequest request = httpClient.newRequest(TTS_URL)
                 .header("Authorization", "Bearer %s".formatted(apIKey))
                 .header("Content-Type", "application/json")
                 .POST(HttpRequest.BodyPublishers.ofString(postBody))
                 .build();
 
         try {
-            HttpClient client = HttpClient.newHttpClient();
-            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
             byte[] body = response.body();
 
               // Check if the request was successful
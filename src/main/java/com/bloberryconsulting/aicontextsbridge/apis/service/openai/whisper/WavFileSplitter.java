@@ -1,54 +1,181 @@
 package com.bloberryconsulting.aicontextsbridge.apis.service.openai.whisper;
 
-import javax.sound.sampled.*;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Splits a WAV file into chunks the transcription API accepts, without decoding or copying the
+ * samples: the file is memory-mapped, and a chunk is a header of its own followed by a range of the
+ * samples. A chunk ends in the quietest moment of its last seconds rather than in the middle of a
+ * word, found by the RMS of short windows of the integer PCM samples, any sample size and channels.
+ */
 public class WavFileSplitter {
+    // The length of the windows compared when looking for a pause
+    private static final int WINDOW_MILLIS = 20;
+    // A pause is looked for in the end of a chunk: this share of it, at most this long
+    private static final int SEARCH_SHARE = 10;
+    private static final int SEARCH_MAX_SECONDS = 30;
 
+    /**
+     * A part of a WAV file: a header of its own and a read-only slice of the samples mapped from the
+     * file, sent as a WAV file without copying the samples.
+     */
+    public record WavChunk(int index, ByteBuffer header, ByteBuffer samples) {
+        public long size() {
+            return header.remaining() + samples.remaining();
+        }
+    }
+
+    /**
+     * Splits a WAV file into chunks of at most maxChunkBytes, memory-mapped from the file.
+     *
+     * @return The chunks in order, none if the file is not a WAV file.
+     */
+    public List<WavChunk> split(Path sourceWavFile, long maxChunkBytes) throws IOException {
+        List<WavChunk> chunks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(sourceWavFile, StandardOpenOption.READ)) {
+            WavHeader header = WavHeader.read(channel);
+            if (header == null || header.blockAlign() <= 0) {
+                return chunks;
+            }
+            long[] cuts = cutPoints(channel, header, maxChunkBytes);
+            for (int i = 1; i < cuts.length; i++) {
+                long length = cuts[i] - cuts[i - 1];
+                ByteBuffer samples = channel.map(FileChannel.MapMode.READ_ONLY, cuts[i - 1], length);
+                chunks.add(new WavChunk(i, header.canonicalHeader(length), samples));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Splits a WAV file into chunk files of at most {@link WhisperTranscribe#MAX_CHUNK_SIZE_BYTES},
+     * named after the file with the index of the chunk. A chunk file is written as its header followed
+     * by the range of the samples transferred from the source by the file system.
+     *
+     * @return The chunk files in order, to be deleted by the caller.
+     */
     public List<File> splitWavFileIntoChunks(File sourceWavFile) {
         List<File> chunks = new ArrayList<>();
-        int chunkCounter = 1;
 
         if (!sourceWavFile.exists()) {
             throw new IllegalArgumentException("Source file not found at: " + sourceWavFile.getAbsolutePath());
         }
 
-        try (var inputStream = AudioSystem.getAudioInputStream(sourceWavFile)) {
-            long totalFrames = inputStream.getFrameLength(); // Total frames in the source wav file
-            AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(sourceWavFile);
-            AudioFormat format = fileFormat.getFormat();
-
-            // Calculate the maximum number of frames for each chunk
-            int frameSize = format.getFrameSize(); // Number of bytes in each frame
-            long framesPerChunk = WhisperTranscribe.MAX_CHUNK_SIZE_BYTES / frameSize;
-
-            byte[] buffer = new byte[(int) (framesPerChunk * frameSize)];
-
-            while (totalFrames > 0) {
-                long framesInThisFile = Math.min(totalFrames, framesPerChunk);
-                int bytesRead = inputStream.read(buffer, 0, (int) (framesInThisFile * frameSize));
-                if (bytesRead > 0) {
-                    File chunkFile = new File(sourceWavFile.getAbsolutePath().replace(
-                            ".wav", "-%d.wav".formatted(chunkCounter)));
-                    try (var partStream = new AudioInputStream(
-                            new ByteArrayInputStream(buffer, 0, bytesRead),
-                            format,
-                            framesInThisFile)) {
-                        AudioSystem.write(partStream, AudioFileFormat.Type.WAVE, chunkFile);
+        try (FileChannel source = FileChannel.open(sourceWavFile.toPath(), StandardOpenOption.READ)) {
+            WavHeader header = WavHeader.read(source);
+            if (header == null || header.blockAlign() <= 0) {
+                throw new IllegalArgumentException("Not a WAV file: " + sourceWavFile.getAbsolutePath());
+            }
+            long[] cuts = cutPoints(source, header, WhisperTranscribe.MAX_CHUNK_SIZE_BYTES);
+            for (int i = 1; i < cuts.length; i++) {
+                File chunkFile = new File(sourceWavFile.getAbsolutePath().replace(".wav", "-%d.wav".formatted(i)));
+                try (FileChannel chunk = FileChannel.open(chunkFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer chunkHeader = header.canonicalHeader(cuts[i] - cuts[i - 1]);
+                    while (chunkHeader.hasRemaining()) {
+                        chunk.write(chunkHeader);
                     }
-                    chunks.add(chunkFile);
-                    chunkCounter++;
+                    transferFully(source, cuts[i - 1], cuts[i] - cuts[i - 1], chunk);
                 }
-                totalFrames -= framesInThisFile;
+                chunks.add(chunkFile);
             }
-        } catch (UnsupportedAudioFileException | IOException e) {
+        } catch (IOException e) {
+            chunks.forEach(File::delete);
             throw new RuntimeException(e);
         }
 
         return chunks;
     }
-}
\ No newline at end of file
+
+    /**
+     * The positions in the file of the boundaries of the chunks: the start of the samples, the end of
+     * each chunk, the last one being the end of the samples.
+     */
+    static long[] cutPoints(FileChannel channel, WavHeader header, long maxChunkBytes) throws IOException {
+        int blockAlign = header.blockAlign();
+        long maxSamples = Math.max(blockAlign, (maxChunkBytes - WavHeader.CANONICAL_SIZE) / blockAlign * blockAlign);
+        long searchMax = (long) SEARCH_MAX_SECONDS * header.sampleRate() * blockAlign;
+        long search = Math.min(searchMax, maxSamples / SEARCH_SHARE / blockAlign * blockAlign);
+        long end = header.dataOffset() + header.dataLength() / blockAlign * blockAlign;
+
+        List<Long> cuts = new ArrayList<>();
+        long start = header.dataOffset();
+        cuts.add(start);
+        while (start < end) {
+            long cut = Math.min(end, start + maxSamples);
+            if (cut < end && search > 0) {
+                ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, cut - search, search);
+                cut = cut - search + quietestCut(tail, header);
+            }
+            cuts.add(cut);
+            start = cut;
+        }
+        return cuts.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * The offset in the region of the middle of its quietest window, aligned on a frame. The samples
+     * of all the channels of a window count; 8-bit samples are unsigned, the others signed. The end of
+     * the region if its samples are not integer PCM.
+     */
+    static long quietestCut(ByteBuffer region, WavHeader header) {
+        int blockAlign = header.blockAlign();
+        int bytesPerSample = header.bitsPerSample() / 8;
+        int windowBytes = Math.max(1, header.sampleRate() * WINDOW_MILLIS / 1000) * blockAlign;
+        if (!header.isPcm() || region.remaining() < windowBytes) {
+            return region.remaining();
+        }
+        ByteBuffer samples = region.slice().order(ByteOrder.LITTLE_ENDIAN);
+        double quietest = Double.MAX_VALUE;
+        long cut = region.remaining();
+        for (int window = 0; window + windowBytes <= samples.limit(); window += windowBytes) {
+            // The mean square orders the windows like their RMS, without the square root
+            double energy = 0;
+            for (int i = window; i < window + windowBytes; i += bytesPerSample) {
+                double sample = sample(samples, i, bytesPerSample);
+                energy += sample * sample;
+            }
+            // The latest of equally quiet windows, the chunk is kept as long as possible
+            if (energy <= quietest) {
+                quietest = energy;
+                cut = window + windowBytes / 2 / blockAlign * blockAlign;
+            }
+        }
+        return cut;
+    }
+
+    private static double sample(ByteBuffer samples, int index, int bytesPerSample) {
+        switch (bytesPerSample) {
+            case 1:
+                return (samples.get(index) & 0xFF) - 128;
+            case 2:
+                return samples.getShort(index);
+            case 3:
+                // Little-endian, the sign is carried by the high byte
+                return (samples.get(index) & 0xFF) | (samples.get(index + 1) & 0xFF) << 8 | samples.get(index + 2) << 16;
+            default:
+                return samples.getInt(index);
+        }
+    }
+
+    // The file system may transfer less than asked for, on some platforms at most 2 GB at a time
+    private static void transferFully(FileChannel source, long position, long count, FileChannel target)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long sent = source.transferTo(position + transferred, count - transferred, target);
+            if (sent <= 0) {
+                throw new IOException("The source ended at " + (position + transferred));
+            }
+            transferred += sent;
+        }
+    }
+}
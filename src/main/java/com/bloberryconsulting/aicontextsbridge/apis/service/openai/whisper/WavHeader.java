@@ -0,0 +1,119 @@
+package com.bloberryconsulting.aicontextsbridge.apis.service.openai.whisper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The format and the position of the samples of a WAV file, read from its RIFF chunks without
+ * reading the samples. The chunks before the samples (fmt, LIST, fact...) are skipped by their size.
+ *
+ * @param audioFormat 1 for PCM, 0xFFFE for the extensible format.
+ * @param channels The number of channels.
+ * @param sampleRate The frames per second.
+ * @param bitsPerSample The bits of a sample of a channel.
+ * @param blockAlign The bytes of a frame, all the channels.
+ * @param dataOffset The position of the samples in the file.
+ * @param dataLength The bytes of samples, to the end of the file if the header doesn't know it.
+ */
+public record WavHeader(int audioFormat, int channels, int sampleRate, int bitsPerSample, int blockAlign,
+        long dataOffset, long dataLength) {
+    public static final int PCM = 1;
+    public static final int EXTENSIBLE = 0xFFFE;
+    // The size of the header written by canonicalHeader
+    public static final int CANONICAL_SIZE = 44;
+    // A recording stopped while being written leaves this size, or 0
+    private static final long UNKNOWN_SIZE = 0xFFFFFFFFL;
+
+    /**
+     * Reads the header of a WAV file.
+     *
+     * @return The header, null if the file is not a WAV file.
+     */
+    public static WavHeader read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    static WavHeader read(FileChannel channel) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(channel, chunk, 0) || chunk.getInt(0) != fourCC("RIFF") || chunk.getInt(8) != fourCC("WAVE")) {
+            return null;
+        }
+        ByteBuffer fmt = null;
+        long position = 12;
+        ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        while (readFully(channel, chunkHeader.clear(), position)) {
+            int id = chunkHeader.getInt(0);
+            long size = Integer.toUnsignedLong(chunkHeader.getInt(4));
+            long body = position + 8;
+            if (id == fourCC("fmt ")) {
+                fmt = ByteBuffer.allocate((int) Math.min(size, 40)).order(ByteOrder.LITTLE_ENDIAN);
+                if (size < 16 || !readFully(channel, fmt, body)) {
+                    return null;
+                }
+            } else if (id == fourCC("data")) {
+                if (fmt == null) {
+                    return null;
+                }
+                long available = channel.size() - body;
+                long dataLength = size == 0 || size == UNKNOWN_SIZE ? available : Math.min(size, available);
+                return new WavHeader(Short.toUnsignedInt(fmt.getShort(0)), Short.toUnsignedInt(fmt.getShort(2)),
+                        fmt.getInt(4), Short.toUnsignedInt(fmt.getShort(14)), Short.toUnsignedInt(fmt.getShort(12)),
+                        body, dataLength);
+            }
+            // Chunks are padded to an even size
+            position = body + size + (size & 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return Whether the samples are integer PCM, the only format whose samples are scanned.
+     */
+    public boolean isPcm() {
+        return (audioFormat == PCM || audioFormat == EXTENSIBLE) && bitsPerSample % 8 == 0 && bitsPerSample <= 32
+                && blockAlign == channels * bitsPerSample / 8;
+    }
+
+    public long frames() {
+        return blockAlign > 0 ? dataLength / blockAlign : 0;
+    }
+
+    public double durationSeconds() {
+        return sampleRate > 0 ? (double) frames() / sampleRate : 0;
+    }
+
+    /**
+     * @return A 44 bytes PCM header of the same format for the given bytes of samples, as written at
+     *         the start of a chunk of the file.
+     */
+    public ByteBuffer canonicalHeader(long samplesLength) {
+        ByteBuffer header = ByteBuffer.allocate(CANONICAL_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(fourCC("RIFF")).putInt((int) (36 + samplesLength)).putInt(fourCC("WAVE"));
+        header.putInt(fourCC("fmt ")).putInt(16).putShort((short) PCM).putShort((short) channels)
+                .putInt(sampleRate).putInt(sampleRate * blockAlign).putShort((short) blockAlign)
+                .putShort((short) bitsPerSample);
+        header.putInt(fourCC("data")).putInt((int) samplesLength);
+        return header.flip();
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    private static int fourCC(String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+}
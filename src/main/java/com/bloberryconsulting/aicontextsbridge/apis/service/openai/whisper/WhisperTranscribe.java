@@ -1,19 +1,13 @@
 package com.bloberryconsulting.aicontextsbridge.apis.service.openai.whisper;
 
 import com.bloberryconsulting.aicontextsbridge.exceptions.APIError;
+import com.bloberryconsulting.aicontextsbridge.exceptions.UpstreamError;
 import com.bloberryconsulting.aicontextsbridge.model.Context;
 import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.FileUtils;
+import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.MultipartBodyPublisher;
+import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.PooledHttpClient;
+import com.bloberryconsulting.aicontextsbridge.service.routing.ApiKeyRouter;
 
-import org.apache.hc.client5.http.classic.methods.HttpPost;
-import org.apache.hc.client5.http.entity.mime.FileBody;
-import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
-import org.apache.hc.client5.http.entity.mime.StringBody;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.core5.http.ContentType;
-import org.apache.hc.core5.http.HttpEntity;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
-import org.apache.hc.core5.http.message.StatusLine;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
@@ -22,16 +16,24 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 
 // See docs at https://platform.openai.com/docs/api-reference/audio/createTranscription
 
@@ -48,7 +50,8 @@ import org.slf4j.LoggerFactory;
 // NOTE: only wav files are supported here (mp3 apparently is proprietary)
 
 // max size is 25MB; otherwise need to break the file into chunks
-// See the WavFileSplitter class for that
+// See the WavFileSplitter class for that: the chunks are mapped from the file and cut in pauses,
+// they are transcribed concurrently and their transcripts joined in order
 
 @Service
 public class WhisperTranscribe {
@@ -56,14 +59,24 @@ public class WhisperTranscribe {
     private final static String URL = "https://api.openai.com/v1/audio/transcriptions";
     public final static int MAX_ALLOWED_SIZE = 25 * 1024 * 1024;
     public final static int MAX_CHUNK_SIZE_BYTES = 20 * 1024 * 1024;
+    // The end of the previous transcript given as prompt, whisper only reads its last 224 tokens
+    private final static int PROMPT_TAIL_CHARS = 1000;
+    // A chunk refused with a rate limit is sent again after the wait asked by the API, this many times at most
+    private final static int MAX_ATTEMPTS = 4;
+    private final static long DEFAULT_RETRY_MILLIS = 2000;
 
     private final FileUtils fileUtils;
+    private final PooledHttpClient httpClient;
+    private final int parallelism;
 
     private String apIKey = null;
     private String terminologyPrompt;
 
-    public WhisperTranscribe(FileUtils fileUtils) {
+    public WhisperTranscribe(FileUtils fileUtils, PooledHttpClient httpClient,
+            @Value("${transcription.parallelism:4}") int parallelism) {
         this.fileUtils = fileUtils;
+        this.httpClient = httpClient;
+        this.parallelism = Math.max(1, parallelism);
     }
 
     public void setApiKey(String key) {
@@ -92,30 +105,161 @@ public class WhisperTranscribe {
     private String transcribeChunk(String prompt, File chunkFile) {
         System.out.printf("Transcribing %s%n", chunkFile.getName());
 
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            HttpPost httpPost = new HttpPost(URL);
-            httpPost.setHeader("Authorization", "Bearer %s".formatted(apIKey));
-
-            HttpEntity entity = MultipartEntityBuilder.create()
-                    .setContentType(ContentType.MULTIPART_FORM_DATA)
-                    .addPart("file", new FileBody(chunkFile, ContentType.DEFAULT_BINARY))
-                    .addPart("model", new StringBody(MODEL, ContentType.DEFAULT_TEXT))
-                    .addPart("response_format", new StringBody("text", ContentType.DEFAULT_TEXT))
-                    .addPart("prompt", new StringBody(prompt, ContentType.DEFAULT_TEXT))
+        try {
+            MultipartBodyPublisher body = new MultipartBodyPublisher()
+                    .addFile("file", chunkFile.toPath(), "application/octet-stream")
+                    .addPart("model", MODEL)
+                    .addPart("response_format", "text")
+                    .addPart("prompt", prompt);
+            HttpRequest request = httpClient.newRequest(URL)
+                    .header("Authorization", "Bearer %s".formatted(apIKey))
+                    .header("Content-Type", body.contentType())
+                    .POST(body.build())
                     .build();
-            httpPost.setEntity(entity);
-
-            return client.execute(httpPost, response -> {
-                logger.debug("Status: " + new StatusLine(response));
-                final String transript = EntityUtils.toString(response.getEntity());
-                checkForError(transript);
-                return transript;
-            });
+
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            return transcript(response);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
     }
 
+    // Sends a chunk without holding a thread, its samples are read from the mapped file by the client.
+    // Cancelling the future aborts the exchange in flight or the retry to come
+    private CompletableFuture<String> transcribeChunkAsync(String prompt, WavFileSplitter.WavChunk chunk,
+            String fileName) {
+        logger.debug("Transcribing chunk {} of {} ({} bytes)", chunk.index(), fileName, chunk.size());
+        CompletableFuture<String> transcript = new CompletableFuture<>();
+        sendChunk(prompt, chunk, fileName, 1, transcript);
+        return transcript;
+    }
+
+    private void sendChunk(String prompt, WavFileSplitter.WavChunk chunk, String fileName, int attempt,
+            CompletableFuture<String> transcript) {
+        if (transcript.isDone()) {
+            return;
+        }
+        CompletableFuture<HttpResponse<String>> exchange = httpClient.sendAsync(chunkRequest(prompt, chunk, fileName),
+                HttpResponse.BodyHandlers.ofString());
+        transcript.whenComplete((text, error) -> {
+            if (transcript.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+        exchange.whenComplete((response, error) -> {
+            if (error != null) {
+                transcript.completeExceptionally(error);
+            } else if (response.statusCode() == 429 && attempt < MAX_ATTEMPTS) {
+                long retryAfter = ApiKeyRouter.retryAfterMillis(response.headers());
+                long wait = retryAfter > 0 ? retryAfter : DEFAULT_RETRY_MILLIS * attempt;
+                logger.warn("Chunk {} of {} rate limited, sending it again in {} ms", chunk.index(), fileName, wait);
+                CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS)
+                        .execute(() -> sendChunk(prompt, chunk, fileName, attempt + 1, transcript));
+            } else {
+                try {
+                    transcript.complete(transcript(response));
+                } catch (RuntimeException e) {
+                    transcript.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    // A request per attempt, the samples are read again from the mapped file
+    private HttpRequest chunkRequest(String prompt, WavFileSplitter.WavChunk chunk, String fileName) {
+        MultipartBodyPublisher body = new MultipartBodyPublisher()
+                .addBytes("file", fileName.replace(".wav", "-%d.wav".formatted(chunk.index())),
+                        "application/octet-stream", chunk.header(), chunk.samples())
+                .addPart("model", MODEL)
+                .addPart("response_format", "text")
+                .addPart("prompt", prompt);
+        return httpClient.newRequest(URL)
+                .header("Authorization", "Bearer %s".formatted(apIKey))
+                .header("Content-Type", body.contentType())
+                .POST(body.build())
+                .build();
+    }
+
+    // The transcript of a response; an error response is thrown, its body is not a transcript
+    private String transcript(HttpResponse<String> response) {
+        logger.debug("Status: " + response.statusCode());
+        final String transript = response.body();
+        if (response.statusCode() / 100 != 2) {
+            HttpStatus status = HttpStatus.resolve(response.statusCode());
+            throw new UpstreamError(status != null ? status : HttpStatus.INTERNAL_SERVER_ERROR,
+                    "Error transcribing chunk: " + errorMessage(transript),
+                    ApiKeyRouter.retryAfterMillis(response.headers()));
+        }
+        checkForError(transript);
+        return transript;
+    }
+
+    // The message of an OpenAI error body {"error": {"message": ...}}, the body itself otherwise
+    private static String errorMessage(String body) {
+        try {
+            JSONObject error = new JSONObject(body).optJSONObject("error");
+            if (error != null && error.has("message")) {
+                return error.getString("message");
+            }
+        } catch (RuntimeException e) {
+            // Not JSON
+        }
+        return body;
+    }
+
+    /**
+     * Transcribes the chunks of a long recording, at most parallelism of them at a time. A chunk is
+     * prompted with the end of the transcript of the previous one when it is known by the time the
+     * chunk is sent, as the sequential transcription did, otherwise with the terminology prompt.
+     *
+     * @return The transcripts in the order of the chunks.
+     */
+    private List<String> transcribeChunks(String prompt, List<WavFileSplitter.WavChunk> chunks, String fileName) {
+        List<CompletableFuture<String>> transcriptions = new ArrayList<>(chunks.size());
+        Semaphore slots = new Semaphore(parallelism);
+        AtomicBoolean failed = new AtomicBoolean();
+        try {
+            for (WavFileSplitter.WavChunk chunk : chunks) {
+                slots.acquire();
+                if (failed.get()) {
+                    break;
+                }
+                CompletableFuture<String> previous = transcriptions.isEmpty() ? null
+                        : transcriptions.get(transcriptions.size() - 1);
+                String chunkPrompt = previous != null && previous.isDone() && !previous.isCompletedExceptionally()
+                        ? tail(previous.join())
+                        : prompt;
+                CompletableFuture<String> transcription = transcribeChunkAsync(chunkPrompt, chunk, fileName);
+                transcription.whenComplete((text, error) -> {
+                    failed.compareAndSet(false, error != null);
+                    slots.release();
+                });
+                transcriptions.add(transcription);
+            }
+            List<String> texts = new ArrayList<>(transcriptions.size());
+            for (CompletableFuture<String> transcription : transcriptions) {
+                texts.add(transcription.join());
+            }
+            return texts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        } finally {
+            // The chunks still in flight when one failed are not needed anymore
+            transcriptions.forEach(transcription -> transcription.cancel(true));
+        }
+    }
+
+    private static String tail(String transcript) {
+        return transcript.length() <= PROMPT_TAIL_CHARS ? transcript
+                : transcript.substring(transcript.length() - PROMPT_TAIL_CHARS);
+    }
+
     private void checkForError(String transcription) {
         if (transcription != null && transcription.contains("error:")) {
             JSONObject jsonResponse = new JSONObject(transcription);
@@ -143,21 +287,13 @@ public class WhisperTranscribe {
             String transcription = transcribeChunk(prompt, file);
             transcriptions = List.of(transcription);
         } else {
+            // The chunks are slices of the mapped file, nothing is written to disk
             var splitter = new WavFileSplitter();
-            List<File> chunks = splitter.splitWavFileIntoChunks(file);
-            for (File chunk : chunks) {
-                // Subsequent prompts are the previous transcriptions
-                String transcription = transcribeChunk(prompt, chunk);
-                // Assuming transcription is a String containing the JSON response
-
-                transcriptions.add(transcription);
-                prompt = transcription;
-
-                // After transcribing, no longer need the chunk
-                if (!chunk.delete()) {
-                    logger.debug("Failed to delete " + chunk.getName());
-                }
+            List<WavFileSplitter.WavChunk> chunks = splitter.split(filePath, MAX_CHUNK_SIZE_BYTES);
+            if (chunks.isEmpty()) {
+                throw new APIError(HttpStatus.BAD_REQUEST, "Only WAV files over 25 MB can be transcribed");
             }
+            transcriptions = transcribeChunks(prompt, chunks, file.getName());
         }
 
         // Join the individual transcripts and write to a file
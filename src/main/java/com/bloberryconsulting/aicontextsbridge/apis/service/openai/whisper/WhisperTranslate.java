@@ -1,21 +1,15 @@
 package com.bloberryconsulting.aicontextsbridge.apis.service.openai.whisper;
 
 import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.FileUtils;
-import org.apache.hc.client5.http.classic.methods.HttpPost;
-import org.apache.hc.client5.http.entity.mime.FileBody;
-import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
-import org.apache.hc.client5.http.entity.mime.StringBody;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.core5.http.ContentType;
-import org.apache.hc.core5.http.HttpEntity;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
-import org.apache.hc.core5.http.message.StatusLine;
+import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.MultipartBodyPublisher;
+import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.PooledHttpClient;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -26,15 +20,17 @@ public class WhisperTranslate {
     public final static int MAX_ALLOWED_SIZE = 25 * 1024 * 1024;
 
     private final FileUtils fileUtils;
+    private final PooledHttpClient httpClient;
 
     private final static String KEY = System.getenv("OPENAI_API_KEY");
 
     // Only model available as of Fall 2023 is whisper-1
     private final static String MODEL = "whisper-1";
 
-    public WhisperTranslate(FileUtils fileUtils) {
+    public WhisperTranslate(FileUtils fileUtils, PooledHttpClient httpClient) {
         this.fileUtils = fileUtils;
-    }   
+        this.httpClient = httpClient;
+    }
 
     public static final String WORD_LIST = String.join(", ",
             List.of("Kousen", "GPT-3", "GPT-4", "DALL-E",
@@ -46,26 +42,27 @@ public class WhisperTranslate {
     private String translateChunk(String prompt, File chunkFile) {
         System.out.printf("Translating %s%n", chunkFile.getName());
 
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            HttpPost httpPost = new HttpPost(URL);
-            httpPost.setHeader("Authorization", "Bearer %s".formatted(KEY));
-
-            HttpEntity entity = MultipartEntityBuilder.create()
-                    .setContentType(ContentType.MULTIPART_FORM_DATA)
-                    .addPart("file", new FileBody(chunkFile, ContentType.DEFAULT_BINARY))
-                    .addPart("model", new StringBody(MODEL, ContentType.DEFAULT_TEXT))
-                    .addPart("response_format", new StringBody("text", ContentType.DEFAULT_TEXT))
-                    .addPart("language", new StringBody("en", ContentType.DEFAULT_TEXT))
-                    .addPart("prompt", new StringBody(prompt, ContentType.DEFAULT_TEXT))
+        try {
+            MultipartBodyPublisher body = new MultipartBodyPublisher()
+                    .addFile("file", chunkFile.toPath(), "application/octet-stream")
+                    .addPart("model", MODEL)
+                    .addPart("response_format", "text")
+                    .addPart("language", "en")
+                    .addPart("prompt", prompt);
+            HttpRequest request = httpClient.newRequest(URL)
+                    .header("Authorization", "Bearer %s".formatted(KEY))
+                    .header("Content-Type", body.contentType())
+                    .POST(body.build())
                     .build();
-            httpPost.setEntity(entity);
 
-            return client.execute(httpPost, response -> {
-                System.out.println("Status: " + new StatusLine(response));
-                return EntityUtils.toString(response.getEntity());
-            });
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            System.out.println("Status: " + response.statusCode());
+            return response.body();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
     }
 
@@ -22,13 +22,14 @@ public class WhisperTutorial {
 
     private final WhisperTranscribe whisperTranscribe;
 
-    private final ChatGPT chatGPT = new ChatGPT(null,null);
+    private final ChatGPT chatGPT;
 
     private final FileUtils fileUtils;
 
-    public WhisperTutorial(FileUtils fileUtils , WhisperTranscribe whisperTranscribe) { 
+    public WhisperTutorial(FileUtils fileUtils , WhisperTranscribe whisperTranscribe, ChatGPT chatGPT) { 
         this.fileUtils = fileUtils;
         this.whisperTranscribe = whisperTranscribe; 
+        this.chatGPT = chatGPT;
     }   
 
     public void processMeetingMinutes() throws IOException {
@@ -0,0 +1,78 @@
+package com.bloberryconsulting.aicontextsbridge.apis.service.speech;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * The audio of a session sent to the Speech API and not transcribed for good yet, sent again to the
+ * next stream when a stream is replaced. The chunks are kept as received, not copied. Bounded in
+ * bytes: the oldest audio is dropped first. A position counts the bytes of the session since its
+ * start. Not thread-safe, guarded by its session.
+ */
+class AudioRingBuffer {
+    private final ArrayDeque<ByteString> chunks = new ArrayDeque<>();
+    private final long capacity;
+    private long start;
+    private long end;
+
+    AudioRingBuffer(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Appends a chunk, dropping the oldest audio beyond the capacity.
+     */
+    void append(ByteString chunk) {
+        chunks.addLast(chunk);
+        end += chunk.size();
+        if (end - start > capacity) {
+            discardBefore(end - capacity);
+        }
+    }
+
+    /**
+     * Drops the audio before a position, the part of a chunk before it included.
+     */
+    void discardBefore(long position) {
+        position = Math.min(position, end);
+        while (start < position) {
+            ByteString first = chunks.removeFirst();
+            long firstEnd = start + first.size();
+            if (firstEnd > position) {
+                // ByteString.substring shares the bytes of the chunk
+                chunks.addFirst(first.substring((int) (position - start)));
+                firstEnd = position;
+            }
+            start = firstEnd;
+        }
+    }
+
+    /**
+     * @return The position of the oldest audio held, the end if none.
+     */
+    long start() {
+        return start;
+    }
+
+    /**
+     * @return The position after the last audio appended.
+     */
+    long end() {
+        return end;
+    }
+
+    /**
+     * @return The audio held, oldest first.
+     */
+    List<ByteString> chunks() {
+        return new ArrayList<>(chunks);
+    }
+
+    void clear() {
+        chunks.clear();
+        start = end;
+    }
+}
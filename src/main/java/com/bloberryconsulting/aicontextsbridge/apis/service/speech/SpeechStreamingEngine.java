@@ -0,0 +1,154 @@
+package com.bloberryconsulting.aicontextsbridge.apis.service.speech;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.protobuf.ByteString;
+
+/**
+ * Streams the audio of many WebSocket sessions to the Speech API at the same time and sends each one
+ * its transcripts, see {@link StreamingSession}. The sessions share the client and its channels and
+ * hold no thread: the audio is sent on the thread receiving it, the transcripts on the fan-out
+ * executor.
+ *
+ * The audio is 16 kHz mono LINEAR16.
+ */
+public class SpeechStreamingEngine implements AutoCloseable {
+    public static final int SAMPLE_RATE = 16000;
+    static final int FRAME_SIZE = 2;
+    static final int BYTES_PER_MILLI = SAMPLE_RATE * FRAME_SIZE / 1000;
+
+    private final SpeechClient client;
+    private final Executor fanOut;
+    private final long rolloverNanos;
+    private final long bridgeBytes;
+    private final int maxPendingMessages;
+    private final Map<String, StreamingSession> sessions = new ConcurrentHashMap<>();
+    private final LongAdder restarts = new LongAdder();
+    private final LongAdder transcripts = new LongAdder();
+    private final LongAdder repeatedFrames = new LongAdder();
+    private final LongAdder lostFrames = new LongAdder();
+
+    /**
+     * @param client The client of the Speech API, closed with the engine.
+     * @param fanOut Sends the transcripts to the sessions.
+     * @param rolloverMillis The age of a stream replaced by a new one, under the limit of the API.
+     * @param bridgeMillis The audio not transcribed for good kept per session to be sent again to the
+     *            next stream.
+     * @param maxPendingMessages The transcripts waiting to be sent to a session before it is closed.
+     */
+    public SpeechStreamingEngine(SpeechClient client, Executor fanOut, long rolloverMillis, long bridgeMillis,
+            int maxPendingMessages) {
+        this.client = client;
+        this.fanOut = fanOut;
+        this.rolloverNanos = TimeUnit.MILLISECONDS.toNanos(rolloverMillis);
+        this.bridgeBytes = bridgeMillis * BYTES_PER_MILLI;
+        this.maxPendingMessages = maxPendingMessages;
+    }
+
+    /**
+     * Sends a chunk of audio of a session, starting its stream with its first chunk.
+     *
+     * @param languageCode The language of the session, used when it starts.
+     */
+    public void append(WebSocketSession socket, String languageCode, ByteString audio) {
+        sessions.computeIfAbsent(socket.getId(), id -> new StreamingSession(this, socket, languageCode))
+                .append(audio);
+    }
+
+    /**
+     * Sends a numbered frame of audio of a session, dropped if numbered as a frame already sent.
+     *
+     * @param sequence The unsigned 32-bit number of the frame, one more than the previous one.
+     * @param timestampMillis The time of the frame in the session, for the logs.
+     */
+    public void append(WebSocketSession socket, String languageCode, long sequence, long timestampMillis,
+            ByteString audio) {
+        sessions.computeIfAbsent(socket.getId(), id -> new StreamingSession(this, socket, languageCode))
+                .append(sequence, timestampMillis, audio);
+    }
+
+    /**
+     * Ends the audio of the current stream of a session, at the end of an utterance: its last results
+     * are sent, its next audio starts a new stream.
+     */
+    public void finish(String sessionId) {
+        StreamingSession session = sessions.get(sessionId);
+        if (session != null) {
+            session.finish();
+        }
+    }
+
+    /**
+     * Ends the stream of a session, its transcripts to come are dropped.
+     */
+    public void close(String sessionId) {
+        StreamingSession session = sessions.remove(sessionId);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * @return The sessions streaming, the streams replaced, the transcripts sent and the frames
+     *         received twice or missing.
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessions", sessions.size());
+        stats.put("restarts", restarts.sum());
+        stats.put("transcripts", transcripts.sum());
+        stats.put("repeatedFrames", repeatedFrames.sum());
+        stats.put("lostFrames", lostFrames.sum());
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        sessions.keySet().forEach(this::close);
+        client.close();
+    }
+
+    SpeechClient client() {
+        return client;
+    }
+
+    Executor fanOut() {
+        return fanOut;
+    }
+
+    long rolloverNanos() {
+        return rolloverNanos;
+    }
+
+    long bridgeBytes() {
+        return bridgeBytes;
+    }
+
+    int maxPendingMessages() {
+        return maxPendingMessages;
+    }
+
+    void restarted() {
+        restarts.increment();
+    }
+
+    void delivered() {
+        transcripts.increment();
+    }
+
+    void repeated() {
+        repeatedFrames.increment();
+    }
+
+    void lost(long frames) {
+        lostFrames.add(frames);
+    }
+}
@@ -0,0 +1,307 @@
+package com.bloberryconsulting.aicontextsbridge.apis.service.speech;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.bloberryconsulting.aicontextsbridge.exceptions.APIError;
+import com.google.api.gax.rpc.ClientStream;
+import com.google.api.gax.rpc.ResponseObserver;
+import com.google.api.gax.rpc.StreamController;
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Duration;
+
+/**
+ * The recognition of the audio of a WebSocket session: a streaming call to the Speech API, replaced
+ * by a new one before it reaches the limit of the API. The audio not transcribed for good when a
+ * stream is replaced is sent again to the new one from the ring buffer of the session, so no words
+ * are lost at the junction. The final transcripts are sent to the WebSocket of the session in order,
+ * on a thread of the fan-out executor rather than on the thread of the gRPC call.
+ */
+final class StreamingSession {
+    private static final Logger logger = LoggerFactory.getLogger(StreamingSession.class);
+
+    private final String id;
+    private final WebSocketSession socket;
+    private final String languageCode;
+    private final SpeechStreamingEngine engine;
+    private final AudioRingBuffer audio;
+    private final Queue<String> outbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private Stream stream;
+    private Throwable failure;
+    private boolean closed;
+    private long lastSequence = -1;
+    private long lastTimestampMillis;
+
+    StreamingSession(SpeechStreamingEngine engine, WebSocketSession socket, String languageCode) {
+        this.id = socket.getId();
+        this.socket = socket;
+        this.languageCode = languageCode;
+        this.engine = engine;
+        this.audio = new AudioRingBuffer(engine.bridgeBytes());
+    }
+
+    /**
+     * Sends a chunk of audio to the current stream, or to a new stream if the current one is too old
+     * or ended, after the audio not transcribed for good.
+     *
+     * @throws APIError If the last stream failed before any response, the chunk and the audio not
+     *             transcribed are then dropped; the next chunk starts a new stream.
+     */
+    synchronized void append(ByteString chunk) {
+        if (closed) {
+            return;
+        }
+        if (failure != null) {
+            Throwable error = failure;
+            failure = null;
+            audio.clear();
+            throw new APIError(HttpStatus.INTERNAL_SERVER_ERROR, error.getLocalizedMessage());
+        }
+        audio.append(chunk);
+        if (stream == null || stream.ended || System.nanoTime() - stream.startedAt >= engine.rolloverNanos()) {
+            restart();
+        } else {
+            stream.send(chunk);
+        }
+    }
+
+    /**
+     * Sends a numbered frame of audio, see {@link #append(ByteString)}. A frame numbered as one already
+     * appended is dropped; frames missing are counted.
+     */
+    synchronized void append(long sequence, long timestampMillis, ByteString chunk) {
+        if (lastSequence >= 0) {
+            // The numbers are unsigned 32-bit ones, wrapping
+            int ahead = (int) (sequence - lastSequence);
+            if (ahead <= 0) {
+                engine.repeated();
+                return;
+            }
+            if (ahead > 1) {
+                engine.lost(ahead - 1);
+                logger.debug("Session {} lost {} frames between {} and {} ms", id, ahead - 1, lastTimestampMillis,
+                        timestampMillis);
+            }
+        }
+        append(chunk);
+        lastSequence = sequence;
+        lastTimestampMillis = timestampMillis;
+    }
+
+    /**
+     * Ends the audio of the current stream: the API finalizes its results, the next chunk starts a new
+     * stream.
+     */
+    synchronized void finish() {
+        if (stream != null && !stream.ended) {
+            stream.ended = true;
+            stream.closeSend();
+        }
+    }
+
+    synchronized void close() {
+        closed = true;
+        if (stream != null) {
+            stream.retire();
+        }
+        audio.clear();
+    }
+
+    private void restart() {
+        if (stream != null) {
+            stream.retire();
+            engine.restarted();
+        }
+        stream = new Stream(audio.start());
+        // The audio the previous stream didn't transcribe for good, then the chunk appended last
+        for (ByteString chunk : audio.chunks()) {
+            stream.send(chunk);
+        }
+    }
+
+    private synchronized void finalized(Stream source, long position) {
+        if (source == stream) {
+            audio.discardBefore(position);
+        }
+    }
+
+    private synchronized void ended(Stream source, Throwable error) {
+        source.ended = true;
+        if (error != null && source == stream && !source.answered) {
+            failure = error;
+        }
+    }
+
+    private void deliver(String transcript) {
+        if (pending.incrementAndGet() > engine.maxPendingMessages()) {
+            logger.warn("Session {} doesn't read its transcripts, closing it", id);
+            engine.close(id);
+            closeSocket(CloseStatus.SESSION_NOT_RELIABLE);
+            return;
+        }
+        outbox.add(transcript);
+        if (draining.compareAndSet(false, true)) {
+            engine.fanOut().execute(this::drain);
+        }
+    }
+
+    // Sends the transcripts waiting, a single thread at a time per session
+    private void drain() {
+        do {
+            String transcript;
+            while ((transcript = outbox.poll()) != null) {
+                pending.decrementAndGet();
+                send(transcript);
+            }
+            draining.set(false);
+        } while (!outbox.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    private void send(String transcript) {
+        if (!socket.isOpen()) {
+            engine.close(id);
+            return;
+        }
+        try {
+            socket.sendMessage(new TextMessage(transcript));
+            engine.delivered();
+        } catch (IOException | RuntimeException e) {
+            // A session over the limits of its WebSocket is closed by it
+            logger.warn("Transcript not sent to session {}: {}", id, e.getLocalizedMessage());
+        }
+    }
+
+    private void closeSocket(CloseStatus status) {
+        try {
+            socket.close(status);
+        } catch (IOException e) {
+            logger.debug("Session {} not closed: {}", id, e.getLocalizedMessage());
+        }
+    }
+
+    private static StreamingRecognizeRequest configRequest(String languageCode) {
+        RecognitionConfig recognitionConfig = RecognitionConfig.newBuilder()
+                .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                .setLanguageCode(languageCode)
+                .setSampleRateHertz(SpeechStreamingEngine.SAMPLE_RATE)
+                .build();
+        // Only the final results are sent to the session, the interim ones would only cost traffic
+        StreamingRecognitionConfig streamingRecognitionConfig = StreamingRecognitionConfig.newBuilder()
+                .setConfig(recognitionConfig)
+                .setInterimResults(false)
+                .build();
+        // The first request in a streaming call has to be a config
+        return StreamingRecognizeRequest.newBuilder().setStreamingConfig(streamingRecognitionConfig).build();
+    }
+
+    // The bytes of the audio before a time of a stream, on a frame
+    private static long bytesBefore(Duration time) {
+        long millis = time.getSeconds() * 1000 + time.getNanos() / 1_000_000;
+        return millis * SpeechStreamingEngine.BYTES_PER_MILLI / SpeechStreamingEngine.FRAME_SIZE
+                * SpeechStreamingEngine.FRAME_SIZE;
+    }
+
+    // A streaming call to the API, from a position of the audio of the session
+    private final class Stream implements ResponseObserver<StreamingRecognizeResponse> {
+        final long startPosition;
+        final long startedAt = System.nanoTime();
+        final ClientStream<StreamingRecognizeRequest> requests;
+        volatile StreamController controller;
+        volatile boolean ended;
+        volatile boolean retired;
+        volatile boolean answered;
+        private boolean halfClosed;
+
+        Stream(long startPosition) {
+            this.startPosition = startPosition;
+            this.requests = engine.client().streamingRecognizeCallable().splitCall(this);
+            requests.send(configRequest(languageCode));
+        }
+
+        void send(ByteString chunk) {
+            requests.send(StreamingRecognizeRequest.newBuilder().setAudioContent(chunk).build());
+        }
+
+        // Its late results would repeat the audio sent again to the next stream
+        void retire() {
+            retired = true;
+            closeSend();
+            if (controller != null) {
+                controller.cancel();
+            }
+        }
+
+        // A call is half-closed once, at the end of an utterance or when retired
+        void closeSend() {
+            if (!halfClosed) {
+                halfClosed = true;
+                requests.closeSend();
+            }
+        }
+
+        @Override
+        public void onStart(StreamController controller) {
+            this.controller = controller;
+        }
+
+        @Override
+        public void onResponse(StreamingRecognizeResponse response) {
+            if (retired) {
+                return;
+            }
+            answered = true;
+            for (StreamingRecognitionResult result : response.getResultsList()) {
+                if (!result.getIsFinal() || result.getAlternativesCount() == 0) {
+                    continue;
+                }
+                long end = startPosition + bytesBefore(result.getResultEndTime());
+                String transcript = result.getAlternatives(0).getTranscript();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("{} {}: {} [confidence: {}]", id, timeOf(end), transcript,
+                            result.getAlternatives(0).getConfidence());
+                }
+                finalized(this, end);
+                deliver(transcript);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (retired) {
+                return;
+            }
+            logger.warn("Stream of session {} ended: {}", id, t.getLocalizedMessage());
+            ended(this, t);
+        }
+
+        @Override
+        public void onComplete() {
+            ended(this, null);
+        }
+    }
+
+    // The minutes and seconds of a position of the audio of the session
+    private static String timeOf(long position) {
+        long millis = position / SpeechStreamingEngine.BYTES_PER_MILLI;
+        return String.format("%02d:%02d", TimeUnit.MILLISECONDS.toMinutes(millis),
+                TimeUnit.MILLISECONDS.toSeconds(millis) % 60);
+    }
+}
@@ -0,0 +1,59 @@
+package com.bloberryconsulting.aicontextsbridge.apis.service.tools;
+
+import java.nio.ByteBuffer;
+
+import org.springframework.http.HttpStatus;
+
+import com.bloberryconsulting.aicontextsbridge.exceptions.APIError;
+
+/**
+ * A binary WebSocket message of the {@value #SUB_PROTOCOL} sub-protocol: a header of
+ * {@value #HEADER_SIZE} bytes in network byte order followed by the audio.
+ *
+ * <pre>
+ * 0   version    u8   1
+ * 1   codec      u8   1 LINEAR16 (16 kHz mono PCM), 2 Opus
+ * 2   flags      u16  bit 0: the last frame of an utterance
+ * 4   sequence   u32  one more than the previous frame of the session, wrapping
+ * 8   timestamp  u32  the milliseconds of the first sample since the start of the session
+ * 12  audio
+ * </pre>
+ *
+ * A frame is a whole message of at most 8 KB, the default message buffer of Tomcat: 250 ms of
+ * LINEAR16 audio.
+ *
+ * @param audio The audio of the message, not copied: a view of its buffer, not to be changed.
+ */
+public record AudioFrame(int codec, int flags, long sequence, long timestampMillis, ByteBuffer audio) {
+    public static final String SUB_PROTOCOL = "audio-frames.v1";
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 12;
+    public static final int LINEAR16 = 1;
+    public static final int OPUS = 2;
+    public static final int FLAG_END = 1;
+
+    /**
+     * Reads a frame from the payload of a binary message, leaving the payload unchanged.
+     *
+     * @throws APIError If the payload is not a frame of this version.
+     */
+    public static AudioFrame parse(ByteBuffer payload) {
+        if (payload.remaining() < HEADER_SIZE) {
+            throw new APIError(HttpStatus.BAD_REQUEST,
+                    "An audio frame has a header of " + HEADER_SIZE + " bytes, got " + payload.remaining());
+        }
+        // A slice is big-endian, whatever the order of the payload
+        ByteBuffer frame = payload.slice();
+        int version = Byte.toUnsignedInt(frame.get(0));
+        if (version != VERSION) {
+            throw new APIError(HttpStatus.BAD_REQUEST, "Audio frame version " + version + " not supported");
+        }
+        return new AudioFrame(Byte.toUnsignedInt(frame.get(1)), Short.toUnsignedInt(frame.getShort(2)),
+                Integer.toUnsignedLong(frame.getInt(4)), Integer.toUnsignedLong(frame.getInt(8)),
+                frame.position(HEADER_SIZE).slice());
+    }
+
+    public boolean isEnd() {
+        return (flags & FLAG_END) != 0;
+    }
+}
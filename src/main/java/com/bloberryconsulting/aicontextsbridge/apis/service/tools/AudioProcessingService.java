@@ -2,9 +2,23 @@ package com.bloberryconsulting.aicontextsbridge.apis.service.tools;
 
 import java.util.List;
 
+import org.springframework.http.HttpStatus;
 import org.springframework.web.socket.WebSocketSession;
 
+import com.bloberryconsulting.aicontextsbridge.exceptions.APIError;
+
 public interface AudioProcessingService {
     String getProcessorIdentifier(); // Return a unique identifier for each processor
     void processAudioChunks(WebSocketSession session, String languageCode, List<String> base64EncodedAudioChunks) throws Exception;
+
+    /**
+     * Processes a binary audio frame, on the thread receiving it: the processor must not block.
+     */
+    default void processAudioFrame(WebSocketSession session, String languageCode, AudioFrame frame) {
+        throw new APIError(HttpStatus.NOT_IMPLEMENTED, getProcessorIdentifier() + " doesn't process audio frames");
+    }
+
+    // Releases what the processor holds for a session once it is closed
+    default void closeSession(WebSocketSession session) {
+    }
 }
@@ -7,7 +7,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -24,17 +23,19 @@ public class AudioProcessor {
 
     private final Map<String, AudioProcessingService> audioProcessors;
     private final Map<String, List<String>> sessionAudioChunks;
+    // The last batch of each session, the next one runs after it
+    private final Map<String, CompletableFuture<Void>> sessionBatches = new ConcurrentHashMap<>();
     private final ExecutorService executorService;
     private final int batchSize = 5; // Hardcoded batch size
 
-    public AudioProcessor(List<AudioProcessingService> audioProcessingServices) {
+    public AudioProcessor(List<AudioProcessingService> audioProcessingServices, ExecutorService executorService) {
         this.audioProcessors = audioProcessingServices.stream()
             .collect(Collectors.toMap(
                 AudioProcessingService::getProcessorIdentifier,
                 Function.identity()
             ));
         this.sessionAudioChunks = new ConcurrentHashMap<>(); // Thread-safe map
-        this.executorService = Executors.newFixedThreadPool(1);
+        this.executorService = executorService;
     }
 
 
@@ -42,33 +43,38 @@ public class AudioProcessor {
     private Future<?> processAudio(WebSocketSession session, String languageCode, List<String> audioChunks, String selectedProcessor) {
         CompletableFuture<Void> completableFuture = new CompletableFuture<>();
 
-        executorService.submit(() -> {
-            try {
-                AudioProcessingService processor = audioProcessors.get(selectedProcessor);
-                if (processor != null) {
-                    try {
-                        processor.processAudioChunks(session, languageCode, audioChunks);                  
-                    } catch (Exception e) {
-                        logger.error("Error processing audio: " + e.getLocalizedMessage());
-                        completableFuture.completeExceptionally(e);
-                        return;
-                    }
-                } else {
-                    String errorMsg = "Selected processor not found: " + selectedProcessor;
-                    logger.error(errorMsg);
-                    completableFuture.completeExceptionally(new APIError(HttpStatus.NON_AUTHORITATIVE_INFORMATION, errorMsg));
-                    return;
-                }
-            } catch (Exception e) {
-                logger.error("Error processing audio: " + e.getLocalizedMessage());
-                completableFuture.completeExceptionally(new APIError(HttpStatus.NON_AUTHORITATIVE_INFORMATION, e.getLocalizedMessage()));
-                return;
-            }
-        });
+        // The batches of a session are processed in order, the sessions at the same time
+        sessionBatches.compute(session.getId(), (sessionId, previous) ->
+                (previous == null ? CompletableFuture.<Void>completedFuture(null) : previous).thenRunAsync(
+                        () -> process(session, languageCode, audioChunks, selectedProcessor, completableFuture),
+                        executorService));
 
         return completableFuture;
     }
 
+    private void process(WebSocketSession session, String languageCode, List<String> audioChunks, String selectedProcessor,
+            CompletableFuture<Void> completableFuture) {
+        try {
+            AudioProcessingService processor = audioProcessors.get(selectedProcessor);
+            if (processor != null) {
+                try {
+                    processor.processAudioChunks(session, languageCode, audioChunks);
+                    completableFuture.complete(null);
+                } catch (Exception e) {
+                    logger.error("Error processing audio: " + e.getLocalizedMessage());
+                    completableFuture.completeExceptionally(e);
+                }
+            } else {
+                String errorMsg = "Selected processor not found: " + selectedProcessor;
+                logger.error(errorMsg);
+                completableFuture.completeExceptionally(new APIError(HttpStatus.NON_AUTHORITATIVE_INFORMATION, errorMsg));
+            }
+        } catch (Exception e) {
+            logger.error("Error processing audio: " + e.getLocalizedMessage());
+            completableFuture.completeExceptionally(new APIError(HttpStatus.NON_AUTHORITATIVE_INFORMATION, e.getLocalizedMessage()));
+        }
+    }
+
     public Future<?> processAudioChunks(WebSocketSession session, String languageCode, List<String> base64EncodedAudioChunks, String selectedProcessor) {
         return processAudio(session, languageCode, base64EncodedAudioChunks, selectedProcessor);
     }
@@ -93,4 +99,20 @@ public class AudioProcessor {
         completableFuture.completeExceptionally(new APIError(HttpStatus.NON_AUTHORITATIVE_INFORMATION, errorMsg));
         return  completableFuture;
     }
+
+    // A frame is handed over on the thread receiving it, in order and without waiting for a thread
+    public void processAudioFrame(WebSocketSession session, String languageCode, AudioFrame frame, String selectedProcessor) {
+        AudioProcessingService processor = audioProcessors.get(selectedProcessor);
+        if (processor == null) {
+            throw new APIError(HttpStatus.NON_AUTHORITATIVE_INFORMATION, "Selected processor not found: " + selectedProcessor);
+        }
+        processor.processAudioFrame(session, languageCode, frame);
+    }
+
+    // Forgets a closed session, and lets the processors release what they hold for it
+    public void closeSession(WebSocketSession session) {
+        sessionBatches.remove(session.getId());
+        sessionAudioChunks.remove(session.getId());
+        audioProcessors.values().forEach(processor -> processor.closeSession(session));
+    }
 }
@@ -2,15 +2,20 @@ package com.bloberryconsulting.aicontextsbridge.apis.service.tools;
 
 import java.util.List;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import com.bloberryconsulting.aicontextsbridge.config.ThreadMode;
+
 @Configuration
 public class AudioProcessorConfig {
 
     // Inject all AudioProcessingService instances into this method
     @Bean
-    public AudioProcessor audioProcessor(List<AudioProcessingService> audioProcessingServices) {
-        return new AudioProcessor(audioProcessingServices);
+    public AudioProcessor audioProcessor(List<AudioProcessingService> audioProcessingServices, ThreadMode threadMode,
+            @Value("${audio.processor.threads:8}") int threads) {
+        // The batches of a session are processed in order, the sessions share the threads
+        return new AudioProcessor(audioProcessingServices, threadMode.executor("audio-processor-", threads));
     }
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package com.bloberryconsulting.aicontextsbridge.apis.service.utilities;
+
+import java.io.FileNotFoundException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Builds a multipart/form-data body for the JDK {@link java.net.http.HttpClient}. File parts are
+ * streamed from disk by the publisher, they are not read into memory; buffer parts are sent from
+ * their buffers, a mapped file included, rather than copied into arrays.
+ */
+public class MultipartBodyPublisher {
+    // The buffers of a part are published in slices, like the client reads a file
+    private static final int SLICE_SIZE = 64 * 1024;
+
+    private final String boundary = "----AiContextsBridge" + UUID.randomUUID().toString().replace("-", "");
+    private final List<HttpRequest.BodyPublisher> parts = new ArrayList<>();
+
+    public MultipartBodyPublisher addPart(String name, String value) {
+        parts.add(ofText("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + name + "\"\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n\r\n"
+                + value + "\r\n"));
+        return this;
+    }
+
+    public MultipartBodyPublisher addFile(String name, Path file, String contentType) throws FileNotFoundException {
+        parts.add(ofText("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + file.getFileName() + "\"\r\n"
+                + "Content-Type: " + contentType + "\r\n\r\n"));
+        parts.add(HttpRequest.BodyPublishers.ofFile(file));
+        parts.add(ofText("\r\n"));
+        return this;
+    }
+
+    /**
+     * Adds a file part whose content is the given buffers, sent in order. The buffers are read from
+     * their position to their limit by duplicates, they are not modified.
+     */
+    public MultipartBodyPublisher addBytes(String name, String fileName, String contentType, ByteBuffer... content) {
+        parts.add(ofText("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: " + contentType + "\r\n\r\n"));
+        parts.add(ofBuffers(content));
+        parts.add(ofText("\r\n"));
+        return this;
+    }
+
+    /**
+     * @return The value of the Content-Type header of the request.
+     */
+    public String contentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    public HttpRequest.BodyPublisher build() {
+        List<HttpRequest.BodyPublisher> body = new ArrayList<>(parts);
+        body.add(ofText("--" + boundary + "--\r\n"));
+        return HttpRequest.BodyPublishers.concat(body.toArray(HttpRequest.BodyPublisher[]::new));
+    }
+
+    private static HttpRequest.BodyPublisher ofText(String text) {
+        return HttpRequest.BodyPublishers.ofString(text, StandardCharsets.UTF_8);
+    }
+
+    // Publishes slices of the buffers, each subscription from the start: the client subscribes again to resend
+    private static HttpRequest.BodyPublisher ofBuffers(ByteBuffer... content) {
+        long length = 0;
+        for (ByteBuffer buffer : content) {
+            length += buffer.remaining();
+        }
+        Flow.Publisher<ByteBuffer> publisher = subscriber -> {
+            List<ByteBuffer> slices = new ArrayList<>();
+            for (ByteBuffer buffer : content) {
+                ByteBuffer remaining = buffer.duplicate();
+                while (remaining.hasRemaining()) {
+                    int size = Math.min(SLICE_SIZE, remaining.remaining());
+                    slices.add(remaining.slice().limit(size));
+                    remaining.position(remaining.position() + size);
+                }
+            }
+            subscriber.onSubscribe(new BufferSubscription(subscriber, slices));
+        };
+        return HttpRequest.BodyPublishers.fromPublisher(publisher, length);
+    }
+
+    // Delivers the slices on demand; a request made from onNext is served by the loop already running
+    private static final class BufferSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final List<ByteBuffer> slices;
+        private final AtomicBoolean delivering = new AtomicBoolean();
+        private long demand;
+        private int next;
+        private volatile boolean cancelled;
+
+        BufferSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, List<ByteBuffer> slices) {
+            this.subscriber = subscriber;
+            this.slices = slices;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            while (delivering.compareAndSet(false, true)) {
+                try {
+                    while (!cancelled && next < slices.size() && take()) {
+                        subscriber.onNext(slices.get(next++));
+                    }
+                    if (!cancelled && next == slices.size()) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    }
+                } finally {
+                    delivering.set(false);
+                }
+                // A request may have arrived after the inner loop checked the demand
+                if (!hasDemand()) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private synchronized boolean take() {
+            if (demand == 0) {
+                return false;
+            }
+            demand--;
+            return true;
+        }
+
+        private synchronized boolean hasDemand() {
+            return demand > 0 && !cancelled;
+        }
+    }
+}
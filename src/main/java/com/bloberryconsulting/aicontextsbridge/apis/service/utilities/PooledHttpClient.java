@@ -0,0 +1,253 @@
+package com.bloberryconsulting.aicontextsbridge.apis.service.utilities;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Sends the requests of the OpenAI integrations through the shared {@link HttpClient} bean.
+ *
+ * The JDK client doesn't bound the connections it opens to a host, so the number of requests in
+ * flight per host is limited here; requests over the limit wait for a permit, without holding a
+ * thread when sent asynchronously. A request holds its permit until its response body is received,
+ * fails or is given up, not only until the headers arrive: a streamed body, e.g. the lines of
+ * server-sent events, keeps its permit until the stream is read to its end or closed, so it must be
+ * closed. Requests built with {@link #newRequest(String)} get the default request timeout.
+ */
+@Service
+public class PooledHttpClient {
+    private final HttpClient httpClient;
+    private final int maxRequestsPerHost;
+    private final Duration requestTimeout;
+    private final Map<String, HostLimiter> limiters = new ConcurrentHashMap<>();
+
+    public PooledHttpClient(HttpClient httpClient,
+            @Value("${http-client.max-requests-per-host:32}") int maxRequestsPerHost,
+            @Value("${http-client.request-timeout-seconds:120}") int requestTimeoutSeconds) {
+        this.httpClient = httpClient;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.requestTimeout = Duration.ofSeconds(requestTimeoutSeconds);
+    }
+
+    /**
+     * Starts a request to the given URI with the default request timeout.
+     *
+     * @param uri The URI of the request.
+     * @return The request builder.
+     */
+    public HttpRequest.Builder newRequest(String uri) {
+        return HttpRequest.newBuilder(URI.create(uri)).timeout(requestTimeout);
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     *
+     * @param request The request to send.
+     * @param bodyHandler The handler of the response body.
+     * @return The response.
+     * @throws IOException If the request can't be sent or the response can't be read.
+     * @throws InterruptedException If interrupted while waiting for a permit or the response.
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+        HostLimiter limiter = limiterFor(request.uri());
+        CompletableFuture<Void> granted = limiter.acquire();
+        try {
+            granted.get();
+        } catch (InterruptedException e) {
+            // The permit may have been granted in the meantime, it has to be returned then
+            if (!granted.cancel(false)) {
+                limiter.release();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        Permit permit = new Permit(limiter);
+        try {
+            return httpClient.send(request, permit.heldByBody(bodyHandler));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a request asynchronously. Cancelling the returned future gives up the wait for a permit,
+     * or aborts the exchange once the request is sent, closing its stream.
+     *
+     * @param request The request to send.
+     * @param bodyHandler The handler of the response body.
+     * @return The future response, completed exceptionally with an IOException if the request fails.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+            HttpResponse.BodyHandler<T> bodyHandler) {
+        HostLimiter limiter = limiterFor(request.uri());
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<HttpResponse<T>>> exchange = new AtomicReference<>();
+        CompletableFuture<Void> granted = limiter.acquire();
+        granted.thenRun(() -> {
+            if (result.isDone()) {
+                // Cancelled after the permit was granted, before the request was sent
+                limiter.release();
+                return;
+            }
+            Permit permit = new Permit(limiter);
+            CompletableFuture<HttpResponse<T>> sent = httpClient.sendAsync(request, permit.heldByBody(bodyHandler));
+            exchange.set(sent);
+            sent.whenComplete((response, error) -> {
+                if (error != null) {
+                    permit.release();
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(response);
+                }
+            });
+            // Cancelled while the request was being sent
+            if (result.isCancelled()) {
+                sent.cancel(true);
+            }
+        });
+        result.whenComplete((response, error) -> {
+            // A waiter cancelled in the queue is skipped by release(), it never holds a permit
+            if (result.isCancelled() && !granted.cancel(false)) {
+                CompletableFuture<HttpResponse<T>> sent = exchange.get();
+                if (sent != null) {
+                    sent.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    private HostLimiter limiterFor(URI uri) {
+        String host = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        return limiters.computeIfAbsent(host, key -> new HostLimiter(maxRequestsPerHost));
+    }
+
+    // The permit of a sent request, returned once: when its body is received, fails or is cancelled (a
+    // streamed body closed before its end), or when the request fails before there is a body
+    private static class Permit {
+        private final HostLimiter limiter;
+        private final AtomicBoolean held = new AtomicBoolean(true);
+
+        Permit(HostLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        void release() {
+            if (held.compareAndSet(true, false)) {
+                limiter.release();
+            }
+        }
+
+        <T> HttpResponse.BodyHandler<T> heldByBody(HttpResponse.BodyHandler<T> bodyHandler) {
+            return responseInfo -> new BodyRelease<>(bodyHandler.apply(responseInfo), this);
+        }
+    }
+
+    // Passes the body to the subscriber of the handler, releasing the permit when the body ends
+    private static class BodyRelease<T> implements HttpResponse.BodySubscriber<T> {
+        private final HttpResponse.BodySubscriber<T> subscriber;
+        private final Permit permit;
+
+        BodyRelease(HttpResponse.BodySubscriber<T> subscriber, Permit permit) {
+            this.subscriber = subscriber;
+            this.permit = permit;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return subscriber.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    subscription.request(n);
+                }
+
+                @Override
+                public void cancel() {
+                    permit.release();
+                    subscription.cancel();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            subscriber.onNext(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            permit.release();
+            subscriber.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            permit.release();
+            subscriber.onComplete();
+        }
+    }
+
+    // A semaphore whose waiters are futures, so asynchronous requests queue without blocking a thread
+    private static class HostLimiter {
+        private final Queue<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+        private int available;
+
+        HostLimiter(int permits) {
+            this.available = permits;
+        }
+
+        synchronized CompletableFuture<Void> acquire() {
+            if (available > 0) {
+                available--;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+            return waiter;
+        }
+
+        void release() {
+            while (true) {
+                CompletableFuture<Void> next;
+                synchronized (this) {
+                    next = waiters.poll();
+                    if (next == null) {
+                        available++;
+                        return;
+                    }
+                }
+                // Completed outside the lock, the waiter continues with sending its request.
+                // A cancelled waiter gave up, the permit goes to the next one
+                if (next.complete(null)) {
+                    return;
+                }
+            }
+        }
+    }
+}
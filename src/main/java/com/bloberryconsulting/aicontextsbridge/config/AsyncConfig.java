@@ -0,0 +1,44 @@
+package com.bloberryconsulting.aicontextsbridge.config;
+
+import java.util.concurrent.ExecutorService;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Executors of the work that outlives the request thread, like the streamed responses: the servlet
+ * thread is released once the stream is started and a thread of this pool relays the upstream events.
+ * The completion executor runs what follows an asynchronous API answer: saving the turn, caching and
+ * billing it block on cluster calls, so they don't run on the few threads of the HTTP client.
+ */
+@Configuration
+public class AsyncConfig {
+
+    @Value("${streaming.executor.core-threads:8}")
+    private int streamingCoreThreads;
+    @Value("${streaming.executor.max-threads:64}")
+    private int streamingMaxThreads;
+    @Value("${streaming.executor.queue-capacity:100}")
+    private int streamingQueueCapacity;
+    @Value("${completion.executor.threads:16}")
+    private int completionThreads;
+
+    @Bean
+    public ThreadPoolTaskExecutor streamingExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("streaming-");
+        executor.setCorePoolSize(streamingCoreThreads);
+        executor.setMaxPoolSize(streamingMaxThreads);
+        executor.setQueueCapacity(streamingQueueCapacity);
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(30);
+        return executor;
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService completionExecutor(ThreadMode threadMode) {
+        return threadMode.executor("completion-", completionThreads);
+    }
+}
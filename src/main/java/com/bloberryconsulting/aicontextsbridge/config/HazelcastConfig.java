@@ -1,25 +1,64 @@
 package com.bloberryconsulting.aicontextsbridge.config;
 
 
+import com.bloberryconsulting.aicontextsbridge.config.serialization.ModelSerializers;
+import com.bloberryconsulting.aicontextsbridge.repository.LogMapStore;
+import com.bloberryconsulting.aicontextsbridge.repository.UserRepository;
+import com.bloberryconsulting.aicontextsbridge.service.ResponseCache;
+import com.bloberryconsulting.aicontextsbridge.service.ratelimit.RateLimiter;
+import com.bloberryconsulting.aicontextsbridge.service.routing.ApiKeyRouter;
+import com.hazelcast.cluster.MembershipEvent;
+import com.hazelcast.cluster.MembershipListener;
 import com.hazelcast.config.Config;
+import com.hazelcast.config.EvictionConfig;
+import com.hazelcast.config.EvictionPolicy;
+import com.hazelcast.config.InMemoryFormat;
+import com.hazelcast.config.IndexConfig;
+import com.hazelcast.config.IndexType;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.config.MaxSizePolicy;
+import com.hazelcast.config.NearCacheConfig;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.spring.context.SpringManagedContext;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import org.springframework.beans.factory.annotation.Value;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 
 
 @Configuration
 public class HazelcastConfig {
+    public static final String ROLES_MAP = "rolesMap";
+    private static final Logger logger = LoggerFactory.getLogger(HazelcastConfig.class);
+
     @Value("${hazelcast-client.cluster-name}")
     private String clusterName;
 
     @Value("${hazelcast-client.network-config.addresses}")
     private String addresses;
+
+    @Value("${hazelcast-client.persistence.enabled:false}")
+    private boolean persistenceEnabled;
+    @Value("${hazelcast-client.persistence.directory:./data}")
+    private String persistenceDirectory;
+    @Value("${hazelcast-client.persistence.write-delay-seconds:5}")
+    private int writeDelaySeconds;
+    @Value("${hazelcast-client.persistence.write-batch-size:100}")
+    private int writeBatchSize;
+    @Value("${response-cache.ttl-seconds:3600}")
+    private int responseCacheTtlSeconds;
+    @Value("${response-cache.max-entries-per-member:10000}")
+    private int responseCacheMaxEntries;
+
     @Bean
     public HazelcastInstance hazelcastInstance() {
         Config config = new Config();
@@ -27,9 +66,111 @@ public class HazelcastConfig {
 
         config.setClusterName(clusterName);
         config.getNetworkConfig().setPublicAddress(addresses);
+
+        // Model classes are stored as Compact records instead of java.io.Serializable
+        ModelSerializers.register(config.getSerializationConfig().getCompactSerializationConfig());
+
+        // Secondary indexes used by the UserRepository lookups, so the queries
+        // don't have to scan and deserialize every entry of the map
+        config.getMapConfig(UserRepository.CUSTOMER_MAP)
+                .addIndexConfig(new IndexConfig(IndexType.HASH, "email"))
+                .addIndexConfig(new IndexConfig(IndexType.HASH, "name"));
+        config.getMapConfig(UserRepository.API_KEYS_MAP)
+                .addIndexConfig(new IndexConfig(IndexType.HASH, "userId"))
+                .addIndexConfig(new IndexConfig(IndexType.HASH, "model"))
+                .addIndexConfig(new IndexConfig(IndexType.HASH, "publicAccessed"));
+        config.getMapConfig(UserRepository.PROFILES_MAP)
+                .addIndexConfig(new IndexConfig(IndexType.HASH, "ownerId"));
+
+        // Near caches for the maps read on every request. User and ApiKey instances are modified by
+        // their readers (e.g. BillingAspect), so they are cached serialized and every get returns a
+        // copy; the assistant roles are never modified once loaded and are cached as objects
+        config.getMapConfig(UserRepository.CUSTOMER_MAP)
+                .setNearCacheConfig(nearCacheConfig(UserRepository.CUSTOMER_MAP, InMemoryFormat.BINARY, 60, 10_000));
+        config.getMapConfig(UserRepository.API_KEYS_MAP)
+                .setNearCacheConfig(nearCacheConfig(UserRepository.API_KEYS_MAP, InMemoryFormat.BINARY, 300, 1_000));
+        config.getMapConfig(ROLES_MAP)
+                .setNearCacheConfig(nearCacheConfig(ROLES_MAP, InMemoryFormat.OBJECT, 3600, 10)
+                        .setCacheLocalEntries(true));
+
+        // Cached answers expire, and the least recently used are evicted past the size bound
+        config.getMapConfig(ResponseCache.RESPONSE_CACHE_MAP)
+                .setTimeToLiveSeconds(responseCacheTtlSeconds)
+                .setEvictionConfig(new EvictionConfig()
+                        .setEvictionPolicy(EvictionPolicy.LRU)
+                        .setMaxSizePolicy(MaxSizePolicy.PER_NODE)
+                        .setSize(responseCacheMaxEntries));
+
+        // The load of a key is updated by every response, so it is read from its owner rather than
+        // near cached; the load of a key no longer used is dropped, its windows have been reset since
+        config.getMapConfig(ApiKeyRouter.API_KEY_LOAD_MAP)
+                .setMaxIdleSeconds(600);
+        // A rate limit idle for longer than its burst is back to full, the entry can go
+        config.getMapConfig(RateLimiter.RATE_LIMITS_MAP)
+                .setMaxIdleSeconds(3600);
+
+        if (persistenceEnabled) {
+            Path directory = Paths.get(persistenceDirectory);
+            for (String mapName : new String[] { UserRepository.CUSTOMER_MAP, UserRepository.API_KEYS_MAP,
+                    UserRepository.BILL_MAP, UserRepository.CLIENT_MAP, UserRepository.CREDIT_MAP,
+                    UserRepository.HISTORY_MAP }) {
+                config.getMapConfig(mapName).setMapStoreConfig(mapStoreConfig(directory, mapName));
+            }
+        }
     
         // Configure Hazelcast as needed
-        return Hazelcast.newHazelcastInstance(config);
+        HazelcastInstance hazelcastInstance = Hazelcast.newHazelcastInstance(config);
+        if (persistenceEnabled) {
+            requireSingleMember(hazelcastInstance);
+        }
+        return hazelcastInstance;
+    }
+
+    // The logs are local to a member and hold only the partitions it owned: with more members, the
+    // entries written by the others are lost on a restart. A member joining a cluster refuses to start,
+    // the members already running report the join
+    private void requireSingleMember(HazelcastInstance hazelcastInstance) {
+        int members = hazelcastInstance.getCluster().getMembers().size();
+        if (members > 1) {
+            hazelcastInstance.shutdown();
+            throw new IllegalStateException("hazelcast-client.persistence.enabled needs a single member cluster, "
+                    + "this member joined " + (members - 1) + " other(s): disable the persistence or run one member");
+        }
+        hazelcastInstance.getCluster().addMembershipListener(new MembershipListener() {
+            @Override
+            public void memberAdded(MembershipEvent event) {
+                logger.error("Member {} joined while the maps are persisted to local logs, the entries it owns "
+                        + "won't be in the logs of this member after a restart", event.getMember());
+            }
+
+            @Override
+            public void memberRemoved(MembershipEvent event) {
+            }
+        });
+    }
+
+    // Entries are dropped on any update in the cluster, the TTL bounds staleness if an invalidation is lost
+    private NearCacheConfig nearCacheConfig(String mapName, InMemoryFormat format, int timeToLiveSeconds, int maxEntries) {
+        return new NearCacheConfig(mapName)
+                .setInMemoryFormat(format)
+                .setInvalidateOnChange(true)
+                .setTimeToLiveSeconds(timeToLiveSeconds)
+                .setEvictionConfig(new EvictionConfig()
+                        .setEvictionPolicy(EvictionPolicy.LRU)
+                        .setMaxSizePolicy(MaxSizePolicy.ENTRY_COUNT)
+                        .setSize(maxEntries));
+    }
 
+    // Write-behind to a local log: updates of a key within the delay are coalesced into one record,
+    // and a map is loaded from its log on first use instead of at startup. Single member only, see
+    // requireSingleMember
+    private MapStoreConfig mapStoreConfig(Path directory, String mapName) {
+        return new MapStoreConfig()
+                .setEnabled(true)
+                .setImplementation(new LogMapStore(directory, mapName))
+                .setWriteDelaySeconds(writeDelaySeconds)
+                .setWriteBatchSize(writeBatchSize)
+                .setWriteCoalescing(true)
+                .setInitialLoadMode(MapStoreConfig.InitialLoadMode.LAZY);
     }
 }
\ No newline at end of file
@@ -0,0 +1,47 @@
+package com.bloberryconsulting.aicontextsbridge.config;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * The single HTTP client shared by all the OpenAI integrations. The JDK client keeps a pool of
+ * connections per host, so the TLS handshake is paid once per connection instead of once per call,
+ * and negotiates HTTP/2 where the server supports it, multiplexing the requests over one connection.
+ * The responses are handled on the executor of the {@link ThreadMode}.
+ */
+@Configuration
+public class HttpClientConfig {
+    // Read by the JDK client once, when its connection pool is first used
+    private static final String KEEP_ALIVE_PROPERTY = "jdk.httpclient.keepalive.timeout";
+
+    @Value("${http-client.connect-timeout-seconds:10}")
+    private int connectTimeoutSeconds;
+    @Value("${http-client.keep-alive-seconds:300}")
+    private int keepAliveSeconds;
+    @Value("${http-client.threads:8}")
+    private int threads;
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService httpClientExecutor(ThreadMode threadMode) {
+        return threadMode.executor("http-client-", threads);
+    }
+
+    @Bean
+    public HttpClient httpClient(@Qualifier("httpClientExecutor") ExecutorService httpClientExecutor) {
+        if (System.getProperty(KEEP_ALIVE_PROPERTY) == null) {
+            System.setProperty(KEEP_ALIVE_PROPERTY, Integer.toString(keepAliveSeconds));
+        }
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(connectTimeoutSeconds))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(httpClientExecutor)
+                .build();
+    }
+}
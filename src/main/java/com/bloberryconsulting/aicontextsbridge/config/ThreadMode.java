@@ -0,0 +1,104 @@
+package com.bloberryconsulting.aicontextsbridge.config;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Whether the blocking work of the requests runs on platform threads or on virtual threads: the
+ * Tomcat request handling, the calls of the shared HTTP client and the audio processing. The work
+ * is I/O bound (Hazelcast, OpenAI, Google Speech), a virtual thread waiting for it doesn't hold an
+ * OS thread, so the concurrency is not bounded by the size of the pools.
+ *
+ * Virtual threads need Java 21, they are looked up by reflection so the application still builds and
+ * runs on Java 17; {@code threads.virtual=true} on an older runtime falls back to platform threads.
+ */
+@Component
+public class ThreadMode {
+    private static final Logger logger = LoggerFactory.getLogger(ThreadMode.class);
+
+    // Thread.ofVirtual() and its builder, null before Java 21
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private final boolean virtual;
+
+    public ThreadMode(@Value("${threads.virtual:false}") boolean virtual) {
+        if (virtual && OF_VIRTUAL == null) {
+            logger.warn("Virtual threads need Java 21, running on Java {} with platform threads", Runtime.version());
+        }
+        this.virtual = virtual && OF_VIRTUAL != null;
+        logger.info("Requests run on {} threads", this.virtual ? "virtual" : "platform");
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @param prefix The prefix of the thread names, followed by a counter.
+     * @return A factory of virtual threads, or of daemon platform threads.
+     */
+    public ThreadFactory threadFactory(String prefix) {
+        if (virtual) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 1L);
+                return (ThreadFactory) FACTORY.invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual threads can't be created", e);
+            }
+        }
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param prefix The prefix of the thread names, followed by a counter.
+     * @param platformThreads The size of the pool of platform threads.
+     * @return An executor starting a virtual thread per task, or a fixed pool of platform threads.
+     */
+    public ExecutorService executor(String prefix, int platformThreads) {
+        if (virtual) {
+            try {
+                // Virtual threads are cheap, they are not pooled
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory(prefix));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual threads can't be created", e);
+            }
+        }
+        return Executors.newFixedThreadPool(platformThreads, threadFactory(prefix));
+    }
+}
@@ -0,0 +1,23 @@
+package com.bloberryconsulting.aicontextsbridge.config;
+
+import org.springframework.boot.web.embedded.tomcat.TomcatConnectorCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * With virtual threads, Tomcat handles every request on a virtual thread of its own instead of a
+ * thread of its pool ({@code server.tomcat.threads.max}); the connections stay bounded by
+ * {@code server.tomcat.max-connections}.
+ */
+@Configuration
+public class TomcatConfig {
+
+    @Bean
+    public TomcatConnectorCustomizer threadModeConnectorCustomizer(ThreadMode threadMode) {
+        return connector -> {
+            if (threadMode.isVirtual()) {
+                connector.getProtocolHandler().setExecutor(threadMode.executor("tomcat-handler-", 0));
+            }
+        };
+    }
+}
@@ -5,10 +5,15 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpStatus;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
-import com.bloberryconsulting.aicontextsbridge.apis.service.openai.whisper.DefaultServices;
+import com.bloberryconsulting.aicontextsbridge.apis.service.GoogleStreamSpeechToTextService;
+import com.bloberryconsulting.aicontextsbridge.apis.service.tools.AudioFrame;
 import com.bloberryconsulting.aicontextsbridge.apis.service.tools.AudioProcessor;
 import com.bloberryconsulting.aicontextsbridge.exceptions.APIError;
 
@@ -18,16 +23,22 @@ import io.grpc.Status;
 
 import java.io.EOFException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
 @Deprecated
 @Configuration
-public class WebSocketHandler extends TextWebSocketHandler {
+public class WebSocketHandler extends AbstractWebSocketHandler implements SubProtocolCapable {
 
     private static final Logger logger = org.slf4j.LoggerFactory.getLogger(WebSocketHandler.class);
     private static final String STOP_STREAMING_MESSAGE = "STOP_STREAMING";
     private AudioProcessor audioProcessor;
     private static final String languageCode = "en-US";
+    // The transcripts are sent from other threads than the messages of the handler
+    private static final int SEND_TIME_LIMIT_MILLIS = 10_000;
+    private static final int SEND_BUFFER_SIZE_LIMIT = 512 * 1024;
+    private final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
 
     public WebSocketHandler(AudioProcessor audioProcessor) {
         this.audioProcessor = audioProcessor;
@@ -41,13 +52,14 @@ public class WebSocketHandler extends TextWebSocketHandler {
     }
 
     public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        session = sessions.getOrDefault(session.getId(), session);
         String clientMessage = message.getPayload();
         logger.debug("message received in {} bytes", clientMessage.length());
 
         if (isStopStreamingMessage(clientMessage)) {
             // Process any remaining audio chunks before stopping the stream
             Future<?> future = audioProcessor.processRemainingChunks(session, languageCode,
-                    DefaultServices.SERVICE_IDENTIFIER);
+                    GoogleStreamSpeechToTextService.SERVICE_IDENTIFIER);
             // Let APIError propagate if it occurs
             waitForFutureAndHandleExceptions(future); // This can throw InterruptedException or ExecutionException
 
@@ -56,7 +68,7 @@ public class WebSocketHandler extends TextWebSocketHandler {
             String base64Audio = jsonData.optString("audio");
             if (!base64Audio.isEmpty()) {
                 Future<?> future = audioProcessor.processAudioChunks(session, languageCode, List.of(base64Audio),
-                DefaultServices.SERVICE_IDENTIFIER);
+                GoogleStreamSpeechToTextService.SERVICE_IDENTIFIER);
                 // Let APIError propagate if it occurs
                 waitForFutureAndHandleExceptions(future);
             }
@@ -65,6 +77,28 @@ public class WebSocketHandler extends TextWebSocketHandler {
         session.sendMessage(new TextMessage("test"));
     }
 
+    /**
+     * Audio frames of the {@value AudioFrame#SUB_PROTOCOL} sub-protocol, without the base64 and JSON
+     * of the text messages. The frame is processed on the thread receiving it, its audio not copied.
+     */
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        session = sessions.getOrDefault(session.getId(), session);
+        if (!AudioFrame.SUB_PROTOCOL.equals(session.getAcceptedProtocol())) {
+            session.close(CloseStatus.NOT_ACCEPTABLE.withReason(
+                    "Binary messages need the " + AudioFrame.SUB_PROTOCOL + " sub-protocol"));
+            return;
+        }
+        AudioFrame frame = AudioFrame.parse(message.getPayload());
+        audioProcessor.processAudioFrame(session, languageCode, frame,
+                GoogleStreamSpeechToTextService.SERVICE_IDENTIFIER);
+    }
+
+    @Override
+    public List<String> getSubProtocols() {
+        return List.of(AudioFrame.SUB_PROTOCOL);
+    }
+
     public void waitForFutureAndHandleExceptions(Future<?> future) {
         try {
             future.get();
@@ -94,7 +128,15 @@ public class WebSocketHandler extends TextWebSocketHandler {
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         logger.debug("New WebSocket connection established. Session ID: " +  session.getId());
+        sessions.put(session.getId(),
+                new ConcurrentWebSocketSessionDecorator(session, SEND_TIME_LIMIT_MILLIS, SEND_BUFFER_SIZE_LIMIT));
+    }
 
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+        logger.debug("WebSocket connection closed. Session ID: {} {}", session.getId(), status);
+        audioProcessor.closeSession(sessions.getOrDefault(session.getId(), session));
+        sessions.remove(session.getId());
     }
 
     @Override
@@ -0,0 +1,66 @@
+package com.bloberryconsulting.aicontextsbridge.config.serialization;
+
+import static com.bloberryconsulting.aicontextsbridge.config.serialization.CompactFields.*;
+
+import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
+import com.hazelcast.nio.serialization.compact.CompactReader;
+import com.hazelcast.nio.serialization.compact.CompactSerializer;
+import com.hazelcast.nio.serialization.compact.CompactWriter;
+
+/**
+ * Compact serializer of {@link ApiKey}.
+ */
+public class ApiKeySerializer implements CompactSerializer<ApiKey> {
+
+    @Override
+    public ApiKey read(CompactReader reader) {
+        ApiKey apiKey = new ApiKey();
+        apiKey.setKeyId(readString(reader, "keyId"));
+        apiKey.setKeyValue(readString(reader, "keyValue"));
+        apiKey.setName(readString(reader, "name"));
+        apiKey.setUri(readString(reader, "uri"));
+        apiKey.setHomepage(readString(reader, "homepage"));
+        apiKey.setUserId(readString(reader, "userId"));
+        apiKey.setMaxContextLength(readInt32(reader, "maxContextLength"));
+        apiKey.setTotalCost(readNullableFloat64(reader, "totalCost", 0.0));
+        apiKey.setPublicAccessed(readBoolean(reader, "publicAccessed"));
+        apiKey.setDefaultKey(readBoolean(reader, "defaultKey"));
+        apiKey.setDisabled(readBoolean(reader, "disabled"));
+        apiKey.setModel(readString(reader, "model"));
+        apiKey.setDescription(readString(reader, "description"));
+        apiKey.setResponseCacheEnabled(readBoolean(reader, "responseCacheEnabled"));
+        apiKey.setResponseCacheTtlSeconds(readInt32(reader, "responseCacheTtlSeconds"));
+        apiKey.setSemanticCacheEnabled(readBoolean(reader, "semanticCacheEnabled"));
+        return apiKey;
+    }
+
+    @Override
+    public void write(CompactWriter writer, ApiKey apiKey) {
+        writer.writeString("keyId", apiKey.getKeyId());
+        writer.writeString("keyValue", apiKey.getKeyValue());
+        writer.writeString("name", apiKey.getName());
+        writer.writeString("uri", apiKey.getUri());
+        writer.writeString("homepage", apiKey.getHomepage());
+        writer.writeString("userId", apiKey.getUserId());
+        writer.writeInt32("maxContextLength", apiKey.getMaxContextLength());
+        writer.writeNullableFloat64("totalCost", apiKey.getTotalCost());
+        writer.writeBoolean("publicAccessed", apiKey.isPublicAccessed());
+        writer.writeBoolean("defaultKey", apiKey.isDefaultKey());
+        writer.writeBoolean("disabled", apiKey.isDisabled());
+        writer.writeString("model", apiKey.getModel());
+        writer.writeString("description", apiKey.getDescription());
+        writer.writeBoolean("responseCacheEnabled", apiKey.isResponseCacheEnabled());
+        writer.writeInt32("responseCacheTtlSeconds", apiKey.getResponseCacheTtlSeconds());
+        writer.writeBoolean("semanticCacheEnabled", apiKey.isSemanticCacheEnabled());
+    }
+
+    @Override
+    public String getTypeName() {
+        return "apiKey";
+    }
+
+    @Override
+    public Class<ApiKey> getCompactClass() {
+        return ApiKey.class;
+    }
+}
@@ -0,0 +1,40 @@
+package com.bloberryconsulting.aicontextsbridge.config.serialization;
+
+import static com.bloberryconsulting.aicontextsbridge.config.serialization.CompactFields.*;
+
+import com.bloberryconsulting.aicontextsbridge.model.Bill;
+import com.hazelcast.nio.serialization.compact.CompactReader;
+import com.hazelcast.nio.serialization.compact.CompactSerializer;
+import com.hazelcast.nio.serialization.compact.CompactWriter;
+
+/**
+ * Compact serializer of {@link Bill}.
+ */
+public class BillSerializer implements CompactSerializer<Bill> {
+
+    @Override
+    public Bill read(CompactReader reader) {
+        Bill bill = new Bill();
+        bill.setUserId(readString(reader, "userId"));
+        bill.setTotalCost(readFloat64(reader, "totalCost", 0.0));
+        bill.setTotalTax(readFloat64(reader, "totalTax", bill.getTotalTax()));
+        return bill;
+    }
+
+    @Override
+    public void write(CompactWriter writer, Bill bill) {
+        writer.writeString("userId", bill.getUserId());
+        writer.writeFloat64("totalCost", bill.getTotalCost());
+        writer.writeFloat64("totalTax", bill.getTotalTax());
+    }
+
+    @Override
+    public String getTypeName() {
+        return "bill";
+    }
+
+    @Override
+    public Class<Bill> getCompactClass() {
+        return Bill.class;
+    }
+}
@@ -0,0 +1,42 @@
+package com.bloberryconsulting.aicontextsbridge.config.serialization;
+
+import static com.bloberryconsulting.aicontextsbridge.config.serialization.CompactFields.*;
+
+import com.bloberryconsulting.aicontextsbridge.model.Client;
+import com.hazelcast.nio.serialization.compact.CompactReader;
+import com.hazelcast.nio.serialization.compact.CompactSerializer;
+import com.hazelcast.nio.serialization.compact.CompactWriter;
+
+/**
+ * Compact serializer of {@link Client}.
+ */
+public class ClientSerializer implements CompactSerializer<Client> {
+
+    @Override
+    public Client read(CompactReader reader) {
+        Client client = new Client();
+        client.setId(readString(reader, "id"));
+        client.setName(readString(reader, "name"));
+        client.setDescription(readString(reader, "description"));
+        client.setOwnerId(readString(reader, "ownerId"));
+        return client;
+    }
+
+    @Override
+    public void write(CompactWriter writer, Client client) {
+        writer.writeString("id", client.getId());
+        writer.writeString("name", client.getName());
+        writer.writeString("description", client.getDescription());
+        writer.writeString("ownerId", client.getOwnerId());
+    }
+
+    @Override
+    public String getTypeName() {
+        return "client";
+    }
+
+    @Override
+    public Class<Client> getCompactClass() {
+        return Client.class;
+    }
+}
@@ -0,0 +1,74 @@
+package com.bloberryconsulting.aicontextsbridge.config.serialization;
+
+import java.util.Date;
+
+import com.hazelcast.nio.serialization.FieldKind;
+import com.hazelcast.nio.serialization.compact.CompactReader;
+
+/**
+ * Read helpers for the model serializers. Every field is looked up by its kind first,
+ * so an entry written by an older or newer version of a serializer (added, removed or
+ * retyped field) is read with the default value instead of failing.
+ */
+final class CompactFields {
+
+    private CompactFields() {
+    }
+
+    static String readString(CompactReader reader, String name) {
+        return reader.getFieldKind(name) == FieldKind.STRING ? reader.readString(name) : null;
+    }
+
+    static boolean readBoolean(CompactReader reader, String name) {
+        return reader.getFieldKind(name) == FieldKind.BOOLEAN && reader.readBoolean(name);
+    }
+
+    static int readInt32(CompactReader reader, String name) {
+        return reader.getFieldKind(name) == FieldKind.INT32 ? reader.readInt32(name) : 0;
+    }
+
+    static double readFloat64(CompactReader reader, String name, double defaultValue) {
+        FieldKind kind = reader.getFieldKind(name);
+        if (kind == FieldKind.FLOAT64) {
+            return reader.readFloat64(name);
+        }
+        if (kind == FieldKind.NULLABLE_FLOAT64) {
+            Double value = reader.readNullableFloat64(name);
+            return value != null ? value : defaultValue;
+        }
+        return defaultValue;
+    }
+
+    static Double readNullableFloat64(CompactReader reader, String name, Double defaultValue) {
+        FieldKind kind = reader.getFieldKind(name);
+        if (kind == FieldKind.NULLABLE_FLOAT64) {
+            return reader.readNullableFloat64(name);
+        }
+        if (kind == FieldKind.FLOAT64) {
+            return reader.readFloat64(name);
+        }
+        return defaultValue;
+    }
+
+    static Date readDate(CompactReader reader, String name) {
+        if (reader.getFieldKind(name) != FieldKind.NULLABLE_INT64) {
+            return null;
+        }
+        Long millis = reader.readNullableInt64(name);
+        return millis != null ? new Date(millis) : null;
+    }
+
+    static Long toMillis(Date date) {
+        return date != null ? date.getTime() : null;
+    }
+
+    static String[] readArrayOfString(CompactReader reader, String name) {
+        return reader.getFieldKind(name) == FieldKind.ARRAY_OF_STRING ? reader.readArrayOfString(name) : null;
+    }
+
+    static <T> T[] readArrayOfCompact(CompactReader reader, String name, Class<T> componentType) {
+        return reader.getFieldKind(name) == FieldKind.ARRAY_OF_COMPACT
+                ? reader.readArrayOfCompact(name, componentType)
+                : null;
+    }
+}
@@ -0,0 +1,47 @@
+package com.bloberryconsulting.aicontextsbridge.config.serialization;
+
+import static com.bloberryconsulting.aicontextsbridge.config.serialization.CompactFields.*;
+
+import com.bloberryconsulting.aicontextsbridge.model.Context;
+import com.hazelcast.nio.serialization.compact.CompactReader;
+import com.hazelcast.nio.serialization.compact.CompactSerializer;
+import com.hazelcast.nio.serialization.compact.CompactWriter;
+
+/**
+ * Compact serializer of {@link Context}. The conversation history is not part of the
+ * record, it lives in the history map.
+ */
+public class ContextSerializer implements CompactSerializer<Context> {
+
+    @Override
+    public Context read(CompactReader reader) {
+        Context context = new Context();
+        context.setSessionId(readString(reader, "sessionId"));
+        context.setName(readString(reader, "name"));
+        context.setLastUsed(readDate(reader, "lastUsed"));
+        context.setUserId(readString(reader, "userId"));
+        context.setDocuments(readArrayOfString(reader, "documents"));
+        context.setAssistantRoleMessage(readString(reader, "assistantRoleMessage"));
+        return context;
+    }
+
+    @Override
+    public void write(CompactWriter writer, Context context) {
+        writer.writeString("sessionId", context.getSessionId());
+        writer.writeString("name", context.getName());
+        writer.writeNullableInt64("lastUsed", toMillis(context.getLastUsed()));
+        writer.writeString("userId", context.getUserId());
+        writer.writeArrayOfString("documents", context.getDocuments());
+        writer.writeString("assistantRoleMessage", context.getAssistantRoleMessage());
+    }
+
+    @Override
+    public String getTypeName() {
+        return "context";
+    }
+
+    @Override
+    public Class<Context> getCompactClass() {
+        return Context.class;
+    }
+}
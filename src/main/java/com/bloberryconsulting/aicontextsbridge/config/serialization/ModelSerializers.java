@@ -0,0 +1,24 @@
+package com.bloberryconsulting.aicontextsbridge.config.serialization;
+
+import com.hazelcast.config.CompactSerializationConfig;
+
+/**
+ * Registers the Compact serializers of the model classes stored in Hazelcast.
+ * Each serializer reads fields by name and kind, so fields can be added to or
+ * removed from a model without breaking entries written by the previous version.
+ */
+public final class ModelSerializers {
+
+    private ModelSerializers() {
+    }
+
+    public static CompactSerializationConfig register(CompactSerializationConfig compactConfig) {
+        return compactConfig
+                .addSerializer(new UserSerializer())
+                .addSerializer(new ContextSerializer())
+                .addSerializer(new ApiKeySerializer())
+                .addSerializer(new BillSerializer())
+                .addSerializer(new ClientSerializer())
+                .addSerializer(new ProfileDetailsSerializer());
+    }
+}
@@ -0,0 +1,42 @@
+package com.bloberryconsulting.aicontextsbridge.config.serialization;
+
+import static com.bloberryconsulting.aicontextsbridge.config.serialization.CompactFields.*;
+
+import com.bloberryconsulting.aicontextsbridge.model.ProfileDetails;
+import com.hazelcast.nio.serialization.compact.CompactReader;
+import com.hazelcast.nio.serialization.compact.CompactSerializer;
+import com.hazelcast.nio.serialization.compact.CompactWriter;
+
+/**
+ * Compact serializer of {@link ProfileDetails}.
+ */
+public class ProfileDetailsSerializer implements CompactSerializer<ProfileDetails> {
+
+    @Override
+    public ProfileDetails read(CompactReader reader) {
+        ProfileDetails profileDetails = new ProfileDetails();
+        profileDetails.setId(readString(reader, "id"));
+        profileDetails.setName(readString(reader, "name"));
+        profileDetails.setProfileData(readString(reader, "profileData"));
+        profileDetails.setOwnerId(readString(reader, "ownerId"));
+        return profileDetails;
+    }
+
+    @Override
+    public void write(CompactWriter writer, ProfileDetails profileDetails) {
+        writer.writeString("id", profileDetails.getId());
+        writer.writeString("name", profileDetails.getName());
+        writer.writeString("profileData", profileDetails.getProfileData());
+        writer.writeString("ownerId", profileDetails.getOwnerId());
+    }
+
+    @Override
+    public String getTypeName() {
+        return "profileDetails";
+    }
+
+    @Override
+    public Class<ProfileDetails> getCompactClass() {
+        return ProfileDetails.class;
+    }
+}
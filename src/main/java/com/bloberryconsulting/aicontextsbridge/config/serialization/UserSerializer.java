@@ -0,0 +1,87 @@
+package com.bloberryconsulting.aicontextsbridge.config.serialization;
+
+import static com.bloberryconsulting.aicontextsbridge.config.serialization.CompactFields.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import com.bloberryconsulting.aicontextsbridge.model.Context;
+import com.bloberryconsulting.aicontextsbridge.model.User;
+import com.hazelcast.nio.serialization.compact.CompactReader;
+import com.hazelcast.nio.serialization.compact.CompactSerializer;
+import com.hazelcast.nio.serialization.compact.CompactWriter;
+
+/**
+ * Compact serializer of {@link User}. The contexts map is written as two parallel
+ * arrays, the map keys and the {@link Context} records.
+ */
+public class UserSerializer implements CompactSerializer<User> {
+
+    @Override
+    public User read(CompactReader reader) {
+        User user = new User();
+        user.setId(readString(reader, "id"));
+        user.setName(readString(reader, "name"));
+        user.setEmail(readString(reader, "email"));
+        user.setRecentApiId(readString(reader, "recentApiId"));
+        user.setLastLogin(readDate(reader, "lastLogin"));
+        user.setPictureLink(readString(reader, "pictureLink"));
+        user.setClientId(readString(reader, "clientId"));
+
+        String[] contextNames = readArrayOfString(reader, "contextNames");
+        Context[] contexts = readArrayOfCompact(reader, "contexts", Context.class);
+        if (contextNames != null && contexts != null) {
+            Map<String, Context> contextMap = new HashMap<>(contextNames.length * 2);
+            for (int i = 0; i < contextNames.length; i++) {
+                contextMap.put(contextNames[i], contexts[i]);
+            }
+            user.setContexts(contextMap);
+        }
+
+        String[] roles = readArrayOfString(reader, "roles");
+        user.setRoles(roles != null ? new HashSet<>(Arrays.asList(roles)) : null);
+        user.setCredit(readNullableFloat64(reader, "credit", 0.0));
+        return user;
+    }
+
+    @Override
+    public void write(CompactWriter writer, User user) {
+        writer.writeString("id", user.getId());
+        writer.writeString("name", user.getName());
+        writer.writeString("email", user.getEmail());
+        writer.writeString("recentApiId", user.getRecentApiId());
+        writer.writeNullableInt64("lastLogin", toMillis(user.getLastLogin()));
+        writer.writeString("pictureLink", user.getPictureLink());
+        writer.writeString("clientId", user.getClientId());
+
+        Map<String, Context> contextMap = user.getContexts();
+        String[] contextNames = null;
+        Context[] contexts = null;
+        if (contextMap != null) {
+            contextNames = new String[contextMap.size()];
+            contexts = new Context[contextMap.size()];
+            int i = 0;
+            for (Map.Entry<String, Context> entry : contextMap.entrySet()) {
+                contextNames[i] = entry.getKey();
+                contexts[i++] = entry.getValue();
+            }
+        }
+        writer.writeArrayOfString("contextNames", contextNames);
+        writer.writeArrayOfCompact("contexts", contexts);
+
+        writer.writeArrayOfString("roles", user.getRoles() != null ? user.getRoles().toArray(new String[0]) : null);
+        writer.writeNullableFloat64("credit", user.getCredit());
+    }
+
+    @Override
+    public String getTypeName() {
+        return "user";
+    }
+
+    @Override
+    public Class<User> getCompactClass() {
+        return User.class;
+    }
+}
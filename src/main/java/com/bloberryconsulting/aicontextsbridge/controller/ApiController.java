@@ -8,18 +8,29 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
@@ -33,12 +44,16 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import com.bloberryconsulting.aicontextsbridge.apis.service.ApiService;
 import com.bloberryconsulting.aicontextsbridge.apis.service.ApiServiceRegistry;
+import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.ChatResponse.ChatUsage;
 import com.bloberryconsulting.aicontextsbridge.apis.service.openai.json.Voice;
 import com.bloberryconsulting.aicontextsbridge.apis.service.openai.tts.TextToSpeech;
+import com.bloberryconsulting.aicontextsbridge.apis.service.openai.whisper.WavHeader;
 import com.bloberryconsulting.aicontextsbridge.apis.service.openai.whisper.WhisperTranscribe;
 import com.bloberryconsulting.aicontextsbridge.exceptions.APIError;
 import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
@@ -47,6 +62,8 @@ import com.bloberryconsulting.aicontextsbridge.model.Context;
 import com.bloberryconsulting.aicontextsbridge.model.User;
 import com.bloberryconsulting.aicontextsbridge.repository.UserRepository;
 import com.bloberryconsulting.aicontextsbridge.service.UserService;
+import com.bloberryconsulting.aicontextsbridge.service.ratelimit.RateLimiter;
+import com.bloberryconsulting.aicontextsbridge.service.routing.ApiKeyRouter;
 
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -61,6 +78,7 @@ import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 @CrossOrigin(origins = "${ui.uri}", allowCredentials = "true")
 public class ApiController {
 
+    private static final Logger logger = LoggerFactory.getLogger(ApiController.class);
     private static final String DEFAULT_ASSISTANCE_ROLE_MESSAGE = "Technical assistant";
     static final String DIRECTORY_TO_AUDIO = "audio_files";
     static final String DEFAULT_AUDIO_FILE = "audio";
@@ -72,14 +90,28 @@ public class ApiController {
     // Assuming whisperTranscribe is a service for transcription
     private final WhisperTranscribe whisperTranscribe;
     private final TextToSpeech textToSpeech;    
+    private final TaskExecutor streamingExecutor;
+    private final ApiKeyRouter apiKeyRouter;
+    private final RateLimiter rateLimiter;
+    private final long streamingTimeoutMillis;
+    private final long queryTimeoutMillis;
 
     public ApiController(UserRepository userRepository, ApiServiceRegistry apiServiceRegistry, UserService userService,
-            WhisperTranscribe whisperTranscribe, TextToSpeech textToSpeech) {
+            WhisperTranscribe whisperTranscribe, TextToSpeech textToSpeech,
+            @Qualifier("streamingExecutor") TaskExecutor streamingExecutor, ApiKeyRouter apiKeyRouter,
+            RateLimiter rateLimiter,
+            @Value("${streaming.timeout-seconds:300}") long streamingTimeoutSeconds,
+            @Value("${query.timeout-seconds:150}") long queryTimeoutSeconds) {
         this.userRepository = userRepository;
         this.apiServiceRegistry = apiServiceRegistry;
         this.userService = userService;
         this.whisperTranscribe = whisperTranscribe;
         this.textToSpeech = textToSpeech;
+        this.streamingExecutor = streamingExecutor;
+        this.apiKeyRouter = apiKeyRouter;
+        this.rateLimiter = rateLimiter;
+        this.streamingTimeoutMillis = streamingTimeoutSeconds * 1000;
+        this.queryTimeoutMillis = queryTimeoutSeconds * 1000;
     }
 
     @PreAuthorize("hasAuthority('ROLE_CUSTOMER')")
@@ -128,12 +160,13 @@ public class ApiController {
                 Files.createDirectories(directory);
             }
 
-            // Calculate the duration of the audio file in minutes
-            double price = getAudioDurationInMinutes(audioFile) * AUDIO_TARIF;
+            // Save the file, the upload is moved rather than copied when the container spooled it to disk.
+            // It is not read again but by the transcription, the duration is read from its header
+            savePath = Paths.get(DIRECTORY_TO_AUDIO, fileName).toAbsolutePath();
+            audioFile.transferTo(savePath.toFile());
 
-            // Save the file
-            savePath = Paths.get(DIRECTORY_TO_AUDIO, fileName);
-            Files.copy(audioFile.getInputStream(), savePath, StandardCopyOption.REPLACE_EXISTING);
+            // Calculate the duration of the audio file in minutes
+            double price = getAudioDurationInMinutes(savePath) * AUDIO_TARIF;
 
             // Retrieve context documents associated with the user and session
             List<Context> contexts = getContexts(request, price); // Get the contexts from the request
@@ -161,8 +194,17 @@ public class ApiController {
         }
     }
 
-    private double getAudioDurationInMinutes(MultipartFile audioFile) {
-        try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(audioFile.getInputStream())) {
+    private double getAudioDurationInMinutes(Path audioFile) {
+        try {
+            WavHeader header = WavHeader.read(audioFile);
+            if (header != null) {
+                return header.durationSeconds() / 60.0;
+            }
+        } catch (IOException e) {
+            logger.warn("Can't read the WAV header of {}: {}", audioFile, e.getMessage());
+        }
+        // Not a WAV file, read by the audio system from the header of the file as well
+        try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(audioFile.toFile())) {
             // Assuming the audio format and frame rate are supported, calculate the
             // duration
             long frames = audioInputStream.getFrameLength();
@@ -308,14 +350,123 @@ public class ApiController {
             @ApiResponse(responseCode = "500", description = "Internal Server Error", content = @Content(mediaType = "application/json"))
     })
     @PostMapping("/customer/query")
-    public ResponseEntity<?> queryCustomer(
+    public DeferredResult<ResponseEntity<?>> queryCustomer(
             HttpServletRequest request,
             @Parameter(description = "The message to be processed by the API service") @RequestBody PayloadDTO payload) {
 
 
         // Retrieve context documents associated with the user and session
         List<Context> contexts = getContexts(request, 0.0); // Get the contexts from the request
+        ApiKey apiKeyObject = getRecentApiKey(contexts);
+        acquireRateLimit(contexts, apiKeyObject);
+
+        ApiService apiService = apiServiceRegistry.getService(apiKeyObject.getName());
+
+        // The servlet thread is released while the API answers, the response is written when the future completes.
+        // The request goes to the least loaded key of the pool of the selected key, and to another one if it fails
+        CompletableFuture<String> response = apiKeyRouter.routeAsync(apiKeyObject,
+                apiKey -> apiService.getResponseAsync(apiKey, payload.getData(), contexts));
+
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(queryTimeoutMillis);
+        result.onTimeout(() -> result.setErrorResult(
+                new APIError(HttpStatus.GATEWAY_TIMEOUT, "The API did not answer in time")));
+        // Called on a timeout and when the client goes away too: the API call is aborted, a no-op once answered
+        result.onCompletion(() -> response.cancel(true));
+        response.whenComplete((answer, error) -> {
+            if (error == null) {
+                result.setResult(ResponseEntity.ok(answer));
+            } else {
+                result.setErrorResult(apiError(error));
+            }
+        });
+        return result;
+    }
+
+    // The error of an API call, as handled by GlobalExceptionHandler
+    private static APIError apiError(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof APIError) {
+            return (APIError) cause;
+        }
+        return new APIError(HttpStatus.INTERNAL_SERVER_ERROR, "Request to the API failed: " + cause.getMessage());
+    }
+
+    @PreAuthorize("hasAuthority('ROLE_CUSTOMER')")
+    @Operation(summary = "Stream personalized API response for a customer", description = "Same as /customer/query, but the response is streamed as server-sent events while it is generated: "
+            + "every 'message' event carries a piece of the answer as {\"content\": ...}, the stream ends with a 'done' event carrying the token usage, "
+            + "or with an 'error' event carrying the status and message if the API call fails after the stream started."
+            +
+            ROLE_CUSTOMER_DESCR,
+
+            security = @SecurityRequirement(name = "oauth2scheme"), tags = { "Customer API Query" })
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Stream of the response events", content = @Content(mediaType = "text/event-stream")),
+            @ApiResponse(responseCode = "429", description = "Too Many Requests - Rate limit exceeded", content = @Content(mediaType = "application/json")),
+            @ApiResponse(responseCode = "401", description = "User is not authenticated", content = @Content(mediaType = "application/json")),
+            @ApiResponse(responseCode = "403", description = "User is not authorized to access this resource", content = @Content(mediaType = "application/json")),
+            @ApiResponse(responseCode = "503", description = "Too many streams in progress", content = @Content(mediaType = "application/json"))
+    })
+    @PostMapping(path = "/customer/query/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamQueryCustomer(
+            HttpServletRequest request,
+            @Parameter(description = "The message to be processed by the API service") @RequestBody PayloadDTO payload) {
+
+        // Validated before the stream starts, so these errors still get their HTTP status
+        List<Context> contexts = getContexts(request, 0.0);
+        ApiKey apiKeyObject = getRecentApiKey(contexts);
+        acquireRateLimit(contexts, apiKeyObject);
+        ApiService apiService = apiServiceRegistry.getService(apiKeyObject.getName());
+
+        SseEmitter emitter = new SseEmitter(streamingTimeoutMillis);
+        try {
+            streamingExecutor.execute(() -> streamResponse(emitter, apiService, apiKeyObject, payload.getData(), contexts));
+        } catch (TaskRejectedException e) {
+            throw new APIError(HttpStatus.SERVICE_UNAVAILABLE, "Too many streams in progress, try again later");
+        }
+        return ResponseEntity.ok()
+                .header("Cache-Control", "no-cache")
+                // Disables the response buffering of a reverse proxy (nginx), every event is sent right away
+                .header("X-Accel-Buffering", "no")
+                .body(emitter);
+    }
+
+    private void streamResponse(SseEmitter emitter, ApiService apiService, ApiKey apiKeyObject, String message,
+            List<Context> contexts) {
+        try {
+            // A failed key is only replaced before the first event, when the API refused the request
+            ChatUsage usage = apiKeyRouter.route(apiKeyObject, apiKey -> apiService.streamResponse(apiKey, message,
+                    contexts, delta -> sendEvent(emitter, "message", Map.of("content", delta))));
+            sendEvent(emitter, "done", usage != null ? usage : Map.of());
+            emitter.complete();
+        } catch (APIError e) {
+            sendStreamError(emitter, e.getStatusCode(), e.getMessage());
+        } catch (UncheckedIOException e) {
+            // The client went away, the upstream request was aborted with it
+            emitter.completeWithError(e);
+        } catch (Exception e) {
+            sendStreamError(emitter, HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getMessage());
+        }
+    }
 
+    private void sendStreamError(SseEmitter emitter, int status, String message) {
+        try {
+            sendEvent(emitter, "error", Map.of("status", status, "message", String.valueOf(message)));
+            emitter.complete();
+        } catch (UncheckedIOException e) {
+            emitter.completeWithError(e);
+        }
+    }
+
+    // Event data is sent as JSON, which keeps the line breaks of the answer inside a single data line
+    private void sendEvent(SseEmitter emitter, String name, Object data) {
+        try {
+            emitter.send(SseEmitter.event().name(name).data(data, MediaType.APPLICATION_JSON));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ApiKey getRecentApiKey(List<Context> contexts) {
         String userId =  contexts.get(0).getUserId();
         User user = userRepository.findUserById(userId);
        
@@ -329,13 +480,12 @@ public class ApiController {
         if (apiKeyObject == null) {
             throw new APIError(HttpStatus.BAD_REQUEST, "No API key found for the selected API apiKeyId: " + apiKey);
         }
+        return apiKeyObject;
+    }
 
-        String result = null;
-        ApiService apiService = apiServiceRegistry.getService(apiKeyObject.getName());
-
-        result = apiService.getResponse(apiKeyObject, payload.getData(), contexts);
-
-        return ResponseEntity.ok(result);
+    // Answered with 429 and Retry-After when the user, its client or the API key is over its rate limit
+    private void acquireRateLimit(List<Context> contexts, ApiKey apiKeyObject) {
+        rateLimiter.acquire(userRepository.findUserById(contexts.get(0).getUserId()), apiKeyObject);
     }
 
     private List<Context> getContexts(HttpServletRequest request, Double credit) {
@@ -343,16 +493,16 @@ public class ApiController {
         String currentUserId = authentication.getName();
         User user = userRepository.findUserById(currentUserId);        
 
-        final Double totalCredit = credit + user.getCredit();
+        final double currentCredit = userRepository.findCredit(user.getId());
+        final Double totalCredit = credit + currentCredit;
 
         if (totalCredit > 0.10 && !user.getRoles().contains("ROLE_APIKEY_MANAGER")) {
             throw new APIError(HttpStatus.BAD_REQUEST,
                     "Donate a few dollars. Credit is overlimit for the current user ID: " + user.getName() + " credit: "
-                            + user.getCredit());
+                            + currentCredit);
         }
         if (credit > 0) {
-            user.setCredit(totalCredit);
-            userRepository.saveUser(user);
+            userRepository.addCredit(user.getId(), credit);
         }
         String sessionId = request.getSession(false) != null ? request.getSession().getId() : "No session";
         // Retrieve context documents associated with the user and session
@@ -366,6 +516,8 @@ public class ApiController {
             context.setAssistantRoleMessage(DEFAULT_ASSISTANCE_ROLE_MESSAGE);
             contexts = new ArrayList<Context>();
             contexts.add(context);
+            // Keep the default context for the next requests of the session
+            userService.updateUsersContexts(user, context);
         }
 
         return contexts;
@@ -0,0 +1,231 @@
+package com.bloberryconsulting.aicontextsbridge.controller;
+
+import static com.bloberryconsulting.aicontextsbridge.security.SecurityConfiguration.ROLE_SITE_ADMINISTRATOR_DESCR;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.bloberryconsulting.aicontextsbridge.config.HazelcastConfig;
+import com.bloberryconsulting.aicontextsbridge.repository.UserRepository;
+import com.bloberryconsulting.aicontextsbridge.service.HazelcastService;
+import com.bloberryconsulting.aicontextsbridge.service.PinnedThreadMonitor;
+import com.bloberryconsulting.aicontextsbridge.service.ResponseCache;
+import com.bloberryconsulting.aicontextsbridge.service.SemanticCache;
+import com.bloberryconsulting.aicontextsbridge.service.SingleFlight;
+import com.bloberryconsulting.aicontextsbridge.service.ratelimit.RateLimiter;
+import com.bloberryconsulting.aicontextsbridge.service.routing.ApiKeyRouter;
+import com.hazelcast.map.LocalMapStats;
+import com.hazelcast.nearcache.NearCacheStats;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+
+@RestController
+@RequestMapping("/metrics")
+@CrossOrigin(origins = "${ui.uri}", allowCredentials = "true")
+public class MetricsController {
+    private static final String[] NEAR_CACHED_MAPS = { UserRepository.CUSTOMER_MAP, UserRepository.API_KEYS_MAP,
+            HazelcastConfig.ROLES_MAP };
+
+    private final HazelcastService hazelcastService;
+    private final ResponseCache responseCache;
+    private final SemanticCache semanticCache;
+    private final PinnedThreadMonitor pinnedThreadMonitor;
+    private final ApiKeyRouter apiKeyRouter;
+    private final RateLimiter rateLimiter;
+    private final SingleFlight singleFlight;
+
+    public MetricsController(HazelcastService hazelcastService, ResponseCache responseCache,
+            SemanticCache semanticCache, PinnedThreadMonitor pinnedThreadMonitor, ApiKeyRouter apiKeyRouter,
+            RateLimiter rateLimiter, SingleFlight singleFlight) {
+        this.hazelcastService = hazelcastService;
+        this.responseCache = responseCache;
+        this.semanticCache = semanticCache;
+        this.pinnedThreadMonitor = pinnedThreadMonitor;
+        this.apiKeyRouter = apiKeyRouter;
+        this.rateLimiter = rateLimiter;
+        this.singleFlight = singleFlight;
+    }
+
+    @PreAuthorize("hasAuthority('ROLE_SITE_ADMINISTRATOR')")
+    @Operation(
+        summary = "Near cache statistics",
+        description = "Returns the near cache hits, misses and evictions of this member for every near cached map."
+                + ROLE_SITE_ADMINISTRATOR_DESCR,
+        security = @SecurityRequirement(name = "oauth2scheme"),
+        tags = {"Metrics"}
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Successfully retrieved near cache statistics",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "401", description = "User is not authenticated",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "403", description = "User is not authorized to access this resource",
+                     content = @Content(mediaType = "application/json"))
+    })
+    @GetMapping("/nearcache")
+    public ResponseEntity<Map<String, Map<String, Object>>> getNearCacheStats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        for (String mapName : NEAR_CACHED_MAPS) {
+            NearCacheStats nearCacheStats = hazelcastService.getMap(mapName).getLocalMapStats().getNearCacheStats();
+            if (nearCacheStats == null) {
+                continue;
+            }
+            Map<String, Object> mapStats = new LinkedHashMap<>();
+            mapStats.put("hits", nearCacheStats.getHits());
+            mapStats.put("misses", nearCacheStats.getMisses());
+            mapStats.put("ratio", nearCacheStats.getRatio());
+            mapStats.put("ownedEntryCount", nearCacheStats.getOwnedEntryCount());
+            mapStats.put("ownedEntryMemoryCost", nearCacheStats.getOwnedEntryMemoryCost());
+            mapStats.put("evictions", nearCacheStats.getEvictions());
+            mapStats.put("expirations", nearCacheStats.getExpirations());
+            mapStats.put("invalidations", nearCacheStats.getInvalidations());
+            stats.put(mapName, mapStats);
+        }
+        return ResponseEntity.ok(stats);
+    }
+
+    @PreAuthorize("hasAuthority('ROLE_SITE_ADMINISTRATOR')")
+    @Operation(
+        summary = "Response cache statistics",
+        description = "Returns the response cache hits, misses and hit ratio of the lookups of this member, and the"
+                + " entries of the cache it owns." + ROLE_SITE_ADMINISTRATOR_DESCR,
+        security = @SecurityRequirement(name = "oauth2scheme"),
+        tags = {"Metrics"}
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Successfully retrieved response cache statistics",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "401", description = "User is not authenticated",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "403", description = "User is not authorized to access this resource",
+                     content = @Content(mediaType = "application/json"))
+    })
+    @GetMapping("/responsecache")
+    public ResponseEntity<Map<String, Object>> getResponseCacheStats() {
+        LocalMapStats mapStats = responseCache.getMap().getLocalMapStats();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", responseCache.getHits());
+        stats.put("misses", responseCache.getMisses());
+        stats.put("ratio", responseCache.getHitRatio());
+        stats.put("ownedEntryCount", mapStats.getOwnedEntryCount());
+        stats.put("ownedEntryMemoryCost", mapStats.getOwnedEntryMemoryCost());
+        return ResponseEntity.ok(stats);
+    }
+
+    @PreAuthorize("hasAuthority('ROLE_SITE_ADMINISTRATOR')")
+    @Operation(
+        summary = "Semantic cache statistics",
+        description = "Returns the semantic cache hits and misses of this member, the upstream calls and tokens"
+                + " they avoided, and its evictions, entries and memory." + ROLE_SITE_ADMINISTRATOR_DESCR,
+        security = @SecurityRequirement(name = "oauth2scheme"),
+        tags = {"Metrics"}
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Successfully retrieved semantic cache statistics",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "401", description = "User is not authenticated",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "403", description = "User is not authorized to access this resource",
+                     content = @Content(mediaType = "application/json"))
+    })
+    @GetMapping("/semanticcache")
+    public ResponseEntity<Map<String, Object>> getSemanticCacheStats() {
+        return ResponseEntity.ok(semanticCache.stats());
+    }
+
+    @PreAuthorize("hasAuthority('ROLE_SITE_ADMINISTRATOR')")
+    @Operation(
+        summary = "Pinned virtual thread statistics",
+        description = "Returns the virtual threads of this member pinned to their carrier thread while blocking,"
+                + " per blocking site, when running on virtual threads." + ROLE_SITE_ADMINISTRATOR_DESCR,
+        security = @SecurityRequirement(name = "oauth2scheme"),
+        tags = {"Metrics"}
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Successfully retrieved pinned thread statistics",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "401", description = "User is not authenticated",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "403", description = "User is not authorized to access this resource",
+                     content = @Content(mediaType = "application/json"))
+    })
+    @GetMapping("/pinning")
+    public ResponseEntity<Map<String, Object>> getPinnedThreadStats() {
+        return ResponseEntity.ok(pinnedThreadMonitor.stats());
+    }
+
+    @PreAuthorize("hasAuthority('ROLE_SITE_ADMINISTRATOR')")
+    @Operation(
+        summary = "API key routing statistics",
+        description = "Returns the requests of this member sent again with another key of the pool of their key,"
+                + " and its requests in flight per key." + ROLE_SITE_ADMINISTRATOR_DESCR,
+        security = @SecurityRequirement(name = "oauth2scheme"),
+        tags = {"Metrics"}
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Successfully retrieved routing statistics",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "401", description = "User is not authenticated",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "403", description = "User is not authorized to access this resource",
+                     content = @Content(mediaType = "application/json"))
+    })
+    @GetMapping("/routing")
+    public ResponseEntity<Map<String, Object>> getRoutingStats() {
+        return ResponseEntity.ok(apiKeyRouter.stats());
+    }
+
+    @PreAuthorize("hasAuthority('ROLE_SITE_ADMINISTRATOR')")
+    @Operation(
+        summary = "Rate limit statistics",
+        description = "Returns the requests of this member allowed and rejected by the rate limits, and the share"
+                + " of the permits taken without a call to the cluster." + ROLE_SITE_ADMINISTRATOR_DESCR,
+        security = @SecurityRequirement(name = "oauth2scheme"),
+        tags = {"Metrics"}
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Successfully retrieved rate limit statistics",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "401", description = "User is not authenticated",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "403", description = "User is not authorized to access this resource",
+                     content = @Content(mediaType = "application/json"))
+    })
+    @GetMapping("/rate-limits")
+    public ResponseEntity<Map<String, Object>> getRateLimitStats() {
+        return ResponseEntity.ok(rateLimiter.stats());
+    }
+
+    @PreAuthorize("hasAuthority('ROLE_SITE_ADMINISTRATOR')")
+    @Operation(
+        summary = "Request coalescing statistics",
+        description = "Returns the calls of this member led, the identical requests that waited for a call in"
+                + " flight on this member or on another one, and the followers that called the API themselves."
+                + ROLE_SITE_ADMINISTRATOR_DESCR,
+        security = @SecurityRequirement(name = "oauth2scheme"),
+        tags = {"Metrics"}
+    )
+    @ApiResponses(value = {
+        @ApiResponse(responseCode = "200", description = "Successfully retrieved request coalescing statistics",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "401", description = "User is not authenticated",
+                     content = @Content(mediaType = "application/json")),
+        @ApiResponse(responseCode = "403", description = "User is not authorized to access this resource",
+                     content = @Content(mediaType = "application/json"))
+    })
+    @GetMapping("/single-flight")
+    public ResponseEntity<Map<String, Object>> getSingleFlightStats() {
+        return ResponseEntity.ok(singleFlight.stats());
+    }
+}
@@ -16,6 +16,8 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 import javax.annotation.PostConstruct;
 
 @RestController
@@ -27,6 +29,9 @@ public class StripeWebhookController {
     @Value("${stripe.secret.key}")
     private String stripeSecretKey;
     private UserService userService;
+    // The events are processed one at a time. Not synchronized: a virtual thread blocking on the
+    // credit update inside a monitor would pin its carrier thread
+    private final ReentrantLock eventLock = new ReentrantLock();
 
     public StripeWebhookController(UserService userService) {
         this.userService = userService;
@@ -40,7 +45,8 @@ public class StripeWebhookController {
 
 
     @PostMapping("/stripepayment/webhook")
-        public synchronized ResponseEntity<String> processStripeEvent(@RequestBody String payload, @RequestHeader("Stripe-Signature") String sigHeader) {
+        public ResponseEntity<String> processStripeEvent(@RequestBody String payload, @RequestHeader("Stripe-Signature") String sigHeader) {
+            eventLock.lock();
             try {
                 Event event = Webhook.constructEvent(payload, sigHeader, webhookSecret);
 
@@ -61,6 +67,8 @@ public class StripeWebhookController {
             } catch (StripeException | IllegalStateException e) {
                 log.error("Error processing Stripe event.", e);
                 return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error processing Stripe event.");
+            } finally {
+                eventLock.unlock();
             }
         }
     private void handleSession(JSONObject sessionJson) {
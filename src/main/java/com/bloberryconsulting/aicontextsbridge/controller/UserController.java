@@ -23,6 +23,7 @@ import com.bloberryconsulting.aicontextsbridge.model.Role;
 import com.bloberryconsulting.aicontextsbridge.model.User;
 import com.bloberryconsulting.aicontextsbridge.service.AssistantService;
 import com.bloberryconsulting.aicontextsbridge.service.UserService;
+import com.bloberryconsulting.aicontextsbridge.service.retrieval.RetrievalService;
 
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -49,10 +50,13 @@ import static com.bloberryconsulting.aicontextsbridge.security.SecurityConfigura
 public class UserController {
     private final UserService userService;
     private final AssistantService assistanceService;
+    private final RetrievalService retrievalService;
 
-    public UserController(UserService userService, AssistantService assistanceService) {
+    public UserController(UserService userService, AssistantService assistanceService,
+            RetrievalService retrievalService) {
         this.userService = userService;
         this.assistanceService = assistanceService;
+        this.retrievalService = retrievalService;
     }
 
     @Operation(
@@ -255,6 +259,8 @@ public class UserController {
         context.setSessionId(sessionId);
         context.setUserId(user.getId());    
         userService.updateUsersContexts(user, context);    
+        // Chunk and index the documents now, not on the first prompt
+        retrievalService.indexContext(context);
         return ResponseEntity.ok(user);
     }
     
@@ -283,6 +289,7 @@ public ResponseEntity<User> deleteFile(
         if(!isDeleted) {
            throw new APIError(HttpStatus.EXPECTATION_FAILED, "Couldn't find file to delete:"+fileId);
         }
+        retrievalService.evictContext(user.getId(), sessionId, fileId);
         
         userService.updateUser(user);  
         return ResponseEntity.ok(user);
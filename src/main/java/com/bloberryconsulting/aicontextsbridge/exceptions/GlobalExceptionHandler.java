@@ -1,5 +1,6 @@
 package com.bloberryconsulting.aicontextsbridge.exceptions;
 
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -38,6 +39,19 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(errorResponse.toString(), HttpStatus.NOT_FOUND);
     }
 
+    @ExceptionHandler(RateLimitExceededError.class)
+    public ResponseEntity<String> handleRateLimitExceededError(RateLimitExceededError ex) {
+        JSONObject errorResponse = new JSONObject();
+        errorResponse.put("message", ex.getLocalizedMessage());
+        errorResponse.put("type", "rate_limit_exceeded");
+        errorResponse.put("code", ex.getStatusCode());
+        errorResponse.put("recomendation", "Please retry after the delay given in the Retry-After header.");
+
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(ex.getRetryAfterSeconds()))
+                .body(errorResponse.toString());
+    }
+
     @ExceptionHandler(APIError.class)
     public ResponseEntity<String> handleAPIError(APIError ex) {
         JSONObject errorResponse = new JSONObject();
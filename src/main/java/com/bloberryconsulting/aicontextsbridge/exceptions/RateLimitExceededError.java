@@ -0,0 +1,21 @@
+package com.bloberryconsulting.aicontextsbridge.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+/**
+ * A request refused by a rate limit of this service, answered with 429 and a {@code Retry-After}
+ * header by GlobalExceptionHandler.
+ */
+public class RateLimitExceededError extends APIError {
+
+    private final long retryAfterSeconds;
+
+    public RateLimitExceededError(String message, long retryAfterSeconds) {
+        super(HttpStatus.TOO_MANY_REQUESTS, message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
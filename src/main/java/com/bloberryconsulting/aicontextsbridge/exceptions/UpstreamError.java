@@ -0,0 +1,24 @@
+package com.bloberryconsulting.aicontextsbridge.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+/**
+ * An error response of an upstream API, or a failure to reach it, as opposed to an error of this
+ * service: the request may succeed with another API key.
+ */
+public class UpstreamError extends APIError {
+
+    private final long retryAfterMillis;
+
+    /**
+     * @param retryAfterMillis The wait asked by the API before the next request, 0 if it asked none.
+     */
+    public UpstreamError(HttpStatus status, String message, long retryAfterMillis) {
+        super(status, message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -3,14 +3,13 @@ package com.bloberryconsulting.aicontextsbridge.model;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.io.Serializable;
 
 import lombok.AllArgsConstructor;
 
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
-public class ApiKey  implements Serializable {
+public class ApiKey {
     private String keyId;
     private String keyValue;
     private String name;
@@ -24,4 +23,7 @@ public class ApiKey  implements Serializable {
     private boolean disabled; //Is it disabled if true will be disabled and showen as aka default key
     private String model; // Model name
     private String description; // Description
+    private boolean responseCacheEnabled; // Whether identical requests are answered from the response cache
+    private int responseCacheTtlSeconds; // Time to live of the cached answers, 0 for the default
+    private boolean semanticCacheEnabled; // Whether paraphrases of answered prompts get their cached answer
 }
\ No newline at end of file
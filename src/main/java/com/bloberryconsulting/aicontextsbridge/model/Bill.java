@@ -3,14 +3,13 @@ package com.bloberryconsulting.aicontextsbridge.model;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.io.Serializable;
 
 import lombok.AllArgsConstructor;
 
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
-public class Bill implements Serializable {
+public class Bill {
     private String userId;
     private double totalCost;
     private double totalTax = 0.05;
@@ -0,0 +1,143 @@
+package com.bloberryconsulting.aicontextsbridge.model;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.json.JSONObject;
+
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.TokenCounter;
+
+/**
+ * A message of a conversation. The number of tokens the message takes in the prompt is kept
+ * with the name of the encoding it was counted with, so a message is tokenized only once as
+ * long as the model family of the conversation doesn't change.
+ *
+ * A user message also records the fingerprints of the documents injected in its content, so a
+ * conversation knows which documents the model has seen without searching the messages.
+ */
+public final class ChatMessage {
+    public static final String SYSTEM = "system";
+    public static final String USER = "user";
+    public static final String ASSISTANT = "assistant";
+
+    private static final long[] NO_DOCUMENTS = new long[0];
+
+    private final String role;
+    private final String content;
+    private final long[] documents; // fingerprints of the documents injected in the content
+    private int tokens;
+    private String encoding; // null until the message is counted
+
+    public ChatMessage(String role, String content) {
+        this(role, content, NO_DOCUMENTS);
+    }
+
+    /**
+     * @param documents The fingerprints of the documents injected in the content, see {@link #fingerprint(String)}.
+     */
+    public ChatMessage(String role, String content, long[] documents) {
+        this(role, content, documents, 0, null);
+    }
+
+    ChatMessage(String role, String content, long[] documents, int tokens, String encoding) {
+        this.role = role != null ? role : "";
+        this.content = content != null ? content : "";
+        this.documents = documents != null ? documents : NO_DOCUMENTS;
+        this.tokens = tokens;
+        this.encoding = encoding;
+    }
+
+    /**
+     * Creates a message and counts its tokens.
+     *
+     * @param role The role of the message: system, user or assistant.
+     * @param content The content of the message.
+     * @param tokenCounter The token counter.
+     * @param model The model the message is sent to.
+     */
+    public static ChatMessage of(String role, String content, TokenCounter tokenCounter, String model) {
+        ChatMessage message = new ChatMessage(role, content);
+        message.countTokens(tokenCounter, model);
+        return message;
+    }
+
+    /**
+     * Parses a message stored as {@code {"role": ..., "content": ...}}.
+     */
+    public static ChatMessage fromJson(String json) {
+        JSONObject message = new JSONObject(json);
+        return new ChatMessage(message.optString("role"), message.optString("content"));
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * @return The fingerprints of the documents injected in the content, empty if none.
+     */
+    public long[] getDocuments() {
+        return documents;
+    }
+
+    /**
+     * The fingerprint of a document: the first 64 bits of the SHA-256 of its content, so documents
+     * are told apart by content and not by name, and collisions are negligible.
+     *
+     * @param document The content of the document.
+     * @return The fingerprint.
+     */
+    public static long fingerprint(String document) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(document.getBytes(StandardCharsets.UTF_8));
+            long fingerprint = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                fingerprint = (fingerprint << 8) | (hash[i] & 0xFF);
+            }
+            return fingerprint;
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Counts the tokens of the message in the prompt, including the tokens wrapping it.
+     * The count is cached, the message is counted again only for a model with another encoding.
+     *
+     * @param tokenCounter The token counter.
+     * @param model The model the message is sent to.
+     * @return The number of tokens.
+     */
+    public int countTokens(TokenCounter tokenCounter, String model) {
+        String name = tokenCounter.encodingForModel(model).getName();
+        if (!name.equals(encoding)) {
+            tokens = tokenCounter.countMessageTokens(role, content, model);
+            encoding = name;
+        }
+        return tokens;
+    }
+
+    // The cached count, valid for getEncoding() only
+    int getTokens() {
+        return tokens;
+    }
+
+    String getEncoding() {
+        return encoding;
+    }
+
+    public JSONObject toJson() {
+        return new JSONObject().put("role", role).put("content", content);
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+}
@@ -3,14 +3,13 @@ package com.bloberryconsulting.aicontextsbridge.model;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.io.Serializable;
 
 import lombok.AllArgsConstructor;
 
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
-public class Client implements Serializable {
+public class Client {
     private String Id;
     private String name;
     private String description; // This can be a JSON string or any format you prefer
@@ -4,7 +4,6 @@ import java.util.Date;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.io.Serializable;
 import lombok.AllArgsConstructor;
 
 @Data
@@ -12,13 +11,14 @@ import lombok.AllArgsConstructor;
 @AllArgsConstructor
 
 
-public class Context implements Serializable, Cloneable {
+public class Context implements Cloneable {
     private String sessionId;
     private String name;
     private Date lastUsed;
     private String userId;
     private String[] documents;
-    private String conversationHistory; // serialized JSONArray
+    // loaded on demand from the history map and never stored with the user
+    private transient ConversationHistory conversationHistory;
     private String assistantRoleMessage;
 
     // Existing constructors, getters, setters, and other methods...
@@ -30,7 +30,7 @@ public class Context implements Serializable, Cloneable {
         this.lastUsed = (other.lastUsed != null) ? (Date) other.lastUsed.clone() : null;
         this.userId = other.userId;
         this.documents = (other.documents != null) ? other.documents.clone() : null;
-        // For JSONArray, we just copy the reference. Deep copy is tricky and depends on your needs.
+        // The history is shared, it is loaded per request and only appended to
         this.conversationHistory = other.conversationHistory;
         this.assistantRoleMessage = other.assistantRoleMessage;
     }
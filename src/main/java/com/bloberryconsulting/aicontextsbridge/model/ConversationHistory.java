@@ -0,0 +1,423 @@
+package com.bloberryconsulting.aicontextsbridge.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.json.JSONArray;
+
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.TokenCounter;
+
+/**
+ * The messages of a conversation, oldest first, with the running token count of the messages.
+ *
+ * Appending a message is amortized O(1) and keeps the count up to date from the count cached in
+ * the message. Trimming to a token budget drops messages from the head in O(removed): the array
+ * is only compacted when it is full and the head has passed its middle. The fingerprints of the
+ * documents injected in the messages are counted the same way, so whether the model has seen a
+ * document is known in O(1).
+ *
+ * A history is stored as a compact binary encoding, a version byte followed by one record per
+ * message: {@code role, encoding, varint tokens, varint length, UTF-8 content, varint documents,
+ * 64 bit fingerprints}. Version 1 records have no documents. Records can be appended to an encoded
+ * history without decoding it, see {@link #appendEncoded(byte[], byte[], int)}.
+ */
+public class ConversationHistory implements Iterable<ChatMessage> {
+    private static final byte FORMAT_VERSION = 2;
+    private static final byte FORMAT_VERSION_WITHOUT_DOCUMENTS = 1;
+    // Index 0 is written for a role or encoding not in the table, the role is then written out
+    private static final String[] ROLES = { null, ChatMessage.SYSTEM, ChatMessage.USER, ChatMessage.ASSISTANT };
+    private static final String[] ENCODINGS = { null, "cl100k_base", "o200k_base" };
+    private static final int INITIAL_CAPACITY = 16;
+
+    private ChatMessage[] messages = new ChatMessage[INITIAL_CAPACITY];
+    private int head; // first message
+    private int tail; // one past the last message
+    private int tokenCount;
+    private String encoding; // encoding of tokenCount, null if it must be counted again
+    private final Map<Long, Integer> documents = new HashMap<>(); // fingerprint -> messages injecting it
+
+    public int size() {
+        return tail - head;
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * @param index The index of the message, 0 is the oldest one.
+     */
+    public ChatMessage get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size());
+        }
+        return messages[head + index];
+    }
+
+    /**
+     * Appends a message. Its cached token count is added to the running count when it was counted
+     * with the same encoding, otherwise the history is counted again on the next {@link #countTokens}.
+     */
+    public void append(ChatMessage message) {
+        if (tail == messages.length) {
+            if (head >= messages.length / 2) {
+                System.arraycopy(messages, head, messages, 0, tail - head);
+                Arrays.fill(messages, tail - head, tail, null);
+                tail -= head;
+                head = 0;
+            } else {
+                messages = Arrays.copyOf(messages, messages.length * 2);
+            }
+        }
+        if (isEmpty()) {
+            encoding = message.getEncoding();
+            tokenCount = 0;
+        }
+        messages[tail++] = message;
+        for (long document : message.getDocuments()) {
+            documents.merge(document, 1, Integer::sum);
+        }
+        if (encoding != null && encoding.equals(message.getEncoding())) {
+            tokenCount += message.getTokens();
+        } else {
+            encoding = null;
+        }
+    }
+
+    /**
+     * Counts the tokens of all messages for a model, including the tokens wrapping every message.
+     * Only the messages not yet counted with the encoding of the model are tokenized.
+     *
+     * @param tokenCounter The token counter.
+     * @param model The model the messages are sent to.
+     * @return The number of tokens.
+     */
+    public int countTokens(TokenCounter tokenCounter, String model) {
+        String name = tokenCounter.encodingForModel(model).getName();
+        if (!name.equals(encoding)) {
+            int count = 0;
+            for (int i = head; i < tail; i++) {
+                count += messages[i].countTokens(tokenCounter, model);
+            }
+            tokenCount = count;
+            encoding = name;
+        }
+        return tokenCount;
+    }
+
+    /**
+     * Drops the oldest messages until the history fits in a token budget.
+     *
+     * @param maxTokens The token budget of the history.
+     * @param tokenCounter The token counter.
+     * @param model The model the messages are sent to.
+     * @return The number of dropped messages.
+     */
+    public int trimToTokens(int maxTokens, TokenCounter tokenCounter, String model) {
+        countTokens(tokenCounter, model);
+        int removed = 0;
+        while (head < tail && tokenCount > maxTokens) {
+            tokenCount -= messages[head].getTokens();
+            for (long document : messages[head].getDocuments()) {
+                documents.computeIfPresent(document, (fingerprint, count) -> count > 1 ? count - 1 : null);
+            }
+            messages[head++] = null;
+            removed++;
+        }
+        if (head == tail) {
+            head = 0;
+            tail = 0;
+        }
+        return removed;
+    }
+
+    /**
+     * @param fingerprint The fingerprint of a document, see {@link ChatMessage#fingerprint(String)}.
+     * @return Whether a message of the history injected the document.
+     */
+    public boolean containsDocument(long fingerprint) {
+        return documents.containsKey(fingerprint);
+    }
+
+    /**
+     * @return The messages as {@code {"role": ..., "content": ...}} objects, ready for a chat request.
+     */
+    public JSONArray toJsonArray() {
+        JSONArray array = new JSONArray();
+        for (int i = head; i < tail; i++) {
+            array.put(messages[i].toJson());
+        }
+        return array;
+    }
+
+    @Override
+    public Iterator<ChatMessage> iterator() {
+        return new Iterator<ChatMessage>() {
+            private int next = head;
+
+            @Override
+            public boolean hasNext() {
+                return next < tail;
+            }
+
+            @Override
+            public ChatMessage next() {
+                if (next >= tail) {
+                    throw new NoSuchElementException();
+                }
+                return messages[next++];
+            }
+        };
+    }
+
+    /**
+     * @return The binary encoding of the history.
+     */
+    public byte[] toBytes() {
+        return encode(Arrays.copyOfRange(messages, head, tail));
+    }
+
+    /**
+     * Encodes messages in the binary format of a history.
+     */
+    public static byte[] encode(ChatMessage... messages) {
+        Writer writer = new Writer(1 + messages.length * 64);
+        writer.writeByte(FORMAT_VERSION);
+        for (ChatMessage message : messages) {
+            int role = indexOf(ROLES, message.getRole());
+            int encoding = indexOf(ENCODINGS, message.getEncoding());
+            writer.writeByte(role);
+            writer.writeByte(encoding);
+            writer.writeVarint(encoding != 0 ? message.getTokens() : 0);
+            if (role == 0) {
+                writer.writeString(message.getRole());
+            }
+            writer.writeString(message.getContent());
+            writer.writeVarint(message.getDocuments().length);
+            for (long document : message.getDocuments()) {
+                writer.writeLong(document);
+            }
+        }
+        return writer.toBytes();
+    }
+
+    /**
+     * Decodes a history encoded by {@link #toBytes()} or {@link #encode(ChatMessage...)}.
+     */
+    public static ConversationHistory fromBytes(byte[] bytes) {
+        ConversationHistory history = new ConversationHistory();
+        Reader reader = new Reader(bytes);
+        while (reader.hasRemaining()) {
+            history.append(reader.readMessage());
+        }
+        return history;
+    }
+
+    /**
+     * Converts a history stored as JSON messages, the format used before the binary encoding.
+     */
+    public static ConversationHistory fromJsonMessages(List<String> messages) {
+        ConversationHistory history = new ConversationHistory();
+        for (String message : messages) {
+            history.append(ChatMessage.fromJson(message));
+        }
+        return history;
+    }
+
+    /**
+     * Appends encoded messages to an encoded history, keeping at most maxMessages of the newest
+     * messages. The messages are copied as they are, only the headers of the dropped ones are read.
+     *
+     * @param history The encoded history, may be null.
+     * @param messages The encoded messages to append.
+     * @param maxMessages The maximum number of messages to keep.
+     * @return The encoded history.
+     */
+    public static byte[] appendEncoded(byte[] history, byte[] messages, int maxMessages) {
+        if (history == null || history.length <= 1) {
+            history = new byte[] { FORMAT_VERSION };
+        } else if (history[0] != FORMAT_VERSION) {
+            // Records of different versions can't be mixed, an older history is encoded again once
+            history = fromBytes(history).toBytes();
+        }
+        int stored = countMessages(history);
+        int excess = stored + countMessages(messages) - maxMessages;
+        Reader reader = new Reader(history);
+        for (int i = 0; i < excess && reader.hasRemaining(); i++) {
+            reader.skipMessage();
+        }
+        int keptFrom = reader.position;
+        // More new messages than maxMessages, the oldest of them are dropped too
+        Reader newReader = new Reader(messages);
+        for (int i = stored; i < excess && newReader.hasRemaining(); i++) {
+            newReader.skipMessage();
+        }
+        int newFrom = newReader.position;
+
+        int keptLength = history.length - keptFrom;
+        byte[] result = new byte[1 + keptLength + messages.length - newFrom];
+        result[0] = FORMAT_VERSION;
+        System.arraycopy(history, keptFrom, result, 1, keptLength);
+        System.arraycopy(messages, newFrom, result, 1 + keptLength, messages.length - newFrom);
+        return result;
+    }
+
+    /**
+     * @return The number of messages of an encoded history.
+     */
+    public static int countMessages(byte[] history) {
+        if (history == null) {
+            return 0;
+        }
+        Reader reader = new Reader(history);
+        int count = 0;
+        while (reader.hasRemaining()) {
+            reader.skipMessage();
+            count++;
+        }
+        return count;
+    }
+
+    private static int indexOf(String[] table, String value) {
+        for (int i = 1; i < table.length; i++) {
+            if (table[i].equals(value)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static final class Writer {
+        private byte[] bytes;
+        private int length;
+
+        Writer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) value;
+        }
+
+        void writeVarint(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(Long.BYTES);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private final boolean withDocuments;
+        private int position;
+
+        Reader(byte[] bytes) {
+            if (bytes.length == 0 || (bytes[0] != FORMAT_VERSION && bytes[0] != FORMAT_VERSION_WITHOUT_DOCUMENTS)) {
+                throw new IllegalArgumentException("Unsupported conversation history format "
+                        + (bytes.length == 0 ? "(empty)" : String.valueOf(bytes[0])));
+            }
+            this.bytes = bytes;
+            this.withDocuments = bytes[0] != FORMAT_VERSION_WITHOUT_DOCUMENTS;
+            this.position = 1;
+        }
+
+        boolean hasRemaining() {
+            return position < bytes.length;
+        }
+
+        ChatMessage readMessage() {
+            int role = bytes[position++];
+            int encoding = bytes[position++];
+            int tokens = readVarint();
+            String roleName = role != 0 ? ROLES[role] : readString();
+            String content = readString();
+            long[] documents = null;
+            if (withDocuments) {
+                documents = new long[readVarint()];
+                for (int i = 0; i < documents.length; i++) {
+                    documents[i] = readLong();
+                }
+            }
+            return new ChatMessage(roleName, content, documents, tokens, ENCODINGS[encoding]);
+        }
+
+        void skipMessage() {
+            int role = bytes[position];
+            position += 2;
+            readVarint();
+            if (role == 0) {
+                skipString();
+            }
+            skipString();
+            if (withDocuments) {
+                int count = readVarint();
+                position += count * Long.BYTES;
+            }
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = bytes[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        private long readLong() {
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                value = (value << 8) | (bytes[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        private void skipString() {
+            int length = readVarint();
+            position += length;
+        }
+
+        private String readString() {
+            int length = readVarint();
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.bloberryconsulting.aicontextsbridge.model;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.io.Serializable;
 
 import lombok.AllArgsConstructor;
 
@@ -13,7 +12,7 @@ import lombok.AllArgsConstructor;
 /**
  *  Context used to story some data related to user or client (company) between REST APIs calls
  */
-public class ProfileDetails implements Serializable {
+public class ProfileDetails {
     private String Id;
     private String name;
     private String profileData; // This can be a JSON string or any format you prefer
@@ -4,7 +4,6 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
 
-import java.io.Serializable;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Map;
@@ -13,7 +12,7 @@ import java.util.Map;
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
-public class User implements Serializable, Cloneable {
+public class User implements Cloneable {
     private String id; // Unique identifier
     private String name; // User's name
     private String email; // User's email
@@ -23,7 +22,7 @@ public class User implements Serializable, Cloneable {
     private String clientId; // clientId link to client (company profile) ( many Users to one Client)
     private Map<String,Context> contexts; // User's contexts names <fileNAme>:<context>
     private HashSet<String> roles; // User's roles as strings
-    private Double credit = 0.0; // User's credit
+    private Double credit = 0.0; // User's credit, the credit ledger (UserRepository.CREDIT_MAP) is the source of truth
 
     @Override
     public User clone() {
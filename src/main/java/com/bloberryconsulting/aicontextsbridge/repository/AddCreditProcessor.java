@@ -0,0 +1,29 @@
+package com.bloberryconsulting.aicontextsbridge.repository;
+
+import java.util.Map;
+
+import com.hazelcast.map.EntryProcessor;
+
+/**
+ * Adds an amount of micro-cents to a user's credit entry on the member that owns the key.
+ * The update is atomic per key, so concurrent requests of the same user don't lose charges,
+ * and only the delta and the resulting balance travel over the wire.
+ */
+public class AddCreditProcessor implements EntryProcessor<String, Long, Long> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long microCents;
+
+    public AddCreditProcessor(long microCents) {
+        this.microCents = microCents;
+    }
+
+    @Override
+    public Long process(Map.Entry<String, Long> entry) {
+        Long current = entry.getValue();
+        long updated = (current != null ? current : 0L) + microCents;
+        entry.setValue(updated);
+        return updated;
+    }
+}
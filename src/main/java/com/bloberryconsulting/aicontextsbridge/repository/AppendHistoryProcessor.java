@@ -0,0 +1,45 @@
+package com.bloberryconsulting.aicontextsbridge.repository;
+
+import java.util.List;
+import java.util.Map;
+
+import com.bloberryconsulting.aicontextsbridge.model.ConversationHistory;
+import com.hazelcast.map.EntryProcessor;
+
+/**
+ * Appends messages to a conversation history entry on the member that owns the key.
+ * Only the new messages travel over the wire; the stored history is never read back
+ * by the caller. The oldest messages are dropped once the history exceeds the cap.
+ *
+ * The history is stored in the binary encoding of {@link ConversationHistory}, the new
+ * messages are appended to it without decoding the stored ones. A history stored as a
+ * list of JSON messages by a previous version is converted on its first append.
+ */
+public class AppendHistoryProcessor implements EntryProcessor<String, Object, Integer> {
+
+    private static final long serialVersionUID = 2L;
+
+    private final byte[] messages;
+    private final int maxMessages;
+
+    /**
+     * @param maxMessages The maximum number of messages to keep.
+     * @param messages The messages to append, encoded by {@link ConversationHistory#encode}.
+     */
+    public AppendHistoryProcessor(int maxMessages, byte[] messages) {
+        this.messages = messages;
+        this.maxMessages = maxMessages;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Integer process(Map.Entry<String, Object> entry) {
+        Object stored = entry.getValue();
+        byte[] history = stored instanceof List
+                ? ConversationHistory.fromJsonMessages((List<String>) stored).toBytes()
+                : (byte[]) stored;
+        history = ConversationHistory.appendEncoded(history, messages, maxMessages);
+        entry.setValue(history);
+        return ConversationHistory.countMessages(history);
+    }
+}
@@ -0,0 +1,311 @@
+package com.bloberryconsulting.aicontextsbridge.repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bloberryconsulting.aicontextsbridge.service.MapEntryCodec;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.MapLoaderLifecycleSupport;
+import com.hazelcast.map.MapStore;
+
+/**
+ * Persists a Hazelcast map to a local append-only log file, {@code <map name>.log}.
+ *
+ * Every store or delete appends a record {@code length, CRC32, operation, key, value}; the value
+ * is encoded by {@link MapEntryCodec}. An in-memory index keeps the file location of the latest
+ * record of every key, so loading a key is a single positional read and loading all keys needs
+ * no read at all. The index is rebuilt by scanning the log on startup, where a torn record at the
+ * end of the file (crash during a write) is truncated and the log is compacted once more than half
+ * of it is overwritten or deleted records.
+ *
+ * Meant to be used with write-behind, so the batches of {@link #storeAll(Map)} amortize the fsync.
+ *
+ * The log is local to the member and holds the entries of the partitions the member owned when they
+ * were written, so it only restores a whole map in a single member cluster: with more members the
+ * keys are loaded from one of them and a migrated partition finds nothing in the log of its new owner.
+ * The configuration refuses persistence in a cluster of several members.
+ */
+public class LogMapStore implements MapStore<String, Object>, MapLoaderLifecycleSupport {
+
+    static final String FILE_SUFFIX = ".log";
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int RECORD_HEADER_SIZE = 8; // length, CRC32
+    private static final long COMPACTION_MIN_SIZE = 1 << 20;
+
+    private final Logger logger = LoggerFactory.getLogger(LogMapStore.class);
+    private final MapEntryCodec codec = new MapEntryCodec();
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final Path file;
+    private FileChannel channel;
+    private long liveBytes;
+
+    public LogMapStore(Path directory, String mapName) {
+        this.file = directory.resolve(mapName + FILE_SUFFIX);
+        try {
+            Files.createDirectories(directory);
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't open the map store log " + file, e);
+        }
+    }
+
+    @Override
+    public void init(HazelcastInstance hazelcastInstance, Properties properties, String mapName) {
+        // Opened by the constructor
+    }
+
+    @Override
+    public synchronized void destroy() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Can't close the map store log {}: {}", file, e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void store(String key, Object value) {
+        storeAll(Map.of(key, value));
+    }
+
+    @Override
+    public synchronized void storeAll(Map<String, Object> entries) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        Map<String, Location> locations = new HashMap<>(entries.size() * 2);
+        try {
+            long position = channel.size();
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                int offset = records.size();
+                writeRecord(records, PUT, entry.getKey(), entry.getValue());
+                locations.put(entry.getKey(), new Location(position + offset, records.size() - offset));
+            }
+            append(records);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't write to the map store log " + file, e);
+        }
+        locations.forEach(this::indexRecord);
+    }
+
+    @Override
+    public synchronized void delete(String key) {
+        deleteAll(Set.of(key));
+    }
+
+    @Override
+    public synchronized void deleteAll(Collection<String> keys) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        try {
+            for (String key : keys) {
+                writeRecord(records, DELETE, key, null);
+            }
+            append(records);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't write to the map store log " + file, e);
+        }
+        keys.forEach(this::unindexRecord);
+    }
+
+    @Override
+    public Object load(String key) {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        try {
+            DataInputStream in = readRecord(location.offset);
+            in.readByte();
+            in.readUTF();
+            return codec.readObject(in);
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Can't read key " + key + " from the map store log " + file, e);
+        }
+    }
+
+    @Override
+    public Map<String, Object> loadAll(Collection<String> keys) {
+        Map<String, Object> values = new HashMap<>(keys.size() * 2);
+        for (String key : keys) {
+            Object value = load(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public Iterable<String> loadAllKeys() {
+        // Served from the index, values are read when Hazelcast loads the partitions
+        return Set.copyOf(index.keySet());
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        long position = 0;
+        while (position < size) {
+            // Only the keys are read, the values are decoded when they are loaded
+            byte operation;
+            String key;
+            int recordSize;
+            try {
+                recordSize = recordSize(position);
+                DataInputStream in = readRecord(position);
+                operation = in.readByte();
+                key = in.readUTF();
+            } catch (IOException e) {
+                logger.warn("Map store log {} has a damaged record at offset {}, truncating {} bytes", file, position,
+                        size - position);
+                channel.truncate(position);
+                break;
+            }
+            if (operation == PUT) {
+                indexRecord(key, new Location(position, recordSize));
+            } else {
+                unindexRecord(key);
+            }
+            position += recordSize;
+        }
+        logger.info("Map store log {} opened with {} keys", file, index.size());
+
+        if (channel.size() > COMPACTION_MIN_SIZE && liveBytes < channel.size() / 2) {
+            compact();
+        }
+    }
+
+    private void compact() throws IOException {
+        long before = channel.size();
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        Map<String, Location> locations = new HashMap<>(index.size() * 2);
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                ByteBuffer record = ByteBuffer.allocate(entry.getValue().size);
+                readFully(record, entry.getValue().offset);
+                record.flip();
+                locations.put(entry.getKey(), new Location(out.position(), entry.getValue().size));
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index.putAll(locations);
+        liveBytes = channel.size();
+        logger.info("Map store log {} compacted from {} KB to {} KB", file, before / 1024, liveBytes / 1024);
+    }
+
+    private void indexRecord(String key, Location location) {
+        Location previous = index.put(key, location);
+        liveBytes += location.size - (previous != null ? previous.size : 0);
+    }
+
+    private void unindexRecord(String key) {
+        Location previous = index.remove(key);
+        liveBytes -= previous != null ? previous.size : 0;
+    }
+
+    private int recordSize(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(header, offset);
+        return RECORD_HEADER_SIZE + header.getInt(0);
+    }
+
+    private void writeRecord(ByteArrayOutputStream records, byte operation, String key, Object value)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeByte(operation);
+        out.writeUTF(key);
+        if (operation == PUT) {
+            codec.writeObject(out, value);
+        }
+        byte[] bytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        DataOutputStream header = new DataOutputStream(records);
+        header.writeInt(bytes.length);
+        header.writeInt((int) crc.getValue());
+        records.write(bytes);
+    }
+
+    private void append(ByteArrayOutputStream records) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        channel.force(false);
+    }
+
+    // Reads and verifies the record, returns its body: operation, key, value
+    private DataInputStream readRecord(long offset) throws IOException {
+        ByteBuffer record = readRecordBytes(offset);
+        return new DataInputStream(new ByteArrayInputStream(record.array(), RECORD_HEADER_SIZE,
+                record.capacity() - RECORD_HEADER_SIZE));
+    }
+
+    private ByteBuffer readRecordBytes(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(header, offset);
+        int length = header.getInt(0);
+        if (length <= 0 || offset + RECORD_HEADER_SIZE + length > channel.size()) {
+            throw new IOException("Invalid record length " + length + " at offset " + offset);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        readFully(record, offset);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        if ((int) crc.getValue() != header.getInt(4)) {
+            throw new IOException("Checksum mismatch of the record at offset " + offset);
+        }
+        record.rewind();
+        return record;
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of the map store log at offset " + position);
+            }
+            position += read;
+        }
+    }
+
+    private static class Location {
+        final long offset;
+        final int size;
+
+        Location(long offset, int size) {
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+}
@@ -2,24 +2,34 @@ package com.bloberryconsulting.aicontextsbridge.repository;
 
 import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
 import com.bloberryconsulting.aicontextsbridge.model.Bill;
+import com.bloberryconsulting.aicontextsbridge.model.ChatMessage;
 import com.bloberryconsulting.aicontextsbridge.model.Client;
+import com.bloberryconsulting.aicontextsbridge.model.ConversationHistory;
 import com.bloberryconsulting.aicontextsbridge.model.ProfileDetails;
 import com.bloberryconsulting.aicontextsbridge.model.User;
 import com.bloberryconsulting.aicontextsbridge.service.HazelcastService;
-import com.hazelcast.map.IMap;
+import com.hazelcast.query.Predicates;
 import org.springframework.stereotype.Repository;
 import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 @Repository
 public class UserRepository {
 
-    private static final String CUSTOMER_MAP = "user";
-    private static final String API_KEYS_MAP = "apiKey";
-    private static final String PROFILES_MAP = "profile";
-    private static final String CLIENT_MAP = "client";
-    private static final String BILL_MAP = "bill";
+    public static final String CUSTOMER_MAP = "user";
+    public static final String API_KEYS_MAP = "apiKey";
+    public static final String PROFILES_MAP = "profile";
+    public static final String CLIENT_MAP = "client";
+    public static final String BILL_MAP = "bill";
+    public static final String HISTORY_MAP = "history";
+    public static final String CREDIT_MAP = "credit";
+
+    // Credit is kept in the ledger as a whole number of micro-cents
+    private static final double MICRO_CENTS_PER_DOLLAR = 100_000_000d;
+
+    // Upper bound of the stored messages per context; the request itself is trimmed by tokens
+    private static final int MAX_HISTORY_MESSAGES = 200;
 
     private final HazelcastService hazelcastService;
 
@@ -104,66 +114,59 @@ public class UserRepository {
     /**
      * Retrieves all API public keys stored in the repository.
      *
-     * @return A collection of all API keys.
+     * @return A collection of all public API keys.
      */
     public Collection<ApiKey> findAllPublicApiKeys() {
-
-        Collection<ApiKey> keys = hazelcastService.retrieveAll(API_KEYS_MAP);
-        return keys.stream()
-                .filter(apiKey -> apiKey.isPublicAccessed())
-                .collect(Collectors.toList());
+        return hazelcastService.retrieveAll(API_KEYS_MAP, Predicates.equal("publicAccessed", true));
     }
 
     /**
-     * Retrieves all API keys stored in the repository.
+     * Retrieves all API keys owned by the user plus all public API keys.
      *
-     * @return A collection of all API keys.
+     * @return A collection of API keys.
      */
     public Collection<ApiKey> findApiKeysByUserId(String userId) {
-
-        Collection<ApiKey> keys = hazelcastService.retrieveAll(API_KEYS_MAP);
-        return keys.stream()
-                .filter(apiKey -> userId.equals(apiKey.getUserId()) || apiKey.isPublicAccessed())
-                .collect(Collectors.toList());
+        return hazelcastService.retrieveAll(API_KEYS_MAP,
+                Predicates.or(Predicates.equal("userId", userId), Predicates.equal("publicAccessed", true)));
     }
 
     public Optional<ApiKey> findApiKeysByModel(String modelName) {
-
-        Collection<ApiKey> keys = hazelcastService.retrieveAll(API_KEYS_MAP);
-        return keys.stream()
-                .filter(apiKey -> modelName.equals(apiKey.getModel()))
-                .findFirst();
+        Collection<ApiKey> keys = hazelcastService.retrieveAll(API_KEYS_MAP, Predicates.equal("model", modelName));
+        return keys.stream().findFirst();
     }
 
-    // Profile Details specific methods
-
     /**
-     * Retrieves all profiles stored in the repository.
+     * Retrieves the API keys of an owner for a model.
+     *
+     * @param userId The ID of the owner of the keys.
+     * @param modelName The model of the keys.
+     * @return A collection of API keys.
      */
-    private Collection<ProfileDetails> getAllDetailProfiles() {
-        return hazelcastService.retrieveAll(CUSTOMER_MAP);
+    public Collection<ApiKey> findApiKeysByOwnerAndModel(String userId, String modelName) {
+        return hazelcastService.retrieveAll(API_KEYS_MAP,
+                Predicates.and(Predicates.equal("userId", userId), Predicates.equal("model", modelName)));
     }
 
+    // Profile Details specific methods
+
     /**
      * Finds a profile by the user (customer) ID.
      * 
      * @param userId The ID of the user whose profile is to be retrieved.
-     * @return The profile associated with the given user ID, or null if not found.
+     * @return The profiles owned by the given user ID.
      */
     public Collection<ProfileDetails> findProfileByCustomerId(String userId) {
-        return getAllDetailProfiles().stream().filter(profile -> userId.equals(profile.getOwnerId()))
-                .collect(Collectors.toList());
+        return hazelcastService.retrieveAll(PROFILES_MAP, Predicates.equal("ownerId", userId));
     }
 
     /**
      * Finds a client profile by the client ID.
      * 
      * @param clientId
-     * @return
+     * @return The profiles owned by the given client ID.
      */
     public Collection<ProfileDetails> findProfileByClientId(String clientId) {
-        return getAllDetailProfiles().stream().filter(profile -> clientId.equals(profile.getOwnerId()))
-                .collect(Collectors.toList());
+        return hazelcastService.retrieveAll(PROFILES_MAP, Predicates.equal("ownerId", clientId));
     }
 
     /**
@@ -266,20 +269,8 @@ public class UserRepository {
      * @return The found user, or null if not found.
      */
     public User findUserByEmail(String email) {
-        Collection<User> users = hazelcastService.retrieveAll(CUSTOMER_MAP);
-        // Find the user by email
-        Optional<User> foundUser = users.stream()
-                .filter(u -> email.equals(u.getEmail()))
-                .findFirst();
-
-        if (foundUser.isPresent()) {
-            User user = foundUser.get();
-            //user = restoreContextForUser(user);
-            return user;
-        } else {
-            // Handle the case where no user is found
-            return null;
-        }
+        Collection<User> users = hazelcastService.retrieveAll(CUSTOMER_MAP, Predicates.equal("email", email));
+        return users.stream().findFirst().orElse(null);
     }
 
     /**
@@ -289,32 +280,96 @@ public class UserRepository {
      * @return The found user, or null if not found.
      */
     public User findUserByName(String name) {
-        Collection<User> users = hazelcastService.retrieveAll(CUSTOMER_MAP);
-        Optional<User> foundUser = users.stream()
-                .filter(user -> name.equals(user.getName()))
-                .findFirst();
-        if (foundUser.isPresent()) {
-            User user = foundUser.get();
-           // user = restoreContextForUser(user);
-            return user;
-        } else {
-            // Handle the case where no user is found
-            return null;
-        }
+        Collection<User> users = hazelcastService.retrieveAll(CUSTOMER_MAP, Predicates.equal("name", name));
+        return users.stream().findFirst().orElse(null);
     }
-/* 
-    private User restoreContextForUser(User user) {
-        if (user.getContexts() != null) {
-            user.getContexts().forEach((key, context) -> {
-                JSONArray conversationHistory = hazelcastService.retrieveConversationHistory(context.getSessionId());
-                if (conversationHistory != null) {
-                    context.setConversationHistory(conversationHistory);
-                }
-            });
+    // Credit ledger specific methods
+
+    /**
+     * Finds the credit (spent amount in dollars) of a user in the credit ledger.
+     *
+     * @param userId The ID of the user.
+     * @return The user's credit, 0 if the user has no ledger entry yet.
+     */
+    public double findCredit(String userId) {
+        Long microCents = (Long) hazelcastService.retrieveData(CREDIT_MAP, userId);
+        return microCents != null ? microCents / MICRO_CENTS_PER_DOLLAR : 0.0;
+    }
+
+    /**
+     * Atomically adds an amount to the credit of a user. A negative amount is a payment.
+     *
+     * @param userId The ID of the user.
+     * @param amount The amount in dollars to add.
+     * @return The user's credit after the update.
+     */
+    public double addCredit(String userId, double amount) {
+        Long microCents = hazelcastService.executeOnKey(CREDIT_MAP, userId,
+                new AddCreditProcessor(Math.round(amount * MICRO_CENTS_PER_DOLLAR)));
+        return microCents / MICRO_CENTS_PER_DOLLAR;
+    }
+
+    /**
+     * Creates the credit ledger entry of a user if there is none yet.
+     *
+     * @param userId The ID of the user.
+     * @param amount The initial credit in dollars.
+     */
+    public void initCredit(String userId, double amount) {
+        hazelcastService.storeDataIfAbsent(CREDIT_MAP, userId, Math.round(amount * MICRO_CENTS_PER_DOLLAR));
+    }
+
+    // Conversation history specific methods
+
+    /**
+     * Finds the conversation history of a user's context. The history lives in its own map,
+     * so reading or saving the user doesn't carry the transcripts along.
+     *
+     * @param userId      The ID of the user owning the context.
+     * @param sessionId   The session ID of the context.
+     * @param contextName The name of the context.
+     * @return The messages in conversation order, empty if none.
+     */
+    @SuppressWarnings("unchecked")
+    public ConversationHistory findHistory(String userId, String sessionId, String contextName) {
+        Object history = hazelcastService.retrieveData(HISTORY_MAP, historyKey(userId, sessionId, contextName));
+        if (history instanceof byte[]) {
+            return ConversationHistory.fromBytes((byte[]) history);
         }
-        return user;
+        if (history instanceof List) {
+            // Stored as JSON messages before the binary encoding, converted on the next append
+            return ConversationHistory.fromJsonMessages((List<String>) history);
+        }
+        return new ConversationHistory();
+    }
+
+    /**
+     * Appends messages to the conversation history of a user's context.
+     *
+     * @param userId      The ID of the user owning the context.
+     * @param sessionId   The session ID of the context.
+     * @param contextName The name of the context.
+     * @param messages    The messages to append.
+     */
+    public void appendHistory(String userId, String sessionId, String contextName, ChatMessage... messages) {
+        hazelcastService.executeOnKey(HISTORY_MAP, historyKey(userId, sessionId, contextName),
+                new AppendHistoryProcessor(MAX_HISTORY_MESSAGES, ConversationHistory.encode(messages)));
+    }
+
+    /**
+     * Deletes the conversation history of a user's context.
+     *
+     * @param userId      The ID of the user owning the context.
+     * @param sessionId   The session ID of the context.
+     * @param contextName The name of the context.
+     */
+    public void deleteHistory(String userId, String sessionId, String contextName) {
+        hazelcastService.deleteData(HISTORY_MAP, historyKey(userId, sessionId, contextName));
+    }
+
+    private String historyKey(String userId, String sessionId, String contextName) {
+        return userId + ":" + sessionId + ":" + contextName;
     }
-*/
 
     /**
      * Assigns a new role to a user.
@@ -356,10 +411,8 @@ public class UserRepository {
      * @return The found Bill, or an empty Optional if not found.
      */
     public Bill findBillById(String userId) {
-        return getAllBills().stream()
-                .filter(bill -> userId.equals(bill.getUserId()))
-                .findFirst()
-                .orElse(null);
+        // Bills are keyed by the user ID
+        return findBillByUserId(userId);
     }
 
     /**
@@ -1,11 +1,14 @@
 package com.bloberryconsulting.aicontextsbridge.security;
 
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.http.SessionCreationPolicy;
@@ -16,6 +19,9 @@ import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.CorsConfigurationSource;
 import org.springframework.web.cors.UrlBasedCorsConfigurationSource;
 
+import com.bloberryconsulting.aicontextsbridge.service.ratelimit.RateLimit;
+import com.bloberryconsulting.aicontextsbridge.service.ratelimit.RateLimits;
+
 @Configuration
 @EnableWebSecurity
 public class SecurityConfiguration {
@@ -26,6 +32,8 @@ public class SecurityConfiguration {
     public final static String ROLE_SITE_ADMINISTRATOR_DESCR = " This operation is only available to users with the 'ROLE_SITE_ADMINISTRATOR' role, which typically includes creation/update/query all site profiles except not owned APIs ";
     public final static String ROLE_CLIENT_ADMINISTRATOR_DESC = " This operation is only available to users with the 'ROLE_CLIENT_ADMINISTRATOR' role, which typically includes creation/update/query own client's (company's)) users and client's (company's) own APIs ";
     public final static String ROLE_APIKEY_MANAGER_DESC = "This operation is only available to users with the 'ROLE_APIKEY_MANAGER' role, which typically includes view only of API keys of his own and asigning a new role to a new users in system";
+    public final static String[] ROLES = { "ROLE_CUSTOMER", "ROLE_CLIENT_ADMINISTRATOR", "ROLE_APIKEY_MANAGER",
+            "ROLE_SITE_ADMINISTRATOR" };
 
     private final CustomOidcUserService customOidcUserService;
     private final CustomAuthenticationSuccessHandler customAuthenticationSuccessHandler;
@@ -84,6 +92,27 @@ public class SecurityConfiguration {
         return http.build();
     }
 
+    /**
+     * The request rate limits of the users per role, of the clients and of the API keys, read from the
+     * rate-limit.role.&lt;role&gt;, rate-limit.client and rate-limit.api-key properties. A limit is
+     * set by its requests-per-minute, 0 or missing for no limit, and its burst.
+     */
+    @Bean
+    public RateLimits rateLimits(Environment environment) {
+        Map<String, RateLimit> roles = new LinkedHashMap<>();
+        for (String role : ROLES) {
+            roles.put(role, rateLimit(environment, "rate-limit.role." + role));
+        }
+        return new RateLimits(roles, rateLimit(environment, "rate-limit.client"),
+                rateLimit(environment, "rate-limit.api-key"));
+    }
+
+    private RateLimit rateLimit(Environment environment, String prefix) {
+        int requestsPerMinute = environment.getProperty(prefix + ".requests-per-minute", Integer.class, 0);
+        int burst = environment.getProperty(prefix + ".burst", Integer.class, 1);
+        return requestsPerMinute > 0 ? new RateLimit(requestsPerMinute, Math.max(1, burst)) : RateLimit.UNLIMITED;
+    }
+
     private AuthenticationFailureHandler customFailureHandler() {
         return new SimpleUrlAuthenticationFailureHandler("/loginerror.html");
     }
@@ -13,6 +13,7 @@ import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
 import org.springframework.stereotype.Service;
 
+import com.bloberryconsulting.aicontextsbridge.config.HazelcastConfig;
 import com.bloberryconsulting.aicontextsbridge.model.Context;
 import com.bloberryconsulting.aicontextsbridge.model.Role;
 import com.bloberryconsulting.aicontextsbridge.model.User;
@@ -56,7 +57,7 @@ public class AssistantService {
      */
     public Role[] getAllAssistanceRoles() {
         // Assuming roles are stored in a Hazelcast map with a specific key
-        IMap<String, Role[]> rolesMap = hazelcastInstance.getMap("rolesMap");
+        IMap<String, Role[]> rolesMap = hazelcastInstance.getMap(HazelcastConfig.ROLES_MAP);
         Role[] roles = rolesMap.get("assistantRoles");
 
         // Check if roles are found, otherwise return an empty array
@@ -76,7 +77,7 @@ public class AssistantService {
             Role[] roles = objectMapper.readValue(inputStream, new TypeReference<Role[]>(){});
 
             // Store the roles in Hazelcast
-            IMap<String, Role[]> rolesMap = hazelcastInstance.getMap("rolesMap");
+            IMap<String, Role[]> rolesMap = hazelcastInstance.getMap(HazelcastConfig.ROLES_MAP);
             rolesMap.put("assistantRoles", roles);
 
             System.out.println("Roles loaded into Hazelcast: " + Arrays.toString(roles));
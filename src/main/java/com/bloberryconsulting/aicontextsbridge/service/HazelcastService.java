@@ -3,23 +3,26 @@ package com.bloberryconsulting.aicontextsbridge.service;
 import com.bloberryconsulting.aicontextsbridge.model.User;
 import com.hazelcast.core.DistributedObject;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.EntryProcessor;
 import com.hazelcast.map.IMap;
+import com.hazelcast.query.Predicate;
 
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Service
 public class HazelcastService {
   
+    private static final int SNAPSHOT_THREADS = Runtime.getRuntime().availableProcessors();
     private final HazelcastInstance hazelcastInstance;
+    private final Set<String> loadedMaps = ConcurrentHashMap.newKeySet();
     //private final Logger logger = LoggerFactory.getLogger(HazelcastService.class);
 
 
@@ -39,105 +42,6 @@ public class HazelcastService {
             storeMapsToDirectory(backupDirectory);
         }
     }
-/*
-    public void storeUser(IMap<String, User> userMap, User user) {
-        try {
-
-                    // Clone the user object
-            User userToStore = user.clone();
-            // Store each context separately
-             // Create a new map for the modified contexts
-            Map<String, Context> modifiedContexts = new HashMap<>();
-
-            if (userToStore.getContexts() != null) {
-                userToStore.getContexts().forEach((key, context) -> {
-                    
-                    // Clone the context and set the conversation history to null
-                    Context contextToStore = new Context(context);
-                    contextToStore.setConversationHistory(null);
-                    modifiedContexts.put(key, contextToStore);
-    
-                    // Store the original context separately
-                    storeContext(context);
-                });
-                // Set the modified contexts map to the cloned user , Do aka deep copy
-                userToStore.setContexts(modifiedContexts);
-
-            }
-
-            // Store the user object
-            userMap.put(userToStore.getId(), userToStore);
-
-            logger.debug("User '{}' stored in Hazelcast", userToStore.getId());
-        } catch (Exception e) {
-            logger.error("Error storing user in Hazelcast: {}", e.getMessage());
-        }
-    }
-
-
-    public User restoreUser(IMap<String, User> userMap, String userId) {
-        User user = userMap.get(userId);
-        if (user != null && user.getContexts() != null) {
-            // Retrieve the conversation history for each context
-                user.getContexts().forEach((key, context) -> {
-                    JSONArray conversationHistory = retrieveConversationHistory(context.getSessionId());
-                    context.setConversationHistory(conversationHistory);
-                });
-   
-               
-        }
-
-        return user;
-    }
-
-     
-    public void storeContext(Context context) {
-        if(context.getConversationHistory() == null) return;
-        try {
-            // Serialize the conversation history to a byte array
-            byte[] conversationHistoryBytes = serializeToJsonByteArray(context.getConversationHistory());
-            
-            // store the history of conversation in the hazelcast map
-           
-            hazelcastInstance.getMap(CONTEXT_MAP).put(context.getSessionId() + "_history", conversationHistoryBytes);
-            logger.info("Context '{}' updated in Hazelcast", context.getSessionId());
-        } catch (IOException e) {
-            logger.error("Error storing context in Hazelcast: {}", e.getMessage());
-        }
-    }
-
-    public JsonArray retrieveConversationHistory(String sessionId) {
-        IMap<String, Object> map = hazelcastInstance.getMap(CONTEXT_MAP);       
-        byte[] conversationHistoryBytes = (byte[]) map.get(sessionId + "_history");
-        JSONArray conversationHistory = null;
-        if (conversationHistoryBytes != null) {
-            try {
-                conversationHistory = deserializeJsonByteArray(conversationHistoryBytes);
-                
-            } catch (Exception e) {
-                logger.error("Error deserializing conversation history for context '{}': {}", sessionId, e.getMessage());
-            }
-        }
-
-        return conversationHistory;
-    }
-
-    private byte[] serializeToJsonByteArray(JSONArray jsonArray) throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-             ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            out.writeObject(jsonArray.toString());
-            return bos.toByteArray();
-        }
-    }
-
-    private JsonArray deserializeJsonByteArray(byte[] data) throws IOException, ClassNotFoundException {
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(data);
-             ObjectInputStream in = new ObjectInputStream(bis)) {
-            String jsonArrayString = (String) in.readObject();
-            return new JSONArray(jsonArrayString);
-        }
-    }
-*/
 
     public Collection<String> retrieveAllMapsIds(String mapName) {
         IMap<String, User> userMap = hazelcastInstance.getMap(mapName);
@@ -163,40 +67,25 @@ public class HazelcastService {
         }
     }
 
-    // Method to store all maps to a directory
+    // Method to store all maps to a directory, see MapSnapshot for the file format
+    @SuppressWarnings("unchecked")
     public void storeMapsToDirectory(String directoryPath) throws IOException {
         Collection<DistributedObject> distributedObjects = hazelcastInstance.getDistributedObjects();
+        List<IMap<Object, Object>> maps = new ArrayList<>();
 
         for (DistributedObject distributedObject : distributedObjects) {
             if (distributedObject instanceof IMap) {
-                IMap<?, ?> map = (IMap<?, ?>) distributedObject;
-                String mapName = map.getName();
-                File mapFile = new File(directoryPath, mapName + ".ser");
-
-                try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(mapFile))) {
-                    oos.writeObject(map);
-                }
+                maps.add((IMap<Object, Object>) distributedObject);
             }
         }
+        new MapSnapshot(hazelcastInstance, SNAPSHOT_THREADS).store(maps, directoryPath);
     }
 
     // Method to restore all maps from a directory
     public void restoreMapsFromDirectory(String directoryPath) throws IOException, ClassNotFoundException {
-        File[] mapFiles = new File(directoryPath).listFiles((dir, name) -> name.endsWith(".ser"));
-
-        if (mapFiles != null) {
-            for (File mapFile : mapFiles) {
-                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(mapFile))) {
-                    IMap<?, ?> map = (IMap<?, ?>) ois.readObject();
-                    String mapName = map.getName();
-                    hazelcastInstance.getMap(mapName).clear();
-                    hazelcastInstance.getMap(mapName).putAll(map);
-                }
-            }
-        }
+        new MapSnapshot(hazelcastInstance, SNAPSHOT_THREADS).restore(directoryPath);
     }
 
-
     /**
      * Retrieves all data from the specified Hazelcast map.
      * @param <T>
@@ -208,6 +97,25 @@ public class HazelcastService {
         return map.values();
     }
 
+    /**
+     * Retrieves the data from the specified Hazelcast map that matches the predicate.
+     * The predicate is evaluated on the members against the map indexes configured in
+     * HazelcastConfig, so only the matching entries are deserialized and sent back.
+     * @param <T>
+     * @param mapName The name of the Hazelcast map.
+     * @param predicate The query predicate, see {@link com.hazelcast.query.Predicates}.
+     * @return The matching values.
+     */
+    public <T> Collection<T> retrieveAll(String mapName, Predicate<String, T> predicate) {
+        IMap<String, T> map = hazelcastInstance.getMap(mapName);
+        if (!loadedMaps.contains(mapName)) {
+            // Queries don't wait for a lazily loaded map store, size() does
+            map.size();
+            loadedMaps.add(mapName);
+        }
+        return map.values(predicate);
+    }
+
 
     /**
      * Stores data in the specified Hazelcast map.
@@ -222,6 +130,18 @@ public class HazelcastService {
 
     }
 
+    /**
+     * Stores data in the specified Hazelcast map unless the key is already present.
+     *
+     * @param mapName The name of the Hazelcast map.
+     * @param key The key under which the data is to be stored.
+     * @param value The data to be stored.
+     */
+    public void storeDataIfAbsent(String mapName, String key, Object value) {
+        ConcurrentMap<String, Object> map = hazelcastInstance.getMap(mapName);
+        map.putIfAbsent(key, value);
+    }
+
     /**
      * Retrieves data from the specified Hazelcast map.
      * 
@@ -234,4 +154,29 @@ public class HazelcastService {
         return map.get(key);
     }
 
+    /**
+     * Removes data from the specified Hazelcast map.
+     *
+     * @param mapName The name of the Hazelcast map.
+     * @param key The key of the data to be removed.
+     */
+    public void deleteData(String mapName, String key) {
+        IMap<String, Object> map = hazelcastInstance.getMap(mapName);
+        map.delete(key);
+    }
+
+    /**
+     * Applies the entry processor to the entry stored under the key, on the member owning it.
+     * Use it for in-place updates that should not ship the whole value to the caller and back.
+     *
+     * @param mapName The name of the Hazelcast map.
+     * @param key The key of the entry to process.
+     * @param entryProcessor The processor to apply.
+     * @return The result returned by the processor.
+     */
+    public <V, R> R executeOnKey(String mapName, String key, EntryProcessor<String, V, R> entryProcessor) {
+        IMap<String, V> map = hazelcastInstance.getMap(mapName);
+        return map.executeOnKey(key, entryProcessor);
+    }
+
 }
\ No newline at end of file
@@ -1,14 +1,21 @@
 package com.bloberryconsulting.aicontextsbridge.service;
 
 import org.springframework.stereotype.Service;
+
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.TokenCounter;
+
 import org.json.JSONObject;
 import org.json.JSONArray;
 
 import java.io.IOException;
-import java.util.StringTokenizer;
 
 @Service
 public class JsonUtils {
+    private final TokenCounter tokenCounter;
+
+    public JsonUtils(TokenCounter tokenCounter) {
+        this.tokenCounter = tokenCounter;
+    }
 
     public String write(JSONArray jsonArray) throws IOException {
         // Convert JSONArray to String
@@ -22,25 +29,24 @@ public class JsonUtils {
 
 
     /**
-     * Manages the token count of the "content" fields in a JSONArray of JSONObjects.
-     * If the token count exceeds a specified threshold, it removes the first JSONObject.
+     * Manages the token count of the messages in a JSONArray of JSONObjects, counted with the
+     * tokenizer of the model including the tokens wrapping every message in the prompt.
+     * If the token count exceeds a specified threshold, it removes the oldest messages.
      *
-     * @param messages the JSONArray containing JSONObjects with a "content" field.
+     * @param messages the JSONArray containing JSONObjects with "role" and "content" fields.
      * @param threshold the maximum number of tokens allowed.
+     * @param model the model the messages are sent to.
      */
-    public JSONArray manageTokenCountAndTrimHistory(JSONArray messages, int threshold) {
-        int tokenCount = 0;
+    public JSONArray manageTokenCountAndTrimHistory(JSONArray messages, int threshold, String model) {
+        int tokenCount = TokenCounter.TOKENS_PER_REPLY;
         int indexToRemoveUntil = -1;
 
         // Iterate from the end of the array
         for (int i = messages.length() - 1; i >= 0; i--) {
             JSONObject message = messages.optJSONObject(i);
             if (message != null) {
-                String content = message.optString("content");
-                if (content != null) {
-                    StringTokenizer tokenizer = new StringTokenizer(content);
-                    tokenCount += tokenizer.countTokens();
-                }
+                tokenCount += tokenCounter.countMessageTokens(message.optString("role"),
+                        message.optString("content"), model);
             }
 
             // Check if the token count exceeds the threshold
@@ -0,0 +1,67 @@
+package com.bloberryconsulting.aicontextsbridge.service;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Encodes map keys and values for storage outside the cluster, as the class name followed
+ * by the length-prefixed JSON of the object. JSON keeps the files readable by later versions
+ * of the model classes: unknown properties are ignored and missing ones keep their defaults.
+ */
+public class MapEntryCodec {
+
+    private static final String NULL_CLASS = "";
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final Map<String, Class<?>> classes = new ConcurrentHashMap<>();
+
+    /**
+     * Writes an object with its class name.
+     *
+     * @param out The output to write to.
+     * @param value The object to write, may be null.
+     */
+    public void writeObject(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeUTF(NULL_CLASS);
+            return;
+        }
+        byte[] json = objectMapper.writeValueAsBytes(value);
+        out.writeUTF(value.getClass().getName());
+        out.writeInt(json.length);
+        out.write(json);
+    }
+
+    /**
+     * Reads an object written by {@link #writeObject(DataOutput, Object)}.
+     *
+     * @param in The input to read from.
+     * @return The object, or null if null was written.
+     * @throws ClassNotFoundException If the class of the object is not available anymore.
+     */
+    public Object readObject(DataInput in) throws IOException, ClassNotFoundException {
+        String className = in.readUTF();
+        if (NULL_CLASS.equals(className)) {
+            return null;
+        }
+        byte[] json = new byte[in.readInt()];
+        in.readFully(json);
+        return objectMapper.readValue(json, classFor(className));
+    }
+
+    private Class<?> classFor(String className) throws ClassNotFoundException {
+        Class<?> type = classes.get(className);
+        if (type == null) {
+            type = Class.forName(className, false, MapEntryCodec.class.getClassLoader());
+            classes.put(className, type);
+        }
+        return type;
+    }
+}
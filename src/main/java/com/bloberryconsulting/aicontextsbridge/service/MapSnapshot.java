@@ -0,0 +1,398 @@
+package com.bloberryconsulting.aicontextsbridge.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.impl.proxy.MapProxyImpl;
+
+/**
+ * Stores Hazelcast maps to snapshot files and restores them.
+ *
+ * Each map is written to {@code <map name>.snap}: a header (magic, version, map name)
+ * followed by independent chunks. A chunk holds the header {@code entries, raw length,
+ * compressed length, CRC32 of the raw bytes} and the deflated entries, encoded by
+ * {@link MapEntryCodec}. Partitions are read in parallel and every partition task appends
+ * its chunks with positional {@link FileChannel} writes, so the chunk order is not defined.
+ * The file is written under a temporary name and moved in place once complete.
+ *
+ * Restores stream the file chunk by chunk and load the entries with batched, pipelined
+ * putAll calls, several map files in parallel. A chunk failing its checksum is skipped and reported.
+ */
+public class MapSnapshot {
+
+    static final String FILE_SUFFIX = ".snap";
+    private static final int MAGIC = 0x485A534E; // "HZSN"
+    private static final int VERSION = 1;
+    private static final int CHUNK_HEADER_SIZE = 20;
+    private static final int CHUNK_SIZE = 1 << 20; // raw bytes per chunk
+    private static final int FETCH_SIZE = 1000; // entries fetched per partition iterator round trip
+    private static final int BATCH_SIZE = 1000; // entries per putAll on restore
+    private static final int BATCHES_IN_FLIGHT = 4; // putAll batches pending at once on restore
+
+    private final Logger logger = LoggerFactory.getLogger(MapSnapshot.class);
+    private final HazelcastInstance hazelcastInstance;
+    private final MapEntryCodec codec = new MapEntryCodec();
+    private final int threads;
+
+    public MapSnapshot(HazelcastInstance hazelcastInstance, int threads) {
+        this.hazelcastInstance = hazelcastInstance;
+        this.threads = threads;
+    }
+
+    /**
+     * Stores the maps to snapshot files in the directory, replacing the previous snapshot of each map.
+     *
+     * @param maps The maps to store.
+     * @param directoryPath The directory of the snapshot files, created if missing.
+     */
+    public void store(List<IMap<Object, Object>> maps, String directoryPath) throws IOException {
+        Path directory = Files.createDirectories(Paths.get(directoryPath));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            long entries = 0;
+            long bytes = 0;
+            for (IMap<Object, Object> map : maps) {
+                long[] stored = storeMap(map, directory, executor);
+                entries += stored[0];
+                bytes += stored[1];
+            }
+            report("Stored " + maps.size() + " map(s)", entries, bytes, start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Restores all snapshot files found in the directory. Each map is cleared before its entries are loaded.
+     *
+     * @param directoryPath The directory of the snapshot files.
+     */
+    public void restore(String directoryPath) throws IOException, ClassNotFoundException {
+        Path directory = Paths.get(directoryPath);
+        if (!Files.isDirectory(directory)) {
+            logger.warn("Snapshot directory {} not found, nothing to restore", directory);
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (Path file : files) {
+                futures.add(executor.submit(() -> restoreMap(file)));
+            }
+            long entries = 0;
+            long bytes = 0;
+            for (Future<long[]> future : futures) {
+                long[] restored = await(future);
+                entries += restored[0];
+                bytes += restored[1];
+            }
+            report("Restored " + files.size() + " map(s)", entries, bytes, start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long[] storeMap(IMap<Object, Object> map, Path directory, ExecutorService executor) throws IOException {
+        long start = System.nanoTime();
+        Path file = directory.resolve(map.getName() + FILE_SUFFIX);
+        Path tempFile = directory.resolve(map.getName() + FILE_SUFFIX + ".tmp");
+        LongAdder entries = new LongAdder();
+
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = fileHeader(map.getName());
+            AtomicLong position = new AtomicLong(header.remaining());
+            writeFully(channel, header, 0);
+
+            List<Future<?>> futures = new ArrayList<>();
+            if (map instanceof MapProxyImpl) {
+                MapProxyImpl<Object, Object> proxy = (MapProxyImpl<Object, Object>) map;
+                int partitionCount = hazelcastInstance.getPartitionService().getPartitions().size();
+                for (int partitionId = 0; partitionId < partitionCount; partitionId++) {
+                    int partition = partitionId;
+                    futures.add(executor.submit(() -> {
+                        writeEntries(proxy.iterator(FETCH_SIZE, partition, true), channel, position, entries);
+                        return null;
+                    }));
+                }
+            } else {
+                // Not a member side proxy, fall back to a single stream over the whole map
+                futures.add(executor.submit(() -> {
+                    writeEntries(map.entrySet().iterator(), channel, position, entries);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                await(future);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        long bytes = Files.size(file);
+        report("Stored map '" + map.getName() + "'", entries.sum(), bytes, start);
+        return new long[] { entries.sum(), bytes };
+    }
+
+    private void writeEntries(Iterator<Map.Entry<Object, Object>> iterator, FileChannel channel,
+            AtomicLong position, LongAdder entries) throws IOException {
+        ChunkBuffer chunk = new ChunkBuffer();
+        DataOutputStream out = new DataOutputStream(chunk);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        int chunkEntries = 0;
+        try {
+            while (iterator.hasNext()) {
+                Map.Entry<Object, Object> entry = iterator.next();
+                codec.writeObject(out, entry.getKey());
+                codec.writeObject(out, entry.getValue());
+                chunkEntries++;
+                if (chunk.size() >= CHUNK_SIZE) {
+                    writeChunk(chunk, chunkEntries, deflater, channel, position);
+                    entries.add(chunkEntries);
+                    chunkEntries = 0;
+                }
+            }
+            if (chunkEntries > 0) {
+                writeChunk(chunk, chunkEntries, deflater, channel, position);
+                entries.add(chunkEntries);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeChunk(ChunkBuffer chunk, int chunkEntries, Deflater deflater, FileChannel channel,
+            AtomicLong position) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(chunk.buffer(), 0, chunk.size());
+
+        deflater.reset();
+        deflater.setInput(chunk.buffer(), 0, chunk.size());
+        deflater.finish();
+        // Deflate output is at most slightly larger than its input
+        byte[] buffer = new byte[CHUNK_HEADER_SIZE + chunk.size() + chunk.size() / 100 + 64];
+        int length = CHUNK_HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+        bytes.putInt(0, chunkEntries)
+                .putInt(4, chunk.size())
+                .putInt(8, length - CHUNK_HEADER_SIZE)
+                .putLong(12, crc.getValue());
+
+        // Reserve the file region of the chunk, so the partition tasks write concurrently
+        writeFully(channel, bytes, position.getAndAdd(length));
+        chunk.reset();
+    }
+
+    private long[] restoreMap(Path file) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        long entries = 0;
+        int skippedChunks = 0;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(8);
+            position += readFully(channel, header, position);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a snapshot file or unsupported version: " + file);
+            }
+            ByteBuffer nameLength = ByteBuffer.allocate(4);
+            position += readFully(channel, nameLength, position);
+            ByteBuffer name = ByteBuffer.allocate(nameLength.getInt(0));
+            position += readFully(channel, name, position);
+            String mapName = new String(name.array(), StandardCharsets.UTF_8);
+
+            IMap<Object, Object> map = hazelcastInstance.getMap(mapName);
+            map.clear();
+
+            Map<Object, Object> batch = new HashMap<>(BATCH_SIZE * 2);
+            Queue<CompletableFuture<Void>> pending = new ArrayDeque<>();
+            Inflater inflater = new Inflater();
+            ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+            long size = channel.size();
+            try {
+                while (position + CHUNK_HEADER_SIZE <= size) {
+                    chunkHeader.clear();
+                    position += readFully(channel, chunkHeader, position);
+                    int chunkEntries = chunkHeader.getInt(0);
+                    int rawLength = chunkHeader.getInt(4);
+                    int compressedLength = chunkHeader.getInt(8);
+                    long checksum = chunkHeader.getLong(12);
+                    if (compressedLength < 0 || rawLength < 0 || position + compressedLength > size) {
+                        logger.error("Snapshot {} is truncated at offset {}, the rest of the file is skipped", file,
+                                position - CHUNK_HEADER_SIZE);
+                        break;
+                    }
+                    ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+                    position += readFully(channel, compressed, position);
+
+                    byte[] raw = inflate(inflater, compressed.array(), rawLength);
+                    CRC32 crc = new CRC32();
+                    if (raw != null) {
+                        crc.update(raw);
+                    }
+                    if (raw == null || crc.getValue() != checksum) {
+                        logger.error("Snapshot {} chunk at offset {} failed its checksum, {} entries skipped", file,
+                                position - compressedLength - CHUNK_HEADER_SIZE, chunkEntries);
+                        skippedChunks++;
+                        continue;
+                    }
+
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+                    for (int i = 0; i < chunkEntries; i++) {
+                        Object key = codec.readObject(in);
+                        batch.put(key, codec.readObject(in));
+                        if (batch.size() >= BATCH_SIZE) {
+                            entries += batch.size();
+                            pending.add(map.putAllAsync(batch).toCompletableFuture());
+                            batch = new HashMap<>(BATCH_SIZE * 2);
+                            if (pending.size() >= BATCHES_IN_FLIGHT) {
+                                await(pending.poll());
+                            }
+                        }
+                    }
+                }
+            } finally {
+                inflater.end();
+            }
+            if (!batch.isEmpty()) {
+                map.putAll(batch);
+                entries += batch.size();
+            }
+            while (!pending.isEmpty()) {
+                await(pending.poll());
+            }
+            report("Restored map '" + mapName + "'", entries, size, start);
+            if (skippedChunks > 0) {
+                logger.warn("Restored map '{}' without {} corrupted chunks", mapName, skippedChunks);
+            }
+            return new long[] { entries, size };
+        }
+    }
+
+    private byte[] inflate(Inflater inflater, byte[] compressed, int rawLength) {
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] raw = new byte[rawLength];
+        try {
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, length, rawLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+                length += inflated;
+            }
+            return length == rawLength ? raw : null;
+        } catch (DataFormatException e) {
+            return null;
+        }
+    }
+
+    private ByteBuffer fileHeader(String mapName) {
+        byte[] name = mapName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(12 + name.length);
+        header.putInt(MAGIC).putInt(VERSION).putInt(name.length).put(name);
+        header.flip();
+        return header;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of snapshot file at offset " + (position + total));
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Snapshot interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Snapshot failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void report(String action, long entries, long bytes, long startNanos) {
+        double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+        logger.info("{}: {} entries, {} KB in {} ms ({} entries/s, {} MB/s)", action, entries,
+                bytes / 1024, Math.round(seconds * 1000), Math.round(entries / seconds),
+                String.format("%.1f", bytes / seconds / (1024 * 1024)));
+    }
+
+    // Exposes the internal buffer, so chunks are compressed without copying them first
+    private static class ChunkBuffer extends ByteArrayOutputStream {
+        ChunkBuffer() {
+            super(CHUNK_SIZE + CHUNK_SIZE / 4);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
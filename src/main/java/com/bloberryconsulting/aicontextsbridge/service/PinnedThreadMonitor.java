@@ -0,0 +1,147 @@
+package com.bloberryconsulting.aicontextsbridge.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.bloberryconsulting.aicontextsbridge.config.ThreadMode;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Reports the virtual threads pinned to their carrier thread while blocking, e.g. waiting for a
+ * Hazelcast operation inside a synchronized block: a pinned thread holds an OS thread like a
+ * platform thread does. The {@code jdk.VirtualThreadPinned} events of the JVM are streamed from JFR
+ * and counted per site: the application method blocking, and the first frame outside the JDK, e.g.
+ * the Hazelcast method waiting for its operation. The first event of a site is logged with its stack.
+ *
+ * Only runs with virtual threads, see {@link ThreadMode}.
+ */
+@Service
+public class PinnedThreadMonitor {
+    private static final Logger logger = LoggerFactory.getLogger(PinnedThreadMonitor.class);
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final String APPLICATION_PACKAGE = "com.bloberryconsulting.";
+    private static final int MAX_SITES = 1000;
+
+    private final ThreadMode threadMode;
+    private final Duration threshold;
+    private final Map<String, Site> sites = new ConcurrentHashMap<>();
+    private final LongAdder events = new LongAdder();
+    private RecordingStream stream;
+
+    public PinnedThreadMonitor(ThreadMode threadMode,
+            @Value("${threads.virtual.pinned-threshold-ms:20}") long thresholdMillis) {
+        this.threadMode = threadMode;
+        this.threshold = Duration.ofMillis(thresholdMillis);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!threadMode.isVirtual()) {
+            return;
+        }
+        stream = new RecordingStream();
+        stream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+        stream.onEvent(PINNED_EVENT, this::record);
+        stream.startAsync();
+        logger.info("Reporting the virtual threads pinned for more than {} ms", threshold.toMillis());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    /**
+     * @return The pinned threads seen by this member, per site, the most frequent first.
+     */
+    public Map<String, Object> stats() {
+        List<Map<String, Object>> bySite = new ArrayList<>();
+        sites.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, Site> entry) -> entry.getValue().count.sum())
+                        .reversed())
+                .forEach(entry -> {
+                    Site site = entry.getValue();
+                    Map<String, Object> siteStats = new LinkedHashMap<>();
+                    siteStats.put("caller", site.caller);
+                    siteStats.put("blockedIn", site.blockedIn);
+                    siteStats.put("count", site.count.sum());
+                    siteStats.put("totalMillis", site.nanos.sum() / 1_000_000);
+                    bySite.add(siteStats);
+                });
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", stream != null);
+        stats.put("thresholdMillis", threshold.toMillis());
+        stats.put("events", events.sum());
+        stats.put("sites", bySite);
+        return stats;
+    }
+
+    private void record(RecordedEvent event) {
+        events.increment();
+        String blockedIn = null;
+        String caller = null;
+        if (event.getStackTrace() != null) {
+            for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+                if (!frame.isJavaFrame()) {
+                    continue;
+                }
+                String type = frame.getMethod().getType().getName();
+                if (blockedIn == null && !type.startsWith("java.") && !type.startsWith("jdk.")
+                        && !type.startsWith("sun.")) {
+                    blockedIn = type + "." + frame.getMethod().getName();
+                }
+                if (type.startsWith(APPLICATION_PACKAGE)) {
+                    caller = type + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+                    break;
+                }
+            }
+        }
+        String key = caller + " " + blockedIn;
+        Site site = sites.get(key);
+        if (site == null) {
+            if (sites.size() >= MAX_SITES) {
+                return;
+            }
+            Site added = new Site(caller, blockedIn);
+            site = sites.putIfAbsent(key, added);
+            if (site == null) {
+                site = added;
+                logger.warn("Virtual thread pinned for {} ms in {}, called from {}:\n{}",
+                        event.getDuration().toMillis(), blockedIn, caller, event.getStackTrace());
+            }
+        }
+        site.count.increment();
+        site.nanos.add(event.getDuration().toNanos());
+    }
+
+    private static final class Site {
+        private final String caller;
+        private final String blockedIn;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        Site(String caller, String blockedIn) {
+            this.caller = caller;
+            this.blockedIn = blockedIn;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.bloberryconsulting.aicontextsbridge.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.springframework.stereotype.Service;
+
+import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
+import com.bloberryconsulting.aicontextsbridge.model.ChatMessage;
+import com.bloberryconsulting.aicontextsbridge.model.ConversationHistory;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+
+/**
+ * Distributed cache of the answers to chat requests, for the API keys that opt in with
+ * {@link ApiKey#isResponseCacheEnabled()}. A request is identified by a hash of the model, the
+ * system message, the history sent with it, the documents it injects and the normalized prompt, so
+ * only a request the model would see the same way gets a cached answer. The map is bounded and
+ * its entries expire, see HazelcastConfig; an API key may set a shorter or longer time to live.
+ *
+ * A hit is flagged to the current thread, for BillingAspect to bill it at the cache rate.
+ */
+@Service
+public class ResponseCache {
+    public static final String RESPONSE_CACHE_MAP = "responseCache";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final IMap<String, String> responses;
+    private final ThreadLocal<Boolean> hit = new ThreadLocal<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ResponseCache(HazelcastInstance hazelcastInstance) {
+        this.responses = hazelcastInstance.getMap(RESPONSE_CACHE_MAP);
+    }
+
+    /**
+     * Computes the cache key of a chat request.
+     *
+     * @param model The model the request is sent to.
+     * @param systemMessage The assistant role message, null if there is none.
+     * @param history The history sent with the request, already trimmed to the context length.
+     * @param documents The fingerprints of the documents injected in the user message.
+     * @param prompt The prompt of the user, without the documents.
+     */
+    public String key(String model, String systemMessage, ConversationHistory history, long[] documents,
+            String prompt) {
+        MessageDigest digest = sha256();
+        update(digest, model);
+        update(digest, systemMessage);
+        for (ChatMessage message : history) {
+            update(digest, message.getRole());
+            update(digest, message.getContent());
+        }
+        for (long document : documents) {
+            update(digest, Long.toHexString(document));
+        }
+        update(digest, normalize(prompt));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return The cached answer, or null on a miss.
+     */
+    public String get(String key) {
+        String response = responses.get(key);
+        if (response != null) {
+            hits.increment();
+            markHit();
+        } else {
+            misses.increment();
+        }
+        return response;
+    }
+
+    /**
+     * Caches an answer, for the time to live of the API key if it sets one.
+     */
+    public void put(String key, String response, ApiKey apiKey) {
+        if (response == null || response.isBlank()) {
+            return;
+        }
+        if (apiKey.getResponseCacheTtlSeconds() > 0) {
+            responses.set(key, response, apiKey.getResponseCacheTtlSeconds(), TimeUnit.SECONDS);
+        } else {
+            // The time to live of the map
+            responses.set(key, response);
+        }
+    }
+
+    /**
+     * Flags the answer of the current thread's request as coming from a cache, e.g. the semantic cache.
+     */
+    public void markHit() {
+        hit.set(Boolean.TRUE);
+    }
+
+    /**
+     * @return Whether the answer of the current thread's last request came from the cache, the flag is cleared.
+     */
+    public boolean takeHit() {
+        boolean wasHit = Boolean.TRUE.equals(hit.get());
+        hit.remove();
+        return wasHit;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The hits of this member over its lookups, 0 before the first one.
+     */
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return lookups == 0 ? 0 : (double) hitCount / lookups;
+    }
+
+    public IMap<String, String> getMap() {
+        return responses;
+    }
+
+    // Prompts differing only by Unicode composition or spacing are the same question
+    static String normalize(String prompt) {
+        return WHITESPACE.matcher(Normalizer.normalize(prompt, Normalizer.Form.NFC)).replaceAll(" ").trim();
+    }
+
+    // Fields are length-prefixed, so moving text from one field to the next changes the key
+    private static void update(MessageDigest digest, String value) {
+        if (value == null) {
+            digest.update((byte) 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) 1);
+        digest.update(new byte[] { (byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+                (byte) (bytes.length >>> 8), (byte) bytes.length });
+        digest.update(bytes);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.bloberryconsulting.aicontextsbridge.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.bloberryconsulting.aicontextsbridge.service.retrieval.EmbeddingProvider;
+import com.bloberryconsulting.aicontextsbridge.service.retrieval.Terms;
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.TokenCounter;
+
+/**
+ * Answers paraphrases of recently answered prompts. A prompt is embedded with the
+ * {@link EmbeddingProvider} and matched against the answered prompts of its scope (the tenant,
+ * model, assistant role and documents of the request, so answers never cross tenants); the most
+ * similar one at or above the threshold gives the answer.
+ *
+ * The default embedding is lexical and scores "capital of France" and "capital of Germany" alike,
+ * so by default a match must also have the same content terms, stop words aside: the cache then
+ * catches rewordings such as "How do I reset my password?" and "How can I reset my password?".
+ * With a semantic embedding model, {@code semantic-cache.same-terms=false} and a threshold around
+ * 0.9 match real paraphrases.
+ *
+ * The entries are kept on this member within a memory budget. Past the budget the least recently
+ * used entry is evicted, or with the LFU policy the least used of the 16 least recently used.
+ */
+@Service
+public class SemanticCache {
+    private static final int LFU_SAMPLE = 16;
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+    private static final Set<String> STOP_WORDS = Set.of("a", "an", "the", "is", "are", "was", "were", "be", "am",
+            "of", "to", "in", "on", "at", "for", "with", "and", "or", "please", "s", "do", "does", "did", "can",
+            "could", "would", "will", "i", "me", "my", "you", "your", "it", "its", "this", "that");
+
+    private final EmbeddingProvider embeddingProvider;
+    private final TokenCounter tokenCounter;
+    private final double threshold;
+    private final boolean sameTerms;
+    private final int minTerms;
+    private final long ttlMillis;
+    private final long maxBytes;
+    private final int maxEntriesPerScope;
+    private final boolean lfu;
+
+    // Guarded by this
+    private final Map<String, List<Entry>> scopes = new HashMap<>();
+    private final LinkedHashSet<Entry> recency = new LinkedHashSet<>(); // least recently used first
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long tokensSaved;
+    private long evictions;
+
+    public SemanticCache(EmbeddingProvider embeddingProvider, TokenCounter tokenCounter,
+            @Value("${semantic-cache.threshold:0.6}") double threshold,
+            @Value("${semantic-cache.same-terms:true}") boolean sameTerms,
+            @Value("${semantic-cache.min-terms:3}") int minTerms,
+            @Value("${semantic-cache.ttl-seconds:3600}") long ttlSeconds,
+            @Value("${semantic-cache.max-memory-mb:64}") long maxMemoryMb,
+            @Value("${semantic-cache.max-entries-per-scope:256}") int maxEntriesPerScope,
+            @Value("${semantic-cache.eviction:lru}") String eviction) {
+        this.embeddingProvider = embeddingProvider;
+        this.tokenCounter = tokenCounter;
+        this.threshold = threshold;
+        this.sameTerms = sameTerms;
+        this.minTerms = minTerms;
+        this.ttlMillis = ttlSeconds * 1000;
+        this.maxBytes = maxMemoryMb * 1024 * 1024;
+        this.maxEntriesPerScope = maxEntriesPerScope;
+        this.lfu = "lfu".equalsIgnoreCase(eviction);
+    }
+
+    /**
+     * The scope of a prompt: the answers of other scopes are never returned.
+     *
+     * @param tenant The tenant, e.g. the client of the requesting user.
+     * @param model The model answering.
+     * @param assistantRole The system message, null if there is none.
+     * @param documents A key of the documents sent with the prompt.
+     */
+    public static String scope(String tenant, String model, String assistantRole, long documents) {
+        return tenant + '\u0000' + model + '\u0000' + (assistantRole != null ? assistantRole.hashCode() : 0) + '\u0000'
+                + documents;
+    }
+
+    /**
+     * Embeds a prompt for {@link #find} and {@link #put}.
+     *
+     * @return The prompt, or null if it is too short to be matched safely.
+     */
+    public Prompt prompt(String prompt, String model) {
+        List<String> terms = Terms.of(prompt);
+        if (terms.size() < minTerms) {
+            return null;
+        }
+        Set<String> contentTerms = new TreeSet<>(terms);
+        contentTerms.removeAll(STOP_WORDS);
+        return new Prompt(embeddingProvider.embed(prompt), String.join(" ", contentTerms),
+                tokenCounter.countTokens(prompt, model));
+    }
+
+    /**
+     * @return The answer of the most similar prompt of the scope, or null if none is similar enough.
+     */
+    public synchronized String find(String scope, Prompt prompt) {
+        List<Entry> entries = scopes.get(scope);
+        Entry best = null;
+        double bestScore = threshold;
+        if (entries != null) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext();) {
+                Entry entry = iterator.next();
+                if (now - entry.created > ttlMillis) {
+                    iterator.remove();
+                    remove(entry);
+                    continue;
+                }
+                if (sameTerms && !entry.contentTerms.equals(prompt.contentTerms())) {
+                    continue;
+                }
+                double score = dot(entry.vector, prompt.vector());
+                if (score >= bestScore) {
+                    best = entry;
+                    bestScore = score;
+                }
+            }
+            if (entries.isEmpty()) {
+                scopes.remove(scope);
+            }
+        }
+        if (best == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        // The upstream call would have been billed for the prompt and the answer
+        tokensSaved += prompt.tokens() + best.answerTokens;
+        best.uses++;
+        recency.remove(best);
+        recency.add(best);
+        return best.answer;
+    }
+
+    /**
+     * Caches the answer of a prompt, evicting entries past the memory budget.
+     */
+    public void put(String scope, Prompt prompt, String answer, String model) {
+        if (answer == null || answer.isBlank()) {
+            return;
+        }
+        Entry entry = new Entry(scope, prompt.vector(), prompt.contentTerms(), answer,
+                tokenCounter.countTokens(answer, model));
+        synchronized (this) {
+            add(entry);
+        }
+    }
+
+    private void add(Entry entry) {
+        List<Entry> entries = scopes.get(entry.scope);
+        if (entries != null && entries.size() >= maxEntriesPerScope) {
+            // The least recently used entry of the scope, so one tenant can't take the whole budget
+            for (Entry candidate : recency) {
+                if (candidate.scope.equals(entry.scope)) {
+                    evict(candidate);
+                    break;
+                }
+            }
+        }
+        scopes.computeIfAbsent(entry.scope, s -> new ArrayList<>()).add(entry);
+        recency.add(entry);
+        bytes += entry.bytes;
+        while (bytes > maxBytes && recency.size() > 1) {
+            evict(victim());
+        }
+    }
+
+    /**
+     * @return The hits, misses, upstream tokens avoided, evictions, entries and memory of this member.
+     */
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("ratio", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        stats.put("upstreamCallsAvoided", hits);
+        stats.put("tokensAvoided", tokensSaved);
+        stats.put("evictions", evictions);
+        stats.put("entries", recency.size());
+        stats.put("scopes", scopes.size());
+        stats.put("memoryBytes", bytes);
+        return stats;
+    }
+
+    private Entry victim() {
+        Iterator<Entry> iterator = recency.iterator();
+        Entry victim = iterator.next();
+        if (lfu) {
+            for (int i = 1; i < LFU_SAMPLE && iterator.hasNext(); i++) {
+                Entry candidate = iterator.next();
+                if (candidate.uses < victim.uses) {
+                    victim = candidate;
+                }
+            }
+        }
+        return victim;
+    }
+
+    private void evict(Entry entry) {
+        List<Entry> entries = scopes.get(entry.scope);
+        entries.remove(entry);
+        if (entries.isEmpty()) {
+            scopes.remove(entry.scope);
+        }
+        remove(entry);
+        evictions++;
+    }
+
+    private void remove(Entry entry) {
+        recency.remove(entry);
+        bytes -= entry.bytes;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double dot = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    /**
+     * An embedded prompt.
+     *
+     * @param vector The embedding of the prompt.
+     * @param contentTerms The sorted distinct terms of the prompt without the stop words.
+     * @param tokens The tokens of the prompt.
+     */
+    public record Prompt(float[] vector, String contentTerms, int tokens) {
+    }
+
+    // Compared by identity, in the recency set and the lists of the scopes
+    private static final class Entry {
+        private final String scope;
+        private final float[] vector;
+        private final String contentTerms;
+        private final String answer;
+        private final int answerTokens;
+        private final long bytes;
+        private final long created = System.currentTimeMillis();
+        private int uses;
+
+        Entry(String scope, float[] vector, String contentTerms, String answer, int answerTokens) {
+            this.scope = scope;
+            this.vector = vector;
+            this.contentTerms = contentTerms;
+            this.answer = answer;
+            this.answerTokens = answerTokens;
+            this.bytes = ENTRY_OVERHEAD_BYTES + 4L * vector.length + 2L * (answer.length() + contentTerms.length());
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.bloberryconsulting.aicontextsbridge.service;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.bloberryconsulting.aicontextsbridge.config.ThreadMode;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
+
+/**
+ * Coalesces identical upstream calls made at the same time in the cluster: the first caller of a key
+ * leads the flight and makes the call, the callers of the same key arriving while it is in flight get
+ * its answer instead of calling again.
+ *
+ * The callers of a member wait on the same local flight. The member leading a key is registered in
+ * the {@value #FLIGHTS_MAP} map, the followers on other members wait for the answer it publishes in
+ * the {@value #FLIGHT_RESULTS_MAP} map. A follower makes the call itself if the leader fails or
+ * doesn't answer in time, the failure may be the leader's own (its key, its cancellation). The call of
+ * a flight is cancelled when all the callers of its member went away.
+ *
+ * The answers of the leaders are delivered and the fallbacks made on an executor of their own: a
+ * fallback may block on its call, it must not hold the threads of the HTTP client finishing the
+ * exchanges in flight.
+ */
+@Service
+public class SingleFlight {
+    public static final String FLIGHTS_MAP = "singleFlights";
+    public static final String FLIGHT_RESULTS_MAP = "singleFlightResults";
+    private static final Logger logger = LoggerFactory.getLogger(SingleFlight.class);
+
+    private final IMap<String, UUID> flights;
+    private final IMap<String, Outcome> results;
+    private final UUID member;
+    private final ExecutorService executor;
+    private final boolean enabled;
+    private final long waitSeconds;
+    private final long resultTtlSeconds;
+    private final Map<String, Flight> local = new ConcurrentHashMap<>();
+    private final LongAdder led = new LongAdder();
+    private final LongAdder joinedLocally = new LongAdder();
+    private final LongAdder joinedRemotely = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    public SingleFlight(HazelcastInstance hazelcastInstance, ThreadMode threadMode,
+            @Value("${single-flight.threads:8}") int threads,
+            @Value("${single-flight.enabled:true}") boolean enabled,
+            @Value("${single-flight.wait-seconds:120}") long waitSeconds,
+            @Value("${single-flight.result-ttl-seconds:5}") long resultTtlSeconds) {
+        this.flights = hazelcastInstance.getMap(FLIGHTS_MAP);
+        this.results = hazelcastInstance.getMap(FLIGHT_RESULTS_MAP);
+        this.member = hazelcastInstance.getCluster().getLocalMember().getUuid();
+        this.executor = threadMode.executor("single-flight-", threads);
+        this.enabled = enabled;
+        this.waitSeconds = waitSeconds;
+        this.resultTtlSeconds = resultTtlSeconds;
+    }
+
+    /**
+     * Gets the answer of a call, from the identical call in flight in the cluster if there is one.
+     *
+     * @param key Identifies the call, equal for the calls getting the same answer.
+     * @param call Makes the call, invoked by the leader of the flight and by a follower falling back.
+     * @return The answer. Cancelling it cancels the call once no other caller of this member waits.
+     */
+    public CompletableFuture<String> execute(String key, Supplier<CompletableFuture<String>> call) {
+        if (!enabled) {
+            return call.get();
+        }
+        while (true) {
+            Flight created = new Flight(call);
+            Flight flight = local.putIfAbsent(key, created);
+            if (flight == null) {
+                flight = created;
+                start(key, flight);
+            } else {
+                joinedLocally.increment();
+            }
+            CompletableFuture<String> answer = flight.join();
+            if (answer != null) {
+                return answer;
+            }
+            // Abandoned by its callers while this one arrived, a new flight is started
+            local.remove(key, flight);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return The flights of this member led, joined on this member and on another one, and the
+     *         followers that made the call themselves.
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("inFlight", local.size());
+        stats.put("led", led.sum());
+        stats.put("joinedLocally", joinedLocally.sum());
+        stats.put("joinedRemotely", joinedRemotely.sum());
+        stats.put("fallbacks", fallbacks.sum());
+        return stats;
+    }
+
+    private void start(String key, Flight flight) {
+        flight.result.whenComplete((answer, error) -> local.remove(key, flight));
+        UUID leader = flights.putIfAbsent(key, member, waitSeconds, TimeUnit.SECONDS);
+        if (leader == null || leader.equals(member)) {
+            lead(key, flight);
+        } else {
+            follow(key, flight);
+        }
+    }
+
+    private void lead(String key, Flight flight) {
+        led.increment();
+        CompletableFuture<String> upstream = flight.call();
+        upstream.whenComplete((answer, error) -> {
+            // Published before the flight is closed: a follower finding no leader finds the outcome
+            results.setAsync(key, new Outcome(error == null ? answer : null), resultTtlSeconds, TimeUnit.SECONDS)
+                    .whenComplete((published, failure) -> flights.removeAsync(key));
+            flight.complete(answer, error);
+        });
+    }
+
+    private void follow(String key, Flight flight) {
+        joinedRemotely.increment();
+        OutcomeListener listener = new OutcomeListener(flight);
+        UUID registration = results.addEntryListener(listener, key, true);
+        flight.result.whenComplete((answer, error) -> results.removeEntryListener(registration));
+        // The leader may have published before the listener was added
+        Outcome outcome = results.get(key);
+        if (outcome != null) {
+            listener.deliver(outcome);
+        }
+        CompletableFuture.delayedExecutor(waitSeconds, TimeUnit.SECONDS, executor).execute(() -> {
+            if (!flight.result.isDone()) {
+                logger.warn("No answer of the leader of {} in {} seconds, calling the API", key, waitSeconds);
+                fallBack(flight);
+            }
+        });
+    }
+
+    private void fallBack(Flight flight) {
+        if (flight.startFallback()) {
+            fallbacks.increment();
+            flight.call().whenComplete(flight::complete);
+        }
+    }
+
+    /**
+     * The answer of a flight published by its leader, no answer if its call failed.
+     */
+    record Outcome(String answer) implements Serializable {
+    }
+
+    // Answers the followers of a member, off the event thread of Hazelcast
+    private final class OutcomeListener
+            implements EntryAddedListener<String, Outcome>, EntryUpdatedListener<String, Outcome> {
+        private final Flight flight;
+
+        OutcomeListener(Flight flight) {
+            this.flight = flight;
+        }
+
+        @Override
+        public void entryAdded(EntryEvent<String, Outcome> event) {
+            deliver(event.getValue());
+        }
+
+        @Override
+        public void entryUpdated(EntryEvent<String, Outcome> event) {
+            deliver(event.getValue());
+        }
+
+        void deliver(Outcome outcome) {
+            executor.execute(() -> {
+                if (outcome.answer() != null) {
+                    flight.complete(outcome.answer(), null);
+                } else {
+                    fallBack(flight);
+                }
+            });
+        }
+    }
+
+    // The callers of a key on this member, and the call made for them by this member if any
+    private static final class Flight {
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        private final Supplier<CompletableFuture<String>> supplier;
+        private CompletableFuture<String> upstream;
+        private int waiters;
+        private boolean abandoned;
+        private boolean fallingBack;
+
+        Flight(Supplier<CompletableFuture<String>> supplier) {
+            this.supplier = supplier;
+        }
+
+        // A future of the result for a new caller, null if the flight was abandoned
+        synchronized CompletableFuture<String> join() {
+            if (abandoned) {
+                return null;
+            }
+            waiters++;
+            CompletableFuture<String> answer = result.copy();
+            answer.whenComplete((value, error) -> {
+                if (answer.isCancelled()) {
+                    leave();
+                }
+            });
+            return answer;
+        }
+
+        private void leave() {
+            CompletableFuture<String> call;
+            synchronized (this) {
+                if (--waiters > 0 || result.isDone()) {
+                    return;
+                }
+                abandoned = true;
+                call = upstream;
+            }
+            if (call != null) {
+                call.cancel(true);
+            }
+            result.completeExceptionally(new CancellationException("Abandoned by its callers"));
+        }
+
+        synchronized boolean startFallback() {
+            if (fallingBack || abandoned || result.isDone()) {
+                return false;
+            }
+            fallingBack = true;
+            return true;
+        }
+
+        CompletableFuture<String> call() {
+            CompletableFuture<String> call;
+            try {
+                call = supplier.get();
+            } catch (RuntimeException e) {
+                call = CompletableFuture.failedFuture(e);
+            }
+            boolean cancel;
+            synchronized (this) {
+                upstream = call;
+                cancel = abandoned;
+            }
+            if (cancel) {
+                call.cancel(true);
+            }
+            return call;
+        }
+
+        void complete(String answer, Throwable error) {
+            if (error == null) {
+                result.complete(answer);
+            } else {
+                result.completeExceptionally(error);
+            }
+        }
+    }
+}
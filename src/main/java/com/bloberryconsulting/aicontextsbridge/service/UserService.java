@@ -51,6 +51,16 @@ public class UserService {
     public void init() {
         initUsers();
         initApiKeys();
+        initCredits();
+    }
+
+    /**
+     * Seeds the credit ledger from the credit stored with the users, for users that
+     * have no ledger entry yet. The ledger is the source of truth afterwards.
+     */
+    private void initCredits() {
+        userRepository.getAllUsers().forEach(user -> userRepository.initCredit(user.getId(),
+                user.getCredit() != null ? user.getCredit() : 0.0));
     }
 
     private void initUsers() {
@@ -141,7 +151,11 @@ public class UserService {
 
     public User getUserById(String id) {
         // Implement logic to find a user by id
-        return userRepository.findUserById(id);
+        User user = userRepository.findUserById(id);
+        if (user != null) {
+            user.setCredit(userRepository.findCredit(id));
+        }
+        return user;
     }
 
     /**
@@ -225,11 +239,8 @@ public class UserService {
             User user = userRepository.findUserByEmail(userEmail); // Assuming findByEmail is a method in your repository
 
             if (user != null) {
-                double currentCredit = user.getCredit();
-                double updatedCredit = currentCredit - amountToAdd;
-                user.setCredit(updatedCredit);
-
-                userRepository.saveUser(user); // Persist the updated user entity
+                // Payments reduce the spent amount, updated in place in the credit ledger
+                double updatedCredit = userRepository.addCredit(user.getId(), -amountToAdd);
                 log.info("Updated credit for user with email {}: new credit is {}", userEmail, updatedCredit);
             } else {
                 log.warn("User with email {} not found.", userEmail);
@@ -252,6 +263,7 @@ public class UserService {
 
             if (contextKey.isPresent()) {
                 contexts.remove(contextKey.get());
+                userRepository.deleteHistory(user.getId(), sessionId, contextKey.get());
                 return true; // Return true to indicate successful deletion
             }
         }
@@ -0,0 +1,42 @@
+package com.bloberryconsulting.aicontextsbridge.service.ratelimit;
+
+import java.util.Map;
+
+import com.hazelcast.map.EntryProcessor;
+
+/**
+ * Takes up to a number of permits of a rate limit with the generic cell rate algorithm: the entry
+ * holds the theoretical arrival time (TAT) of the next request in epoch micros, a request is allowed
+ * while it's not later than the burst tolerance from now, and every permit moves it one emission
+ * interval on. Runs on the member owning the key, whose clock is the only one the key sees.
+ */
+public class GcraProcessor implements EntryProcessor<String, Long, Grant> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int requested;
+    private final long intervalMicros;
+    private final long toleranceMicros;
+
+    public GcraProcessor(RateLimit limit, int requested) {
+        this.requested = requested;
+        this.intervalMicros = 60_000_000L / limit.requestsPerMinute();
+        this.toleranceMicros = intervalMicros * Math.max(1, limit.burst());
+    }
+
+    @Override
+    public Grant process(Map.Entry<String, Long> entry) {
+        long now = System.currentTimeMillis() * 1000;
+        Long stored = entry.getValue();
+        long tat = stored != null ? Math.max(stored, now) : now;
+        // The permits whose arrival time stays within the tolerance: tat + k * interval - now <= tolerance
+        long fitting = (now + toleranceMicros - tat) / intervalMicros;
+        int permits = (int) Math.min(requested, fitting);
+        if (permits <= 0) {
+            long waitMicros = tat + intervalMicros - toleranceMicros - now;
+            return new Grant(0, Math.max(1, (waitMicros + 999) / 1000));
+        }
+        entry.setValue(tat + permits * intervalMicros);
+        return new Grant(permits, 0);
+    }
+}
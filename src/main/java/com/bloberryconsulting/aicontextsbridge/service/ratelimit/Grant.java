@@ -0,0 +1,12 @@
+package com.bloberryconsulting.aicontextsbridge.service.ratelimit;
+
+import java.io.Serializable;
+
+/**
+ * The permits granted by a {@link GcraProcessor}.
+ *
+ * @param permits The permits granted, 0 if the limit is reached.
+ * @param retryAfterMillis When no permit is granted, the wait until the next one.
+ */
+public record Grant(int permits, long retryAfterMillis) implements Serializable {
+}
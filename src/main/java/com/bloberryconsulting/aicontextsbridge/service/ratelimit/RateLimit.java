@@ -0,0 +1,24 @@
+package com.bloberryconsulting.aicontextsbridge.service.ratelimit;
+
+/**
+ * A request rate limit: the sustained rate, and the requests allowed at once on top of it after a
+ * quiet period.
+ *
+ * @param requestsPerMinute The sustained rate, 0 for no limit.
+ * @param burst The requests allowed at once, at least 1.
+ */
+public record RateLimit(int requestsPerMinute, int burst) {
+    public static final RateLimit UNLIMITED = new RateLimit(0, 1);
+
+    public boolean isUnlimited() {
+        return requestsPerMinute <= 0;
+    }
+
+    // The higher of two limits, no limit being the highest
+    RateLimit max(RateLimit other) {
+        if (isUnlimited() || other.isUnlimited()) {
+            return UNLIMITED;
+        }
+        return requestsPerMinute >= other.requestsPerMinute ? this : other;
+    }
+}
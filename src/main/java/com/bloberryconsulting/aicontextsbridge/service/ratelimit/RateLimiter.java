@@ -0,0 +1,198 @@
+package com.bloberryconsulting.aicontextsbridge.service.ratelimit;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.bloberryconsulting.aicontextsbridge.exceptions.RateLimitExceededError;
+import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
+import com.bloberryconsulting.aicontextsbridge.model.User;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+
+/**
+ * Cluster-wide request rate limits of the users, of the clients (all their users together) and of
+ * the API keys, see {@link RateLimits}. The state of a limit is a GCRA entry of the
+ * {@value #RATE_LIMITS_MAP} map, updated on its owner member by a {@link GcraProcessor}.
+ *
+ * A member takes a few permits at once and serves the next requests from them, so most requests
+ * don't leave the member. Permits not used within their lease are dropped: they were counted by the
+ * cluster, so a member never makes the limit looser. A batch holds at most the permits the limit
+ * emits within the lease, so the dropped ones cost the limit no more than a lease: a limit of a few
+ * requests per minute is taken one permit at a time. A refused limit refuses the next requests of the member
+ * locally until the wait given by the cluster is over. The permits of the keys idle for a while are
+ * forgotten.
+ */
+@Service
+public class RateLimiter {
+    public static final String RATE_LIMITS_MAP = "rateLimits";
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final IMap<String, Long> buckets;
+    private final RateLimits limits;
+    private final boolean enabled;
+    private final int localBatch;
+    private final long leaseMillis;
+    private final long leaseNanos;
+    private final Map<String, LocalPermits> local = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder clusterCalls = new LongAdder();
+
+    public RateLimiter(HazelcastInstance hazelcastInstance, RateLimits limits,
+            @Value("${rate-limit.enabled:true}") boolean enabled,
+            @Value("${rate-limit.local-batch:5}") int localBatch,
+            @Value("${rate-limit.local-lease-millis:1000}") long localLeaseMillis) {
+        this.buckets = hazelcastInstance.getMap(RATE_LIMITS_MAP);
+        this.limits = limits;
+        this.enabled = enabled;
+        this.localBatch = Math.max(1, localBatch);
+        this.leaseMillis = localLeaseMillis;
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(localLeaseMillis);
+    }
+
+    /**
+     * Takes a permit of the limits of a request of a user with an API key.
+     *
+     * @throws RateLimitExceededError If the user, its client or the key is over its limit; the
+     *             request then counts against none of them.
+     */
+    public void acquire(User user, ApiKey apiKey) {
+        if (!enabled) {
+            return;
+        }
+        List<LocalPermits> taken = new ArrayList<>(3);
+        try {
+            take("user:" + user.getId(), limits.user(user.getRoles()), "user", taken);
+            if (user.getClientId() != null) {
+                take("client:" + user.getClientId(), limits.client(), "client", taken);
+            }
+            if (apiKey.getKeyId() != null) {
+                take("apiKey:" + apiKey.getKeyId(), limits.apiKey(), "API key", taken);
+            }
+            allowed.increment();
+        } catch (RateLimitExceededError e) {
+            taken.forEach(LocalPermits::giveBack);
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The requests of this member allowed and rejected, and the share of the permits taken
+     *         without a call to the cluster.
+     */
+    public Map<String, Object> stats() {
+        long permits = allowed.sum() + rejected.sum();
+        long calls = clusterCalls.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("allowed", allowed.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("clusterCalls", calls);
+        stats.put("localRatio", permits == 0 ? 0.0 : Math.max(0.0, 1.0 - (double) calls / permits));
+        stats.put("localKeys", local.size());
+        return stats;
+    }
+
+    /**
+     * The permits a member takes at once for a limit: at most the burst, or a single member could
+     * hold the whole burst of another, and at most the permits the limit emits within the lease, or
+     * the unused ones would be lost to the limit. At least 1.
+     */
+    static int batch(RateLimit limit, int localBatch, long leaseMillis) {
+        long intervalMillis = Math.max(1, 60_000L / limit.requestsPerMinute());
+        long withinLease = leaseMillis / intervalMillis;
+        return (int) Math.max(1, Math.min(Math.min(localBatch, limit.burst()), withinLease));
+    }
+
+    private void take(String key, RateLimit limit, String subject, List<LocalPermits> taken) {
+        if (limit.isUnlimited()) {
+            return;
+        }
+        LocalPermits permits = local.computeIfAbsent(key, k -> new LocalPermits());
+        long retryAfterNanos = permits.blockedFor();
+        if (retryAfterNanos > 0) {
+            throw exceeded(subject, limit, TimeUnit.NANOSECONDS.toMillis(retryAfterNanos));
+        }
+        if (!permits.tryTake()) {
+            clusterCalls.increment();
+            sweep();
+            Grant grant = buckets.executeOnKey(key, new GcraProcessor(limit, batch(limit, localBatch, leaseMillis)));
+            if (grant.permits() == 0) {
+                permits.block(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(grant.retryAfterMillis()));
+                throw exceeded(subject, limit, grant.retryAfterMillis());
+            }
+            permits.add(grant.permits() - 1, System.nanoTime() + leaseNanos);
+        }
+        taken.add(permits);
+    }
+
+    // Forgets the permits of the keys with no permit left and no refusal pending, once in a while. A
+    // request holding the permits of a key forgotten meanwhile only loses them, the next one takes new ones
+    private void sweep() {
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last >= SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(last, now)) {
+            local.values().removeIf(permits -> permits.isIdle(now));
+        }
+    }
+
+    private static RateLimitExceededError exceeded(String subject, RateLimit limit, long retryAfterMillis) {
+        long retryAfterSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(retryAfterMillis + 999));
+        return new RateLimitExceededError("Too many requests for the " + subject + ", limited to "
+                + limit.requestsPerMinute() + " per minute. Retry in " + retryAfterSeconds + " seconds",
+                retryAfterSeconds);
+    }
+
+    // The permits of a limit taken from the cluster by this member and not used yet
+    private static final class LocalPermits {
+        private int count;
+        private long expiresAt;
+        private long blockedUntil;
+        private boolean blocked;
+
+        // The wait left before the limit may grant a permit again, 0 if none
+        synchronized long blockedFor() {
+            long wait = blockedUntil - System.nanoTime();
+            blocked = blocked && wait > 0;
+            return blocked ? wait : 0;
+        }
+
+        synchronized void block(long until) {
+            blocked = true;
+            blockedUntil = until;
+        }
+
+        synchronized boolean tryTake() {
+            if (count > 0 && System.nanoTime() - expiresAt < 0) {
+                count--;
+                return true;
+            }
+            count = 0;
+            return false;
+        }
+
+        synchronized void add(int permits, long leaseEnd) {
+            count += permits;
+            expiresAt = leaseEnd;
+        }
+
+        synchronized void giveBack() {
+            count++;
+        }
+
+        synchronized boolean isIdle(long now) {
+            return (count == 0 || now - expiresAt >= 0) && (!blocked || now - blockedUntil >= 0);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.bloberryconsulting.aicontextsbridge.service.ratelimit;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The configured request rate limits, see SecurityConfiguration.
+ *
+ * @param roles The limit of the users per role.
+ * @param client The limit of all the users of a client together.
+ * @param apiKey The limit of all the requests of an API key.
+ */
+public record RateLimits(Map<String, RateLimit> roles, RateLimit client, RateLimit apiKey) {
+
+    /**
+     * @return The limit of a user, the highest of its roles; none if no role is limited.
+     */
+    public RateLimit user(Collection<String> userRoles) {
+        RateLimit limit = null;
+        if (userRoles != null) {
+            for (String role : userRoles) {
+                RateLimit roleLimit = roles.get(role);
+                if (roleLimit != null) {
+                    limit = limit == null ? roleLimit : limit.max(roleLimit);
+                }
+            }
+        }
+        return limit != null ? limit : RateLimit.UNLIMITED;
+    }
+}
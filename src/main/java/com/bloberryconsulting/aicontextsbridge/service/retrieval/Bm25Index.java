@@ -0,0 +1,74 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Okapi BM25 over the terms of the chunks. The postings of a term are kept as two int arrays,
+ * chunk indexes and term frequencies, so searching touches only the chunks sharing a term with
+ * the query.
+ */
+public class Bm25Index implements ChunkIndex {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final int[] lengths;
+    private final double averageLength;
+
+    public Bm25Index(List<String> chunks) {
+        lengths = new int[chunks.size()];
+        Map<String, Map<Integer, Integer>> frequencies = new HashMap<>();
+        long totalLength = 0;
+        for (int chunk = 0; chunk < chunks.size(); chunk++) {
+            List<String> terms = Terms.of(chunks.get(chunk));
+            lengths[chunk] = terms.size();
+            totalLength += terms.size();
+            for (String term : terms) {
+                frequencies.computeIfAbsent(term, t -> new HashMap<>()).merge(chunk, 1, Integer::sum);
+            }
+        }
+        averageLength = chunks.isEmpty() ? 0 : (double) totalLength / chunks.size();
+        for (Map.Entry<String, Map<Integer, Integer>> term : frequencies.entrySet()) {
+            postings.put(term.getKey(), new Postings(term.getValue()));
+        }
+    }
+
+    @Override
+    public int[] search(String query, int limit) {
+        double[] scores = new double[lengths.length];
+        for (String term : new HashSet<>(Terms.of(query))) {
+            Postings termPostings = postings.get(term);
+            if (termPostings == null) {
+                continue;
+            }
+            int documentFrequency = termPostings.chunks.length;
+            double idf = Math.log(1 + (lengths.length - documentFrequency + 0.5) / (documentFrequency + 0.5));
+            for (int i = 0; i < termPostings.chunks.length; i++) {
+                int chunk = termPostings.chunks[i];
+                double frequency = termPostings.frequencies[i];
+                scores[chunk] += idf * frequency * (K1 + 1)
+                        / (frequency + K1 * (1 - B + B * lengths[chunk] / averageLength));
+            }
+        }
+        return TopK.select(scores, limit);
+    }
+
+    private static final class Postings {
+        final int[] chunks;
+        final int[] frequencies;
+
+        Postings(Map<Integer, Integer> frequencyByChunk) {
+            chunks = new int[frequencyByChunk.size()];
+            frequencies = new int[frequencyByChunk.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : frequencyByChunk.entrySet()) {
+                chunks[i] = entry.getKey();
+                frequencies[i] = entry.getValue();
+                i++;
+            }
+        }
+    }
+}
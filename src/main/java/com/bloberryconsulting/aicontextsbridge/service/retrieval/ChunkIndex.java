@@ -0,0 +1,14 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+/**
+ * An index over the chunks of a context, built once and searched by every request of the context.
+ */
+public interface ChunkIndex {
+
+    /**
+     * @param query The text to match, usually the prompt.
+     * @param limit The maximum number of chunks to return.
+     * @return The indexes of the chunks most relevant to the query, best first.
+     */
+    int[] search(String query, int limit);
+}
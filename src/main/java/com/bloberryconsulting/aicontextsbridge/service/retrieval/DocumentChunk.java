@@ -0,0 +1,13 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+/**
+ * A chunk of a context document.
+ *
+ * @param text The text of the chunk.
+ * @param fingerprint The fingerprint of the text, see
+ *        {@link com.bloberryconsulting.aicontextsbridge.model.ChatMessage#fingerprint(String)}.
+ * @param document The index of the document in the context.
+ * @param position The index of the chunk in the document.
+ */
+public record DocumentChunk(String text, long fingerprint, int document, int position) {
+}
@@ -0,0 +1,129 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.BpeEncoding;
+
+/**
+ * Splits documents into chunks of about a given number of tokens. Chunks end on a sentence or line
+ * break when possible, on a word break otherwise, and repeat the last sentences of the previous
+ * chunk so a passage cut in two is still found whole in one of them. The chunks of a document
+ * joined without their overlap give back the document.
+ *
+ * Tokens are counted with cl100k_base, the chunks are cut before the model is known; the other
+ * encodings count about the same for the sizes involved.
+ */
+public class DocumentChunker {
+    private final int chunkTokens;
+    private final int overlapTokens;
+    private final BpeEncoding encoding = BpeEncoding.cl100kBase();
+
+    /**
+     * @param chunkTokens The target number of tokens of a chunk.
+     * @param overlapTokens The number of tokens repeated from the previous chunk, at most half a chunk.
+     */
+    public DocumentChunker(int chunkTokens, int overlapTokens) {
+        if (chunkTokens <= 0 || overlapTokens < 0 || overlapTokens > chunkTokens / 2) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkTokens + " with overlap " + overlapTokens);
+        }
+        this.chunkTokens = chunkTokens;
+        this.overlapTokens = overlapTokens;
+    }
+
+    /**
+     * @param document The text of the document.
+     * @return The chunks, in document order.
+     */
+    public List<String> chunk(String document) {
+        List<String> chunks = new ArrayList<>();
+        for (Span span : spans(document)) {
+            chunks.add(document.substring(span.start(), span.end()));
+        }
+        return chunks;
+    }
+
+    /**
+     * @param document The text of the document.
+     * @return The character ranges of the chunks, in document order.
+     */
+    public List<Span> spans(String document) {
+        List<Span> spans = new ArrayList<>();
+        Deque<Unit> units = new ArrayDeque<>();
+        int tokens = 0;
+        boolean overlapOnly = true; // whether the units are all repeated from the previous chunk
+
+        for (Unit unit : units(document)) {
+            int count = unit.tokens();
+            if (tokens + count > chunkTokens && !overlapOnly) {
+                spans.add(new Span(units.getFirst().start(), units.getLast().end()));
+                overlapOnly = true;
+                // Keep the tail of the chunk as the start of the next one
+                while (!units.isEmpty() && (tokens > overlapTokens || tokens + count > chunkTokens)) {
+                    tokens -= units.removeFirst().tokens();
+                }
+            }
+            units.addLast(unit);
+            tokens += count;
+            overlapOnly = false;
+        }
+        if (!overlapOnly) {
+            spans.add(new Span(units.getFirst().start(), units.getLast().end()));
+        }
+        return spans;
+    }
+
+    // Splits the text after every sentence end or line break, and the units longer than a chunk
+    // after every word; the units keep their separators
+    private List<Unit> units(String text) {
+        List<Unit> units = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            boolean sentenceEnd = (c == '.' || c == '!' || c == '?' || c == '\u3002')
+                    && (i + 1 == text.length() || Character.isWhitespace(text.charAt(i + 1)));
+            if (c == '\n' || sentenceEnd) {
+                int end = i + 1;
+                while (end < text.length() && text.charAt(end) != '\n' && Character.isWhitespace(text.charAt(end))) {
+                    end++;
+                }
+                addUnit(units, text, start, end);
+                start = end;
+                i = end - 1;
+            }
+        }
+        if (start < text.length()) {
+            addUnit(units, text, start, text.length());
+        }
+        return units;
+    }
+
+    private void addUnit(List<Unit> units, String text, int unitStart, int unitEnd) {
+        int tokens = encoding.countTokens(text.substring(unitStart, unitEnd));
+        if (tokens <= chunkTokens) {
+            units.add(new Unit(unitStart, unitEnd, tokens));
+            return;
+        }
+        int start = unitStart;
+        for (int i = unitStart + 1; i <= unitEnd; i++) {
+            boolean wordEnd = i == unitEnd
+                    || (Character.isWhitespace(text.charAt(i - 1)) && !Character.isWhitespace(text.charAt(i)));
+            if (wordEnd || (i - start >= chunkTokens && !Character.isLowSurrogate(text.charAt(i)))) {
+                // A word longer than a chunk (a URL, base64 data) is cut in pieces of chunkTokens characters
+                units.add(new Unit(start, i, encoding.countTokens(text.substring(start, i))));
+                start = i;
+            }
+        }
+    }
+
+    /**
+     * The characters [start, end) of a document.
+     */
+    public record Span(int start, int end) {
+    }
+
+    private record Unit(int start, int end, int tokens) {
+    }
+}
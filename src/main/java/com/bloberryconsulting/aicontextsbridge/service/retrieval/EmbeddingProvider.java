@@ -0,0 +1,42 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns texts into vectors for the vector index. The provider in use is the single Spring bean
+ * implementing this interface: {@link HashingEmbeddingProvider} unless
+ * {@code retrieval.embedding.provider} selects another one, e.g. a remote embedding model.
+ */
+public interface EmbeddingProvider {
+
+    /**
+     * @return The name of the provider and model, chunks embedded by another provider are embedded again.
+     */
+    String getName();
+
+    /**
+     * @return The number of dimensions of the vectors.
+     */
+    int dimensions();
+
+    /**
+     * @param text The text to embed.
+     * @return The vector of the text, of unit length.
+     */
+    float[] embed(String text);
+
+    /**
+     * Embeds texts, a remote provider sends them in batches.
+     *
+     * @param texts The texts to embed.
+     * @return The vectors, in the order of the texts.
+     */
+    default List<float[]> embedAll(List<String> texts) {
+        List<float[]> vectors = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            vectors.add(embed(text));
+        }
+        return vectors;
+    }
+}
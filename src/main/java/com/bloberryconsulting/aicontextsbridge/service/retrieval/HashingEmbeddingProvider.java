@@ -0,0 +1,74 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * A deterministic local stand-in for an embedding model: the terms and term bigrams of a text are
+ * hashed into the dimensions of the vector (feature hashing), weighted by 1 + log(frequency), with
+ * a hashed sign so collisions cancel out on average. It captures lexical overlap only, but needs
+ * no network, no model files and gives the same vector for the same text on every member.
+ */
+@Service
+@ConditionalOnProperty(name = "retrieval.embedding.provider", havingValue = "hashing", matchIfMissing = true)
+public class HashingEmbeddingProvider implements EmbeddingProvider {
+    private final int dimensions;
+
+    public HashingEmbeddingProvider(@Value("${retrieval.embedding.dimensions:384}") int dimensions) {
+        this.dimensions = dimensions;
+    }
+
+    @Override
+    public String getName() {
+        return "hashing-" + dimensions;
+    }
+
+    @Override
+    public int dimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public float[] embed(String text) {
+        float[] counts = new float[dimensions];
+        List<String> terms = Terms.of(text);
+        for (int i = 0; i < terms.size(); i++) {
+            add(counts, hash(terms.get(i)));
+            if (i > 0) {
+                add(counts, hash(terms.get(i - 1) + ' ' + terms.get(i)));
+            }
+        }
+        double norm = 0;
+        for (int i = 0; i < dimensions; i++) {
+            float count = counts[i];
+            if (count != 0) {
+                counts[i] = (float) (Math.signum(count) * (1 + Math.log(Math.abs(count))));
+                norm += counts[i] * counts[i];
+            }
+        }
+        if (norm > 0) {
+            float scale = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < dimensions; i++) {
+                counts[i] *= scale;
+            }
+        }
+        return counts;
+    }
+
+    private void add(float[] counts, int hash) {
+        // The low bits pick the dimension, the top bit the sign
+        counts[Math.floorMod(hash, dimensions)] += hash < 0 ? -1 : 1;
+    }
+
+    private static int hash(String term) {
+        int hash = 0x811c9dc5; // FNV-1a
+        for (byte b : term.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 15);
+    }
+}
@@ -0,0 +1,797 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Approximate nearest neighbour search over chunk embeddings with a Hierarchical Navigable Small
+ * World graph (Malkov and Yashunin, 2016). Every chunk is a node linked to its M nearest neighbours
+ * (2M on the base layer); a node is also on the upper layers with a probability falling by a
+ * factor M per layer, and a search walks greedily down from the sparse top layer to the base one.
+ *
+ * The vectors and the base layer, nearly all of the index, are stored off-heap in memory-mapped
+ * segment files of {@value #NODES_PER_SEGMENT} nodes, so the page cache keeps the indexes in use in
+ * memory instead of the heap. The upper layers and the metadata are kept on the heap and written
+ * to {@value #META_FILE} by {@link #flush()}; nodes added after the last flush are dropped when
+ * the index is opened again.
+ *
+ * Every node carries the tag of the context its chunk belongs to and the location of the chunk
+ * in the documents. Deleted nodes stay in the graph as tombstones, they are walked through but
+ * never returned.
+ */
+public class HnswIndex implements Closeable {
+    private static final int FORMAT_VERSION = 1;
+    private static final int NODES_PER_SEGMENT = 16_384;
+    private static final String META_FILE = "graph.meta";
+    private static final int MAX_LEVEL = 16;
+
+    // Layout of a node record of the node segments
+    private static final int TAG = 0;
+    private static final int DOCUMENT = 8;
+    private static final int POSITION = 12;
+    private static final int START = 16;
+    private static final int END = 20;
+    private static final int LEVEL = 24;
+    private static final int FLAGS = 28;
+    private static final int COUNT = 32;
+    private static final int NEIGHBORS = 36;
+    private static final int DELETED = 1;
+    private static final ThreadLocal<Visited> VISITED = ThreadLocal.withInitial(Visited::new);
+
+    private final Path directory;
+    private final int dimensions;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final double levelFactor;
+    private final int nodeBytes;
+    private final List<MappedByteBuffer> nodeSegments = new ArrayList<>();
+    private final List<MappedByteBuffer> vectorSegments = new ArrayList<>();
+    private final List<FloatBuffer> vectors = new ArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final SplittableRandom random = new SplittableRandom();
+    private final Map<Long, List<Integer>> nodesByTag = new HashMap<>();
+    private final Map<Long, Long> versions = new HashMap<>();
+
+    private int size;
+    private int deleted;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private int[][][] upperNeighbors = new int[64][][]; // node -> level - 1 -> neighbours, null for the base layer only
+    private boolean closed;
+
+    private HnswIndex(Path directory, int dimensions, int m, int efConstruction) {
+        this.directory = directory;
+        this.dimensions = dimensions;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.levelFactor = 1 / Math.log(m);
+        this.nodeBytes = NEIGHBORS + 4 * maxM0;
+    }
+
+    /**
+     * Opens the index stored in a directory, or creates an empty one.
+     *
+     * @param directory The directory of the index files.
+     * @param dimensions The number of dimensions of the vectors.
+     * @param m The number of neighbours of a node on the upper layers, twice as many on the base layer.
+     * @param efConstruction The number of candidate neighbours considered when a node is added.
+     * @throws IOException If the files can't be read, or are of an index of another shape.
+     */
+    public static HnswIndex open(Path directory, int dimensions, int m, int efConstruction) throws IOException {
+        Files.createDirectories(directory);
+        HnswIndex index = new HnswIndex(directory, dimensions, m, efConstruction);
+        if (Files.exists(directory.resolve(META_FILE))) {
+            index.load();
+        }
+        return index;
+    }
+
+    /**
+     * Adds a chunk to the index.
+     *
+     * @param vector The embedding of the chunk, of unit length.
+     * @param tag The tag of the context of the chunk.
+     * @param document The index of the document of the chunk in the context.
+     * @param position The position of the chunk in the document.
+     * @param start The first character of the chunk in the document.
+     * @param end The character after the last one of the chunk.
+     * @return The node of the chunk.
+     */
+    public int insert(float[] vector, long tag, int document, int position, int start, int end) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Vector of " + vector.length + " dimensions, expected " + dimensions);
+        }
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            int node = size;
+            int level = Math.min((int) (-Math.log(1 - random.nextDouble()) * levelFactor), MAX_LEVEL);
+            ensureCapacity(node);
+            FloatBuffer segment = vectors.get(node / NODES_PER_SEGMENT);
+            int offset = (node % NODES_PER_SEGMENT) * dimensions;
+            for (int i = 0; i < dimensions; i++) {
+                segment.put(offset + i, vector[i]);
+            }
+            MappedByteBuffer record = nodeSegments.get(node / NODES_PER_SEGMENT);
+            int base = (node % NODES_PER_SEGMENT) * nodeBytes;
+            record.putLong(base + TAG, tag);
+            record.putInt(base + DOCUMENT, document);
+            record.putInt(base + POSITION, position);
+            record.putInt(base + START, start);
+            record.putInt(base + END, end);
+            record.putInt(base + LEVEL, level);
+            record.putInt(base + FLAGS, 0);
+            record.putInt(base + COUNT, 0);
+            if (level > 0) {
+                int[][] levels = new int[level][];
+                Arrays.fill(levels, new int[0]);
+                upperNeighbors[node] = levels;
+            }
+            size++;
+            nodesByTag.computeIfAbsent(tag, t -> new ArrayList<>()).add(node);
+
+            if (entryPoint < 0) {
+                entryPoint = node;
+                maxLevel = level;
+                return node;
+            }
+            int nearest = entryPoint;
+            for (int l = maxLevel; l > level; l--) {
+                nearest = greedySearch(vector, nearest, l);
+            }
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                Heap candidates = searchLayer(vector, nearest, efConstruction, l, false, null, Integer.MAX_VALUE);
+                int[] sorted = candidates.drainDescending();
+                nearest = sorted[0];
+                int[] neighbors = selectNeighbors(node, sorted, m);
+                setNeighbors(node, l, neighbors);
+                int maxConnections = l == 0 ? maxM0 : m;
+                for (int neighbor : neighbors) {
+                    int count = neighborCount(neighbor, l);
+                    int[] links = new int[count + 1];
+                    for (int i = 0; i < count; i++) {
+                        links[i] = neighbor(neighbor, l, i);
+                    }
+                    links[count] = node;
+                    if (links.length > maxConnections) {
+                        links = selectNeighbors(neighbor, sortBySimilarity(neighbor, links), maxConnections);
+                    }
+                    setNeighbors(neighbor, l, links);
+                }
+            }
+            if (level > maxLevel) {
+                entryPoint = node;
+                maxLevel = level;
+            }
+            return node;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the chunks of a context.
+     *
+     * @param tag The tag of the context.
+     * @return The number of deleted chunks.
+     */
+    public int delete(long tag) {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            versions.remove(tag);
+            List<Integer> nodes = nodesByTag.remove(tag);
+            if (nodes == null) {
+                return 0;
+            }
+            for (int node : nodes) {
+                MappedByteBuffer record = nodeSegments.get(node / NODES_PER_SEGMENT);
+                int base = (node % NODES_PER_SEGMENT) * nodeBytes;
+                record.putInt(base + FLAGS, record.getInt(base + FLAGS) | DELETED);
+            }
+            deleted += nodes.size();
+            return nodes.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return The version of the indexed chunks of a context, null if it has none.
+     */
+    public Long getVersion(long tag) {
+        lock.readLock().lock();
+        try {
+            return versions.get(tag);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records the version of the chunks of a context, e.g. a key of its documents.
+     */
+    public void setVersion(long tag, long version) {
+        lock.writeLock().lock();
+        try {
+            versions.put(tag, version);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the chunks nearest to a query. The graph is walked with a candidate list of ef nodes, a
+     * larger ef gives a better recall for a slower search. When the chunks of the searched contexts
+     * are a small part of the index, they are compared with the query one by one instead.
+     *
+     * @param query The embedding of the query.
+     * @param k The number of chunks to return.
+     * @param ef The number of candidates of the search, at least k.
+     * @param tags The tags of the contexts to search, null to search all.
+     * @return The nearest chunks, most similar first.
+     */
+    public List<Hit> search(float[] query, int k, int ef, Set<Long> tags) {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            if (entryPoint < 0 || k <= 0) {
+                return List.of();
+            }
+            int width = Math.max(ef, k);
+            int matching = size - deleted;
+            if (tags != null) {
+                matching = 0;
+                for (long tag : tags) {
+                    List<Integer> nodes = nodesByTag.get(tag);
+                    matching += nodes == null ? 0 : nodes.size();
+                }
+            }
+            Heap results = null;
+            if (matching > width) {
+                int nearest = entryPoint;
+                for (int l = maxLevel; l > 0; l--) {
+                    nearest = greedySearch(query, nearest, l);
+                }
+                // Past as many comparisons as an exhaustive search, the search stops and falls back to it
+                int visitLimit = tags == null ? Integer.MAX_VALUE : matching;
+                results = searchLayer(query, nearest, width, 0, true, tags, visitLimit);
+            }
+            if (results == null) {
+                results = exactSearch(query, width, tags);
+            }
+            while (results.size() > k) {
+                results.pop();
+            }
+            int[] nodes = results.drainDescending();
+            List<Hit> hits = new ArrayList<>(nodes.length);
+            for (int node : nodes) {
+                MappedByteBuffer record = nodeSegments.get(node / NODES_PER_SEGMENT);
+                int base = (node % NODES_PER_SEGMENT) * nodeBytes;
+                hits.add(new Hit(record.getLong(base + TAG), record.getInt(base + DOCUMENT),
+                        record.getInt(base + POSITION), record.getInt(base + START), record.getInt(base + END),
+                        similarity(query, node)));
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of nodes of the index, deleted ones included.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of deleted nodes still in the graph.
+     */
+    public int deletedCount() {
+        lock.readLock().lock();
+        try {
+            return deleted;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the segments to disk, then the upper layers and the metadata, replacing the previous ones.
+     */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            for (MappedByteBuffer segment : vectorSegments) {
+                segment.force();
+            }
+            for (MappedByteBuffer segment : nodeSegments) {
+                segment.force();
+            }
+            Path temporary = directory.resolve(META_FILE + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(dimensions);
+                out.writeInt(m);
+                out.writeInt(size);
+                out.writeInt(deleted);
+                out.writeInt(entryPoint);
+                out.writeInt(maxLevel);
+                out.writeInt(versions.size());
+                for (Map.Entry<Long, Long> version : versions.entrySet()) {
+                    out.writeLong(version.getKey());
+                    out.writeLong(version.getValue());
+                }
+                for (int node = 0; node < size; node++) {
+                    int[][] levels = upperNeighbors[node];
+                    if (levels == null) {
+                        continue;
+                    }
+                    out.writeInt(node);
+                    for (int[] neighbors : levels) {
+                        out.writeInt(neighbors.length);
+                        for (int neighbor : neighbors) {
+                            out.writeInt(neighbor);
+                        }
+                    }
+                }
+                out.writeInt(-1);
+            }
+            Files.move(temporary, directory.resolve(META_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes the index and releases its segments, the index can't be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!closed) {
+                flush();
+                closed = true;
+                nodeSegments.clear();
+                vectorSegments.clear();
+                vectors.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Whether the index is closed, e.g. evicted from the open ones while in use.
+     */
+    public boolean isClosed() {
+        lock.readLock().lock();
+        try {
+            return closed;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(directory.resolve(META_FILE))))) {
+            int version = in.readInt();
+            int storedDimensions = in.readInt();
+            int storedM = in.readInt();
+            if (version != FORMAT_VERSION || storedDimensions != dimensions || storedM != m) {
+                throw new IOException("Index of " + directory + " is of format " + version + ", " + storedDimensions
+                        + " dimensions and M " + storedM);
+            }
+            size = in.readInt();
+            deleted = in.readInt();
+            entryPoint = in.readInt();
+            maxLevel = in.readInt();
+            int versionCount = in.readInt();
+            for (int i = 0; i < versionCount; i++) {
+                versions.put(in.readLong(), in.readLong());
+            }
+            if (size > 0) {
+                ensureCapacity(size - 1);
+            }
+            for (int node = in.readInt(); node >= 0; node = in.readInt()) {
+                int[][] levels = new int[level(node)][];
+                for (int l = 0; l < levels.length; l++) {
+                    levels[l] = new int[in.readInt()];
+                    for (int i = 0; i < levels[l].length; i++) {
+                        levels[l][i] = in.readInt();
+                    }
+                }
+                upperNeighbors[node] = levels;
+            }
+        }
+        for (int node = 0; node < size; node++) {
+            MappedByteBuffer record = nodeSegments.get(node / NODES_PER_SEGMENT);
+            int base = (node % NODES_PER_SEGMENT) * nodeBytes;
+            if ((record.getInt(base + FLAGS) & DELETED) == 0) {
+                nodesByTag.computeIfAbsent(record.getLong(base + TAG), t -> new ArrayList<>()).add(node);
+            }
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Index of " + directory + " is closed");
+        }
+    }
+
+    private void ensureCapacity(int node) {
+        while (nodeSegments.size() <= node / NODES_PER_SEGMENT) {
+            int segment = nodeSegments.size();
+            nodeSegments.add(map("nodes-" + segment + ".seg", (long) nodeBytes * NODES_PER_SEGMENT));
+            MappedByteBuffer vectorSegment = map("vectors-" + segment + ".seg", 4L * dimensions * NODES_PER_SEGMENT);
+            vectorSegments.add(vectorSegment);
+            vectors.add(vectorSegment.asFloatBuffer());
+        }
+        if (node >= upperNeighbors.length) {
+            upperNeighbors = Arrays.copyOf(upperNeighbors, Math.max(node + 1, upperNeighbors.length * 2));
+        }
+    }
+
+    // The mapping stays valid once the channel is closed, the file is grown to the mapped size
+    private MappedByteBuffer map(String file, long bytes) {
+        try (FileChannel channel = FileChannel.open(directory.resolve(file), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't map " + directory.resolve(file), e);
+        }
+    }
+
+    private int level(int node) {
+        return nodeSegments.get(node / NODES_PER_SEGMENT).getInt((node % NODES_PER_SEGMENT) * nodeBytes + LEVEL);
+    }
+
+    private boolean isLive(int node, Set<Long> tags) {
+        MappedByteBuffer record = nodeSegments.get(node / NODES_PER_SEGMENT);
+        int base = (node % NODES_PER_SEGMENT) * nodeBytes;
+        return (record.getInt(base + FLAGS) & DELETED) == 0
+                && (tags == null || tags.contains(record.getLong(base + TAG)));
+    }
+
+    private int neighborCount(int node, int level) {
+        if (level > 0) {
+            return upperNeighbors[node][level - 1].length;
+        }
+        return nodeSegments.get(node / NODES_PER_SEGMENT).getInt((node % NODES_PER_SEGMENT) * nodeBytes + COUNT);
+    }
+
+    private int neighbor(int node, int level, int i) {
+        if (level > 0) {
+            return upperNeighbors[node][level - 1][i];
+        }
+        return nodeSegments.get(node / NODES_PER_SEGMENT)
+                .getInt((node % NODES_PER_SEGMENT) * nodeBytes + NEIGHBORS + 4 * i);
+    }
+
+    private void setNeighbors(int node, int level, int[] neighbors) {
+        if (level > 0) {
+            upperNeighbors[node][level - 1] = neighbors;
+            return;
+        }
+        MappedByteBuffer record = nodeSegments.get(node / NODES_PER_SEGMENT);
+        int base = (node % NODES_PER_SEGMENT) * nodeBytes;
+        record.putInt(base + COUNT, neighbors.length);
+        for (int i = 0; i < neighbors.length; i++) {
+            record.putInt(base + NEIGHBORS + 4 * i, neighbors[i]);
+        }
+    }
+
+    private float similarity(float[] query, int node) {
+        FloatBuffer segment = vectors.get(node / NODES_PER_SEGMENT);
+        int offset = (node % NODES_PER_SEGMENT) * dimensions;
+        float dot = 0;
+        for (int i = 0; i < dimensions; i++) {
+            dot += segment.get(offset + i) * query[i];
+        }
+        return dot;
+    }
+
+    private float similarity(int a, int b) {
+        FloatBuffer segmentA = vectors.get(a / NODES_PER_SEGMENT);
+        FloatBuffer segmentB = vectors.get(b / NODES_PER_SEGMENT);
+        int offsetA = (a % NODES_PER_SEGMENT) * dimensions;
+        int offsetB = (b % NODES_PER_SEGMENT) * dimensions;
+        float dot = 0;
+        for (int i = 0; i < dimensions; i++) {
+            dot += segmentA.get(offsetA + i) * segmentB.get(offsetB + i);
+        }
+        return dot;
+    }
+
+    private float[] vector(int node) {
+        float[] vector = new float[dimensions];
+        vectors.get(node / NODES_PER_SEGMENT).get((node % NODES_PER_SEGMENT) * dimensions, vector);
+        return vector;
+    }
+
+    private int greedySearch(float[] query, int start, int level) {
+        int nearest = start;
+        float best = similarity(query, start);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int current = nearest;
+            int count = neighborCount(current, level);
+            for (int i = 0; i < count; i++) {
+                int neighbor = neighbor(current, level, i);
+                if (neighbor >= size) {
+                    continue;
+                }
+                float score = similarity(query, neighbor);
+                if (score > best) {
+                    best = score;
+                    nearest = neighbor;
+                    changed = true;
+                }
+            }
+        }
+        return nearest;
+    }
+
+    // Best-first search of a layer. With liveOnly, only the live nodes of the tags are results, the
+    // others are still walked through; returns null past visitLimit nodes
+    private Heap searchLayer(float[] query, int start, int ef, int level, boolean liveOnly, Set<Long> tags,
+            int visitLimit) {
+        Visited seen = VISITED.get().reset(size);
+        Heap candidates = new Heap(true, ef + 1);
+        Heap results = new Heap(false, ef + 1);
+        boolean filtered = liveOnly && (tags != null || deleted > 0);
+        seen.add(start);
+        float score = similarity(query, start);
+        candidates.push(start, score);
+        if (!filtered || isLive(start, tags)) {
+            results.push(start, score);
+        }
+        int visits = 1;
+        while (candidates.size() > 0) {
+            if (results.size() >= ef && candidates.topScore() < results.topScore()) {
+                break;
+            }
+            int candidate = candidates.pop();
+            int count = neighborCount(candidate, level);
+            for (int i = 0; i < count; i++) {
+                int neighbor = neighbor(candidate, level, i);
+                // Links to nodes added after the last flush may survive a crash
+                if (neighbor >= size || !seen.add(neighbor)) {
+                    continue;
+                }
+                if (++visits > visitLimit) {
+                    return null;
+                }
+                score = similarity(query, neighbor);
+                if (results.size() < ef || score > results.topScore()) {
+                    candidates.push(neighbor, score);
+                    if (!filtered || isLive(neighbor, tags)) {
+                        results.push(neighbor, score);
+                        if (results.size() > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private Heap exactSearch(float[] query, int k, Set<Long> tags) {
+        Heap results = new Heap(false, k + 1);
+        if (tags == null) {
+            for (int node = 0; node < size; node++) {
+                if (isLive(node, null)) {
+                    offer(results, k, node, similarity(query, node));
+                }
+            }
+            return results;
+        }
+        for (long tag : tags) {
+            for (int node : nodesByTag.getOrDefault(tag, List.of())) {
+                offer(results, k, node, similarity(query, node));
+            }
+        }
+        return results;
+    }
+
+    private static void offer(Heap results, int k, int node, float score) {
+        if (results.size() < k) {
+            results.push(node, score);
+        } else if (score > results.topScore()) {
+            results.pop();
+            results.push(node, score);
+        }
+    }
+
+    private int[] sortBySimilarity(int node, int[] nodes) {
+        float[] target = vector(node);
+        Heap heap = new Heap(false, nodes.length);
+        for (int other : nodes) {
+            heap.push(other, similarity(target, other));
+        }
+        return heap.drainDescending();
+    }
+
+    // The heuristic of the paper: a candidate is linked only if it is nearer to the node than to
+    // the neighbours already selected, which keeps links towards every direction instead of to one
+    // dense cluster
+    private int[] selectNeighbors(int node, int[] candidates, int max) {
+        float[] target = vector(node);
+        int[] selected = new int[Math.min(max, candidates.length)];
+        int count = 0;
+        for (int candidate : candidates) {
+            if (count == selected.length) {
+                break;
+            }
+            if (candidate == node) {
+                continue;
+            }
+            float score = similarity(target, candidate);
+            boolean diverse = true;
+            for (int i = 0; i < count && diverse; i++) {
+                diverse = similarity(candidate, selected[i]) <= score;
+            }
+            if (diverse) {
+                selected[count++] = candidate;
+            }
+        }
+        return Arrays.copyOf(selected, count);
+    }
+
+    /**
+     * A chunk found by a search.
+     *
+     * @param tag The tag of the context of the chunk.
+     * @param document The index of the document of the chunk in the context.
+     * @param position The position of the chunk in the document.
+     * @param start The first character of the chunk in the document.
+     * @param end The character after the last one of the chunk.
+     * @param score The similarity of the chunk to the query.
+     */
+    public record Hit(long tag, int document, int position, int start, int end, float score) implements Serializable {
+    }
+
+    // A binary heap of nodes by score, the top is the highest score of a max heap and the lowest of a min heap
+    private static final class Heap {
+        private final boolean max;
+        private int[] nodes;
+        private float[] scores;
+        private int size;
+
+        Heap(boolean max, int capacity) {
+            this.max = max;
+            this.nodes = new int[Math.max(capacity, 4)];
+            this.scores = new float[nodes.length];
+        }
+
+        int size() {
+            return size;
+        }
+
+        float topScore() {
+            return scores[0];
+        }
+
+        void push(int node, float score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!before(score, scores[parent])) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            int node = nodes[--size];
+            float score = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && before(scores[child + 1], scores[child])) {
+                    child++;
+                }
+                if (!before(scores[child], score)) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+            return top;
+        }
+
+        // Empties a min heap, the nodes from the highest score to the lowest
+        int[] drainDescending() {
+            int[] drained = new int[size];
+            for (int i = drained.length - 1; i >= 0; i--) {
+                drained[i] = pop();
+            }
+            return drained;
+        }
+
+        private boolean before(float a, float b) {
+            return max ? a > b : a < b;
+        }
+    }
+
+    // The nodes visited by a search, cleared in O(1) by moving to the next generation
+    private static final class Visited {
+        private int[] marks = new int[0];
+        private int generation;
+
+        Visited reset(int size) {
+            if (marks.length < size) {
+                marks = new int[Math.max(size, marks.length * 2)];
+                generation = 0;
+            }
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+            return this;
+        }
+
+        boolean add(int node) {
+            if (marks[node] == generation) {
+                return false;
+            }
+            marks[node] = generation;
+            return true;
+        }
+    }
+}
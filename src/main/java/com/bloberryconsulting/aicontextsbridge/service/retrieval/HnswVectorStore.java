@@ -0,0 +1,349 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.bloberryconsulting.aicontextsbridge.model.ChatMessage;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+
+/**
+ * The HNSW indexes of the context chunks, one per user, stored on the member owning the Hazelcast
+ * partition of the user id: the same member as the user's entries of the maps keyed by user id.
+ * The searches and updates are sent to that member with {@code submitToKeyOwner}, only the query
+ * vector and the locations of the found chunks go through the network, never the chunk texts.
+ *
+ * The index of a user is in {@code <directory>/partition-<id>/<user>}. A member that takes over a
+ * partition has no index for its users, a search then reports their contexts as missing and the
+ * caller indexes them again; a search also checks the version of every context, so an index
+ * left behind by an earlier owner is never used with other documents.
+ */
+@Service
+public class HnswVectorStore {
+    private static final Logger logger = LoggerFactory.getLogger(HnswVectorStore.class);
+    private static final String USER_CONTEXT_KEY = HnswVectorStore.class.getName();
+    private static final String EXECUTOR = "retrieval";
+    private static final int OPEN_ATTEMPTS = 3;
+
+    private final HazelcastInstance hazelcastInstance;
+    private final Path directory;
+    private final int dimensions;
+    private final int m;
+    private final int efConstruction;
+    private final int efSearch;
+    private final Map<String, HnswIndex> indexes;
+
+    public HnswVectorStore(HazelcastInstance hazelcastInstance, EmbeddingProvider embeddingProvider,
+            @Value("${retrieval.hnsw.directory:./data/hnsw}") String directory,
+            @Value("${retrieval.hnsw.m:16}") int m,
+            @Value("${retrieval.hnsw.ef-construction:100}") int efConstruction,
+            @Value("${retrieval.hnsw.ef-search:64}") int efSearch,
+            @Value("${retrieval.hnsw.max-open-indexes:256}") int maxOpenIndexes) {
+        this.hazelcastInstance = hazelcastInstance;
+        this.directory = Paths.get(directory);
+        this.dimensions = embeddingProvider.dimensions();
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.indexes = new LinkedHashMap<String, HnswIndex>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HnswIndex> eldest) {
+                if (size() <= maxOpenIndexes) {
+                    return false;
+                }
+                close(eldest.getValue());
+                return true;
+            }
+        };
+        // The tasks run on the owner of the partition find the store of their member here
+        hazelcastInstance.getUserContext().put(USER_CONTEXT_KEY, this);
+    }
+
+    /**
+     * Searches the chunks of the contexts of a user nearest to a query.
+     *
+     * @param userId The owner of the contexts.
+     * @param versions The versions of the indexed chunks of the contexts, by context tag.
+     * @param query The embedding of the query.
+     * @param k The number of chunks to return.
+     * @return The chunks found, or the contexts that must be indexed first.
+     */
+    public SearchResult search(String userId, Map<Long, Long> versions, float[] query, int k) {
+        return call(new SearchTask(userId, new LinkedHashMap<>(versions), query, k), userId);
+    }
+
+    /**
+     * Replaces the indexed chunks of a context.
+     *
+     * @param userId The owner of the context.
+     * @param tag The tag of the context.
+     * @param version The version of the chunks, checked by the searches.
+     * @param vectors The embeddings of the chunks.
+     * @param chunks The locations of the chunks: document, position, start and end.
+     */
+    public void index(String userId, long tag, long version, float[][] vectors, int[][] chunks) {
+        call(new IndexTask(userId, tag, version, vectors, chunks), userId);
+    }
+
+    /**
+     * Deletes the indexed chunks of a context.
+     */
+    public void delete(String userId, long tag) {
+        call(new DeleteTask(userId, tag), userId);
+    }
+
+    /**
+     * @return The tag identifying a context in the index of its user.
+     */
+    public static long tag(String userId, String sessionId, String contextName) {
+        return ChatMessage.fingerprint(userId + ":" + sessionId + ":" + contextName);
+    }
+
+    @PreDestroy
+    public void closeAll() {
+        synchronized (indexes) {
+            indexes.values().forEach(this::close);
+            indexes.clear();
+        }
+    }
+
+    private <T> T call(Callable<T> task, String userId) {
+        try {
+            return hazelcastInstance.getExecutorService(EXECUTOR).submitToKeyOwner(task, userId).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying the index of user " + userId, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed querying the index of user " + userId, e.getCause());
+        }
+    }
+
+    private SearchResult localSearch(String userId, Map<Long, Long> versions, float[] query, int k) {
+        return withIndex(userId, index -> {
+            Set<Long> missing = new HashSet<>();
+            for (Map.Entry<Long, Long> version : versions.entrySet()) {
+                if (!version.getValue().equals(index.getVersion(version.getKey()))) {
+                    missing.add(version.getKey());
+                }
+            }
+            if (!missing.isEmpty()) {
+                return new SearchResult(List.of(), missing);
+            }
+            return new SearchResult(index.search(query, k, efSearch, versions.keySet()), Set.of());
+        });
+    }
+
+    private Void localIndex(String userId, long tag, long version, float[][] vectors, int[][] chunks) {
+        localDelete(userId, tag);
+        withIndex(userId, index -> {
+            // Again on a retry, the chunks added before the index was closed were flushed
+            index.delete(tag);
+            for (int i = 0; i < vectors.length; i++) {
+                index.insert(vectors[i], tag, chunks[i][0], chunks[i][1], chunks[i][2], chunks[i][3]);
+            }
+            index.setVersion(tag, version);
+            flush(index);
+            return null;
+        });
+        return null;
+    }
+
+    private Void localDelete(String userId, long tag) {
+        HnswIndex dropped = withIndex(userId, index -> {
+            index.delete(tag);
+            flush(index);
+            return index.deletedCount() > index.size() / 2 ? index : null;
+        });
+        if (dropped != null) {
+            // Mostly tombstones: the index is dropped, the next searches index the contexts again
+            synchronized (indexes) {
+                indexes.remove(userDirectory(userId).toString());
+                close(dropped);
+                deleteDirectory(userDirectory(userId));
+            }
+            logger.info("Dropped the index of user {}, {} of its {} chunks were deleted", userId,
+                    dropped.deletedCount(), dropped.size());
+        }
+        return null;
+    }
+
+    // An index may be closed by its eviction from the open ones between the lookup and the use
+    private <T> T withIndex(String userId, Function<HnswIndex, T> operation) {
+        for (int attempt = 1;; attempt++) {
+            HnswIndex index = open(userId);
+            try {
+                return operation.apply(index);
+            } catch (IllegalStateException e) {
+                if (!index.isClosed() || attempt == OPEN_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private HnswIndex open(String userId) {
+        Path path = userDirectory(userId);
+        String key = path.toString();
+        synchronized (indexes) {
+            HnswIndex index = indexes.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                index = HnswIndex.open(path, dimensions, m, efConstruction);
+            } catch (IOException e) {
+                // Unreadable or of another embedding provider: built again from the documents
+                logger.warn("Index of user {} can't be opened, it is built again: {}", userId, e.getMessage());
+                deleteDirectory(path);
+                try {
+                    index = HnswIndex.open(path, dimensions, m, efConstruction);
+                } catch (IOException again) {
+                    throw new UncheckedIOException(again);
+                }
+            }
+            indexes.put(key, index);
+            return index;
+        }
+    }
+
+    private Path userDirectory(String userId) {
+        int partition = hazelcastInstance.getPartitionService().getPartition(userId).getPartitionId();
+        return directory.resolve("partition-" + partition).resolve(Long.toHexString(ChatMessage.fingerprint(userId)));
+    }
+
+    private void close(HnswIndex index) {
+        try {
+            index.close();
+        } catch (IOException e) {
+            logger.warn("Failed to flush a closed index: {}", e.getMessage());
+        }
+    }
+
+    private static void flush(HnswIndex index) {
+        try {
+            index.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteDirectory(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The result of a search.
+     *
+     * @param hits The chunks found, most similar first.
+     * @param missing The tags of the contexts not indexed, or indexed with another version; no
+     *                chunks are searched when there are some.
+     */
+    public record SearchResult(List<HnswIndex.Hit> hits, Set<Long> missing) implements Serializable {
+    }
+
+    // The tasks run on the member owning the partition of the user, with the store of that member
+    private abstract static class StoreTask<T> implements Callable<T>, Serializable, HazelcastInstanceAware {
+        private static final long serialVersionUID = 1L;
+        private transient HnswVectorStore store;
+
+        @Override
+        public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+            store = (HnswVectorStore) hazelcastInstance.getUserContext().get(USER_CONTEXT_KEY);
+        }
+
+        @Override
+        public T call() {
+            return call(store);
+        }
+
+        abstract T call(HnswVectorStore store);
+    }
+
+    private static final class SearchTask extends StoreTask<SearchResult> {
+        private static final long serialVersionUID = 1L;
+        private final String userId;
+        private final LinkedHashMap<Long, Long> versions;
+        private final float[] query;
+        private final int k;
+
+        SearchTask(String userId, LinkedHashMap<Long, Long> versions, float[] query, int k) {
+            this.userId = userId;
+            this.versions = versions;
+            this.query = query;
+            this.k = k;
+        }
+
+        @Override
+        SearchResult call(HnswVectorStore store) {
+            return store.localSearch(userId, versions, query, k);
+        }
+    }
+
+    private static final class IndexTask extends StoreTask<Void> {
+        private static final long serialVersionUID = 1L;
+        private final String userId;
+        private final long tag;
+        private final long version;
+        private final float[][] vectors;
+        private final int[][] chunks;
+
+        IndexTask(String userId, long tag, long version, float[][] vectors, int[][] chunks) {
+            this.userId = userId;
+            this.tag = tag;
+            this.version = version;
+            this.vectors = vectors;
+            this.chunks = chunks;
+        }
+
+        @Override
+        Void call(HnswVectorStore store) {
+            return store.localIndex(userId, tag, version, vectors, chunks);
+        }
+    }
+
+    private static final class DeleteTask extends StoreTask<Void> {
+        private static final long serialVersionUID = 1L;
+        private final String userId;
+        private final long tag;
+
+        DeleteTask(String userId, long tag) {
+            this.userId = userId;
+            this.tag = tag;
+        }
+
+        @Override
+        Void call(HnswVectorStore store) {
+            return store.localDelete(userId, tag);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.bloberryconsulting.aicontextsbridge.model.ChatMessage;
+import com.bloberryconsulting.aicontextsbridge.model.Context;
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.TokenCounter;
+
+/**
+ * Selects the parts of the context documents to send with a prompt. Documents that fit in their
+ * share of the request are sent whole; larger ones are chunked, indexed, and only the top-k chunks
+ * most relevant to the prompt that fit in the share are sent.
+ *
+ * The BM25 and vector indexes of a context are built when the context is stored and kept in a
+ * bounded LRU map on this member. A member that has no index for a context, or an index of other
+ * documents, builds it on the first request, so nothing of it needs to be shared through the
+ * cluster. With {@code retrieval.index=hnsw} the chunks are instead indexed off-heap in the
+ * {@link HnswVectorStore}, on the member owning the partition of the user.
+ */
+@Service
+public class RetrievalService {
+    private static final Logger logger = LoggerFactory.getLogger(RetrievalService.class);
+    private static final String BM25 = "bm25";
+    private static final String HNSW = "hnsw";
+
+    private final EmbeddingProvider embeddingProvider;
+    private final TokenCounter tokenCounter;
+    private final HnswVectorStore vectorStore;
+    private final DocumentChunker chunker;
+    private final String indexType;
+    private final int topK;
+    private final double contextShare;
+    private final Map<String, ContextIndex> indexes;
+
+    public RetrievalService(EmbeddingProvider embeddingProvider, TokenCounter tokenCounter, HnswVectorStore vectorStore,
+            @Value("${retrieval.chunk-tokens:300}") int chunkTokens,
+            @Value("${retrieval.chunk-overlap-tokens:40}") int overlapTokens,
+            @Value("${retrieval.index:bm25}") String indexType,
+            @Value("${retrieval.top-k:8}") int topK,
+            @Value("${retrieval.context-share:0.5}") double contextShare,
+            @Value("${retrieval.max-indexed-contexts:1000}") int maxIndexedContexts) {
+        this.embeddingProvider = embeddingProvider;
+        this.tokenCounter = tokenCounter;
+        this.vectorStore = vectorStore;
+        this.chunker = new DocumentChunker(chunkTokens, overlapTokens);
+        this.indexType = indexType;
+        this.topK = topK;
+        this.contextShare = contextShare;
+        this.indexes = Collections.synchronizedMap(new LinkedHashMap<String, ContextIndex>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ContextIndex> eldest) {
+                return size() > maxIndexedContexts;
+            }
+        });
+    }
+
+    /**
+     * Chunks and indexes the documents of a context, replacing the index of its previous documents.
+     *
+     * @param context The stored context.
+     */
+    public void indexContext(Context context) {
+        if (context.getDocuments() != null && context.getDocuments().length > 0) {
+            long documentsKey = documentsKey(fingerprints(context.getDocuments()));
+            if (!HNSW.equals(indexType)) {
+                indexFor(context, documentsKey);
+                return;
+            }
+            try {
+                indexInStore(context, documentsKey);
+            } catch (RuntimeException e) {
+                // The first request on the context indexes it again
+                logger.warn("Failed to index context {}: {}", context.getName(), e.getMessage());
+            }
+        } else {
+            evictContext(context.getUserId(), context.getSessionId(), context.getName());
+        }
+    }
+
+    /**
+     * Drops the index of a deleted context.
+     */
+    public void evictContext(String userId, String sessionId, String contextName) {
+        indexes.remove(indexKey(userId, sessionId, contextName));
+        if (HNSW.equals(indexType)) {
+            vectorStore.delete(userId, HnswVectorStore.tag(userId, sessionId, contextName));
+        }
+    }
+
+    /**
+     * Selects the documents or document chunks to send with a prompt.
+     *
+     * @param contexts The contexts of the request.
+     * @param query The prompt.
+     * @param maxRequestTokens The token budget of the whole request, the documents get their share of it.
+     * @param model The model the request is sent to.
+     * @return The selected texts keyed by their fingerprint, in document order.
+     */
+    public Map<Long, String> retrieve(List<Context> contexts, String query, int maxRequestTokens, String model) {
+        int budget = (int) (maxRequestTokens * contextShare);
+        Map<Long, String> documents = new LinkedHashMap<>();
+        List<Context> withDocuments = new ArrayList<>();
+        List<long[]> fingerprints = new ArrayList<>();
+        int documentTokens = 0;
+        for (Context context : contexts) {
+            if (context != null && context.getDocuments() != null && context.getDocuments().length > 0) {
+                long[] contextFingerprints = fingerprints(context.getDocuments());
+                for (int i = 0; i < contextFingerprints.length; i++) {
+                    String document = context.getDocuments()[i];
+                    if (documents.putIfAbsent(contextFingerprints[i], document) == null) {
+                        documentTokens += tokenCounter.countTokens(document, model);
+                    }
+                }
+                withDocuments.add(context);
+                fingerprints.add(contextFingerprints);
+            }
+        }
+        if (documentTokens <= budget) {
+            return documents;
+        }
+
+        List<List<Selected>> rankings = HNSW.equals(indexType)
+                ? List.of(searchStore(withDocuments, fingerprints, query))
+                : searchIndexes(withDocuments, fingerprints, query);
+
+        // The scores of separate indexes don't compare, the rankings are interleaved: the best chunk of
+        // every context first, then the second ones, and so on
+        List<Selected> selected = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        int tokens = 0;
+        for (int rank = 0; selected.size() < topK && hasRank(rankings, rank); rank++) {
+            for (int i = 0; i < rankings.size() && selected.size() < topK; i++) {
+                if (rank >= rankings.get(i).size()) {
+                    continue;
+                }
+                Selected candidate = rankings.get(i).get(rank);
+                int chunkTokens = tokenCounter.countTokens(candidate.chunk().text(), model);
+                // A chunk that doesn't fit is skipped, a smaller one further down may still fit
+                if (tokens + chunkTokens <= budget && seen.add(candidate.chunk().fingerprint())) {
+                    selected.add(candidate);
+                    tokens += chunkTokens;
+                }
+            }
+        }
+        if (selected.isEmpty()) {
+            // Nothing matches the prompt, the beginning of the documents is sent
+            for (int i = 0; i < withDocuments.size() && selected.size() < topK; i++) {
+                List<DocumentChunk> chunks = HNSW.equals(indexType) ? chunks(withDocuments.get(i))
+                        : indexFor(withDocuments.get(i), documentsKey(fingerprints.get(i))).chunks();
+                for (DocumentChunk chunk : chunks) {
+                    int chunkTokens = tokenCounter.countTokens(chunk.text(), model);
+                    if (selected.size() == topK || tokens + chunkTokens > budget) {
+                        break;
+                    }
+                    selected.add(new Selected(i, chunk));
+                    tokens += chunkTokens;
+                }
+            }
+        }
+        logger.debug("Retrieved {} chunks, {} tokens, of {} document tokens", selected.size(), tokens, documentTokens);
+
+        selected.sort(Comparator.comparingInt(Selected::context)
+                .thenComparingInt(s -> s.chunk().document())
+                .thenComparingInt(s -> s.chunk().position()));
+        Map<Long, String> chunks = new LinkedHashMap<>();
+        for (Selected s : selected) {
+            chunks.put(s.chunk().fingerprint(), s.chunk().text());
+        }
+        return chunks;
+    }
+
+    private List<List<Selected>> searchIndexes(List<Context> contexts, List<long[]> fingerprints, String query) {
+        List<List<Selected>> rankings = new ArrayList<>();
+        for (int i = 0; i < contexts.size(); i++) {
+            ContextIndex contextIndex = indexFor(contexts.get(i), documentsKey(fingerprints.get(i)));
+            List<Selected> ranking = new ArrayList<>();
+            for (int chunk : contextIndex.index().search(query, topK)) {
+                ranking.add(new Selected(i, contextIndex.chunks().get(chunk)));
+            }
+            rankings.add(ranking);
+        }
+        return rankings;
+    }
+
+    // The chunks of all the contexts are scored by the same embedding, they make a single ranking
+    private List<Selected> searchStore(List<Context> contexts, List<long[]> fingerprints, String query) {
+        Map<String, Map<Long, Long>> versionsByUser = new LinkedHashMap<>();
+        Map<Long, Integer> contextOfTag = new HashMap<>();
+        for (int i = 0; i < contexts.size(); i++) {
+            Context context = contexts.get(i);
+            long tag = HnswVectorStore.tag(context.getUserId(), context.getSessionId(), context.getName());
+            contextOfTag.put(tag, i);
+            versionsByUser.computeIfAbsent(context.getUserId(), userId -> new LinkedHashMap<>())
+                    .put(tag, storeVersion(documentsKey(fingerprints.get(i))));
+        }
+        float[] vector = embeddingProvider.embed(query);
+        List<HnswIndex.Hit> hits = new ArrayList<>();
+        try {
+            for (Map.Entry<String, Map<Long, Long>> versions : versionsByUser.entrySet()) {
+                HnswVectorStore.SearchResult result = vectorStore.search(versions.getKey(), versions.getValue(),
+                        vector, topK);
+                if (!result.missing().isEmpty()) {
+                    for (long tag : result.missing()) {
+                        int i = contextOfTag.get(tag);
+                        indexInStore(contexts.get(i), documentsKey(fingerprints.get(i)));
+                    }
+                    result = vectorStore.search(versions.getKey(), versions.getValue(), vector, topK);
+                }
+                hits.addAll(result.hits());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Vector store search failed, the leading chunks are sent: {}", e.getMessage());
+            return List.of();
+        }
+        hits.sort(Comparator.comparingDouble(HnswIndex.Hit::score).reversed());
+        List<Selected> ranking = new ArrayList<>();
+        for (HnswIndex.Hit hit : hits) {
+            int i = contextOfTag.get(hit.tag());
+            String text = contexts.get(i).getDocuments()[hit.document()].substring(hit.start(), hit.end());
+            ranking.add(new Selected(i, new DocumentChunk(text, ChatMessage.fingerprint(text), hit.document(),
+                    hit.position())));
+        }
+        return ranking;
+    }
+
+    private void indexInStore(Context context, long documentsKey) {
+        long start = System.nanoTime();
+        List<String> texts = new ArrayList<>();
+        List<int[]> locations = new ArrayList<>();
+        String[] documents = context.getDocuments();
+        for (int document = 0; document < documents.length; document++) {
+            List<DocumentChunker.Span> spans = chunker.spans(documents[document]);
+            for (int position = 0; position < spans.size(); position++) {
+                DocumentChunker.Span span = spans.get(position);
+                texts.add(documents[document].substring(span.start(), span.end()));
+                locations.add(new int[] { document, position, span.start(), span.end() });
+            }
+        }
+        float[][] vectors = embeddingProvider.embedAll(texts).toArray(new float[0][]);
+        vectorStore.index(context.getUserId(),
+                HnswVectorStore.tag(context.getUserId(), context.getSessionId(), context.getName()),
+                storeVersion(documentsKey), vectors, locations.toArray(new int[0][]));
+        logger.info("Indexed {} chunks of context {} with {} in the vector store in {} ms", texts.size(),
+                context.getName(), embeddingProvider.getName(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // Chunks embedded by another provider are indexed again
+    private long storeVersion(long documentsKey) {
+        return documentsKey * 31 + embeddingProvider.getName().hashCode();
+    }
+
+    private static boolean hasRank(List<List<Selected>> rankings, int rank) {
+        for (List<Selected> ranking : rankings) {
+            if (rank < ranking.size()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ContextIndex indexFor(Context context, long documentsKey) {
+        String key = indexKey(context.getUserId(), context.getSessionId(), context.getName());
+        String indexName = BM25.equals(indexType) ? BM25 : embeddingProvider.getName();
+        ContextIndex contextIndex = indexes.get(key);
+        if (contextIndex != null && contextIndex.documentsKey() == documentsKey
+                && contextIndex.indexName().equals(indexName)) {
+            return contextIndex;
+        }
+
+        // Built outside of the lock, two requests may build the same index once
+        long start = System.nanoTime();
+        List<DocumentChunk> chunks = chunks(context);
+        List<String> texts = chunks.stream().map(DocumentChunk::text).toList();
+        ChunkIndex index = BM25.equals(indexType) ? new Bm25Index(texts) : new VectorIndex(texts, embeddingProvider);
+        contextIndex = new ContextIndex(documentsKey, indexName, chunks, index);
+        indexes.put(key, contextIndex);
+        logger.info("Indexed {} chunks of context {} with {} in {} ms", chunks.size(), context.getName(), indexName,
+                (System.nanoTime() - start) / 1_000_000);
+        return contextIndex;
+    }
+
+    private List<DocumentChunk> chunks(Context context) {
+        List<DocumentChunk> chunks = new ArrayList<>();
+        String[] documents = context.getDocuments();
+        for (int document = 0; document < documents.length; document++) {
+            List<String> texts = chunker.chunk(documents[document]);
+            for (int position = 0; position < texts.size(); position++) {
+                String text = texts.get(position);
+                chunks.add(new DocumentChunk(text, ChatMessage.fingerprint(text), document, position));
+            }
+        }
+        return chunks;
+    }
+
+    private static long[] fingerprints(String[] documents) {
+        long[] fingerprints = new long[documents.length];
+        for (int i = 0; i < documents.length; i++) {
+            fingerprints[i] = ChatMessage.fingerprint(documents[i]);
+        }
+        return fingerprints;
+    }
+
+    // Identifies the documents of a context, an index of other documents is built again
+    private static long documentsKey(long[] fingerprints) {
+        long key = fingerprints.length;
+        for (long fingerprint : fingerprints) {
+            key = key * 31 + fingerprint;
+        }
+        return key;
+    }
+
+    private static String indexKey(String userId, String sessionId, String contextName) {
+        return userId + ":" + sessionId + ":" + contextName;
+    }
+
+    private record ContextIndex(long documentsKey, String indexName, List<DocumentChunk> chunks, ChunkIndex index) {
+    }
+
+    private record Selected(int context, DocumentChunk chunk) {
+    }
+}
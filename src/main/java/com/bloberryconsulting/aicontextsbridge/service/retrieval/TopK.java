@@ -0,0 +1,39 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import java.util.PriorityQueue;
+
+/**
+ * Selects the best scored items with a bounded min-heap, O(n log k).
+ */
+final class TopK {
+
+    private TopK() {
+    }
+
+    /**
+     * @param scores The score of every item, items scored 0 or less are not selected.
+     * @param limit The maximum number of items to select.
+     * @return The indexes of the selected items, best first.
+     */
+    static int[] select(double[] scores, int limit) {
+        if (limit <= 0) {
+            return new int[0];
+        }
+        PriorityQueue<Integer> heap = new PriorityQueue<>(limit + 1,
+                (a, b) -> scores[a] != scores[b] ? Double.compare(scores[a], scores[b]) : Integer.compare(b, a));
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] <= 0) {
+                continue;
+            }
+            heap.add(i);
+            if (heap.size() > limit) {
+                heap.poll();
+            }
+        }
+        int[] selected = new int[heap.size()];
+        for (int i = selected.length - 1; i >= 0; i--) {
+            selected[i] = heap.poll();
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,40 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import java.util.List;
+
+/**
+ * Exact nearest neighbour search over the embeddings of the chunks: the vectors are kept in a
+ * single array and scored by dot product, which is the cosine similarity for unit vectors.
+ */
+public class VectorIndex implements ChunkIndex {
+    private final EmbeddingProvider embeddingProvider;
+    private final int dimensions;
+    private final float[] vectors; // chunk i: vectors[i * dimensions, (i + 1) * dimensions)
+    private final int size;
+
+    public VectorIndex(List<String> chunks, EmbeddingProvider embeddingProvider) {
+        this.embeddingProvider = embeddingProvider;
+        this.dimensions = embeddingProvider.dimensions();
+        this.size = chunks.size();
+        this.vectors = new float[size * dimensions];
+        List<float[]> embeddings = embeddingProvider.embedAll(chunks);
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(embeddings.get(i), 0, vectors, i * dimensions, dimensions);
+        }
+    }
+
+    @Override
+    public int[] search(String query, int limit) {
+        float[] target = embeddingProvider.embed(query);
+        double[] scores = new double[size];
+        for (int chunk = 0; chunk < size; chunk++) {
+            int offset = chunk * dimensions;
+            float dot = 0;
+            for (int i = 0; i < dimensions; i++) {
+                dot += vectors[offset + i] * target[i];
+            }
+            scores[chunk] = dot;
+        }
+        return TopK.select(scores, limit);
+    }
+}
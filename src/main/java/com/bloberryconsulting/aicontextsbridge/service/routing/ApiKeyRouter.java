@@ -0,0 +1,337 @@
+package com.bloberryconsulting.aicontextsbridge.service.routing;
+
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.bloberryconsulting.aicontextsbridge.exceptions.UpstreamError;
+import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
+import com.bloberryconsulting.aicontextsbridge.repository.UserRepository;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+
+/**
+ * Spreads the requests of an API key over its pool: the enabled keys of the same owner, service,
+ * model and visibility. Each request goes to the better of two keys of the pool drawn at random
+ * (power of two choices), the one with the most quota left for its in-flight requests on this
+ * member. The quota left is the one reported by the API in the rate limit headers of the last
+ * response of the key, shared by the members in the {@value #API_KEY_LOAD_MAP} map.
+ *
+ * A request failing with a rate limit or a server error, or not reaching the API, is sent again with
+ * another key of the pool, and the failed key cools down: for the time asked by the API in
+ * {@code Retry-After}, or the default cool down. A key alone in its pool is always used.
+ */
+@Service
+public class ApiKeyRouter {
+    public static final String API_KEY_LOAD_MAP = "apiKeyLoad";
+    private static final Logger logger = LoggerFactory.getLogger(ApiKeyRouter.class);
+    // The reset times of OpenAI, e.g. "1s", "6m0s" or "20ms"
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    private final UserRepository userRepository;
+    private final IMap<String, KeyLoad> loads;
+    private final boolean enabled;
+    private final int maxAttempts;
+    private final long cooldownMillis;
+    private final long poolCacheMillis;
+    private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder failovers = new LongAdder();
+    private final ExecutorService completionExecutor;
+
+    public ApiKeyRouter(UserRepository userRepository, HazelcastInstance hazelcastInstance,
+            @Qualifier("completionExecutor") ExecutorService completionExecutor,
+            @Value("${routing.enabled:true}") boolean enabled,
+            @Value("${routing.max-attempts:3}") int maxAttempts,
+            @Value("${routing.cooldown-seconds:10}") int cooldownSeconds,
+            @Value("${routing.pool-cache-seconds:30}") int poolCacheSeconds) {
+        this.userRepository = userRepository;
+        this.loads = hazelcastInstance.getMap(API_KEY_LOAD_MAP);
+        this.enabled = enabled;
+        this.maxAttempts = maxAttempts;
+        this.cooldownMillis = cooldownSeconds * 1000L;
+        this.poolCacheMillis = poolCacheSeconds * 1000L;
+        this.completionExecutor = completionExecutor;
+    }
+
+    /**
+     * Calls an API with a key of the pool of the selected key, with another one on a failure that
+     * another key may not have.
+     *
+     * @param selected The key selected by the user.
+     * @param call The call of the API with a key.
+     * @return The result of the first successful call.
+     */
+    public <T> T route(ApiKey selected, Function<ApiKey, T> call) {
+        List<String> pool = pool(selected);
+        Set<String> tried = new HashSet<>();
+        while (true) {
+            ApiKey apiKey = pick(selected, pool, tried);
+            AtomicInteger requests = begin(apiKey);
+            try {
+                return call.apply(apiKey);
+            } catch (RuntimeException e) {
+                if (!failOver(apiKey, e, pool, tried)) {
+                    throw e;
+                }
+            } finally {
+                requests.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Calls an API asynchronously like {@link #route}. Cancelling the returned future cancels the
+     * call in progress.
+     */
+    public <T> CompletableFuture<T> routeAsync(ApiKey selected, Function<ApiKey, CompletableFuture<T>> call) {
+        List<String> pool = pool(selected);
+        if (pool.size() < 2) {
+            return call.apply(selected);
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<T>> attempt = new AtomicReference<>();
+        result.whenComplete((value, error) -> {
+            CompletableFuture<T> current = attempt.get();
+            if (result.isCancelled() && current != null) {
+                current.cancel(true);
+            }
+        });
+        attemptAsync(selected, pool, new HashSet<>(), call, result, attempt);
+        return result;
+    }
+
+    // The attempts follow each other, the tried keys are handed over with the completion of the previous one.
+    // The next attempt is made on the completion executor: loading the key and building its request (the
+    // retrieval included) block on the cluster, which the thread of the HTTP client completing the failed
+    // attempt must not
+    private <T> void attemptAsync(ApiKey selected, List<String> pool, Set<String> tried,
+            Function<ApiKey, CompletableFuture<T>> call, CompletableFuture<T> result,
+            AtomicReference<CompletableFuture<T>> attempt) {
+        ApiKey apiKey = pick(selected, pool, tried);
+        AtomicInteger requests = begin(apiKey);
+        CompletableFuture<T> future;
+        try {
+            future = call.apply(apiKey);
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        attempt.set(future);
+        if (result.isCancelled()) {
+            future.cancel(true);
+        }
+        future.whenComplete((value, error) -> {
+            requests.decrementAndGet();
+            if (error == null) {
+                result.complete(value);
+            } else if (result.isDone()) {
+                result.completeExceptionally(error);
+            } else {
+                completionExecutor.execute(() -> {
+                    try {
+                        if (failOver(apiKey, error, pool, tried)) {
+                            attemptAsync(selected, pool, tried, call, result, attempt);
+                        } else {
+                            result.completeExceptionally(error);
+                        }
+                    } catch (RuntimeException e) {
+                        result.completeExceptionally(e);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Records the rate limit headers of a response of an API key, for the next choices of the members.
+     */
+    public void record(ApiKey apiKey, HttpHeaders headers) {
+        long limitRequests = longHeader(headers, "x-ratelimit-limit-requests");
+        long limitTokens = longHeader(headers, "x-ratelimit-limit-tokens");
+        if (!enabled || apiKey.getKeyId() == null || (limitRequests < 0 && limitTokens < 0)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        KeyLoad observation = new KeyLoad(limitRequests, longHeader(headers, "x-ratelimit-remaining-requests"),
+                now + durationHeader(headers, "x-ratelimit-reset-requests"), limitTokens,
+                longHeader(headers, "x-ratelimit-remaining-tokens"),
+                now + durationHeader(headers, "x-ratelimit-reset-tokens"), 0, now);
+        // Not waited for, the response is not held by the bookkeeping
+        loads.submitToKey(apiKey.getKeyId(), new KeyLoadProcessor(observation));
+    }
+
+    /**
+     * @return The wait asked by a response in its {@code Retry-After} header in millis, 0 if none.
+     */
+    public static long retryAfterMillis(HttpHeaders headers) {
+        return headers.firstValue("retry-after")
+                .map(value -> {
+                    try {
+                        return (long) (Double.parseDouble(value.trim()) * 1000);
+                    } catch (NumberFormatException e) {
+                        // An HTTP date, the default cool down applies
+                        return 0L;
+                    }
+                })
+                .orElse(0L);
+    }
+
+    /**
+     * @return The failovers of this member and its requests in flight per key.
+     */
+    public Map<String, Object> stats() {
+        Map<String, Integer> requests = new LinkedHashMap<>();
+        inFlight.forEach((keyId, count) -> requests.put(keyId, count.get()));
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("failovers", failovers.sum());
+        stats.put("inFlight", requests);
+        return stats;
+    }
+
+    // Whether the failed call is sent again with another key, the failed key then cools down
+    private boolean failOver(ApiKey apiKey, Throwable error, List<String> pool, Set<String> tried) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        long retryAfter;
+        if (cause instanceof UpstreamError upstreamError
+                && (upstreamError.getStatusCode() == 429 || upstreamError.getStatusCode() >= 500)) {
+            retryAfter = upstreamError.getRetryAfterMillis();
+        } else if (cause instanceof IOException) {
+            retryAfter = 0;
+        } else {
+            return false;
+        }
+        if (tried.size() >= Math.min(pool.size(), maxAttempts)) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        loads.submitToKey(apiKey.getKeyId(),
+                new KeyLoadProcessor(KeyLoad.cooling(now + (retryAfter > 0 ? retryAfter : cooldownMillis), now)));
+        failovers.increment();
+        logger.warn("API key {} failed ({}), trying another key of its pool", apiKey.getKeyId(), cause.getMessage());
+        return true;
+    }
+
+    private AtomicInteger begin(ApiKey apiKey) {
+        AtomicInteger requests = inFlight.computeIfAbsent(String.valueOf(apiKey.getKeyId()), id -> new AtomicInteger());
+        requests.incrementAndGet();
+        return requests;
+    }
+
+    // The better of two untried keys drawn at random; the selected key is the one not loaded again
+    private ApiKey pick(ApiKey selected, List<String> pool, Set<String> tried) {
+        while (true) {
+            List<String> candidates = new ArrayList<>(pool.size());
+            for (String keyId : pool) {
+                if (!tried.contains(keyId)) {
+                    candidates.add(keyId);
+                }
+            }
+            String keyId;
+            if (candidates.isEmpty()) {
+                return selected;
+            } else if (candidates.size() == 1) {
+                keyId = candidates.get(0);
+            } else {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int first = random.nextInt(candidates.size());
+                int second = random.nextInt(candidates.size() - 1);
+                keyId = better(candidates.get(first), candidates.get(second < first ? second : second + 1));
+            }
+            tried.add(keyId);
+            if (keyId.equals(selected.getKeyId())) {
+                return selected;
+            }
+            ApiKey apiKey = userRepository.findApiKeyByApiKeyId(keyId);
+            if (apiKey != null && !apiKey.isDisabled()) {
+                return apiKey;
+            }
+            // Deleted or disabled since the pool was cached
+        }
+    }
+
+    private String better(String first, String second) {
+        Map<String, KeyLoad> known = loads.getAll(Set.of(first, second));
+        long now = System.currentTimeMillis();
+        return score(first, known.get(first), now) >= score(second, known.get(second), now) ? first : second;
+    }
+
+    private double score(String keyId, KeyLoad load, long now) {
+        AtomicInteger requests = inFlight.get(keyId);
+        return (load != null ? load.headroom(now) : 1) / (1 + (requests != null ? requests.get() : 0));
+    }
+
+    // The keys the requests of the selected key may go to, cached for a while; none if it isn't routed
+    private List<String> pool(ApiKey selected) {
+        if (!enabled || selected.getKeyId() == null || selected.getUserId() == null || selected.getModel() == null) {
+            return List.of();
+        }
+        long now = System.currentTimeMillis();
+        Pool pool = pools.get(selected.getKeyId());
+        if (pool == null || pool.expiresAt() < now) {
+            List<String> keyIds = new ArrayList<>();
+            keyIds.add(selected.getKeyId());
+            for (ApiKey apiKey : userRepository.findApiKeysByOwnerAndModel(selected.getUserId(), selected.getModel())) {
+                if (!apiKey.isDisabled() && apiKey.isPublicAccessed() == selected.isPublicAccessed()
+                        && Objects.equals(apiKey.getName(), selected.getName())
+                        && !selected.getKeyId().equals(apiKey.getKeyId())) {
+                    keyIds.add(apiKey.getKeyId());
+                }
+            }
+            pool = new Pool(List.copyOf(keyIds), now + poolCacheMillis);
+            pools.put(selected.getKeyId(), pool);
+        }
+        return pool.keyIds();
+    }
+
+    private static long longHeader(HttpHeaders headers, String name) {
+        try {
+            return headers.firstValue(name).map(value -> Long.parseLong(value.trim())).orElse(-1L);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // The milliseconds of a duration like "6m0s", 0 if the header is missing
+    static long durationHeader(HttpHeaders headers, String name) {
+        String value = headers.firstValue(name).orElse("");
+        Matcher matcher = DURATION_PART.matcher(value);
+        double millis = 0;
+        while (matcher.find()) {
+            double amount = Double.parseDouble(matcher.group(1));
+            millis += switch (matcher.group(2)) {
+                case "h" -> amount * 3_600_000;
+                case "m" -> amount * 60_000;
+                case "s" -> amount * 1000;
+                default -> amount;
+            };
+        }
+        return (long) millis;
+    }
+
+    private record Pool(List<String> keyIds, long expiresAt) {
+    }
+}
@@ -0,0 +1,48 @@
+package com.bloberryconsulting.aicontextsbridge.service.routing;
+
+import java.io.Serializable;
+
+/**
+ * The rate limit state of an API key, as last reported by its API in the {@code x-ratelimit-*}
+ * response headers. The counts are -1 when the API doesn't report them, the times are epoch millis.
+ *
+ * @param limitRequests The requests allowed per window.
+ * @param remainingRequests The requests left in the window.
+ * @param requestsResetAt When the requests window is reset.
+ * @param limitTokens The tokens allowed per window.
+ * @param remainingTokens The tokens left in the window.
+ * @param tokensResetAt When the tokens window is reset.
+ * @param coolingUntil Until when the key is not used, after a rate limit or server error.
+ * @param observedAt When the headers were received.
+ */
+public record KeyLoad(long limitRequests, long remainingRequests, long requestsResetAt, long limitTokens,
+        long remainingTokens, long tokensResetAt, long coolingUntil, long observedAt) implements Serializable {
+
+    static KeyLoad cooling(long until, long now) {
+        return new KeyLoad(-1, -1, 0, -1, -1, 0, until, now);
+    }
+
+    // A cool down alone doesn't carry the limits
+    boolean reportsLimits() {
+        return limitRequests >= 0 || limitTokens >= 0;
+    }
+
+    /**
+     * @return The fraction of the quota of the key left at the given time, the lower of the requests
+     *         and tokens fractions; 1 if unknown or reset since, 0 while the key is cooling down.
+     */
+    public double headroom(long now) {
+        if (coolingUntil > now) {
+            return 0;
+        }
+        return Math.min(fraction(remainingRequests, limitRequests, requestsResetAt, now),
+                fraction(remainingTokens, limitTokens, tokensResetAt, now));
+    }
+
+    private static double fraction(long remaining, long limit, long resetAt, long now) {
+        if (remaining < 0 || limit <= 0 || now >= resetAt) {
+            return 1;
+        }
+        return Math.min(1, (double) remaining / limit);
+    }
+}
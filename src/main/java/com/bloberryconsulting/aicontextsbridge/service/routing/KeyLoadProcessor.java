@@ -0,0 +1,37 @@
+package com.bloberryconsulting.aicontextsbridge.service.routing;
+
+import java.util.Map;
+
+import com.hazelcast.map.EntryProcessor;
+
+/**
+ * Merges an observation into the load of an API key on the member that owns the key. Responses of
+ * the key come back on every member in any order: an older observation doesn't replace a newer one,
+ * and the longest cool down is kept.
+ */
+public class KeyLoadProcessor implements EntryProcessor<String, KeyLoad, Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final KeyLoad observation;
+
+    public KeyLoadProcessor(KeyLoad observation) {
+        this.observation = observation;
+    }
+
+    @Override
+    public Void process(Map.Entry<String, KeyLoad> entry) {
+        KeyLoad current = entry.getValue();
+        if (current == null) {
+            entry.setValue(observation);
+            return null;
+        }
+        KeyLoad newer = observation.observedAt() >= current.observedAt() && observation.reportsLimits()
+                ? observation
+                : current;
+        long coolingUntil = Math.max(current.coolingUntil(), observation.coolingUntil());
+        entry.setValue(new KeyLoad(newer.limitRequests(), newer.remainingRequests(), newer.requestsResetAt(),
+                newer.limitTokens(), newer.remainingTokens(), newer.tokensResetAt(), coolingUntil, newer.observedAt()));
+        return null;
+    }
+}
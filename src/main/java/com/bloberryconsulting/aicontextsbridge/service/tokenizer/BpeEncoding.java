@@ -0,0 +1,316 @@
+package com.bloberryconsulting.aicontextsbridge.service.tokenizer;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Byte pair encoding compatible with the OpenAI cl100k_base (GPT-3.5, GPT-4) and o200k_base
+ * (GPT-4o and later) encodings, it produces the same tokens as tiktoken for ordinary text;
+ * special tokens like {@code <|endoftext|>} are encoded as text.
+ *
+ * The text is split into pieces with the pattern of the encoding, every piece is encoded to
+ * UTF-8 and its bytes are merged by rank, lowest first. The merge keeps the pairs of adjacent
+ * parts in a min-heap, so long pieces (e.g. base64 blobs) stay O(n log n). All the buffers are
+ * reused per thread, counting the tokens of a text allocates nothing once they are warm.
+ *
+ * The rank tables are bundled in {@code tokenizer/*.tiktoken.gz}, in the tiktoken format, and
+ * loaded once on the first use of an encoding.
+ */
+public final class BpeEncoding {
+
+    private static final String CL100K_PATTERN = String.join("|",
+            "(?i:'s|'t|'re|'ve|'m|'ll|'d)",
+            "[^\\r\\n\\p{L}\\p{N}]?\\p{L}+",
+            "\\p{N}{1,3}",
+            " ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*",
+            "\\s*[\\r\\n]+",
+            "\\s+(?!\\S)",
+            "\\s+");
+
+    private static final String O200K_PATTERN = String.join("|",
+            "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?",
+            "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?",
+            "\\p{N}{1,3}",
+            " ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*",
+            "\\s*[\\r\\n]+",
+            "\\s+(?!\\S)",
+            "\\s+");
+
+    // Buffers grown past this size by a large text are not kept for the next one
+    private static final int MAX_RETAINED_PIECE = 1 << 16;
+
+    private final String name;
+    private final Pattern pattern;
+    private final TokenRanks ranks;
+    private final ThreadLocal<Scratch> scratch;
+
+    private BpeEncoding(String name, String pattern) {
+        this.name = name;
+        // As in tiktoken, \s matches any Unicode white space, not only the ASCII one
+        this.pattern = Pattern.compile(pattern, Pattern.UNICODE_CHARACTER_CLASS);
+        this.ranks = TokenRanks.load("tokenizer/" + name + ".tiktoken.gz");
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(this.pattern));
+    }
+
+    /**
+     * @return The encoding of the GPT-3.5 and GPT-4 models.
+     */
+    public static BpeEncoding cl100kBase() {
+        return Cl100kBase.INSTANCE;
+    }
+
+    /**
+     * @return The encoding of the GPT-4o and later models.
+     */
+    public static BpeEncoding o200kBase() {
+        return O200kBase.INSTANCE;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Counts the tokens of a text, in a single pass and without producing them.
+     *
+     * @param text The text, may be null.
+     * @return The number of tokens.
+     */
+    public int countTokens(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return 0;
+        }
+        int count = tokenize(text, false);
+        scratch.get().trim();
+        return count;
+    }
+
+    /**
+     * Encodes a text.
+     *
+     * @param text The text.
+     * @return The token ids.
+     */
+    public int[] encode(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return new int[0];
+        }
+        int count = tokenize(text, true);
+        Scratch s = scratch.get();
+        int[] tokens = Arrays.copyOf(s.tokens, count);
+        s.trim();
+        return tokens;
+    }
+
+    private int tokenize(CharSequence text, boolean collect) {
+        Scratch s = scratch.get();
+        s.tokenCount = 0;
+        Matcher matcher = s.matcher.reset(text);
+        int count = 0;
+        while (matcher.find()) {
+            int length = s.encodeUtf8(text, matcher.start(), matcher.end());
+            count += bytePairEncode(s, length, collect);
+        }
+        // Don't keep a reference to the text
+        matcher.reset("");
+        return count;
+    }
+
+    // Encodes the first length bytes of s.piece, returns the number of tokens
+    private int bytePairEncode(Scratch s, int length, boolean collect) {
+        byte[] piece = s.piece;
+        int whole = ranks.rank(piece, 0, length);
+        if (whole != TokenRanks.NOT_FOUND) {
+            // Every single byte is a token, and so are most of the words
+            if (collect) {
+                s.addToken(whole);
+            }
+            return 1;
+        }
+
+        s.ensureMergeCapacity(length);
+        int[] next = s.next;
+        int[] previous = s.previous;
+        int[] pairRanks = s.pairRanks;
+        s.heapSize = 0;
+        // The parts start with the single bytes, part i is piece[i, next[i])
+        for (int i = 0; i < length; i++) {
+            next[i] = i + 1;
+            previous[i] = i - 1;
+        }
+        for (int i = 0; i < length - 1; i++) {
+            pairRanks[i] = ranks.rank(piece, i, 2);
+            s.push(pairRanks[i], i);
+        }
+        pairRanks[length - 1] = TokenRanks.NOT_FOUND;
+
+        // Merge the pair with the lowest rank, the leftmost one on a tie, until no pair is a token.
+        // Heap entries are not removed when a merge changes their pair, they are skipped when their
+        // rank doesn't match the current rank of the pair anymore
+        int parts = length;
+        while (s.heapSize > 0) {
+            long top = s.pop();
+            int rank = (int) (top >>> 32);
+            int i = (int) top;
+            if (pairRanks[i] != rank) {
+                continue;
+            }
+            int merged = next[i];
+            int end = next[merged];
+            next[i] = end;
+            if (end < length) {
+                previous[end] = i;
+            }
+            pairRanks[merged] = TokenRanks.NOT_FOUND;
+            parts--;
+
+            pairRanks[i] = end < length ? ranks.rank(piece, i, next[end] - i) : TokenRanks.NOT_FOUND;
+            s.push(pairRanks[i], i);
+            int before = previous[i];
+            if (before >= 0) {
+                pairRanks[before] = ranks.rank(piece, before, end - before);
+                s.push(pairRanks[before], before);
+            }
+        }
+
+        if (collect) {
+            for (int i = 0; i < length; i = next[i]) {
+                s.addToken(ranks.rank(piece, i, next[i] - i));
+            }
+        }
+        return parts;
+    }
+
+    // Per thread buffers
+    private static final class Scratch {
+        private static final int INITIAL_PIECE = 256;
+
+        final Matcher matcher;
+        byte[] piece = new byte[INITIAL_PIECE];
+        int[] next = new int[INITIAL_PIECE];
+        int[] previous = new int[INITIAL_PIECE];
+        int[] pairRanks = new int[INITIAL_PIECE];
+        long[] heap = new long[INITIAL_PIECE * 3];
+        int heapSize;
+        int[] tokens = new int[INITIAL_PIECE];
+        int tokenCount;
+
+        Scratch(Pattern pattern) {
+            this.matcher = pattern.matcher("");
+        }
+
+        // Encodes text[start, end) to UTF-8 into piece, returns the number of bytes
+        int encodeUtf8(CharSequence text, int start, int end) {
+            if (piece.length < (end - start) * 3) {
+                piece = new byte[(end - start) * 3];
+            }
+            byte[] out = piece;
+            int n = 0;
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    out[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[n++] = (byte) (0xC0 | (c >> 6));
+                    out[n++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    out[n++] = (byte) (0xF0 | (codePoint >> 18));
+                    out[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    out[n++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogate, replaced like String.getBytes(UTF_8) does
+                    out[n++] = '?';
+                } else {
+                    out[n++] = (byte) (0xE0 | (c >> 12));
+                    out[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    out[n++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return n;
+        }
+
+        void ensureMergeCapacity(int length) {
+            if (next.length < length) {
+                next = new int[length];
+                previous = new int[length];
+                pairRanks = new int[length];
+            }
+            // length - 1 initial pairs and at most 2 new pairs per merge
+            if (heap.length < length * 3) {
+                heap = new long[length * 3];
+            }
+        }
+
+        void push(int rank, int position) {
+            if (rank == TokenRanks.NOT_FOUND) {
+                return;
+            }
+            long entry = ((long) rank << 32) | position;
+            int i = heapSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= entry) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = entry;
+        }
+
+        long pop() {
+            long top = heap[0];
+            long last = heap[--heapSize];
+            int i = 0;
+            int half = heapSize >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (last <= heap[child]) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return top;
+        }
+
+        void addToken(int token) {
+            if (tokenCount == tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+            }
+            tokens[tokenCount++] = token;
+        }
+
+        // Drops the buffers grown by a huge text
+        void trim() {
+            if (piece.length > MAX_RETAINED_PIECE * 3) {
+                piece = new byte[INITIAL_PIECE];
+            }
+            if (next.length > MAX_RETAINED_PIECE) {
+                next = new int[INITIAL_PIECE];
+                previous = new int[INITIAL_PIECE];
+                pairRanks = new int[INITIAL_PIECE];
+                heap = new long[INITIAL_PIECE * 3];
+            }
+            if (tokens.length > MAX_RETAINED_PIECE) {
+                tokens = new int[INITIAL_PIECE];
+            }
+        }
+    }
+
+    // Holders, each table is loaded on the first use of its encoding
+    private static final class Cl100kBase {
+        static final BpeEncoding INSTANCE = new BpeEncoding("cl100k_base", CL100K_PATTERN);
+    }
+
+    private static final class O200kBase {
+        static final BpeEncoding INSTANCE = new BpeEncoding("o200k_base", O200K_PATTERN);
+    }
+}
@@ -0,0 +1,104 @@
+package com.bloberryconsulting.aicontextsbridge.service.tokenizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.bloberryconsulting.aicontextsbridge.model.ChatMessage;
+
+/**
+ * Counts the tokens of texts and chat messages with the encoding of the model they are sent to.
+ *
+ * Counts are cached per text, the history of a conversation is sent again with every request
+ * and its messages are tokenized only once. The cache is keyed by the fingerprint of the text, not
+ * the text itself, so the documents and answers counted are not kept on the heap; it is split in
+ * stripes locked separately, so the requests don't wait on each other to count.
+ */
+@Service
+public class TokenCounter {
+    // Every chat message is wrapped as <|start|>{role}\n{content}<|end|>\n
+    public static final int TOKENS_PER_MESSAGE = 3;
+    // Every reply is primed with <|start|>assistant<|message|>
+    public static final int TOKENS_PER_REPLY = 3;
+    private static final int STRIPES = 16;
+
+    private final List<Map<Long, Integer>> cl100kCounts;
+    private final List<Map<Long, Integer>> o200kCounts;
+
+    public TokenCounter(@Value("${token-counter.cache-size:10000}") int cacheSize) {
+        this.cl100kCounts = lruCache(cacheSize);
+        this.o200kCounts = lruCache(cacheSize);
+    }
+
+    /**
+     * @param model The model name, e.g. gpt-4 or gpt-4o-mini, may be null.
+     * @return The encoding of the model, cl100k_base if the model is unknown.
+     */
+    public BpeEncoding encodingForModel(String model) {
+        return usesO200k(model) ? BpeEncoding.o200kBase() : BpeEncoding.cl100kBase();
+    }
+
+    /**
+     * Counts the tokens of a text.
+     *
+     * @param text The text, may be null.
+     * @param model The model the text is sent to.
+     * @return The number of tokens.
+     */
+    public int countTokens(String text, String model) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        long fingerprint = ChatMessage.fingerprint(text);
+        Map<Long, Integer> counts = (usesO200k(model) ? o200kCounts : cl100kCounts)
+                .get((int) (fingerprint >>> 32) & (STRIPES - 1));
+        Integer count = counts.get(fingerprint);
+        if (count == null) {
+            count = encodingForModel(model).countTokens(text);
+            counts.put(fingerprint, count);
+        }
+        return count;
+    }
+
+    /**
+     * Counts the tokens of a chat message, including the tokens wrapping it in the prompt.
+     *
+     * @param role The role of the message: system, user or assistant.
+     * @param content The content of the message.
+     * @param model The model the message is sent to.
+     * @return The number of tokens.
+     */
+    public int countMessageTokens(String role, String content, String model) {
+        return TOKENS_PER_MESSAGE + countTokens(role, model) + countTokens(content, model);
+    }
+
+    private static boolean usesO200k(String model) {
+        if (model == null) {
+            return false;
+        }
+        String name = model.toLowerCase();
+        return name.startsWith("gpt-4o") || name.startsWith("chatgpt-4o") || name.startsWith("gpt-4.1")
+                || name.startsWith("gpt-4.5") || name.startsWith("gpt-5") || name.startsWith("o1")
+                || name.startsWith("o3") || name.startsWith("o4");
+    }
+
+    // The least recently used counts are evicted per stripe, each holds its share of the entries
+    private static List<Map<Long, Integer>> lruCache(int maxEntries) {
+        int maxStripeEntries = Math.max(1, maxEntries / STRIPES);
+        List<Map<Long, Integer>> stripes = new ArrayList<>(STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(Collections.synchronizedMap(new LinkedHashMap<Long, Integer>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+                    return size() > maxStripeEntries;
+                }
+            }));
+        }
+        return stripes;
+    }
+}
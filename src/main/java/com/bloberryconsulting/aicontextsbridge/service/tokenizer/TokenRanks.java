@@ -0,0 +1,120 @@
+package com.bloberryconsulting.aicontextsbridge.service.tokenizer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The merge-rank table of a BPE encoding: the byte sequence of every token and its rank, which is
+ * also the token id. The bytes of all tokens are kept in a single array and looked up through an
+ * open-addressing hash table, so looking up a slice of a byte array allocates nothing.
+ */
+final class TokenRanks {
+    static final int NOT_FOUND = -1;
+
+    private final byte[] bytes;
+    private final int[] offsets; // token i: bytes[offsets[i], offsets[i + 1])
+    private final int[] ranks;
+    private final int[] slots; // token index + 1, 0 marks an empty slot
+    private final int mask;
+
+    private TokenRanks(byte[] bytes, int[] offsets, int[] ranks, int size) {
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.ranks = ranks;
+        int capacity = Integer.highestOneBit(size * 3) << 1; // load factor under 2/3
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+        for (int token = 0; token < size; token++) {
+            int start = offsets[token];
+            int slot = hash(bytes, start, offsets[token + 1] - start) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = token + 1;
+        }
+    }
+
+    /**
+     * Loads a gzipped table in the tiktoken format, a line {@code <base64 token bytes> <rank>} per token.
+     *
+     * @param resource The classpath resource of the table.
+     */
+    static TokenRanks load(String resource) {
+        InputStream in = TokenRanks.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null) {
+            throw new IllegalStateException("Token rank table " + resource + " not found in classpath");
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(in, 1 << 16), StandardCharsets.US_ASCII), 1 << 16)) {
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] bytes = new byte[1 << 20];
+            int[] offsets = new int[1 << 17];
+            int[] ranks = new int[1 << 17];
+            int size = 0;
+            int length = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space < 0) {
+                    continue;
+                }
+                byte[] token = decoder.decode(line.substring(0, space));
+                if (size + 1 >= offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                    ranks = Arrays.copyOf(ranks, ranks.length * 2);
+                }
+                if (length + token.length > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + token.length));
+                }
+                System.arraycopy(token, 0, bytes, length, token.length);
+                offsets[size] = length;
+                ranks[size] = Integer.parseInt(line, space + 1, line.length(), 10);
+                length += token.length;
+                size++;
+            }
+            offsets[size] = length;
+            return new TokenRanks(Arrays.copyOf(bytes, length), Arrays.copyOf(offsets, size + 1),
+                    Arrays.copyOf(ranks, size), size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't load the token rank table " + resource, e);
+        }
+    }
+
+    /**
+     * @return The rank of the token with the bytes {@code text[offset, offset + length)},
+     *         or {@link #NOT_FOUND} if these bytes are not a token.
+     */
+    int rank(byte[] text, int offset, int length) {
+        int slot = hash(text, offset, length) & mask;
+        int entry;
+        while ((entry = slots[slot]) != 0) {
+            int token = entry - 1;
+            int start = offsets[token];
+            if (offsets[token + 1] - start == length
+                    && Arrays.equals(bytes, start, start + length, text, offset, offset + length)) {
+                return ranks[token];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    int size() {
+        return ranks.length;
+    }
+
+    private static int hash(byte[] text, int offset, int length) {
+        int hash = 0x811c9dc5; // FNV-1a
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = (hash ^ text[i]) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,363 @@
+package com.bloberryconsulting.aicontextsbridge.apis.service.speech;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.bloberryconsulting.aicontextsbridge.exceptions.APIError;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.SpeechSettings;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Duration;
+
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * The engine against an in-process stand-in of the Speech API. The stand-in answers each chunk of
+ * audio with a final result whose transcript is the text of the chunk and whose end is the end of the
+ * audio of its stream; it doesn't answer the chunks starting with '~', and fails the stream on a chunk
+ * starting with '!'. A chunk is 2 milliseconds of audio.
+ */
+class SpeechStreamingEngineTest {
+    private static final int CHUNK_SIZE = 2 * SpeechStreamingEngine.BYTES_PER_MILLI;
+
+    private final FakeSpeech speech = new FakeSpeech();
+    private final ExecutorService fanOut = Executors.newFixedThreadPool(4);
+    private Server server;
+    private ManagedChannel channel;
+    private SpeechStreamingEngine engine;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        fanOut.shutdown();
+        if (engine != null) {
+            engine.close();
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void sendsTheTranscriptsOfEachSessionToItsWebSocket() throws Exception {
+        start(60_000);
+        List<RecordingSocket> sockets = new ArrayList<>();
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 200; i++) {
+            RecordingSocket socket = new RecordingSocket("session-" + i);
+            sockets.add(socket);
+            clients.execute(() -> {
+                for (int chunk = 0; chunk < 3; chunk++) {
+                    engine.append(socket, "en-US", chunk(socket.getId() + "/" + chunk));
+                }
+            });
+        }
+        clients.shutdown();
+        assertTrue(clients.awaitTermination(10, TimeUnit.SECONDS));
+
+        for (RecordingSocket socket : sockets) {
+            List<String> expected = List.of(socket.getId() + "/0", socket.getId() + "/1", socket.getId() + "/2");
+            assertEquals(expected, socket.next(3));
+        }
+        assertEquals(200, speech.streams.size());
+        assertEquals(200, engine.stats().get("sessions"));
+    }
+
+    @Test
+    void sendsTheAudioNotTranscribedToTheNextStream() throws Exception {
+        start(200);
+        RecordingSocket socket = new RecordingSocket("session");
+        engine.append(socket, "en-US", chunk("said"));
+        assertEquals(List.of("said"), socket.next(1));
+        engine.append(socket, "en-US", chunk("~unfinished"));
+        TimeUnit.MILLISECONDS.sleep(300);
+        engine.append(socket, "en-US", chunk("after"));
+        assertEquals(List.of("after"), socket.next(1));
+
+        assertEquals(2, speech.streams.size());
+        assertEquals(List.of("said", "~unfinished"), speech.streams.get(0));
+        assertEquals(List.of("~unfinished", "after"), speech.streams.get(1));
+        assertEquals(1L, engine.stats().get("restarts"));
+    }
+
+    @Test
+    void reportsAStreamFailingBeforeAnyAnswerAndStartsANewOne() throws Exception {
+        start(60_000);
+        RecordingSocket socket = new RecordingSocket("session");
+        engine.append(socket, "en-US", chunk("!denied"));
+        assertThrows(APIError.class, () -> {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (System.nanoTime() < deadline) {
+                engine.append(socket, "en-US", chunk("~waiting"));
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        });
+        engine.append(socket, "en-US", chunk("again"));
+        assertEquals(List.of("again"), socket.next(1));
+    }
+
+    @Test
+    void dropsTheFramesReceivedTwiceAndEndsTheStreamOfAnUtterance() throws Exception {
+        start(60_000);
+        RecordingSocket socket = new RecordingSocket("session");
+        engine.append(socket, "en-US", 0xFFFFFFFFL, 0, chunk("first"));
+        engine.append(socket, "en-US", 0xFFFFFFFFL, 0, chunk("first"));
+        engine.append(socket, "en-US", 0, 2, chunk("second"));
+        engine.append(socket, "en-US", 3, 8, chunk("fourth"));
+        assertEquals(List.of("first", "second", "fourth"), socket.next(3));
+        engine.finish(socket.getId());
+        engine.append(socket, "en-US", 4, 10, chunk("next"));
+        assertEquals(List.of("next"), socket.next(1));
+
+        assertEquals(List.of(List.of("first", "second", "fourth"), List.of("next")), speech.streams);
+        assertEquals(1L, engine.stats().get("repeatedFrames"));
+        assertEquals(2L, engine.stats().get("lostFrames"));
+    }
+
+    @Test
+    void boundsTheAudioKeptInBytes() {
+        AudioRingBuffer audio = new AudioRingBuffer(100);
+        audio.append(ByteString.copyFrom(new byte[64]));
+        audio.append(ByteString.copyFrom(new byte[64]));
+        assertEquals(28, audio.start());
+        assertEquals(128, audio.end());
+        assertEquals(List.of(36, 64), sizes(audio.chunks()));
+
+        audio.discardBefore(100);
+        assertEquals(100, audio.start());
+        assertEquals(List.of(28), sizes(audio.chunks()));
+    }
+
+    private void start(long rolloverMillis) throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).directExecutor().addService(speech.definition()).build().start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        SpeechSettings settings = SpeechSettings.newBuilder()
+                .setTransportChannelProvider(FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+                .setCredentialsProvider(NoCredentialsProvider.create())
+                .build();
+        engine = new SpeechStreamingEngine(SpeechClient.create(settings), fanOut, rolloverMillis, 10_000, 256);
+    }
+
+    // A chunk of audio carrying a text
+    private static ByteString chunk(String text) {
+        byte[] audio = new byte[CHUNK_SIZE];
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, audio, 0, bytes.length);
+        return ByteString.copyFrom(audio);
+    }
+
+    private static String text(ByteString chunk) {
+        return chunk.toStringUtf8().replace("\0", "");
+    }
+
+    private static List<Integer> sizes(List<ByteString> chunks) {
+        return chunks.stream().map(ByteString::size).toList();
+    }
+
+    // The StreamingRecognize method of the Speech API, recording the audio of each stream
+    private static final class FakeSpeech {
+        final List<List<String>> streams = new CopyOnWriteArrayList<>();
+
+        ServerServiceDefinition definition() {
+            MethodDescriptor<StreamingRecognizeRequest, StreamingRecognizeResponse> method = MethodDescriptor
+                    .<StreamingRecognizeRequest, StreamingRecognizeResponse>newBuilder()
+                    .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+                    .setFullMethodName(MethodDescriptor.generateFullMethodName("google.cloud.speech.v1.Speech",
+                            "StreamingRecognize"))
+                    .setRequestMarshaller(ProtoUtils.marshaller(StreamingRecognizeRequest.getDefaultInstance()))
+                    .setResponseMarshaller(ProtoUtils.marshaller(StreamingRecognizeResponse.getDefaultInstance()))
+                    .build();
+            return ServerServiceDefinition.builder("google.cloud.speech.v1.Speech")
+                    .addMethod(method, ServerCalls.asyncBidiStreamingCall(this::stream))
+                    .build();
+        }
+
+        private StreamObserver<StreamingRecognizeRequest> stream(StreamObserver<StreamingRecognizeResponse> responses) {
+            List<String> audio = new CopyOnWriteArrayList<>();
+            streams.add(audio);
+            return new StreamObserver<>() {
+                long bytes;
+                boolean failed;
+
+                @Override
+                public void onNext(StreamingRecognizeRequest request) {
+                    if (failed || request.hasStreamingConfig()) {
+                        return;
+                    }
+                    String text = text(request.getAudioContent());
+                    audio.add(text);
+                    bytes += request.getAudioContent().size();
+                    if (text.startsWith("!")) {
+                        failed = true;
+                        responses.onError(Status.PERMISSION_DENIED.asRuntimeException());
+                    } else if (!text.startsWith("~")) {
+                        long millis = bytes / SpeechStreamingEngine.BYTES_PER_MILLI;
+                        responses.onNext(StreamingRecognizeResponse.newBuilder()
+                                .addResults(StreamingRecognitionResult.newBuilder()
+                                        .setIsFinal(true)
+                                        .setResultEndTime(Duration.newBuilder().setSeconds(millis / 1000)
+                                                .setNanos((int) (millis % 1000) * 1_000_000))
+                                        .addAlternatives(SpeechRecognitionAlternative.newBuilder().setTranscript(text)))
+                                .build());
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    if (!failed) {
+                        responses.onCompleted();
+                    }
+                }
+            };
+        }
+    }
+
+    // A WebSocket keeping the messages sent to it
+    private static final class RecordingSocket implements WebSocketSession {
+        private final String id;
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+        RecordingSocket(String id) {
+            this.id = id;
+        }
+
+        List<String> next(int count) throws InterruptedException {
+            List<String> next = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String message = messages.poll(5, TimeUnit.SECONDS);
+                if (message == null) {
+                    break;
+                }
+                next.add(message);
+            }
+            return next;
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            messages.add(((TextMessage) message).getPayload());
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public URI getUri() {
+            return null;
+        }
+
+        @Override
+        public HttpHeaders getHandshakeHeaders() {
+            return new HttpHeaders();
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public Principal getPrincipal() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public String getAcceptedProtocol() {
+            return null;
+        }
+
+        @Override
+        public void setTextMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getTextMessageSizeLimit() {
+            return 0;
+        }
+
+        @Override
+        public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getBinaryMessageSizeLimit() {
+            return 0;
+        }
+
+        @Override
+        public List<WebSocketExtension> getExtensions() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+        }
+    }
+}
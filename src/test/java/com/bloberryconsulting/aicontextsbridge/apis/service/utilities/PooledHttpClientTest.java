@@ -0,0 +1,121 @@
+package com.bloberryconsulting.aicontextsbridge.apis.service.utilities;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The per-host limit against a local server, with a single permit: a request holds it until its
+ * body ends, a streamed body until it is closed.
+ */
+class PooledHttpClientTest {
+    private final CountDownLatch endOfStream = new CountDownLatch(1);
+    private final ExecutorService serverExecutor = Executors.newCachedThreadPool();
+    private final HttpServer server;
+    private final PooledHttpClient client;
+    private final String uri;
+
+    PooledHttpClientTest() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 16);
+        server.setExecutor(serverExecutor);
+        server.createContext("/stream", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write("data: first\n".getBytes(StandardCharsets.UTF_8));
+                body.flush();
+                endOfStream.await(10, TimeUnit.SECONDS);
+                body.write("data: last\n".getBytes(StandardCharsets.UTF_8));
+            } catch (InterruptedException | IOException e) {
+                // The client closed the stream
+            }
+        });
+        server.createContext("/answer", exchange -> {
+            byte[] answer = "answer".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, answer.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(answer);
+            }
+        });
+        server.start();
+        uri = "http://localhost:" + server.getAddress().getPort();
+        client = new PooledHttpClient(HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build(), 1, 10);
+    }
+
+    @AfterEach
+    void tearDown() {
+        endOfStream.countDown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void holdsThePermitUntilAStreamedBodyIsClosed() throws Exception {
+        HttpResponse<Stream<String>> streamed = client.send(client.newRequest(uri + "/stream").build(),
+                HttpResponse.BodyHandlers.ofLines());
+        Stream<String> lines = streamed.body();
+        assertEquals("data: first", lines.iterator().next());
+
+        CompletableFuture<HttpResponse<String>> queued = client.sendAsync(client.newRequest(uri + "/answer").build(),
+                HttpResponse.BodyHandlers.ofString());
+        Thread.sleep(300);
+        assertFalse(queued.isDone());
+
+        lines.close();
+        assertEquals("answer", queued.get(5, TimeUnit.SECONDS).body());
+    }
+
+    @Test
+    void releasesThePermitWhenAStreamedBodyEnds() throws Exception {
+        HttpResponse<Stream<String>> streamed = client.send(client.newRequest(uri + "/stream").build(),
+                HttpResponse.BodyHandlers.ofLines());
+        Iterator<String> lines = streamed.body().iterator();
+        assertEquals("data: first", lines.next());
+        endOfStream.countDown();
+        assertEquals("data: last", lines.next());
+        assertFalse(lines.hasNext());
+
+        // Read to its end without being closed
+        assertEquals("answer", client.sendAsync(client.newRequest(uri + "/answer").build(),
+                HttpResponse.BodyHandlers.ofString()).get(5, TimeUnit.SECONDS).body());
+        assertEquals("answer", client.send(client.newRequest(uri + "/answer").build(),
+                HttpResponse.BodyHandlers.ofString()).body());
+    }
+
+    @Test
+    void releasesThePermitOfAFailedRequest() throws Exception {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        String refused = "http://localhost:" + closedPort + "/answer";
+        for (int i = 0; i < 3; i++) {
+            assertThrows(IOException.class, () -> client.send(client.newRequest(refused).build(),
+                    HttpResponse.BodyHandlers.ofString()));
+        }
+        CompletableFuture<HttpResponse<String>> failed = client.sendAsync(client.newRequest(refused).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertThrows(Exception.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertThrows(IOException.class, () -> client.send(client.newRequest(refused).build(),
+                HttpResponse.BodyHandlers.ofString()));
+    }
+}
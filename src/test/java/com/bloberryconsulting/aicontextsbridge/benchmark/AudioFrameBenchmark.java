@@ -0,0 +1,92 @@
+package com.bloberryconsulting.aicontextsbridge.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.bloberryconsulting.aicontextsbridge.apis.service.tools.AudioFrame;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * The CPU of a frame of LINEAR16 audio from the bytes received on the WebSocket to the request sent
+ * to the Speech API. A text message {"audio": "&lt;base64&gt;"} is decoded to a string by the container,
+ * parsed as JSON, decoded from base64 and copied into a ByteString; a binary {@link AudioFrame} is
+ * copied into a buffer by the container, parsed and wrapped. Both end with the request built around
+ * the audio, the serialization to the channel is the same for both.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.bloberryconsulting.aicontextsbridge.benchmark.AudioFrameBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class AudioFrameBenchmark {
+    private static final int BYTES_PER_MILLI = 32;
+
+    @Param({ "20", "100" })
+    private int frameMillis;
+
+    private byte[] textMessage;
+    private byte[] binaryMessage;
+
+    @Setup
+    public void setUp() {
+        byte[] audio = new byte[frameMillis * BYTES_PER_MILLI];
+        new Random(42).nextBytes(audio);
+        textMessage = new JSONObject().put("audio", Base64.getEncoder().encodeToString(audio)).toString()
+                .getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(AudioFrame.HEADER_SIZE + audio.length);
+        frame.put((byte) AudioFrame.VERSION).put((byte) AudioFrame.LINEAR16).putShort((short) 0).putInt(7)
+                .putInt(140).put(audio).flip();
+        binaryMessage = frame.array();
+
+        AudioFrame parsed = AudioFrame.parse(ByteBuffer.wrap(binaryMessage));
+        if (parsed.sequence() != 7 || parsed.timestampMillis() != 140 || !parsed.audio().equals(ByteBuffer.wrap(audio))) {
+            throw new IllegalStateException("The frame doesn't read back");
+        }
+    }
+
+    @Benchmark
+    public StreamingRecognizeRequest base64Json() {
+        String payload = new String(textMessage, StandardCharsets.UTF_8);
+        String base64Audio = new JSONObject(payload).optString("audio");
+        byte[] audio = Base64.getDecoder().decode(base64Audio);
+        return StreamingRecognizeRequest.newBuilder().setAudioContent(ByteString.copyFrom(audio)).build();
+    }
+
+    @Benchmark
+    public StreamingRecognizeRequest binaryFrame() {
+        ByteBuffer payload = ByteBuffer.allocate(binaryMessage.length).put(binaryMessage).flip();
+        AudioFrame frame = AudioFrame.parse(payload);
+        return StreamingRecognizeRequest.newBuilder()
+                .setAudioContent(UnsafeByteOperations.unsafeWrap(frame.audio()))
+                .build();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AudioFrameBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,142 @@
+package com.bloberryconsulting.aicontextsbridge.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.bloberryconsulting.aicontextsbridge.model.ChatMessage;
+import com.bloberryconsulting.aicontextsbridge.model.ConversationHistory;
+import com.bloberryconsulting.aicontextsbridge.service.JsonUtils;
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.TokenCounter;
+
+/**
+ * Measures one chat turn against a history of 10, 100 and 1000 turns (two messages each):
+ * jsonTurn is the previous path, the history kept as a JSON string, parsed, trimmed and written
+ * back every turn. loadTurn loads the binary history, trims it and appends the turn, appendTurn
+ * is the same turn on a history already in memory. storeTurn is the append on the owning member.
+ * The token budget keeps about half of the history, counts come from the token count caches.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.bloberryconsulting.aicontextsbridge.benchmark.ConversationHistoryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversationHistoryBenchmark {
+
+    private static final String MODEL = "gpt-4";
+    private static final int MAX_MESSAGES = 2000;
+    private static final String[] WORDS = { "the", "context", "assistant", "history", "token", "request",
+            "billing", "cluster", "session", "response", "streaming", "model", "prompt", "encoding", "2024" };
+
+    @Param({ "10", "100", "1000" })
+    public int turns;
+
+    private TokenCounter tokenCounter;
+    private JsonUtils jsonUtils;
+    private int budget;
+    private String jsonHistory;
+    private byte[] storedHistory;
+    private ConversationHistory history;
+    private String userInput;
+    private String assistantResponse;
+    private byte[] storedTurn;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tokenCounter = new TokenCounter(100_000);
+        jsonUtils = new JsonUtils(tokenCounter);
+        Random random = new Random(42);
+        ConversationHistory full = new ConversationHistory();
+        JSONArray json = new JSONArray();
+        for (int i = 0; i < turns * 2; i++) {
+            ChatMessage message = ChatMessage.of(i % 2 == 0 ? ChatMessage.USER : ChatMessage.ASSISTANT,
+                    randomText(random, 40), tokenCounter, MODEL);
+            full.append(message);
+            json.put(message.toJson());
+        }
+        budget = full.countTokens(tokenCounter, MODEL) / 2;
+        jsonHistory = json.toString();
+        storedHistory = full.toBytes();
+        userInput = randomText(random, 40);
+        assistantResponse = randomText(random, 40);
+        storedTurn = ConversationHistory.encode(new ChatMessage(ChatMessage.USER, userInput),
+                new ChatMessage(ChatMessage.ASSISTANT, assistantResponse));
+    }
+
+    @Setup(Level.Iteration)
+    public void loadHistory() {
+        history = ConversationHistory.fromBytes(storedHistory);
+        history.countTokens(tokenCounter, MODEL);
+    }
+
+    @Benchmark
+    public String jsonTurn() throws IOException {
+        JSONArray messages = jsonUtils.read(jsonHistory);
+        JSONObject userMessage = new JSONObject().put("role", "user").put("content", userInput);
+        JSONArray request = new JSONArray(messages.toList());
+        request.put(userMessage);
+        jsonUtils.manageTokenCountAndTrimHistory(request, budget, MODEL);
+        messages.put(userMessage).put(new JSONObject().put("role", "assistant").put("content", assistantResponse));
+        return jsonUtils.write(messages);
+    }
+
+    @Benchmark
+    public int loadTurn() {
+        ConversationHistory loaded = ConversationHistory.fromBytes(storedHistory);
+        return turn(loaded);
+    }
+
+    @Benchmark
+    public int appendTurn() {
+        // The history grows by a turn per call and is trimmed back to the budget
+        return turn(history);
+    }
+
+    @Benchmark
+    public byte[] storeTurn() {
+        return ConversationHistory.appendEncoded(storedHistory, storedTurn, MAX_MESSAGES);
+    }
+
+    private int turn(ConversationHistory conversation) {
+        ChatMessage userMessage = ChatMessage.of(ChatMessage.USER, userInput, tokenCounter, MODEL);
+        int dropped = conversation.trimToTokens(budget - userMessage.countTokens(tokenCounter, MODEL),
+                tokenCounter, MODEL);
+        conversation.append(userMessage);
+        conversation.append(ChatMessage.of(ChatMessage.ASSISTANT, assistantResponse, tokenCounter, MODEL));
+        return dropped;
+    }
+
+    private static String randomText(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(8) == 0 ? ", " : " ");
+        }
+        return text.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ConversationHistoryBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,170 @@
+package com.bloberryconsulting.aicontextsbridge.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.bloberryconsulting.aicontextsbridge.service.retrieval.HnswIndex;
+
+/**
+ * Compares the top-10 search of the HNSW index with the exhaustive search of the vectors on the
+ * heap (as in VectorIndex), over 384-dimension unit vectors drawn around 100 cluster centres like
+ * the embeddings of the chunks of related documents. The recall@10 of the HNSW index against the
+ * exhaustive search is measured over 200 queries in the setup and printed with the build time.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.bloberryconsulting.aicontextsbridge.benchmark.HnswBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HnswBenchmark {
+    private static final int DIMENSIONS = 384;
+    private static final int CLUSTERS = 100;
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+
+    @Param({ "10000", "50000" })
+    public int size;
+
+    @Param({ "32", "128" })
+    public int ef;
+
+    private Path directory;
+    private HnswIndex index;
+    private float[] vectors;
+    private float[][] queries;
+    private int query;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        float[][] centres = new float[CLUSTERS][DIMENSIONS];
+        for (float[] centre : centres) {
+            for (int i = 0; i < DIMENSIONS; i++) {
+                centre[i] = (float) random.nextGaussian();
+            }
+        }
+        directory = Files.createTempDirectory("hnsw-benchmark");
+        index = HnswIndex.open(directory, DIMENSIONS, 16, 100);
+        vectors = new float[size * DIMENSIONS];
+        long start = System.nanoTime();
+        for (int node = 0; node < size; node++) {
+            float[] vector = around(centres[random.nextInt(CLUSTERS)], random);
+            System.arraycopy(vector, 0, vectors, node * DIMENSIONS, DIMENSIONS);
+            // The position of the chunk is the node, to compare with the exhaustive search
+            index.insert(vector, 0, 0, node, 0, 0);
+        }
+        long buildMillis = (System.nanoTime() - start) / 1_000_000;
+
+        queries = new float[QUERIES][];
+        int found = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = around(centres[random.nextInt(CLUSTERS)], random);
+            Set<Integer> exact = new HashSet<>();
+            for (int node : bruteForce(queries[q])) {
+                exact.add(node);
+            }
+            for (HnswIndex.Hit hit : index.search(queries[q], K, ef, null)) {
+                found += exact.contains(hit.position()) ? 1 : 0;
+            }
+        }
+        System.out.printf("%n%d vectors indexed in %d ms, recall@%d with ef %d: %.3f%n", size, buildMillis, K, ef,
+                found / (double) (QUERIES * K));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<HnswIndex.Hit> hnsw() {
+        return index.search(nextQuery(), K, ef, null);
+    }
+
+    @Benchmark
+    public int[] bruteForce() {
+        return bruteForce(nextQuery());
+    }
+
+    private float[] nextQuery() {
+        query = (query + 1) % QUERIES;
+        return queries[query];
+    }
+
+    // Keeps the K best nodes sorted by insertion, as cheap as a heap for K = 10
+    private int[] bruteForce(float[] target) {
+        int[] best = new int[K];
+        float[] bestScores = new float[K];
+        Arrays.fill(bestScores, Float.NEGATIVE_INFINITY);
+        for (int node = 0; node < size; node++) {
+            int offset = node * DIMENSIONS;
+            float dot = 0;
+            for (int i = 0; i < DIMENSIONS; i++) {
+                dot += vectors[offset + i] * target[i];
+            }
+            if (dot > bestScores[K - 1]) {
+                int i = K - 1;
+                for (; i > 0 && bestScores[i - 1] < dot; i--) {
+                    best[i] = best[i - 1];
+                    bestScores[i] = bestScores[i - 1];
+                }
+                best[i] = node;
+                bestScores[i] = dot;
+            }
+        }
+        return best;
+    }
+
+    private static float[] around(float[] centre, Random random) {
+        float[] vector = new float[DIMENSIONS];
+        double norm = 0;
+        for (int i = 0; i < DIMENSIONS; i++) {
+            vector[i] = centre[i] + (float) random.nextGaussian();
+            norm += vector[i] * vector[i];
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < DIMENSIONS; i++) {
+            vector[i] *= scale;
+        }
+        return vector;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(HnswBenchmark.class.getSimpleName()).build()).run();
+    }
+}
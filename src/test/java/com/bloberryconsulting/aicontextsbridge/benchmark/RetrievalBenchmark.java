@@ -0,0 +1,87 @@
+package com.bloberryconsulting.aicontextsbridge.benchmark;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.bloberryconsulting.aicontextsbridge.model.Context;
+import com.bloberryconsulting.aicontextsbridge.service.retrieval.HashingEmbeddingProvider;
+import com.bloberryconsulting.aicontextsbridge.service.retrieval.RetrievalService;
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.TokenCounter;
+
+/**
+ * Measures the retrieval of the chunks to send with a prompt from an indexed context of one
+ * document, about 5k and 50k tokens, with the BM25 and the vector index. The index is built in
+ * the setup; its build time is logged by the service.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.bloberryconsulting.aicontextsbridge.benchmark.RetrievalBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetrievalBenchmark {
+
+    private static final String[] WORDS = { "the", "context", "assistant", "history", "token", "request",
+            "billing", "invoice", "cluster", "session", "response", "streaming", "model", "prompt", "encoding",
+            "member", "partition", "backup", "payment", "credit", "document", "chunk", "index", "vector" };
+
+    @Param({ "bm25", "vector" })
+    public String index;
+
+    @Param({ "4000", "40000" })
+    public int words;
+
+    private RetrievalService retrievalService;
+    private List<Context> contexts;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        StringBuilder document = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            document.append(WORDS[random.nextInt(WORDS.length)]).append(i % 15 == 14 ? ". " : " ");
+            if (i % 150 == 149) {
+                document.append("\n\n");
+            }
+        }
+        Context context = new Context("session", "document.txt", new Date(), "user",
+                new String[] { document.toString() }, null, null);
+        contexts = List.of(context);
+        retrievalService = new RetrievalService(new HashingEmbeddingProvider(384), new TokenCounter(10_000), null,
+                300, 40, index, 8, 0.5, 100);
+        retrievalService.indexContext(context);
+    }
+
+    @Benchmark
+    public Map<Long, String> retrieve() {
+        // A 4k context model leaves about 1.4k tokens to the documents
+        return retrievalService.retrieve(contexts, "which member keeps the backup of the invoice partition", 2_867,
+                "gpt-4");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RetrievalBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,184 @@
+package com.bloberryconsulting.aicontextsbridge.benchmark;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.bloberryconsulting.aicontextsbridge.config.serialization.ModelSerializers;
+import com.bloberryconsulting.aicontextsbridge.model.Context;
+import com.bloberryconsulting.aicontextsbridge.model.User;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.internal.serialization.Data;
+import com.hazelcast.internal.serialization.SerializationService;
+import com.hazelcast.map.IMap;
+import com.hazelcast.spi.impl.SerializationServiceSupport;
+
+/**
+ * Compares the stored size and the put/get latency of a user with 50 contexts,
+ * serialized with java.io.Serializable (the previous format) and with the Compact
+ * serializers registered in HazelcastConfig.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.bloberryconsulting.aicontextsbridge.benchmark.SerializationBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private static final int CONTEXTS = 50;
+
+    @Param({ "java", "compact" })
+    public String format;
+
+    private HazelcastInstance instance;
+    private SerializationService serializationService;
+    private IMap<String, Object> map;
+    private Object user;
+    private Data data;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Config config = new Config();
+        config.setClusterName("serialization-benchmark-" + format);
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getNetworkConfig().getJoin().getAutoDetectionConfig().setEnabled(false);
+        Object userWithoutContexts;
+        if ("compact".equals(format)) {
+            ModelSerializers.register(config.getSerializationConfig().getCompactSerializationConfig());
+            user = newUser(CONTEXTS);
+            userWithoutContexts = newUser(0);
+        } else {
+            user = newLegacyUser(CONTEXTS);
+            userWithoutContexts = newLegacyUser(0);
+        }
+        instance = Hazelcast.newHazelcastInstance(config);
+        serializationService = ((SerializationServiceSupport) instance).getSerializationService();
+        map = instance.getMap("user");
+        map.put("user-1", user);
+        data = serializationService.toData(user);
+        System.out.printf("%n%s serialized size of a user with %d contexts: %d bytes, without contexts: %d bytes%n",
+                format, CONTEXTS, data.totalSize(), serializationService.toData(userWithoutContexts).totalSize());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        instance.shutdown();
+    }
+
+    @Benchmark
+    public Data serialize() {
+        return serializationService.toData(user);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return serializationService.toObject(data);
+    }
+
+    @Benchmark
+    public void put() {
+        map.set("user-1", user);
+    }
+
+    @Benchmark
+    public Object get() {
+        return map.get("user-1");
+    }
+
+    private static User newUser(int contextCount) {
+        // Strings are distinct instances, as they are once read back from the map or a request,
+        // so Java serialization can't shorten them to back references
+        Map<String, Context> contexts = new HashMap<>();
+        for (int i = 0; i < contextCount; i++) {
+            String name = "document-" + i + ".txt";
+            contexts.put(name, new Context(new String("session-1"), name, new Date(), new String("user-1"),
+                    new String[] { "Content of the document number " + i }, null,
+                    new String("You are a helpful assistant.")));
+        }
+        HashSet<String> roles = new HashSet<>();
+        roles.add("ROLE_CUSTOMER");
+        return new User("user-1", "Jane Doe", "jane.doe@example.com", "key-1", new Date(),
+                "https://example.com/jane.png", "client-1", contexts, roles, 0.0);
+    }
+
+    private static LegacyUser newLegacyUser(int contextCount) {
+        User user = newUser(contextCount);
+        LegacyUser legacy = new LegacyUser();
+        legacy.id = user.getId();
+        legacy.name = user.getName();
+        legacy.email = user.getEmail();
+        legacy.recentApiId = user.getRecentApiId();
+        legacy.lastLogin = user.getLastLogin();
+        legacy.pictureLink = user.getPictureLink();
+        legacy.clientId = user.getClientId();
+        legacy.roles = user.getRoles();
+        legacy.credit = user.getCredit();
+        legacy.contexts = new HashMap<>();
+        user.getContexts().forEach((name, context) -> {
+            LegacyContext legacyContext = new LegacyContext();
+            legacyContext.sessionId = context.getSessionId();
+            legacyContext.name = context.getName();
+            legacyContext.lastUsed = context.getLastUsed();
+            legacyContext.userId = context.getUserId();
+            legacyContext.documents = context.getDocuments();
+            legacyContext.assistantRoleMessage = context.getAssistantRoleMessage();
+            legacy.contexts.put(name, legacyContext);
+        });
+        return legacy;
+    }
+
+    // The model classes as they were stored before the Compact serializers
+
+    static class LegacyUser implements Serializable {
+        String id;
+        String name;
+        String email;
+        String recentApiId;
+        Date lastLogin;
+        String pictureLink;
+        String clientId;
+        Map<String, LegacyContext> contexts;
+        HashSet<String> roles;
+        Double credit;
+    }
+
+    static class LegacyContext implements Serializable {
+        String sessionId;
+        String name;
+        Date lastUsed;
+        String userId;
+        String[] documents;
+        String conversationHistory;
+        String assistantRoleMessage;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SerializationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,145 @@
+package com.bloberryconsulting.aicontextsbridge.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.bloberryconsulting.aicontextsbridge.apis.service.utilities.PooledHttpClient;
+import com.bloberryconsulting.aicontextsbridge.config.ThreadMode;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Load test of the thread modes: a burst of concurrent chat requests, each handled on a thread of
+ * the request executor (Tomcat's 200 threads by default, or a virtual thread per request) and
+ * blocking on a call to a local stub of the chat API answering after a fixed latency, through the
+ * PooledHttpClient and the HTTP client executor of the {@link ThreadMode}. The per-host limit of
+ * the client is lifted, so only the threads bound the concurrency. Measures the time to answer the
+ * whole burst.
+ *
+ * The virtual mode needs Java 21, its setup fails on an older runtime. The client, the stub and the
+ * request threads share the cores of one JVM: on a machine with few cores the stub's CPU dominates and
+ * the error of a burst exceeds the difference between the modes, the results only compare the modes
+ * with several cores (4 or more) and enough iterations, e.g. {@code -wi 3 -i 10}.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.bloberryconsulting.aicontextsbridge.benchmark.ThreadModeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class ThreadModeBenchmark {
+    private static final int TOMCAT_MAX_THREADS = 200;
+    private static final int HTTP_CLIENT_THREADS = 8;
+    private static final byte[] ANSWER = "{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"Hello\"}}]}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Param({ "platform", "virtual" })
+    public String mode;
+
+    @Param({ "1000" })
+    public int requests;
+
+    // A chat completion takes seconds
+    @Param({ "1000" })
+    public int upstreamLatencyMillis;
+
+    private HttpServer upstream;
+    private ExecutorService upstreamExecutor;
+    private ExecutorService requestExecutor;
+    private ExecutorService httpClientExecutor;
+    private PooledHttpClient client;
+    private String uri;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ThreadMode threadMode = new ThreadMode("virtual".equals(mode));
+        if ("virtual".equals(mode) && !threadMode.isVirtual()) {
+            throw new IllegalStateException("Virtual threads need Java 21, running on " + Runtime.version());
+        }
+        // The stub keeps the connections of a whole burst open, by default it closes those past 200
+        System.setProperty("sun.net.httpserver.maxIdleConnections", Integer.toString(requests * 2));
+        upstreamExecutor = Executors.newCachedThreadPool();
+        upstream = HttpServer.create(new InetSocketAddress("localhost", 0), requests * 2);
+        upstream.setExecutor(upstreamExecutor);
+        upstream.createContext("/v1/chat/completions", exchange -> {
+            try {
+                Thread.sleep(upstreamLatencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, ANSWER.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(ANSWER);
+            }
+        });
+        upstream.start();
+        uri = "http://localhost:" + upstream.getAddress().getPort() + "/v1/chat/completions";
+
+        requestExecutor = threadMode.executor("request-", TOMCAT_MAX_THREADS);
+        httpClientExecutor = threadMode.executor("http-client-", HTTP_CLIENT_THREADS);
+        HttpClient httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(httpClientExecutor)
+                .build();
+        client = new PooledHttpClient(httpClient, requests, 60);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        requestExecutor.shutdownNow();
+        httpClientExecutor.shutdownNow();
+        upstream.stop(0);
+        upstreamExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public int burst() throws Exception {
+        List<Future<Integer>> answers = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            answers.add(requestExecutor.submit(() -> {
+                HttpRequest request = client.newRequest(uri).POST(HttpRequest.BodyPublishers.ofString("{}")).build();
+                return client.send(request, HttpResponse.BodyHandlers.ofString()).body().length();
+            }));
+        }
+        int length = 0;
+        for (Future<Integer> answer : answers) {
+            length += answer.get();
+        }
+        return length;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ThreadModeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
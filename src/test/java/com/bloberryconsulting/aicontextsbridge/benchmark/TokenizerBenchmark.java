@@ -0,0 +1,111 @@
+package com.bloberryconsulting.aicontextsbridge.benchmark;
+
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.bloberryconsulting.aicontextsbridge.service.JsonUtils;
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.BpeEncoding;
+import com.bloberryconsulting.aicontextsbridge.service.tokenizer.TokenCounter;
+
+/**
+ * Measures the BPE tokenizer on a chat message (~60 words) and a document (~6000 words of prose,
+ * code and non latin text): counting, encoding, and the whitespace count it replaced. historyTrim
+ * is the token count of a 50 message history before every request, served from the count cache.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.bloberryconsulting.aicontextsbridge.benchmark.TokenizerBenchmark
+ * Add -prof gc to the JMH options to see the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizerBenchmark {
+
+    private static final String[] WORDS = { "the", "context", "assistant", "history", "token", "request",
+            "billing", "Hazelcast", "cluster", "session", "response", "streaming", "model", "prompt", "encoding",
+            "user's", "don't", "2024", "3.14", "r\u00E9sum\u00E9", "na\u00EFve", "\u041F\u0440\u0438\u0432\u0435\u0442", "\u043C\u0438\u0440", "\u65E5\u672C\u8A9E", "\u30C6\u30AD\u30B9\u30C8", "\uD83D\uDE00",
+            "getChatResponse()", "{\"role\":", "\"user\"}", "=>", "//", "\n", "\n\n", "    " };
+
+    @Param({ "cl100k_base", "o200k_base" })
+    public String encodingName;
+
+    @Param({ "message", "document" })
+    public String size;
+
+    private BpeEncoding encoding;
+    private TokenCounter tokenCounter;
+    private JsonUtils jsonUtils;
+    private String model;
+    private String text;
+    private JSONArray history;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        encoding = "o200k_base".equals(encodingName) ? BpeEncoding.o200kBase() : BpeEncoding.cl100kBase();
+        model = "o200k_base".equals(encodingName) ? "gpt-4o" : "gpt-4";
+        tokenCounter = new TokenCounter(10_000);
+        jsonUtils = new JsonUtils(tokenCounter);
+        Random random = new Random(42);
+        text = randomText(random, "message".equals(size) ? 60 : 6000);
+        history = new JSONArray();
+        for (int i = 0; i < 50; i++) {
+            history.put(new JSONObject().put("role", i % 2 == 0 ? "user" : "assistant")
+                    .put("content", randomText(random, 120)));
+        }
+    }
+
+    @Benchmark
+    public int countTokens() {
+        return encoding.countTokens(text);
+    }
+
+    @Benchmark
+    public int[] encode() {
+        return encoding.encode(text);
+    }
+
+    @Benchmark
+    public int whitespaceCount() {
+        return new StringTokenizer(text).countTokens();
+    }
+
+    @Benchmark
+    public int historyTrim() {
+        // The trim removes messages from the array it is given
+        return jsonUtils.manageTokenCountAndTrimHistory(new JSONArray(history), Integer.MAX_VALUE, model).length();
+    }
+
+    private static String randomText(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(8) == 0 ? ", " : " ");
+        }
+        return text.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TokenizerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,182 @@
+package com.bloberryconsulting.aicontextsbridge.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.bloberryconsulting.aicontextsbridge.apis.service.openai.whisper.WavFileSplitter;
+import com.bloberryconsulting.aicontextsbridge.apis.service.openai.whisper.WhisperTranscribe;
+
+/**
+ * Splitting a two hours recording into chunks of the transcription API: the former splitter reading
+ * the samples into an array and encoding each chunk file with AudioSystem, against the
+ * WavFileSplitter writing each chunk file as a header and a transfer of the samples from the source,
+ * and mapping the chunks for an upload. Both splitters of WavFileSplitter look for a pause in the end
+ * of each chunk. The recording is 16 kHz mono, of tones with a pause every few seconds.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.bloberryconsulting.aicontextsbridge.benchmark.WavSplitterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class WavSplitterBenchmark {
+    private static final int SAMPLE_RATE = 16_000;
+    private static final int SECONDS = 2 * 60 * 60;
+    private static final int SPEECH_SECONDS = 4;
+    private static final int PAUSE_MILLIS = 400;
+
+    @Param({ "16", "24" })
+    private int bitsPerSample;
+
+    private Path directory;
+    private File recording;
+    private final WavFileSplitter splitter = new WavFileSplitter();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("wav-splitter");
+        recording = directory.resolve("recording.wav").toFile();
+        writeRecording(recording.toPath(), bitsPerSample / 8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public long audioSystemFiles() throws Exception {
+        return deleteAll(legacySplit(recording));
+    }
+
+    @Benchmark
+    public long transferredFiles() {
+        return deleteAll(splitter.splitWavFileIntoChunks(recording));
+    }
+
+    @Benchmark
+    public long mappedChunks() throws IOException {
+        long size = 0;
+        for (WavFileSplitter.WavChunk chunk : splitter.split(recording.toPath(),
+                WhisperTranscribe.MAX_CHUNK_SIZE_BYTES)) {
+            size += chunk.size();
+        }
+        return size;
+    }
+
+    // Deletes the chunk files, their total size keeps the writes from being dropped
+    private static long deleteAll(List<File> chunks) {
+        long size = 0;
+        for (File chunk : chunks) {
+            size += chunk.length();
+            chunk.delete();
+        }
+        return size;
+    }
+
+    // The splitter as it was: the samples read into an array and each chunk encoded by AudioSystem
+    private static List<File> legacySplit(File sourceWavFile) throws IOException, UnsupportedAudioFileException {
+        List<File> chunks = new ArrayList<>();
+        int chunkCounter = 1;
+        try (var inputStream = AudioSystem.getAudioInputStream(sourceWavFile)) {
+            long totalFrames = inputStream.getFrameLength();
+            AudioFormat format = AudioSystem.getAudioFileFormat(sourceWavFile).getFormat();
+            int frameSize = format.getFrameSize();
+            long framesPerChunk = WhisperTranscribe.MAX_CHUNK_SIZE_BYTES / frameSize;
+            byte[] buffer = new byte[(int) (framesPerChunk * frameSize)];
+            while (totalFrames > 0) {
+                long framesInThisFile = Math.min(totalFrames, framesPerChunk);
+                int bytesRead = inputStream.read(buffer, 0, (int) (framesInThisFile * frameSize));
+                if (bytesRead > 0) {
+                    File chunkFile = new File(sourceWavFile.getAbsolutePath().replace(
+                            ".wav", "-%d.wav".formatted(chunkCounter++)));
+                    try (var partStream = new AudioInputStream(new ByteArrayInputStream(buffer, 0, bytesRead),
+                            format, framesInThisFile)) {
+                        AudioSystem.write(partStream, AudioFileFormat.Type.WAVE, chunkFile);
+                    }
+                    chunks.add(chunkFile);
+                }
+                totalFrames -= framesInThisFile;
+            }
+        }
+        return chunks;
+    }
+
+    // Tones of a changing pitch, silent for a moment every few seconds
+    private static void writeRecording(Path file, int bytesPerSample) throws IOException {
+        long frames = (long) SAMPLE_RATE * SECONDS;
+        int blockAlign = bytesPerSample;
+        int amplitude = (1 << (bytesPerSample * 8 - 1)) / 4;
+        int period = SAMPLE_RATE * SPEECH_SECONDS;
+        int pause = SAMPLE_RATE * PAUSE_MILLIS / 1000;
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes()).putInt((int) (36 + frames * blockAlign)).put("WAVE".getBytes());
+        header.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1).putInt(SAMPLE_RATE)
+                .putInt(SAMPLE_RATE * blockAlign).putShort((short) blockAlign).putShort((short) (bytesPerSample * 8));
+        header.put("data".getBytes()).putInt((int) (frames * blockAlign)).flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(header);
+            ByteBuffer samples = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            for (long frame = 0; frame < frames; frame++) {
+                long inPeriod = frame % period;
+                double pitch = 200 + 100 * ((frame / period) % 5);
+                int sample = inPeriod >= period - pause ? 0
+                        : (int) (amplitude * Math.sin(2 * Math.PI * pitch * frame / SAMPLE_RATE));
+                for (int i = 0; i < bytesPerSample; i++) {
+                    samples.put((byte) (sample >> (8 * i)));
+                }
+                if (samples.remaining() < bytesPerSample) {
+                    channel.write(samples.flip());
+                    samples.clear();
+                }
+            }
+            channel.write(samples.flip());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(WavSplitterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
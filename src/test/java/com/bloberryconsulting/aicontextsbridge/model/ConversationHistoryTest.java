@@ -0,0 +1,110 @@
+package com.bloberryconsulting.aicontextsbridge.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The binary encoding of a conversation history, as stored in the history map.
+ */
+class ConversationHistoryTest {
+
+    @Test
+    void decodesTheEncodedMessages() {
+        ConversationHistory history = new ConversationHistory();
+        history.append(new ChatMessage(ChatMessage.SYSTEM, "You answer in French.", null, 12, "o200k_base"));
+        history.append(new ChatMessage(ChatMessage.USER, "Résume ce document 📄", new long[] { 42L, -7L }, 300,
+                "o200k_base"));
+        history.append(new ChatMessage("tool", "{\"result\": 1}", null, 9, "o200k_base"));
+        history.append(new ChatMessage(ChatMessage.ASSISTANT, "", null, 0, null));
+        history.append(new ChatMessage(ChatMessage.ASSISTANT, "x".repeat(70_000)));
+
+        ConversationHistory decoded = ConversationHistory.fromBytes(history.toBytes());
+
+        assertEquals(history.size(), decoded.size());
+        for (int i = 0; i < history.size(); i++) {
+            assertMessage(history.get(i), decoded.get(i));
+        }
+        assertTrue(decoded.containsDocument(42L));
+        assertTrue(decoded.containsDocument(-7L));
+        assertFalse(decoded.containsDocument(0L));
+        assertEquals(history.toJsonArray().toString(), decoded.toJsonArray().toString());
+    }
+
+    @Test
+    void appendsEncodedMessagesUpToTheLimit() {
+        byte[] history = null;
+        for (int i = 0; i < 5; i++) {
+            history = ConversationHistory.appendEncoded(history, ConversationHistory.encode(
+                    new ChatMessage(ChatMessage.USER, "question " + i, new long[] { i }),
+                    new ChatMessage(ChatMessage.ASSISTANT, "answer " + i)), 6);
+        }
+
+        assertEquals(6, ConversationHistory.countMessages(history));
+        ConversationHistory decoded = ConversationHistory.fromBytes(history);
+        assertEquals("question 2", decoded.get(0).getContent());
+        assertEquals("answer 4", decoded.get(5).getContent());
+        assertFalse(decoded.containsDocument(1L));
+        assertTrue(decoded.containsDocument(2L));
+
+        // More new messages than the limit keeps the newest of them
+        byte[] trimmed = ConversationHistory.appendEncoded(history, ConversationHistory.encode(
+                new ChatMessage(ChatMessage.USER, "a"), new ChatMessage(ChatMessage.USER, "b"),
+                new ChatMessage(ChatMessage.USER, "c")), 2);
+        ConversationHistory last = ConversationHistory.fromBytes(trimmed);
+        assertEquals(2, last.size());
+        assertEquals("b", last.get(0).getContent());
+        assertEquals("c", last.get(1).getContent());
+    }
+
+    @Test
+    void readsAndUpgradesHistoriesWithoutDocuments() {
+        // Version 1: role, encoding, varint tokens, [role], content, no documents
+        ByteArrayOutputStream version1 = new ByteArrayOutputStream();
+        version1.write(1);
+        version1.writeBytes(new byte[] { 2, 1, (byte) 0x96, 0x01 }); // user, cl100k_base, 150 tokens
+        writeString(version1, "Hello");
+        version1.writeBytes(new byte[] { 0, 0, 0 }); // custom role, no encoding
+        writeString(version1, "function");
+        writeString(version1, "{}");
+
+        ConversationHistory decoded = ConversationHistory.fromBytes(version1.toByteArray());
+        assertMessage(new ChatMessage(ChatMessage.USER, "Hello", null, 150, "cl100k_base"), decoded.get(0));
+        assertMessage(new ChatMessage("function", "{}", null, 0, null), decoded.get(1));
+
+        byte[] upgraded = ConversationHistory.appendEncoded(version1.toByteArray(),
+                ConversationHistory.encode(new ChatMessage(ChatMessage.ASSISTANT, "Hi", new long[] { 5L })), 10);
+        assertEquals(2, upgraded[0]);
+        ConversationHistory appended = ConversationHistory.fromBytes(upgraded);
+        assertEquals(3, appended.size());
+        assertMessage(decoded.get(0), appended.get(0));
+        assertTrue(appended.containsDocument(5L));
+    }
+
+    @Test
+    void rejectsAnUnknownVersion() {
+        assertThrows(IllegalArgumentException.class, () -> ConversationHistory.fromBytes(new byte[] { 9, 2, 0, 0 }));
+        assertThrows(IllegalArgumentException.class, () -> ConversationHistory.fromBytes(new byte[0]));
+    }
+
+    private static void assertMessage(ChatMessage expected, ChatMessage actual) {
+        assertEquals(expected.getRole(), actual.getRole());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertArrayEquals(expected.getDocuments(), actual.getDocuments());
+        assertEquals(expected.getEncoding(), actual.getEncoding());
+        assertEquals(expected.getEncoding() != null ? expected.getTokens() : 0, actual.getTokens());
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.write(utf8.length);
+        out.writeBytes(utf8);
+    }
+}
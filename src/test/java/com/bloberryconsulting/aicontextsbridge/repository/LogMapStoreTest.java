@@ -0,0 +1,160 @@
+package com.bloberryconsulting.aicontextsbridge.repository;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.bloberryconsulting.aicontextsbridge.model.User;
+
+/**
+ * The log of a map store across restarts: a store is reopened on the same file as a member
+ * restarting would, and the file is damaged as a crash during a write leaves it.
+ */
+class LogMapStoreTest {
+    private static final String MAP = "users";
+
+    private final Path directory;
+    private final List<LogMapStore> stores = new ArrayList<>();
+
+    LogMapStoreTest() throws IOException {
+        directory = Files.createTempDirectory("log-map-store");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        stores.forEach(LogMapStore::destroy);
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void loadsTheLatestValuesAfterARestart() {
+        LogMapStore store = open();
+        store.store("alice", user("alice", 12.5));
+        Map<String, Object> batch = new LinkedHashMap<>();
+        batch.put("bob", user("bob", 1.0));
+        batch.put("history", new byte[] { 2, 1, 0, 3 });
+        batch.put("carol", user("carol", 0.0));
+        store.storeAll(batch);
+        store.store("alice", user("alice", 20.0));
+        store.delete("carol");
+
+        LogMapStore reopened = reopen(store);
+
+        assertEquals(Set.of("alice", "bob", "history"), keys(reopened));
+        assertEquals(user("alice", 20.0), reopened.load("alice"));
+        assertEquals(user("bob", 1.0), reopened.load("bob"));
+        assertArrayEquals(new byte[] { 2, 1, 0, 3 }, (byte[]) reopened.load("history"));
+        assertNull(reopened.load("carol"));
+        assertEquals(2, reopened.loadAll(List.of("alice", "carol", "history")).size());
+    }
+
+    @Test
+    void truncatesARecordTornByACrash() throws IOException {
+        LogMapStore store = open();
+        store.store("alice", user("alice", 1.0));
+        store.store("bob", user("bob", 2.0));
+        store.destroy();
+        long size = Files.size(logFile());
+        try (FileChannel channel = FileChannel.open(logFile(), StandardOpenOption.WRITE)) {
+            channel.truncate(size - 5);
+        }
+
+        LogMapStore reopened = open();
+        assertEquals(Set.of("alice"), keys(reopened));
+        reopened.store("carol", user("carol", 3.0));
+
+        LogMapStore again = reopen(reopened);
+        assertEquals(Set.of("alice", "carol"), keys(again));
+        assertEquals(user("alice", 1.0), again.load("alice"));
+        assertEquals(user("carol", 3.0), again.load("carol"));
+    }
+
+    @Test
+    void truncatesARecordFailingItsChecksum() throws IOException {
+        LogMapStore store = open();
+        store.store("alice", user("alice", 1.0));
+        long aliceEnd = Files.size(logFile());
+        store.store("bob", user("bob", 2.0));
+        store.destroy();
+        try (FileChannel channel = FileChannel.open(logFile(), StandardOpenOption.WRITE)) {
+            // A byte of the key of bob, past its length and checksum
+            channel.write(ByteBuffer.wrap(new byte[] { 'X' }), aliceEnd + 12);
+        }
+
+        LogMapStore reopened = open();
+
+        assertEquals(Set.of("alice"), keys(reopened));
+        assertEquals(aliceEnd, Files.size(logFile()));
+    }
+
+    @Test
+    void compactsALogOfMostlyOverwrittenRecords() throws IOException {
+        LogMapStore store = open();
+        String padding = "x".repeat(8 * 1024);
+        for (int i = 0; i < 300; i++) {
+            store.store("alice", user("alice" + padding, i));
+        }
+        store.store("bob", user("bob", 2.0));
+        long before = Files.size(logFile());
+
+        LogMapStore reopened = reopen(store);
+
+        assertTrue(before > 2 * 1024 * 1024);
+        assertTrue(Files.size(logFile()) < 32 * 1024);
+        assertEquals(user("alice" + padding, 299), reopened.load("alice"));
+        assertEquals(user("bob", 2.0), reopened.load("bob"));
+        assertEquals(user("bob", 2.0), reopen(reopened).load("bob"));
+    }
+
+    private LogMapStore open() {
+        LogMapStore store = new LogMapStore(directory, MAP);
+        stores.add(store);
+        return store;
+    }
+
+    private LogMapStore reopen(LogMapStore store) {
+        store.destroy();
+        return open();
+    }
+
+    private Path logFile() {
+        return directory.resolve(MAP + LogMapStore.FILE_SUFFIX);
+    }
+
+    private static Set<String> keys(LogMapStore store) {
+        Set<String> keys = new HashSet<>();
+        store.loadAllKeys().forEach(keys::add);
+        return keys;
+    }
+
+    private static User user(String name, double credit) {
+        User user = new User();
+        user.setId(name);
+        user.setName(name);
+        user.setEmail(name + "@example.com");
+        user.setRoles(new HashSet<>(Set.of("ROLE_CUSTOMER")));
+        user.setCredit(credit);
+        return user;
+    }
+}
@@ -0,0 +1,118 @@
+package com.bloberryconsulting.aicontextsbridge.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.bloberryconsulting.aicontextsbridge.config.serialization.ModelSerializers;
+import com.bloberryconsulting.aicontextsbridge.service.HazelcastService;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+
+/**
+ * The credit ledger of an embedded member: the amounts are added as whole micro-cents, so many small
+ * charges of concurrent requests add up to the exact total a double sum would drift from.
+ */
+class UserRepositoryCreditTest {
+    private static final String USER = "user";
+
+    private final HazelcastInstance instance;
+    private final UserRepository userRepository;
+    private final IMap<String, Long> ledger;
+
+    UserRepositoryCreditTest() throws Exception {
+        Config config = new Config();
+        config.setClusterName("user-repository-credit-test-" + UUID.randomUUID());
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getNetworkConfig().getJoin().getAutoDetectionConfig().setEnabled(false);
+        ModelSerializers.register(config.getSerializationConfig().getCompactSerializationConfig());
+        instance = Hazelcast.newHazelcastInstance(config);
+        userRepository = new UserRepository(new HazelcastService(instance, false, "", false, false));
+        ledger = instance.getMap(UserRepository.CREDIT_MAP);
+    }
+
+    @AfterEach
+    void tearDown() {
+        instance.shutdown();
+    }
+
+    @Test
+    void keepsEveryChargeOfConcurrentRequests() throws Exception {
+        int threads = 8;
+        int charges = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> requests = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                requests.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < charges; i++) {
+                        userRepository.addCredit(USER, 0.00002);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> request : requests) {
+                request.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(threads * charges * 2_000L, ledger.get(USER));
+        assertEquals(0.16, userRepository.findCredit(USER));
+    }
+
+    @Test
+    void addsTheAmountsAsWholeMicroCents() {
+        double total = 0;
+        for (int i = 0; i < 10; i++) {
+            total += 0.1;
+            userRepository.addCredit(USER, 0.1);
+        }
+
+        assertEquals(0.9999999999999999, total);
+        assertEquals(1.0, userRepository.findCredit(USER));
+        assertEquals(100_000_000L, ledger.get(USER));
+    }
+
+    @Test
+    void roundsAnAmountToTheNearestMicroCent() {
+        assertEquals(0.00000002, userRepository.addCredit(USER, 0.000000016));
+        assertEquals(0.00000002, userRepository.addCredit(USER, 0.000000004));
+        assertEquals(2L, ledger.get(USER));
+    }
+
+    @Test
+    void takesAPaymentAsANegativeAmount() {
+        userRepository.addCredit(USER, 12.345678);
+
+        assertEquals(2.345678, userRepository.addCredit(USER, -10));
+        assertEquals(234_567_800L, ledger.get(USER));
+    }
+
+    @Test
+    void initializesOnlyALedgerWithoutEntry() {
+        assertEquals(0.0, userRepository.findCredit(USER));
+
+        userRepository.initCredit(USER, 5.25);
+        userRepository.addCredit(USER, 0.75);
+        userRepository.initCredit(USER, 5.25);
+
+        assertEquals(6.0, userRepository.findCredit(USER));
+        assertEquals(600_000_000L, ledger.get(USER));
+    }
+}
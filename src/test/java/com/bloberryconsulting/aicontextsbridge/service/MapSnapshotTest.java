@@ -0,0 +1,172 @@
+package com.bloberryconsulting.aicontextsbridge.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.Inflater;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.bloberryconsulting.aicontextsbridge.config.serialization.ModelSerializers;
+import com.bloberryconsulting.aicontextsbridge.model.User;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+
+/**
+ * Snapshots of a map stored and restored through an embedded member, and the encoding of their entries.
+ */
+class MapSnapshotTest {
+    private static final String MAP = "user";
+    private static final int ENTRIES = 5000;
+
+    private final HazelcastInstance instance;
+    private final Path directory;
+
+    MapSnapshotTest() throws IOException {
+        Config config = new Config();
+        config.setClusterName("map-snapshot-test-" + UUID.randomUUID());
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getNetworkConfig().getJoin().getAutoDetectionConfig().setEnabled(false);
+        ModelSerializers.register(config.getSerializationConfig().getCompactSerializationConfig());
+        instance = Hazelcast.newHazelcastInstance(config);
+        directory = Files.createTempDirectory("map-snapshot");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        instance.shutdown();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void restoresTheStoredEntries() throws Exception {
+        IMap<Object, Object> map = filledMap();
+        Map<Object, Object> stored = new HashMap<>(map);
+        MapSnapshot snapshot = new MapSnapshot(instance, 4);
+        snapshot.store(List.of(map), directory.toString());
+        map.clear();
+        map.put("added-after-the-snapshot", user(-1));
+
+        snapshot.restore(directory.toString());
+
+        assertEquals(stored, new HashMap<>(map));
+    }
+
+    @Test
+    void skipsACorruptedChunk() throws Exception {
+        IMap<Object, Object> map = filledMap();
+        MapSnapshot snapshot = new MapSnapshot(instance, 4);
+        snapshot.store(List.of(map), directory.toString());
+        Path file = directory.resolve(MAP + MapSnapshot.FILE_SUFFIX);
+
+        // Flip a byte in the middle of the compressed entries of the first chunk
+        long chunk = 12 + MAP.getBytes(StandardCharsets.UTF_8).length;
+        ByteBuffer chunkHeader = ByteBuffer.allocate(20);
+        Set<String> skipped = new HashSet<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.read(chunkHeader, chunk);
+            int compressedLength = chunkHeader.getInt(8);
+            ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+            channel.read(compressed, chunk + 20);
+            skipped.addAll(chunkKeys(compressed.array(), chunkHeader.getInt(0)));
+            long flipped = chunk + 20 + compressedLength / 2;
+            ByteBuffer data = ByteBuffer.allocate(1);
+            channel.read(data, flipped);
+            data.put(0, (byte) ~data.get(0)).rewind();
+            channel.write(data, flipped);
+        }
+
+        snapshot.restore(directory.toString());
+
+        assertTrue(!skipped.isEmpty());
+        assertEquals(ENTRIES - skipped.size(), map.size());
+        for (int i = 0; i < ENTRIES; i++) {
+            String key = "user-" + i;
+            assertEquals(skipped.contains(key) ? null : user(i), map.get(key));
+        }
+    }
+
+    @Test
+    void encodesEntriesWithTheirClass() throws Exception {
+        MapEntryCodec codec = new MapEntryCodec();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        codec.writeObject(out, user(1));
+        codec.writeObject(out, null);
+        codec.writeObject(out, "key");
+        codec.writeObject(out, new byte[] { 1, 2, 3 });
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(user(1), codec.readObject(in));
+        assertNull(codec.readObject(in));
+        assertEquals("key", codec.readObject(in));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) codec.readObject(in));
+        assertEquals(0, in.available());
+    }
+
+    private IMap<Object, Object> filledMap() {
+        IMap<Object, Object> map = instance.getMap(MAP);
+        Map<Object, Object> entries = new HashMap<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            entries.put("user-" + i, user(i));
+        }
+        map.putAll(entries);
+        return map;
+    }
+
+    private static Set<String> chunkKeys(byte[] compressed, int entries) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!inflater.finished()) {
+            raw.write(buffer, 0, inflater.inflate(buffer));
+        }
+        inflater.end();
+        MapEntryCodec codec = new MapEntryCodec();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw.toByteArray()));
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < entries; i++) {
+            keys.add((String) codec.readObject(in));
+            codec.readObject(in);
+        }
+        return keys;
+    }
+
+    private static User user(int i) {
+        User user = new User();
+        user.setId("user-" + i);
+        user.setName("User " + i);
+        user.setEmail("user" + i + "@example.com");
+        user.setClientId("client-" + (i % 10));
+        user.setRoles(new HashSet<>(Set.of("ROLE_CUSTOMER")));
+        user.setCredit(i / 4.0);
+        return user;
+    }
+}
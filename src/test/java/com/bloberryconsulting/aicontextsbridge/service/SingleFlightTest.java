@@ -0,0 +1,210 @@
+package com.bloberryconsulting.aicontextsbridge.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import com.bloberryconsulting.aicontextsbridge.config.ThreadMode;
+import com.bloberryconsulting.aicontextsbridge.exceptions.UpstreamError;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+
+/**
+ * The flights of one embedded member. A leader on another member is played by registering another
+ * member in the flights map and publishing its outcome in the results map, as that member would.
+ * The calls are futures completed by the tests.
+ */
+class SingleFlightTest {
+    private static final String KEY = "chat:gpt-4o:request";
+    private static final long WAIT_SECONDS = 1;
+
+    private final HazelcastInstance instance;
+    private final SingleFlight singleFlight;
+    private final List<CompletableFuture<String>> calls = new ArrayList<>();
+    private final AtomicInteger callCount = new AtomicInteger();
+
+    SingleFlightTest() {
+        Config config = new Config();
+        config.setClusterName("single-flight-test-" + UUID.randomUUID());
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getNetworkConfig().getJoin().getAutoDetectionConfig().setEnabled(false);
+        instance = Hazelcast.newHazelcastInstance(config);
+        singleFlight = new SingleFlight(instance, new ThreadMode(false), 2, true, WAIT_SECONDS, 5);
+    }
+
+    @AfterEach
+    void tearDown() {
+        singleFlight.shutdown();
+        instance.shutdown();
+    }
+
+    @Test
+    void sharesOneCallBetweenTheCallersOfAMember() throws Exception {
+        List<CompletableFuture<String>> answers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            answers.add(singleFlight.execute(KEY, call()));
+        }
+
+        assertEquals(1, callCount.get());
+        calls.get(0).complete("answer");
+        for (CompletableFuture<String> answer : answers) {
+            assertEquals("answer", answer.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1L, singleFlight.stats().get("led"));
+        assertEquals(4L, singleFlight.stats().get("joinedLocally"));
+        awaitInFlight(0);
+    }
+
+    @Test
+    void cancelsTheCallWhenTheLastCallerCancels() {
+        CompletableFuture<String> first = singleFlight.execute(KEY, call());
+        CompletableFuture<String> second = singleFlight.execute(KEY, call());
+
+        first.cancel(true);
+        assertFalse(calls.get(0).isCancelled());
+        assertFalse(second.isDone());
+
+        second.cancel(true);
+        assertTrue(calls.get(0).isCancelled());
+        assertEquals(1, callCount.get());
+    }
+
+    @Test
+    void startsANewFlightForACallerArrivingAfterTheAbandon() throws Exception {
+        singleFlight.execute(KEY, call()).cancel(true);
+        assertTrue(calls.get(0).isCancelled());
+
+        CompletableFuture<String> answer = singleFlight.execute(KEY, call());
+
+        assertEquals(2, callCount.get());
+        calls.get(1).complete("second answer");
+        assertEquals("second answer", answer.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void passesTheErrorOfTheCallToTheCallersOfTheLeader() {
+        CompletableFuture<String> first = singleFlight.execute(KEY, call());
+        CompletableFuture<String> second = singleFlight.execute(KEY, call());
+        UpstreamError error = new UpstreamError(HttpStatus.BAD_REQUEST, "Bad request", 0);
+
+        calls.get(0).completeExceptionally(error);
+
+        for (CompletableFuture<String> answer : List.of(first, second)) {
+            ExecutionException thrown = assertThrows(ExecutionException.class, () -> answer.get(5, TimeUnit.SECONDS));
+            assertEquals(error, thrown.getCause());
+        }
+        assertEquals(1, callCount.get());
+    }
+
+    @Test
+    void answersAFollowerWithTheAnswerOfTheLeader() throws Exception {
+        IMap<String, UUID> flights = ledByAnotherMember();
+
+        CompletableFuture<String> answer = singleFlight.execute(KEY, call());
+        assertFalse(answer.isDone());
+        instance.<String, SingleFlight.Outcome>getMap(SingleFlight.FLIGHT_RESULTS_MAP)
+                .set(KEY, new SingleFlight.Outcome("answer of the leader"));
+        flights.remove(KEY);
+
+        assertEquals("answer of the leader", answer.get(5, TimeUnit.SECONDS));
+        assertEquals(0, callCount.get());
+        assertEquals(1L, singleFlight.stats().get("joinedRemotely"));
+    }
+
+    @Test
+    void fallsBackWhenTheLeaderFails() throws Exception {
+        ledByAnotherMember();
+
+        CompletableFuture<String> answer = singleFlight.execute(KEY, call());
+        instance.<String, SingleFlight.Outcome>getMap(SingleFlight.FLIGHT_RESULTS_MAP)
+                .set(KEY, new SingleFlight.Outcome(null));
+
+        awaitCalls(1);
+        calls.get(0).complete("own answer");
+        assertEquals("own answer", answer.get(5, TimeUnit.SECONDS));
+        assertEquals(1L, singleFlight.stats().get("fallbacks"));
+    }
+
+    @Test
+    void fallsBackWhenTheLeaderDoesNotAnswerInTime() throws Exception {
+        ledByAnotherMember();
+
+        CompletableFuture<String> answer = singleFlight.execute(KEY, call());
+        assertEquals(0, callCount.get());
+
+        awaitCalls(1);
+        calls.get(0).complete("own answer");
+        assertEquals("own answer", answer.get(5, TimeUnit.SECONDS));
+        assertEquals(1L, singleFlight.stats().get("fallbacks"));
+    }
+
+    @Test
+    void doesNotFallBackForAFollowerCancelledByItsCallers() throws Exception {
+        ledByAnotherMember();
+
+        CompletableFuture<String> answer = singleFlight.execute(KEY, call());
+        answer.cancel(true);
+        instance.<String, SingleFlight.Outcome>getMap(SingleFlight.FLIGHT_RESULTS_MAP)
+                .set(KEY, new SingleFlight.Outcome(null));
+        Thread.sleep(TimeUnit.SECONDS.toMillis(WAIT_SECONDS) + 500);
+
+        assertEquals(0, callCount.get());
+        assertThrows(CancellationException.class, () -> answer.get());
+    }
+
+    // Registers a leader of KEY on another member, as its putIfAbsent would
+    private IMap<String, UUID> ledByAnotherMember() {
+        IMap<String, UUID> flights = instance.getMap(SingleFlight.FLIGHTS_MAP);
+        flights.put(KEY, UUID.randomUUID(), 30, TimeUnit.SECONDS);
+        return flights;
+    }
+
+    // A call whose future is completed by the test
+    private Supplier<CompletableFuture<String>> call() {
+        return () -> {
+            CompletableFuture<String> call = new CompletableFuture<>();
+            synchronized (calls) {
+                calls.add(call);
+            }
+            callCount.incrementAndGet();
+            return call;
+        };
+    }
+
+    private void awaitCalls(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(WAIT_SECONDS + 5);
+        while (callCount.get() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Expected " + count + " calls, got " + callCount.get());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitInFlight(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (((Number) singleFlight.stats().get("inFlight")).intValue() != count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Flights still in progress: " + singleFlight.stats());
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.bloberryconsulting.aicontextsbridge.service.ratelimit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.AbstractMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The arithmetic of the generic cell rate algorithm, on a limit of one request per second with a
+ * burst of 5: an emission interval of 1 s and a tolerance of 5 s. The entries are plain map entries
+ * and the processor reads the system clock, so the expectations leave a second of slack.
+ */
+class GcraProcessorTest {
+    private static final RateLimit LIMIT = new RateLimit(60, 5);
+    private static final long SECOND_MICROS = 1_000_000;
+
+    @Test
+    void grantsTheWholeBurstToANewKey() {
+        Map.Entry<String, Long> entry = new AbstractMap.SimpleEntry<>("user:1", null);
+        long before = nowMicros();
+
+        Grant grant = new GcraProcessor(LIMIT, 3).process(entry);
+
+        assertEquals(new Grant(3, 0), grant);
+        assertBetween(before + 3 * SECOND_MICROS, nowMicros() + 3 * SECOND_MICROS, entry.getValue());
+        assertEquals(new Grant(2, 0), new GcraProcessor(LIMIT, 10).process(entry));
+    }
+
+    @Test
+    void grantsOnlyThePermitsFittingTheTolerance() {
+        Map.Entry<String, Long> entry = new AbstractMap.SimpleEntry<>("user:1", nowMicros() + 3 * SECOND_MICROS);
+        long tat = entry.getValue();
+
+        Grant grant = new GcraProcessor(LIMIT, 5).process(entry);
+
+        assertEquals(new Grant(2, 0), grant);
+        assertEquals(tat + 2 * SECOND_MICROS, (long) entry.getValue());
+    }
+
+    @Test
+    void refusesAFullBucketWithTheWaitForTheNextPermit() {
+        long tat = nowMicros() + 5 * SECOND_MICROS;
+        Map.Entry<String, Long> entry = new AbstractMap.SimpleEntry<>("user:1", tat);
+
+        Grant grant = new GcraProcessor(LIMIT, 1).process(entry);
+
+        assertEquals(0, grant.permits());
+        assertBetween(1, 1000, grant.retryAfterMillis());
+        assertEquals(tat, (long) entry.getValue());
+    }
+
+    @Test
+    void waitsLongerTheFurtherTheArrivalTimeIsAhead() {
+        Map.Entry<String, Long> entry = new AbstractMap.SimpleEntry<>("user:1", nowMicros() + 8 * SECOND_MICROS);
+
+        Grant grant = new GcraProcessor(LIMIT, 1).process(entry);
+
+        assertEquals(0, grant.permits());
+        assertBetween(3001, 4000, grant.retryAfterMillis());
+    }
+
+    @Test
+    void forgetsAnArrivalTimeInThePast() {
+        Map.Entry<String, Long> entry = new AbstractMap.SimpleEntry<>("user:1", nowMicros() - 3600 * SECOND_MICROS);
+
+        assertEquals(new Grant(5, 0), new GcraProcessor(LIMIT, 50).process(entry));
+    }
+
+    private static long nowMicros() {
+        return System.currentTimeMillis() * 1000;
+    }
+
+    private static void assertBetween(long min, long max, long actual) {
+        assertTrue(actual >= min && actual <= max);
+    }
+}
@@ -0,0 +1,22 @@
+package com.bloberryconsulting.aicontextsbridge.service.ratelimit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+
+    @Test
+    void takesAtMostThePermitsEmittedWithinTheLease() {
+        // 20 per minute emits a permit every 3 s: none fits a lease of 1 s, one is taken at a time
+        assertEquals(1, RateLimiter.batch(new RateLimit(20, 5), 5, 1000));
+        assertEquals(2, RateLimiter.batch(new RateLimit(120, 20), 5, 1000));
+        assertEquals(5, RateLimiter.batch(new RateLimit(500, 50), 5, 1000));
+    }
+
+    @Test
+    void takesAtMostTheBurst() {
+        assertEquals(3, RateLimiter.batch(new RateLimit(6000, 3), 5, 1000));
+        assertEquals(1, RateLimiter.batch(new RateLimit(6000, 1), 5, 1000));
+    }
+}
@@ -0,0 +1,49 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The rankings of a small corpus whose BM25 order follows from the term frequencies, the chunk
+ * lengths (average 7.2 terms) and the number of chunks sharing a term.
+ */
+class Bm25IndexTest {
+    private static final List<String> CORPUS = List.of(
+            "The cat sat on the mat.",
+            "The dog chased the cat around the garden.",
+            "Hazelcast partitions the map entries across the members of the cluster.",
+            "A cat, a cat, a cat, a cat!",
+            "Dogs and cats.");
+
+    private final Bm25Index index = new Bm25Index(CORPUS);
+
+    @Test
+    void ranksTheChunksOfATermByFrequencyThenByLength() {
+        // 4 occurrences first, then 1 occurrence in 6 terms before 1 in 8 terms
+        assertArrayEquals(new int[] { 3, 0, 1 }, index.search("cat", 10));
+    }
+
+    @Test
+    void ranksAChunkMatchingARareTermFirst() {
+        // "garden" is in one chunk, "cat" in three: the chunk with both wins over 4 cats
+        assertArrayEquals(new int[] { 1, 3, 0 }, index.search("cat garden", 10));
+        assertArrayEquals(new int[] { 2 }, index.search("Cluster partitions, members?", 10));
+    }
+
+    @Test
+    void matchesTheTermsWholeAndIgnoringCase() {
+        assertArrayEquals(new int[] { 4 }, index.search("CATS", 10));
+        assertArrayEquals(new int[] { 3, 0, 1 }, index.search("cat?!", 10));
+    }
+
+    @Test
+    void returnsAtMostTheLimitAndOnlyMatchingChunks() {
+        assertArrayEquals(new int[] { 3, 0 }, index.search("cat", 2));
+        assertArrayEquals(new int[0], index.search("cat", 0));
+        assertArrayEquals(new int[0], index.search("elephant", 10));
+        assertArrayEquals(new int[0], new Bm25Index(List.of()).search("cat", 10));
+    }
+}
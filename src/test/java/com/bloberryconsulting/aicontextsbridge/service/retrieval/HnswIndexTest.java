@@ -0,0 +1,184 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The searches of an index of 2000 unit vectors drawn around 20 cluster centres, compared with the
+ * exhaustive search of the same vectors. The position of a chunk is its node, its tag the parity of
+ * the node.
+ */
+class HnswIndexTest {
+    private static final int DIMENSIONS = 64;
+    private static final int SIZE = 2000;
+    private static final int CLUSTERS = 20;
+    private static final int K = 10;
+    private static final int EF = 64;
+
+    private final Random random = new Random(42);
+    private final float[][] centres = new float[CLUSTERS][DIMENSIONS];
+    private final float[][] vectors = new float[SIZE][];
+    private final Path directory;
+    private HnswIndex index;
+
+    HnswIndexTest() throws IOException {
+        for (float[] centre : centres) {
+            for (int i = 0; i < DIMENSIONS; i++) {
+                centre[i] = (float) random.nextGaussian();
+            }
+        }
+        directory = Files.createTempDirectory("hnsw-index");
+        index = HnswIndex.open(directory, DIMENSIONS, 16, 100);
+        for (int node = 0; node < SIZE; node++) {
+            vectors[node] = around(centres[random.nextInt(CLUSTERS)]);
+            index.insert(vectors[node], node % 2, 0, node, 0, 0);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        index.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void findsTheNearestChunksOfTheExhaustiveSearch() {
+        int found = 0;
+        int queries = 100;
+        for (int q = 0; q < queries; q++) {
+            float[] query = around(centres[random.nextInt(CLUSTERS)]);
+            Set<Integer> exact = bruteForce(query, null);
+            List<HnswIndex.Hit> hits = index.search(query, K, EF, null);
+            assertEquals(K, hits.size());
+            for (int i = 0; i < hits.size(); i++) {
+                found += exact.contains(hits.get(i).position()) ? 1 : 0;
+                assertTrue(i == 0 || hits.get(i - 1).score() >= hits.get(i).score());
+            }
+        }
+        double recall = found / (double) (queries * K);
+        assertTrue(recall >= 0.95, "recall@" + K + " " + recall);
+    }
+
+    @Test
+    void searchesOnlyTheChunksOfTheGivenContexts() {
+        for (int q = 0; q < 20; q++) {
+            float[] query = around(centres[random.nextInt(CLUSTERS)]);
+            List<HnswIndex.Hit> hits = index.search(query, K, EF, Set.of(1L));
+            assertEquals(K, hits.size());
+            for (HnswIndex.Hit hit : hits) {
+                assertEquals(1L, hit.tag());
+                assertEquals(1, hit.position() % 2);
+            }
+        }
+        assertEquals(List.of(), index.search(vectors[0], K, EF, Set.of(7L)));
+    }
+
+    @Test
+    void searchesTheFewChunksOfAContextExhaustively() {
+        // Fewer matching chunks than candidates: the search compares them all
+        long tag = 99;
+        float[][] context = new float[30][];
+        for (int position = 0; position < context.length; position++) {
+            context[position] = around(centres[random.nextInt(CLUSTERS)]);
+            index.insert(context[position], tag, 1, position, 0, 0);
+        }
+        float[] query = around(centres[0]);
+        double[] scores = new double[context.length];
+        for (int position = 0; position < context.length; position++) {
+            scores[position] = similarity(context[position], query) + 2;
+        }
+
+        List<HnswIndex.Hit> hits = index.search(query, K, EF, Set.of(tag));
+
+        assertEquals(List.of(IntStream.of(TopK.select(scores, K)).boxed().toArray()),
+                List.of(hits.stream().map(HnswIndex.Hit::position).toArray()));
+        assertTrue(hits.stream().allMatch(hit -> hit.tag() == tag && hit.document() == 1));
+    }
+
+    @Test
+    void leavesTheChunksOfADeletedContextOut() {
+        assertEquals(SIZE / 2, index.delete(0L));
+        assertEquals(SIZE / 2, index.deletedCount());
+
+        for (int q = 0; q < 20; q++) {
+            float[] query = around(centres[random.nextInt(CLUSTERS)]);
+            Set<Integer> exact = bruteForce(query, 1L);
+            List<HnswIndex.Hit> hits = index.search(query, K, EF, null);
+            assertEquals(K, hits.size());
+            for (HnswIndex.Hit hit : hits) {
+                assertEquals(1L, hit.tag());
+            }
+            assertTrue(hits.stream().filter(hit -> exact.contains(hit.position())).count() >= K - 2);
+        }
+    }
+
+    @Test
+    void findsTheSameChunksAfterAReopen() throws IOException {
+        index.setVersion(1L, 5L);
+        float[] query = around(centres[3]);
+        List<HnswIndex.Hit> before = index.search(query, K, EF, null);
+        index.flush();
+        index.close();
+
+        index = HnswIndex.open(directory, DIMENSIONS, 16, 100);
+
+        assertEquals(SIZE, index.size());
+        assertEquals(5L, index.getVersion(1L));
+        assertEquals(before, index.search(query, K, EF, null));
+    }
+
+    // A unit vector near the centre
+    private float[] around(float[] centre) {
+        float[] vector = new float[DIMENSIONS];
+        double norm = 0;
+        for (int i = 0; i < DIMENSIONS; i++) {
+            vector[i] = centre[i] + (float) (random.nextGaussian() * 0.5);
+            norm += vector[i] * vector[i];
+        }
+        for (int i = 0; i < DIMENSIONS; i++) {
+            vector[i] /= (float) Math.sqrt(norm);
+        }
+        return vector;
+    }
+
+    // The nodes of the K most similar vectors of a tag, of all tags for null
+    private Set<Integer> bruteForce(float[] query, Long tag) {
+        double[] scores = new double[SIZE];
+        for (int node = 0; node < SIZE; node++) {
+            if (tag != null && node % 2 != tag) {
+                continue;
+            }
+            // TopK skips the scores of 0 or less
+            scores[node] = similarity(vectors[node], query) + 2;
+        }
+        Set<Integer> nearest = new HashSet<>();
+        IntStream.of(TopK.select(scores, K)).forEach(nearest::add);
+        return nearest;
+    }
+
+    private static double similarity(float[] a, float[] b) {
+        double dot = 0;
+        for (int i = 0; i < DIMENSIONS; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+}
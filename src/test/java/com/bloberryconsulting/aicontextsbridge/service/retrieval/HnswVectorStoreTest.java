@@ -0,0 +1,133 @@
+package com.bloberryconsulting.aicontextsbridge.service.retrieval;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.bloberryconsulting.aicontextsbridge.model.ChatMessage;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ * The indexes of two users on an embedded member, indexed with the same vectors: a user only ever
+ * finds the chunks of its own contexts, kept in the directory of the partition of its user id.
+ */
+class HnswVectorStoreTest {
+    private static final int DIMENSIONS = 8;
+    private static final String ALICE = "alice";
+    private static final String BOB = "bob";
+    private static final long ALICE_DOCS = HnswVectorStore.tag(ALICE, "session", "docs");
+    private static final long BOB_DOCS = HnswVectorStore.tag(BOB, "session", "docs");
+
+    private final HazelcastInstance instance;
+    private final Path directory;
+    private final HnswVectorStore store;
+
+    HnswVectorStoreTest() throws IOException {
+        Config config = new Config();
+        config.setClusterName("hnsw-vector-store-test-" + UUID.randomUUID());
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getNetworkConfig().getJoin().getAutoDetectionConfig().setEnabled(false);
+        instance = Hazelcast.newHazelcastInstance(config);
+        directory = Files.createTempDirectory("hnsw-vector-store");
+        store = new HnswVectorStore(instance, new HashingEmbeddingProvider(DIMENSIONS), directory.toString(), 4, 16,
+                16, 8);
+        store.index(ALICE, ALICE_DOCS, 1, vectors(), chunks());
+        store.index(BOB, BOB_DOCS, 1, vectors(), chunks());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        store.closeAll();
+        instance.shutdown();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void findsOnlyTheChunksOfTheUser() {
+        HnswVectorStore.SearchResult alice = store.search(ALICE, Map.of(ALICE_DOCS, 1L), unit(0), 3);
+        HnswVectorStore.SearchResult bob = store.search(BOB, Map.of(BOB_DOCS, 1L), unit(0), 3);
+
+        assertEquals(Set.of(), alice.missing());
+        assertEquals(List.of(0, 1, 2), alice.hits().stream().map(HnswIndex.Hit::position).toList());
+        assertTrue(alice.hits().stream().allMatch(hit -> hit.tag() == ALICE_DOCS));
+        assertTrue(bob.hits().stream().allMatch(hit -> hit.tag() == BOB_DOCS));
+    }
+
+    @Test
+    void reportsTheContextOfAnotherUserAsMissing() {
+        HnswVectorStore.SearchResult result = store.search(ALICE, Map.of(BOB_DOCS, 1L), unit(0), 3);
+
+        assertEquals(Set.of(BOB_DOCS), result.missing());
+        assertEquals(List.of(), result.hits());
+    }
+
+    @Test
+    void reportsAContextIndexedWithAnotherVersionAsMissing() {
+        HnswVectorStore.SearchResult result = store.search(ALICE, Map.of(ALICE_DOCS, 2L), unit(0), 3);
+
+        assertEquals(Set.of(ALICE_DOCS), result.missing());
+    }
+
+    @Test
+    void keepsTheIndexOfAUserInTheDirectoryOfItsPartition() {
+        assertTrue(Files.isDirectory(userDirectory(ALICE)));
+        assertTrue(Files.isDirectory(userDirectory(BOB)));
+    }
+
+    @Test
+    void deletesTheContextOfAUserOnly() {
+        store.delete(ALICE, ALICE_DOCS);
+
+        assertEquals(Set.of(ALICE_DOCS), store.search(ALICE, Map.of(ALICE_DOCS, 1L), unit(0), 3).missing());
+        assertEquals(3, store.search(BOB, Map.of(BOB_DOCS, 1L), unit(0), 3).hits().size());
+    }
+
+    private Path userDirectory(String userId) {
+        int partition = instance.getPartitionService().getPartition(userId).getPartitionId();
+        return directory.resolve("partition-" + partition).resolve(Long.toHexString(ChatMessage.fingerprint(userId)));
+    }
+
+    // Chunk i leans towards the axes 0 to i, so the chunks nearest to axis 0 are 0, 1, 2...
+    private static float[][] vectors() {
+        float[][] vectors = new float[DIMENSIONS][DIMENSIONS];
+        for (int chunk = 0; chunk < DIMENSIONS; chunk++) {
+            for (int i = 0; i <= chunk; i++) {
+                vectors[chunk][i] = (float) (1 / Math.sqrt(chunk + 1));
+            }
+        }
+        return vectors;
+    }
+
+    // Document 0, position, start and end of every chunk
+    private static int[][] chunks() {
+        int[][] chunks = new int[DIMENSIONS][];
+        for (int chunk = 0; chunk < DIMENSIONS; chunk++) {
+            chunks[chunk] = new int[] { 0, chunk, chunk * 100, chunk * 100 + 100 };
+        }
+        return chunks;
+    }
+
+    private static float[] unit(int axis) {
+        float[] vector = new float[DIMENSIONS];
+        vector[axis] = 1;
+        return vector;
+    }
+}
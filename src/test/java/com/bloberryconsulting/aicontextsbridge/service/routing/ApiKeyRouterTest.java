@@ -0,0 +1,302 @@
+package com.bloberryconsulting.aicontextsbridge.service.routing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import com.bloberryconsulting.aicontextsbridge.config.serialization.ModelSerializers;
+import com.bloberryconsulting.aicontextsbridge.exceptions.UpstreamError;
+import com.bloberryconsulting.aicontextsbridge.model.ApiKey;
+import com.bloberryconsulting.aicontextsbridge.repository.UserRepository;
+import com.bloberryconsulting.aicontextsbridge.service.HazelcastService;
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+
+/**
+ * Routing over a pool of keys of one owner and model, on an embedded member: the failures another
+ * key may not have are sent again with another key and cool the failed one down, the others are not.
+ * The calls record the keys they are made with; without a reported load the keys are equal, so the
+ * first call goes to either of them.
+ */
+class ApiKeyRouterTest {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int COOLDOWN_SECONDS = 10;
+
+    private final HazelcastInstance instance;
+    private final UserRepository userRepository;
+    private final ExecutorService completionExecutor = Executors.newFixedThreadPool(2);
+    private final ApiKeyRouter router;
+    private final IMap<String, KeyLoad> loads;
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+    ApiKeyRouterTest() throws Exception {
+        Config config = new Config();
+        config.setClusterName("api-key-router-test-" + UUID.randomUUID());
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getNetworkConfig().getJoin().getAutoDetectionConfig().setEnabled(false);
+        ModelSerializers.register(config.getSerializationConfig().getCompactSerializationConfig());
+        instance = Hazelcast.newHazelcastInstance(config);
+        userRepository = new UserRepository(new HazelcastService(instance, false, "", false, false));
+        router = new ApiKeyRouter(userRepository, instance, completionExecutor, true, MAX_ATTEMPTS,
+                COOLDOWN_SECONDS, 30);
+        loads = instance.getMap(ApiKeyRouter.API_KEY_LOAD_MAP);
+    }
+
+    @AfterEach
+    void tearDown() {
+        completionExecutor.shutdownNow();
+        instance.shutdown();
+    }
+
+    @Test
+    void failsOverARateLimitAndCoolsTheKeyDownForItsRetryAfter() {
+        ApiKey selected = pool("a", "b");
+        long before = System.currentTimeMillis();
+
+        String answer = router.route(selected, failingFirst(error(HttpStatus.TOO_MANY_REQUESTS, 30_000)));
+
+        assertTwoKeysCalled();
+        assertEquals("answer of " + calls.get(1), answer);
+        assertCoolingBetween(calls.get(0), before + 30_000, System.currentTimeMillis() + 30_000);
+        assertNull(loads.get(calls.get(1)));
+        assertEquals(1L, router.stats().get("failovers"));
+    }
+
+    @Test
+    void failsOverAServerErrorWithTheDefaultCooldown() {
+        ApiKey selected = pool("a", "b");
+        long before = System.currentTimeMillis();
+
+        String answer = router.route(selected, failingFirst(error(HttpStatus.BAD_GATEWAY, 0)));
+
+        assertTwoKeysCalled();
+        assertEquals("answer of " + calls.get(1), answer);
+        assertCoolingBetween(calls.get(0), before + COOLDOWN_SECONDS * 1000L,
+                System.currentTimeMillis() + COOLDOWN_SECONDS * 1000L);
+    }
+
+    @Test
+    void failsOverAnUnreachableApi() throws Exception {
+        ApiKey selected = pool("a", "b");
+
+        // The HTTP client fails the exchange with an IOException
+        CompletableFuture<String> answer = router.routeAsync(selected, apiKey -> {
+            boolean first = calls.isEmpty();
+            calls.add(apiKey.getKeyId());
+            return first
+                    ? CompletableFuture.supplyAsync(() -> {
+                        throw new CompletionException(new IOException("Connection reset"));
+                    })
+                    : CompletableFuture.completedFuture("answer of " + apiKey.getKeyId());
+        });
+
+        String answered = answer.get(5, TimeUnit.SECONDS);
+        assertEquals("answer of " + calls.get(1), answered);
+        assertTwoKeysCalled();
+        assertTrue(cooledDown(calls.get(0)).coolingUntil() > System.currentTimeMillis());
+    }
+
+    @Test
+    void doesNotFailOverAClientError() {
+        ApiKey selected = pool("a", "b");
+        UpstreamError badRequest = error(HttpStatus.BAD_REQUEST, 0);
+
+        UpstreamError thrown = assertThrows(UpstreamError.class,
+                () -> router.route(selected, failingFirst(badRequest)));
+
+        assertEquals(badRequest, thrown);
+        assertEquals(1, calls.size());
+        assertNull(loads.get(calls.get(0)));
+        assertEquals(0L, router.stats().get("failovers"));
+    }
+
+    @Test
+    void stopsAfterTheMaximumAttempts() {
+        ApiKey selected = pool("a", "b", "c", "d", "e");
+
+        assertThrows(UpstreamError.class, () -> router.route(selected, apiKey -> {
+            calls.add(apiKey.getKeyId());
+            throw error(HttpStatus.SERVICE_UNAVAILABLE, 0);
+        }));
+
+        assertEquals(MAX_ATTEMPTS, calls.size());
+        assertEquals(MAX_ATTEMPTS, calls.stream().distinct().count());
+    }
+
+    @Test
+    void prefersTheKeyWithTheMostQuotaLeft() {
+        ApiKey selected = pool("a", "b");
+        router.record(keyNamed("a"), rateLimitHeaders(1000, 50));
+        router.record(keyNamed("b"), rateLimitHeaders(1000, 900));
+        awaitLoads("a", "b");
+
+        for (int i = 0; i < 20; i++) {
+            router.route(selected, succeeding());
+        }
+
+        assertEquals(Collections.nCopies(20, "b"), calls);
+    }
+
+    @Test
+    void avoidsAKeyCoolingDown() {
+        ApiKey selected = pool("a", "b");
+        router.route(selected, failingFirst(error(HttpStatus.TOO_MANY_REQUESTS, 60_000)));
+        String cooling = calls.get(0);
+        String other = calls.get(1);
+        cooledDown(cooling);
+        calls.clear();
+
+        for (int i = 0; i < 20; i++) {
+            router.route(selected, succeeding());
+        }
+
+        assertEquals(Collections.nCopies(20, other), calls);
+    }
+
+    @Test
+    void usesASingleKeyPoolAsIs() {
+        ApiKey selected = pool("a");
+
+        assertThrows(UpstreamError.class,
+                () -> router.route(selected, failingFirst(error(HttpStatus.TOO_MANY_REQUESTS, 0))));
+
+        assertEquals(List.of("a"), calls);
+    }
+
+    @Test
+    void failsOverAsynchronously() throws Exception {
+        ApiKey selected = pool("a", "b");
+
+        CompletableFuture<String> answer = router.routeAsync(selected, apiKey -> {
+            boolean first = calls.isEmpty();
+            calls.add(apiKey.getKeyId());
+            return first
+                    ? CompletableFuture.failedFuture(error(HttpStatus.INTERNAL_SERVER_ERROR, 0))
+                    : CompletableFuture.completedFuture("answer of " + apiKey.getKeyId());
+        });
+
+        String answered = answer.get(5, TimeUnit.SECONDS);
+        assertEquals("answer of " + calls.get(1), answered);
+        assertTwoKeysCalled();
+    }
+
+    @Test
+    void completesAsynchronouslyWithAClientError() {
+        ApiKey selected = pool("a", "b");
+        UpstreamError unauthorized = error(HttpStatus.UNAUTHORIZED, 0);
+
+        CompletableFuture<String> answer = router.routeAsync(selected, apiKey -> {
+            calls.add(apiKey.getKeyId());
+            return CompletableFuture.failedFuture(unauthorized);
+        });
+
+        ExecutionException thrown = assertThrows(ExecutionException.class, () -> answer.get(5, TimeUnit.SECONDS));
+        assertEquals(unauthorized, thrown.getCause());
+        assertEquals(1, calls.size());
+    }
+
+    // Saves the keys of one owner and model; the first one is the key selected by the user
+    private ApiKey pool(String... keyIds) {
+        for (String keyId : keyIds) {
+            userRepository.saveApiKey(keyNamed(keyId));
+        }
+        return keyNamed(keyIds[0]);
+    }
+
+    private static ApiKey keyNamed(String keyId) {
+        ApiKey apiKey = new ApiKey();
+        apiKey.setKeyId(keyId);
+        apiKey.setKeyValue("sk-" + keyId);
+        apiKey.setName("ChatGPT");
+        apiKey.setUserId("owner");
+        apiKey.setModel("gpt-4o");
+        apiKey.setUri("https://api.openai.com/v1/chat/completions");
+        return apiKey;
+    }
+
+    // Fails the first call, answers the others
+    private Function<ApiKey, String> failingFirst(RuntimeException error) {
+        return apiKey -> {
+            boolean first = calls.isEmpty();
+            calls.add(apiKey.getKeyId());
+            if (first) {
+                throw error;
+            }
+            return "answer of " + apiKey.getKeyId();
+        };
+    }
+
+    private Function<ApiKey, String> succeeding() {
+        return apiKey -> {
+            calls.add(apiKey.getKeyId());
+            return "answer of " + apiKey.getKeyId();
+        };
+    }
+
+    private void assertTwoKeysCalled() {
+        assertEquals(2, calls.size());
+        assertEquals(2, calls.stream().distinct().count());
+    }
+
+    private void assertCoolingBetween(String keyId, long from, long to) {
+        long coolingUntil = cooledDown(keyId).coolingUntil();
+        assertTrue(coolingUntil >= from && coolingUntil <= to);
+    }
+
+    private static UpstreamError error(HttpStatus status, long retryAfterMillis) {
+        return new UpstreamError(status, status.getReasonPhrase(), retryAfterMillis);
+    }
+
+    private static HttpHeaders rateLimitHeaders(long limit, long remaining) {
+        return HttpHeaders.of(Map.of(
+                "x-ratelimit-limit-requests", List.of(Long.toString(limit)),
+                "x-ratelimit-remaining-requests", List.of(Long.toString(remaining)),
+                "x-ratelimit-reset-requests", List.of("1m0s")), (name, value) -> true);
+    }
+
+    // The cool downs and observations are submitted without waiting for them
+    private KeyLoad cooledDown(String keyId) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            KeyLoad load = loads.get(keyId);
+            if (load != null && load.coolingUntil() > 0) {
+                return load;
+            }
+            Thread.onSpinWait();
+        }
+        throw new AssertionError("Key " + keyId + " didn't cool down");
+    }
+
+    private void awaitLoads(String... keyIds) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (loads.getAll(Set.of(keyIds)).size() < keyIds.length) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Loads of " + List.of(keyIds) + " not recorded");
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
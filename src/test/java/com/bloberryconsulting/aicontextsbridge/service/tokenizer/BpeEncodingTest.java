@@ -0,0 +1,50 @@
+package com.bloberryconsulting.aicontextsbridge.service.tokenizer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The token ids of a few texts as tiktoken encodes them: words and punctuation, numbers,
+ * contractions, non-ASCII letters and an emoji, indented code with blank lines, and base64.
+ */
+class BpeEncodingTest {
+    private static final String[] TEXTS = {
+            "hello world",
+            "Hello, world! It's 2024, isn't it?",
+            "Größe über 東京 — naïve café 🙂",
+            "    def square(x):\n\treturn x ** 2\n\n\n",
+            "aGVsbG8gd29ybGQhIGJhc2U2NCBibG9i+/==" };
+
+    @Test
+    void encodesLikeCl100kBase() {
+        int[][] expected = {
+                { 15339, 1917 },
+                { 9906, 11, 1917, 0, 1102, 596, 220, 2366, 19, 11, 4536, 956, 433, 30 },
+                { 6600, 80040, 14104, 61696, 109, 47653, 2001, 95980, 588, 53050, 28584 },
+                { 262, 711, 9518, 2120, 997, 862, 865, 3146, 220, 17, 1432 },
+                { 64, 40818, 17319, 38, 23, 29684, 1682, 85407, 38, 48, 71, 1953, 41, 39152, 17, 52, 17, 10153, 33,
+                        581, 38, 24, 72, 41731, 419 } };
+        assertEncodes(BpeEncoding.cl100kBase(), expected);
+    }
+
+    @Test
+    void encodesLikeO200kBase() {
+        int[][] expected = {
+                { 24912, 2375 },
+                { 13225, 11, 2375, 0, 7744, 220, 1323, 19, 11, 12471, 480, 30 },
+                { 3193, 52715, 5469, 185244, 2733, 153475, 737, 30469, 26192 },
+                { 271, 1056, 13749, 4061, 1883, 1393, 1215, 6240, 220, 17, 2499 },
+                { 64, 46262, 25345, 38, 23, 39930, 2270, 31861, 38, 48, 71, 3205, 41, 75770, 17, 52, 17, 14842,
+                        151815, 38, 24, 72, 81454, 560 } };
+        assertEncodes(BpeEncoding.o200kBase(), expected);
+    }
+
+    private static void assertEncodes(BpeEncoding encoding, int[][] expected) {
+        for (int i = 0; i < TEXTS.length; i++) {
+            assertArrayEquals(expected[i], encoding.encode(TEXTS[i]));
+            assertEquals(expected[i].length, encoding.countTokens(TEXTS[i]));
+        }
+    }
+}